@@ -146,6 +146,13 @@ public class AdminController {
         myBagScanner.updateAllGpsPaths();
     }
 
+    @RequestMapping(value = "/updateTopicStatistics", method = RequestMethod.POST)
+    @ResponseBody
+    public void updateTopicStatistics() {
+        myLogger.info("updateTopicStatistics");
+        myBagScanner.updateAllTopicStatistics();
+    }
+
     @RequestMapping(value = "/updateVehicleNames", method = RequestMethod.POST)
     @ResponseBody
     public void updateVehicleNames() {
@@ -0,0 +1,99 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Published through the application context whenever bags are added to,
+ * removed from, or modified in the database, so that anything that caches
+ * information derived from them knows when to discard it.  Listeners that
+ * cache query results should use
+ * {@link org.springframework.transaction.event.TransactionalEventListener}
+ * so that they don't react until the change has been committed.
+ */
+public class BagChangeEvent {
+    public enum Type {
+        ADDED,
+        UPDATED,
+        /** Only the bags' tags changed. */
+        TAGGED,
+        MISSING,
+        REMOVED
+    }
+
+    private final Type myType;
+    private final Set<Long> myBagIds;
+
+    /**
+     * @param type How the bags changed.
+     * @param bagIds The IDs of the bags that changed, or an empty collection
+     *               if it's unknown which bags changed.
+     */
+    public BagChangeEvent(Type type, Collection<Long> bagIds) {
+        myType = type;
+        myBagIds = ImmutableSet.copyOf(bagIds);
+    }
+
+    public BagChangeEvent(Type type, Long bagId) {
+        this(type, ImmutableSet.of(bagId));
+    }
+
+    /**
+     * Creates an event for a change that could have affected any bag.
+     */
+    public static BagChangeEvent allBags(Type type) {
+        return new BagChangeEvent(type, ImmutableSet.of());
+    }
+
+    public Type getType() {
+        return myType;
+    }
+
+    public Set<Long> getBagIds() {
+        return myBagIds;
+    }
+
+    /**
+     * @return True if it's unknown which bags changed.
+     */
+    public boolean isForAllBags() {
+        return myBagIds.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "BagChangeEvent{" + myType + (isForAllBags() ? ", all bags" : ", " + myBagIds) + "}";
+    }
+}
@@ -40,21 +40,25 @@ import com.github.swrirobotics.support.web.*;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.support.ResourceRegion;
 import org.springframework.http.*;
 import org.springframework.web.bind.WebDataBinder;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
@@ -63,11 +67,18 @@ import java.util.concurrent.TimeUnit;
 @ControllerAdvice
 public class BagController {
     private final BagService myBagService;
+    private final SearchCache mySearchCache;
 
     private final Logger myLogger = LoggerFactory.getLogger(BagController.class);
 
-    public BagController(BagService myBagService) {
+    /**
+     * The most values that /bags/facets will return for each facet.
+     */
+    public static final int MAX_FACET_LIMIT = 1000;
+
+    public BagController(BagService myBagService, SearchCache mySearchCache) {
         this.myBagService = myBagService;
+        this.mySearchCache = mySearchCache;
     }
 
     @GetMapping(value="/download", produces="application/x-bag")
@@ -91,6 +102,9 @@ public class BagController {
         try (BagWrapper bag = myBagService.getBagWrapper(id)){
             Resource resource = bag.getResource();
             ResourceRegion region = getResourceRegion(resource, bag.getSize(), rangeHeader);
+            if (region == null) {
+                return rangeNotSatisfiable(bag.getSize());
+            }
             HttpHeaders headers = new HttpHeaders();
             headers.add("Accept-Ranges", "bytes");
             headers.add("Content-Disposition", "attachment; filename=" + bag.getFilename());
@@ -110,6 +124,10 @@ public class BagController {
     }
 
 
+    /**
+     * Parses a single byte range from a Range header.
+     * @return The requested part of the resource, or null if the range can't be satisfied.
+     */
     private ResourceRegion getResourceRegion(Resource resource, long contentLength, String httpHeaders) {
         ResourceRegion resourceRegion;
 
@@ -120,13 +138,34 @@ public class BagController {
         long fromRange;
         long toRange;
 
-        String justRange = httpHeaders.toLowerCase().replaceFirst("bytes=", "");
+        String justRange = httpHeaders.strip().toLowerCase().replaceFirst("bytes=", "");
         List<String> rangeValues = Splitter.on("-").trimResults().splitToList(justRange);
-        fromRange = rangeValues.get(0).isEmpty() ? 0 : Long.parseLong(rangeValues.get(0));
-        toRange = rangeValues.get(1).isEmpty() ? contentLength - 1 : Long.parseLong(rangeValues.get(1));
+        if (rangeValues.size() != 2) {
+            return null;
+        }
+        try {
+            if (rangeValues.get(0).isEmpty()) {
+                // A suffix range, such as "bytes=-500", asks for the end of the resource.
+                long suffixLength = Long.parseLong(rangeValues.get(1));
+                if (suffixLength <= 0) {
+                    return null;
+                }
+                fromRange = Math.max(0, contentLength - suffixLength);
+                toRange = contentLength - 1;
+            }
+            else {
+                fromRange = Long.parseLong(rangeValues.get(0));
+                toRange = rangeValues.get(1).isEmpty() ? contentLength - 1 : Long.parseLong(rangeValues.get(1));
+            }
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
         // myLogger.info("Parsed from/to: " + fromRange + "/" + toRange);
-        fromRange = Math.max(0, fromRange);
-        toRange = Math.min(contentLength, toRange);
+        toRange = Math.min(contentLength - 1, toRange);
+        if (fromRange >= contentLength || toRange < fromRange) {
+            return null;
+        }
         // myLogger.info("Capped from/to: " + fromRange + "/" + toRange);
 
         long rangeLength = toRange - fromRange + 1;
@@ -136,6 +175,13 @@ public class BagController {
         return resourceRegion;
     }
 
+    private static <T> ResponseEntity<T> rangeNotSatisfiable(long contentLength) {
+        return ResponseEntity
+            .status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+            .header("Content-Range", "bytes */" + contentLength)
+            .build();
+    }
+
     @RequestMapping("/get")
     public Bag getBag(@RequestParam Long bagId,
                       HttpServletResponse response) throws IOException {
@@ -161,46 +207,352 @@ public class BagController {
     @RequestMapping("/image")
     public ModelAndView getImage(@RequestParam Long bagId,
                                  @RequestParam String topic,
-                                 @RequestParam Integer index) {
+                                 @RequestParam Integer index,
+                                 @RequestParam(required = false) Integer width,
+                                 @RequestParam(required = false) Integer height,
+                                 @RequestParam(required = false) Integer quality,
+                                 WebRequest webRequest,
+                                 HttpServletResponse response) {
         myLogger.info("getImage: " + bagId + " / " + topic + " / " + index);
         ModelAndView mav = new ModelAndView("image/image");
         try {
-            byte[] imageData = myBagService.getImage(bagId, topic, index);
-            String imageString = "data:image/jpeg;base64," + Base64.getMimeEncoder().encodeToString(imageData);
+            ImageVariant variant = new ImageVariant(ImageVariant.Format.JPEG, width, height, quality);
+            // Images never change for a given bag, so browsers only need to
+            // download them again if their copy has been evicted.
+            response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().cachePrivate().getHeaderValue());
+            if (webRequest.checkNotModified(myBagService.getImageETag(bagId, topic, index, variant))) {
+                return null;
+            }
+            byte[] imageData = myBagService.getImage(bagId, topic, index, variant);
+            String imageString = "data:" + variant.getFormat().getMimeType() + ";base64," +
+                Base64.getMimeEncoder().encodeToString(imageData);
             mav.getModel().put("imageData", imageString);
         }
-        catch (BagReaderException | NonexistentBagException e) {
+        catch (BagReaderException | NonexistentBagException | IllegalArgumentException e) {
+            response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noStore().getHeaderValue());
             mav.getModel().put("errorMessage", "Error retrieving image:<br>" + e.getLocalizedMessage());
         }
         return mav;
     }
 
+    @GetMapping("/image/raw")
+    public ResponseEntity<byte[]> getRawImage(@RequestParam Long bagId,
+                                              @RequestParam String topic,
+                                              @RequestParam Integer index,
+                                              @RequestParam(required = false) Integer width,
+                                              @RequestParam(required = false) Integer height,
+                                              @RequestParam(required = false) Integer quality,
+                                              @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                              WebRequest webRequest,
+                                              HttpServletResponse response) {
+        myLogger.info("getRawImage: " + bagId + " / " + topic + " / " + index);
+        // The same URL can produce different formats, so shared caches have
+        // to key on the Accept header.
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        ImageVariant.Format format = ImageVariant.negotiateFormat(accept, myBagService.isWebpSupported());
+        if (format == null) {
+            return ResponseEntity.status(HttpStatus.NOT_ACCEPTABLE).build();
+        }
+        try {
+            ImageVariant variant = new ImageVariant(format, width, height, quality);
+            if (webRequest.checkNotModified(myBagService.getImageETag(bagId, topic, index, variant))) {
+                return null;
+            }
+            return ResponseEntity.ok()
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .contentType(MediaType.parseMediaType(format.getMimeType()))
+                .body(myBagService.getImage(bagId, topic, index, variant));
+        }
+        catch (IllegalArgumentException e) {
+            myLogger.warn(e.getLocalizedMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        catch (NonexistentBagException e) {
+            myLogger.warn("Bag not found.");
+            return ResponseEntity.notFound().build();
+        }
+        catch (BagReaderException e) {
+            myLogger.warn("Unable to get image: " + e.getLocalizedMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    @RequestMapping("/sprites")
+    public SpriteSheet getSpriteSheet(@RequestParam Long bagId,
+                                      @RequestParam String topic,
+                                      HttpServletResponse response) throws IOException {
+        myLogger.info("getSpriteSheet: " + bagId + " / " + topic);
+        try {
+            return myBagService.getSpriteSheet(bagId, topic);
+        }
+        catch (NonexistentBagException e) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+        catch (BagReaderException e) {
+            myLogger.warn("Unable to generate sprite sheet: " + e.getLocalizedMessage());
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+        return null;
+    }
+
+    @GetMapping(value = "/sprites/image", produces = MediaType.IMAGE_JPEG_VALUE)
+    public ResponseEntity<byte[]> getSpriteSheetImage(@RequestParam Long bagId,
+                                                      @RequestParam String topic,
+                                                      WebRequest webRequest) {
+        try {
+            if (webRequest.checkNotModified(myBagService.getSpriteSheetETag(bagId, topic))) {
+                return null;
+            }
+            return ResponseEntity.ok()
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .body(myBagService.getSpriteSheet(bagId, topic).getImage());
+        }
+        catch (NonexistentBagException | BagReaderException e) {
+            myLogger.warn("Unable to get sprite sheet: " + e.getLocalizedMessage());
+            return ResponseEntity.notFound().build();
+        }
+    }
+
     @RequestMapping("/video")
     public ResponseEntity<StreamingResponseBody> getVideo(@RequestParam Long bagId,
                                                           @RequestParam String topic,
-                                                          @RequestParam Long frameSkip,
-                                                          HttpServletResponse response) {
+                                                          @RequestParam(required = false) Long frameSkip,
+                                                          @RequestParam(required = false) String profile,
+                                                          @RequestHeader(value="Range", required=false) String rangeHeader) {
         myLogger.info("getVideo: " + bagId + ":" + topic);
         try {
-            OutputStream output = response.getOutputStream();
-            response.setContentType("video/webm;codecs=\"vp8\"");
+            EncoderProfile encoderProfile = getEncoderProfile(bagId, topic, profile, true);
+            long skip = frameSkip != null ? frameSkip : myBagService.getFrameSkip(bagId, topic, encoderProfile);
+            return serveVideo(() -> myBagService.getCachedVideo(bagId, topic, skip, encoderProfile),
+                              () -> myBagService.openVideo(bagId, topic, skip, encoderProfile),
+                              rangeHeader);
+        }
+        catch (NonexistentBagException e) {
+            myLogger.warn("Bag not found.");
+            return ResponseEntity.notFound().build();
+        }
+        catch (IllegalArgumentException e) {
+            myLogger.warn(e.getLocalizedMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        finally {
+            myLogger.info("Finished getVideo()");
+        }
+    }
+
+    @RequestMapping("/video/segments")
+    public VideoSegmentIndex getVideoSegments(@RequestParam Long bagId,
+                                              @RequestParam String topic,
+                                              HttpServletResponse response) throws IOException {
+        myLogger.info("getVideoSegments: " + bagId + ":" + topic);
+        try {
+            return myBagService.getVideoSegmentIndex(bagId, topic);
+        }
+        catch (NonexistentBagException e) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+        catch (BagReaderException e) {
+            myLogger.error("Unable to index video segments:", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        return null;
+    }
+
+    @RequestMapping("/video/segment")
+    public ResponseEntity<StreamingResponseBody> getVideoSegment(@RequestParam Long bagId,
+                                                                 @RequestParam String topic,
+                                                                 @RequestParam Integer index,
+                                                                 @RequestParam(required = false) String profile,
+                                                                 @RequestHeader(value="Range", required=false) String rangeHeader) {
+        myLogger.info("getVideoSegment: " + bagId + ":" + topic + ":" + index);
+        try {
+            // Segments of the same video have to match, so don't let load affect them.
+            EncoderProfile encoderProfile = getEncoderProfile(bagId, topic, profile, false);
+            return serveVideo(() -> myBagService.getCachedVideoSegment(bagId, topic, index, encoderProfile),
+                              () -> myBagService.openVideoSegment(bagId, topic, index, encoderProfile),
+                              rangeHeader);
+        }
+        catch (NonexistentBagException e) {
+            myLogger.warn("Bag not found.");
+            return ResponseEntity.notFound().build();
+        }
+        catch (IllegalArgumentException e) {
+            myLogger.warn(e.getLocalizedMessage());
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    /**
+     * Gets the profile a client asked for, or picks one if they didn't.
+     * @throws IllegalArgumentException If the client asked for a profile that doesn't exist.
+     */
+    private EncoderProfile getEncoderProfile(Long bagId, String topic, String profile, boolean considerLoad)
+            throws NonexistentBagException {
+        if (StringUtils.isBlank(profile)) {
+            return myBagService.chooseEncoderProfile(bagId, topic, considerLoad);
+        }
+        return myBagService.getEncoderProfile(profile);
+    }
+
+    private interface CachedVideoLookup {
+        File getCachedVideo() throws NonexistentBagException;
+    }
+
+    private interface VideoOpener {
+        VideoCache.VideoStream openVideo()
+            throws NonexistentBagException, BagReaderException, IOException, EncoderPoolFullException;
+    }
+
+    /**
+     * Serves a video from the cache if it has already been transcoded, or
+     * streams it as it is transcoded if it hasn't.
+     */
+    private ResponseEntity<StreamingResponseBody> serveVideo(CachedVideoLookup lookup,
+                                                             VideoOpener opener,
+                                                             String rangeHeader) {
+        MediaType contentType = MediaType.parseMediaType("video/webm;codecs=\"vp8\"");
+        try {
+            File cachedVideo = lookup.getCachedVideo();
+            if (cachedVideo != null &&
+                (StringUtils.isBlank(rangeHeader) ||
+                 (!rangeHeader.contains(",") && rangeHeader.strip().toLowerCase().startsWith("bytes=")))) {
+                // It's already been transcoded, so clients can seek through it.
+                myLogger.debug("Serving cached video from " + cachedVideo);
+                long length = cachedVideo.length();
+                ResourceRegion region = getResourceRegion(new FileSystemResource(cachedVideo), length, rangeHeader);
+                if (region == null) {
+                    return rangeNotSatisfiable(length);
+                }
+                long position = region.getPosition();
+                long count = region.getCount();
+                // Open it now so that it can't be evicted out from under us.
+                InputStream input = region.getResource().getInputStream();
+                StreamingResponseBody stream = out -> {
+                    try (InputStream in = input) {
+                        IOUtils.copyLarge(in, out, position, count);
+                    }
+                };
+                HttpHeaders headers = new HttpHeaders();
+                headers.add("Accept-Ranges", "bytes");
+                headers.setContentLength(count);
+                if (!StringUtils.isBlank(rangeHeader)) {
+                    headers.add("Content-Range", "bytes " + position + "-" + (position + count - 1) + "/" + length);
+                }
+                return ResponseEntity
+                    .status(StringUtils.isBlank(rangeHeader) ? HttpStatus.OK : HttpStatus.PARTIAL_CONTENT)
+                    .headers(headers)
+                    .contentType(contentType)
+                    .body(stream);
+            }
+
+            VideoCache.VideoStream video = opener.openVideo();
             StreamingResponseBody stream = out -> {
-                try {
-                    myBagService.writeVideoStream(bagId, topic, frameSkip, output);
+                try (VideoCache.VideoStream in = video) {
+                    in.writeTo(out);
                 }
-                catch (BagReaderException | NonexistentBagException e) {
-                    myLogger.error("Error reading bag file:", e);
+                catch (IOException e) {
+                    myLogger.error("Error streaming video:", e);
                 }
             };
-            return new ResponseEntity<>(stream, HttpStatus.OK);
+            return ResponseEntity.ok()
+                .header("X-Queue-Position", Integer.toString(video.getQueuePosition()))
+                .contentType(contentType)
+                .body(stream);
+        }
+        catch (NonexistentBagException e) {
+            myLogger.warn("Bag not found.");
+            return ResponseEntity.notFound().build();
+        }
+        catch (BagReaderException e) {
+            myLogger.warn("Unable to read video: " + e.getLocalizedMessage());
+            return ResponseEntity.notFound().build();
+        }
+        catch (EncoderPoolFullException e) {
+            myLogger.warn("Unable to stream video: " + e.getLocalizedMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterS()))
+                .build();
         }
         catch (IOException e) {
             myLogger.error("Error getting video stream:", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
-        finally {
-            myLogger.info("Finished getVideo()");
+    }
+
+    @RequestMapping("/video/queue")
+    public Map<String, Integer> getVideoQueuePosition(@RequestParam Long bagId,
+                                                      @RequestParam String topic,
+                                                      @RequestParam(required = false) Long frameSkip,
+                                                      @RequestParam(required = false) String profile,
+                                                      HttpServletResponse response) throws IOException {
+        try {
+            EncoderProfile encoderProfile = getEncoderProfile(bagId, topic, profile, true);
+            long skip = frameSkip != null ? frameSkip : myBagService.getFrameSkip(bagId, topic, encoderProfile);
+            return Map.of("position", myBagService.getVideoQueuePosition(bagId, topic, skip, encoderProfile));
+        }
+        catch (NonexistentBagException e) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+    }
+
+    @RequestMapping(value = "/video/export", method = RequestMethod.POST)
+    public VideoExporter.Export exportVideo(@RequestParam Long bagId,
+                                            @RequestParam String topic,
+                                            HttpServletResponse response) throws IOException {
+        myLogger.info("exportVideo: " + bagId + ":" + topic);
+        try {
+            return myBagService.exportVideo(bagId, topic);
+        }
+        catch (NonexistentBagException e) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+        catch (BagReaderException e) {
+            myLogger.error("Unable to export video:", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        return null;
+    }
+
+    @GetMapping("/video/export")
+    public VideoExporter.Export getVideoExport(@RequestParam Long bagId,
+                                               @RequestParam String topic,
+                                               HttpServletResponse response) throws IOException {
+        try {
+            VideoExporter.Export export = myBagService.getVideoExport(bagId, topic);
+            if (export != null) {
+                return export;
+            }
+        }
+        catch (NonexistentBagException e) {
+            myLogger.warn("Bag not found.");
+        }
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return null;
+    }
+
+    @GetMapping("/video/export/download")
+    public ResponseEntity<Resource> downloadVideoExport(@RequestParam Long bagId,
+                                                        @RequestParam String topic) {
+        myLogger.info("downloadVideoExport: " + bagId + ":" + topic);
+        try {
+            File video = myBagService.getExportedVideo(bagId, topic);
+            if (video != null) {
+                String filename = topic.replaceAll("^/+", "").replaceAll("[^A-Za-z0-9_.-]", "_") + ".webm";
+                return ResponseEntity.ok()
+                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
+                    .contentType(MediaType.parseMediaType("video/webm"))
+                    .body(new FileSystemResource(video));
+            }
+        }
+        catch (NonexistentBagException e) {
+            myLogger.warn("Bag not found.");
         }
-        return new ResponseEntity<>(null, HttpStatus.INTERNAL_SERVER_ERROR);
+        return ResponseEntity.notFound().build();
     }
 
     @RequestMapping(value = "/update",
@@ -299,25 +651,32 @@ public class BagController {
      * @param text Text to search for in the provided fields
      * @param fields Fields to search
      * @param page The page of results to return (indexes start at 1)
+     * @param cursor If not null, results are paged by seeking instead of by
+     *               page number; empty for the first page, or the nextCursor
+     *               of the previous page
      * @param limit The number of results per page
      * @param sort The column on which to sort the results
      * @param dir The direction of the sort
      * @param filter ExtJS grid filters to apply to the results
      * @param fillTopics Whether to fill the topics field of the bag objects
      * @param fillTypes Whether to fill the typcs field of the bag objects
-     * @return All bag files that match the given search terms.
+     * @param response Used to report malformed filters
+     * @return Summaries of all bag files that match the given search terms.
+     * @throws IOException If there was an error sending an error response.
      */
     @RequestMapping("/search")
-    public BagList getBags(@RequestParam String text,
+    public BagSummaryList getBags(@RequestParam String text,
                            @RequestParam(required = false) String[] fields,
-                           @RequestParam Integer page,
+                           @RequestParam(required = false) Integer page,
+                           @RequestParam(required = false) String cursor,
                            @RequestParam Integer limit,
                            @RequestParam String sort,
                            @RequestParam String dir,
                            @RequestParam(required = false) ExtJsFilter[] filter,
                            @RequestParam(required = false) Boolean fillTopics,
-                           @RequestParam(required = false) Boolean fillTypes) {
-        myLogger.info("getBags: " + text + " / page: " + page +
+                           @RequestParam(required = false) Boolean fillTypes,
+                           HttpServletResponse response) throws IOException {
+        myLogger.info("getBags: " + text + " / page: " + (cursor != null ? "cursor " + cursor : page) +
                       " / limit: " + limit + " / sort: " + sort +
                       " / dir: " + dir);
         if (fields != null) {
@@ -331,34 +690,115 @@ public class BagController {
             }
         }
 
-        BagList results;
+        try {
+            BagService.validateSpatialFilters(filter);
+        }
+        catch (IllegalArgumentException e) {
+            myLogger.warn("Invalid filter: " + e.getLocalizedMessage());
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+
+        String queryKey = BagService.getQueryKey(text, fields, filter);
+        String pageKey = (cursor != null ? "cursor:" + cursor : "page:" + (page == null ? 1 : page)) +
+            " limit:" + limit + " sort:" + sort + " " + dir +
+            " topics:" + Boolean.TRUE.equals(fillTopics) + " types:" + Boolean.TRUE.equals(fillTypes);
+        boolean searchesTags = text != null && !text.trim().isEmpty() &&
+            fields != null && Arrays.asList(fields).contains("tags");
 
         try {
-            results = myBagService.findBagsContainingText(text,
-                                                          fields,
-                                                          filter,
-                                                          page,
-                                                          limit,
-                                                          dir,
-                                                          sort);
+            return mySearchCache.get(queryKey, pageKey, searchesTags, () -> {
+                BagSummaryList results;
+                if (cursor != null) {
+                    results = myBagService.findBagsAfterCursor(text,
+                                                               fields,
+                                                               filter,
+                                                               cursor,
+                                                               limit,
+                                                               dir,
+                                                               sort);
+                }
+                else {
+                    results = myBagService.findBagsContainingText(text,
+                                                                  fields,
+                                                                  filter,
+                                                                  page == null ? 1 : page,
+                                                                  limit,
+                                                                  dir,
+                                                                  sort);
+                }
+
+                // The big grid doesn't need this information, and loading it for
+                // every bag will slow things down by a lot.
+                myBagService.fillBagDetails(results.getBags(),
+                                            Boolean.TRUE.equals(fillTopics),
+                                            Boolean.TRUE.equals(fillTypes));
+                return results;
+            });
         }
         catch (RuntimeException e) {
             myLogger.error("Error searching bags", e);
             throw e;
         }
+    }
 
-        for (Bag bag : results.getBags()) {
-            // The big grid doesn't need this information, and serializing it for
-            // every bag will slow things down by a lot.
-            if (!Boolean.TRUE.equals(fillTypes)) {
-                bag.getMessageTypes().clear();
-            }
-            if (!Boolean.TRUE.equals(fillTopics)) {
-                bag.getTopics().clear();
-            }
+    /**
+     * Counts the bags that match the given criteria for every vehicle,
+     * location, tag, message type, and storage backend, so that lists of
+     * values to filter by can show how many bags each one would match.
+     *
+     * @param text Text to search for in the provided fields
+     * @param fields Fields to search
+     * @param filter ExtJS grid filters to apply to the results
+     * @param limit The maximum number of values to return for each facet;
+     *              defaults to 100, and can't be more than
+     *              {@link #MAX_FACET_LIMIT}
+     * @param response Used to report malformed filters and limits
+     * @return The number of matching bags for the most common values of each facet.
+     * @throws IOException If there was an error sending an error response.
+     */
+    @RequestMapping("/facets")
+    public BagFacets getFacets(@RequestParam(required = false) String text,
+                               @RequestParam(required = false) String[] fields,
+                               @RequestParam(required = false) ExtJsFilter[] filter,
+                               @RequestParam(required = false, defaultValue = "100") String limit,
+                               HttpServletResponse response) throws IOException {
+        myLogger.info("getFacets: " + text + " / limit: " + limit);
+
+        // The limit is parsed here so that a malformed one is reported as a
+        // bad request rather than going to the error page.
+        int parsedLimit;
+        try {
+            parsedLimit = Integer.parseInt(limit.trim());
+        }
+        catch (NumberFormatException e) {
+            parsedLimit = 0;
+        }
+        if (parsedLimit < 1) {
+            myLogger.warn("Invalid facet limit: " + limit);
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
         }
+        final int facetLimit = Math.min(parsedLimit, MAX_FACET_LIMIT);
 
-        return results;
+        try {
+            BagService.validateSpatialFilters(filter);
+        }
+        catch (IllegalArgumentException e) {
+            myLogger.warn("Invalid filter: " + e.getLocalizedMessage());
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+
+        String queryKey = BagService.getQueryKey(text, fields, filter);
+        try {
+            return mySearchCache.getFacets(queryKey, "limit:" + facetLimit, () ->
+                myBagService.getFacets(text, fields, filter, facetLimit));
+        }
+        catch (RuntimeException e) {
+            myLogger.error("Error counting search facets", e);
+            throw e;
+        }
     }
 
     @RequestMapping("/getTagsForBag")
@@ -420,14 +860,52 @@ public class BagController {
     }
 
     /**
-     * Returns all of the GPS coordinates for the given set of bags.  The
+     * Returns the GPS coordinates for the given set of bags.  The
      * returned coordinates are a flat list of longitude/latitude pairs that
      * are sorted in ascending order of their timestamp in the database.
+     * If a zoom level or point budget is given, a simplified version of the
+     * path will be returned instead of every coordinate.
      * @param bagIds All of the bags to get coordinates for.
-     * @return All of the GPS coordinates for those bags.
+     * @param zoom The zoom level of the map that will display the path.
+     * @param maxPoints The maximum number of points that should be returned.
+     * @return The GPS coordinates for those bags.
      */
     @RequestMapping("/coords")
-    public List<Double[]> getGpsCoordsForBags(@RequestParam Long[] bagIds) {
-        return myBagService.getGpsCoordsForBags(Lists.newArrayList(bagIds));
+    public List<Double[]> getGpsCoordsForBags(@RequestParam Long[] bagIds,
+                                              @RequestParam(required = false) Integer zoom,
+                                              @RequestParam(required = false) Integer maxPoints) {
+        return myBagService.getGpsCoordsForBags(Lists.newArrayList(bagIds), zoom, maxPoints);
+    }
+
+    /**
+     * Returns the same GPS coordinates as {@link #getGpsCoordsForBags(Long[], Integer, Integer)},
+     * but in a compact encoding that is streamed directly from the database.
+     * @param bagIds All of the bags to get coordinates for.
+     * @param zoom The zoom level of the map that will display the path.
+     * @param maxPoints The maximum number of points that should be returned.
+     * @param format Either "zigzag" for delta- and zigzag-encoded varint microdegrees
+     *               or "polyline" for a Google Encoded Polyline string.
+     * @return A stream containing the encoded coordinates.
+     */
+    @RequestMapping("/coords/encoded")
+    public ResponseEntity<StreamingResponseBody> getEncodedGpsCoordsForBags(
+            @RequestParam Long[] bagIds,
+            @RequestParam(required = false) Integer zoom,
+            @RequestParam(required = false) Integer maxPoints,
+            @RequestParam(required = false, defaultValue = "zigzag") String format) {
+        CoordinateEncoder.Format encoding;
+        try {
+            encoding = CoordinateEncoder.Format.valueOf(format.toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            myLogger.warn("Unknown coordinate format: " + format);
+            return ResponseEntity.badRequest().build();
+        }
+
+        StreamingResponseBody stream = out -> myBagService.writeEncodedGpsCoordsForBags(
+            Lists.newArrayList(bagIds), zoom, maxPoints, encoding, out);
+        return ResponseEntity.ok()
+            .contentType(MediaType.parseMediaType(encoding.getContentType()))
+            .body(stream);
     }
 }
@@ -32,6 +32,7 @@ package com.github.swrirobotics.bags;
 
 import com.github.swrirobotics.bags.reader.BagFile;
 import com.github.swrirobotics.bags.reader.MessageHandler;
+import com.github.swrirobotics.bags.reader.MessageIndex;
 import com.github.swrirobotics.bags.reader.TopicInfo;
 import com.github.swrirobotics.bags.reader.exceptions.BagReaderException;
 import com.github.swrirobotics.bags.reader.exceptions.UninitializedFieldException;
@@ -43,6 +44,7 @@ import com.github.swrirobotics.bags.storage.filesystem.FilesystemBagStorageImpl;
 import com.github.swrirobotics.bags.storage.s3.S3BagStorageConfigImpl;
 import com.github.swrirobotics.bags.storage.s3.S3BagStorageImpl;
 import com.github.swrirobotics.config.ConfigService;
+import com.github.swrirobotics.config.RowValueFunctionContributor;
 import com.github.swrirobotics.persistence.MessageType;
 import com.github.swrirobotics.persistence.*;
 import com.github.swrirobotics.remote.GeocodingService;
@@ -51,63 +53,133 @@ import com.github.swrirobotics.scripts.ScriptRunException;
 import com.github.swrirobotics.scripts.ScriptService;
 import com.github.swrirobotics.status.Status;
 import com.github.swrirobotics.status.StatusProvider;
-import com.github.swrirobotics.support.web.BagList;
+import com.github.swrirobotics.support.web.BagFacets;
+import com.github.swrirobotics.support.web.BagSummary;
+import com.github.swrirobotics.support.web.BagSummaryList;
 import com.github.swrirobotics.support.web.BagTreeNode;
+import com.github.swrirobotics.support.web.Configuration;
+import com.github.swrirobotics.support.web.EncoderProfile;
 import com.github.swrirobotics.support.web.ExtJsFilter;
+import com.github.swrirobotics.tiles.TileService;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.apache.commons.io.IOUtils;
+import org.hibernate.Session;
+import org.hibernate.spatial.predicate.SpatialPredicates;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.MultiPolygon;
 import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.util.GeometricShapeFactory;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
 import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanWrapperImpl;
 import org.springframework.context.ApplicationContext;
-import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.Sort;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.event.TransactionalEventListener;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PreDestroy;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
-import javax.persistence.TypedQuery;
 import javax.persistence.criteria.*;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.Timestamp;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Service
 public class BagService extends StatusProvider {
     private final BagRepository myBagRepository;
     private final BagPositionRepository myBagPositionRepository;
+    private final BagPathRepository myBagPathRepository;
     private final MessageTypeRepository myMTRepository;
     private final TopicRepository myTopicRepository;
     private final TagRepository myTagRepository;
     public final ConfigService myConfigService;
     private final GeocodingService myGeocodingService;
     private final ScriptService myScriptService;
+    private final FrameCache myFrameCache;
+    private final VideoCache myVideoCache;
+    private final EncoderPool myEncoderPool;
+    private final VideoExporter myVideoExporter;
+    private final SearchCounter mySearchCounter;
+    private final DirectoryCounter myDirectoryCounter;
+    private final DirectoryTree myDirectoryTree;
+    private final ApplicationEventPublisher myEventPublisher;
+    // Generates sprite sheets for new bags without holding up anything else
+    private final ExecutorService mySpriteExecutor = Executors.newSingleThreadExecutor();
+    // Runs the queries for each search facet in parallel
+    private final ExecutorService myFacetExecutor = Executors.newFixedThreadPool(FACET_THREADS);
+    // The message indexes of topics whose video segments are being encoded,
+    // so that they don't have to be rebuilt for every segment
+    private final Cache<String, List<MessageIndex>> myMessageIndexes = CacheBuilder.newBuilder()
+            .maximumSize(MESSAGE_INDEX_CACHE_SIZE)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
     @PersistenceContext
     private EntityManager myEM;
 
@@ -120,9 +192,29 @@ public class BagService extends StatusProvider {
 
     private final GeometryFactory myGeometryFactory =
             new GeometryFactory(new PrecisionModel(PrecisionModel.FLOATING), 4326);
+    private final GpsPathSimplifier myPathSimplifier = new GpsPathSimplifier(myGeometryFactory);
 
     private static final Logger myLogger = LoggerFactory.getLogger(BagService.class);
 
+    private static final int COORDINATE_FETCH_SIZE = 10000;
+    private static final int FACET_THREADS = 5;
+    private static final Set<String> SPATIAL_OPERATORS = Sets.newHashSet("bbox", "polygon", "radius");
+    private static final double METERS_PER_DEGREE = 111320.0;
+    private static final boolean WEBP_SUPPORTED;
+    private static final String SEGMENT_INDEX_PARAMS = "segment-index";
+    private static final String MESSAGE_INDEX_PARAMS = "message-index";
+    private static final int MESSAGE_INDEX_CACHE_SIZE = 16;
+    private static final String SPRITE_SHEET_PARAMS = "sprite-sheet";
+    private static final String RESOLUTION_PARAMS = "resolution";
+    // Images larger than these get faster encoder profiles by default
+    private static final long LARGE_IMAGE_PIXELS = 1920L * 1200L;
+    private static final long MEDIUM_IMAGE_PIXELS = 1280L * 720L;
+    private static final int SPRITE_FRAME_COUNT = 100;
+    private static final int SPRITE_TILE_WIDTH = 160;
+    private static final int SPRITE_COLUMNS = 10;
+    private static final Set<String> SPRITE_MESSAGE_TYPES =
+            Sets.newHashSet("sensor_msgs/Image", "sensor_msgs/CompressedImage");
+
     static {
         try {
             nu.pattern.OpenCV.loadShared();
@@ -133,20 +225,33 @@ public class BagService extends StatusProvider {
         catch (Exception e) {
             myLogger.warn("Unable to load OpenCV.  Some image formats will be unreadable", e);
         }
+        WEBP_SUPPORTED = canEncodeWebp();
     }
 
     public BagService(BagRepository bagRepository, BagPositionRepository myBagPositionRepository,
-                      MessageTypeRepository myMTRepository, TopicRepository myTopicRepository,
+                      BagPathRepository myBagPathRepository, MessageTypeRepository myMTRepository, TopicRepository myTopicRepository,
                       TagRepository myTagRepository, ConfigService myConfigService, GeocodingService myGeocodingService,
-                      ScriptService myScriptService, ApplicationContext applicationContext) {
+                      ScriptService myScriptService, FrameCache myFrameCache,
+                      VideoCache myVideoCache, EncoderPool myEncoderPool, VideoExporter myVideoExporter,
+                      SearchCounter mySearchCounter, DirectoryCounter myDirectoryCounter,
+                      DirectoryTree myDirectoryTree, ApplicationContext applicationContext) {
         this.myBagRepository = bagRepository;
         this.myBagPositionRepository = myBagPositionRepository;
+        this.myBagPathRepository = myBagPathRepository;
         this.myMTRepository = myMTRepository;
         this.myTopicRepository = myTopicRepository;
         this.myTagRepository = myTagRepository;
         this.myConfigService = myConfigService;
         this.myGeocodingService = myGeocodingService;
         this.myScriptService = myScriptService;
+        this.myFrameCache = myFrameCache;
+        this.myVideoCache = myVideoCache;
+        this.myEncoderPool = myEncoderPool;
+        this.myVideoExporter = myVideoExporter;
+        this.mySearchCounter = mySearchCounter;
+        this.myDirectoryCounter = myDirectoryCounter;
+        this.myDirectoryTree = myDirectoryTree;
+        this.myEventPublisher = applicationContext;
 
         // Initialize bag storage configurations
         List<BagStorageConfiguration> storageConfigs;
@@ -204,10 +309,58 @@ public class BagService extends StatusProvider {
     public void deleteUnownedBags() {
         myLogger.trace("deleteUnownedBags");
         List<String> storageIds = getBagStorageIds();
+        // The counts of bags without a storage ID aren't cleared by
+        // retainStorages, so they have to be taken out before the bags are deleted.
+        List<Object[]> unownedCounts = myBagRepository.countUnownedByStorageIdAndPath(storageIds);
         Query query = myEM.createQuery("delete from Bag b where b.storageId not in ?1 or b.storageId is null");
         query.setParameter(1, storageIds);
         int numberRemoved = query.executeUpdate();
         myLogger.info("Removed " + numberRemoved + " bags that were not owned by any configured storage mechanism.");
+        myDirectoryCounter.removeBags(unownedCounts);
+        myDirectoryCounter.retainStorages(storageIds);
+        if (numberRemoved > 0) {
+            myEventPublisher.publishEvent(TileService.PathChangeEvent.allPaths());
+            publishBagChange(BagChangeEvent.allBags(BagChangeEvent.Type.REMOVED));
+        }
+    }
+
+    /**
+     * Notifies listeners, such as the search caches, that bags have changed.
+     * Anything that modifies bags in the database without going through one
+     * of this service's methods must call this.
+     * @param event Describes the change.
+     */
+    public void publishBagChange(BagChangeEvent event) {
+        myEventPublisher.publishEvent(event);
+    }
+
+    /**
+     * Counts every directory's bags if they haven't been counted yet.
+     */
+    public void initializeDirectoryCounts() {
+        myDirectoryCounter.initializeCounts();
+        myDirectoryTree.reload();
+    }
+
+    /**
+     * Gets the number of bags in a directory, including its subdirectories.
+     * @param path The directory.
+     * @param storageId The storage backend that contains the directory.
+     */
+    public long getDirectoryBagCount(String path, String storageId) {
+        return myDirectoryTree.getBagCount(storageId, path);
+    }
+
+    /**
+     * Gets the subdirectories of a directory that contain any bags, along
+     * with how many they contain.  This doesn't access the storage backend
+     * or the database.
+     * @param path The directory.
+     * @param storageId The storage backend that contains the directory.
+     * @return The subdirectories, sorted by name.
+     */
+    public List<DirectoryTree.Directory> getSubdirectories(String path, String storageId) {
+        return myDirectoryTree.getSubdirectories(storageId, path);
     }
 
     public Collection<BagStorage> getBagStorages() {
@@ -240,6 +393,12 @@ public class BagService extends StatusProvider {
         return storage.getBagWrapper(bag);
     }
 
+    @PreDestroy
+    public void destroy() {
+        mySpriteExecutor.shutdownNow();
+        myFacetExecutor.shutdownNow();
+    }
+
     @Transactional(readOnly = true)
     public Bag getBag(Long bagId) throws NonexistentBagException {
         Bag response = myBagRepository.findById(bagId).orElseThrow(() ->
@@ -248,8 +407,55 @@ public class BagService extends StatusProvider {
         return response;
     }
 
+    /**
+     * Gets an entity tag that identifies the image that would be returned by
+     * {@link #getImage(Long, String, int)}.
+     */
+    @Transactional(readOnly = true)
+    public String getImageETag(Long bagId, String topicName, int index) throws NonexistentBagException {
+        return getImageETag(bagId, topicName, index, ImageVariant.ORIGINAL);
+    }
+
+    /**
+     * Gets an entity tag that identifies the image that would be returned by
+     * {@link #getImage(Long, String, int, ImageVariant)}.
+     */
+    @Transactional(readOnly = true)
+    public String getImageETag(Long bagId, String topicName, int index, ImageVariant variant)
+            throws NonexistentBagException {
+        return FrameCache.getKey(getBagMd5Sum(bagId), topicName, index, variant.getCacheParams());
+    }
+
+    /**
+     * Gets an image from a bag file, encoded as a JPEG.  Images are cached
+     * after they have been extracted once.
+     */
     @Transactional(readOnly = true)
     public byte[] getImage(Long bagId, String topicName, int index) throws BagReaderException, NonexistentBagException {
+        return getImage(bagId, topicName, index, ImageVariant.ORIGINAL);
+    }
+
+    /**
+     * Gets an image from a bag file, scaled and encoded as described by the
+     * variant.  Every variant is cached separately after it has been
+     * extracted once.
+     */
+    @Transactional(readOnly = true)
+    public byte[] getImage(Long bagId, String topicName, int index, ImageVariant variant)
+            throws BagReaderException, NonexistentBagException {
+        String key = getImageETag(bagId, topicName, index, variant);
+        return myFrameCache.get(key, () -> readImage(bagId, topicName, index, variant));
+    }
+
+    /**
+     * @return True if images can be encoded as WebP.
+     */
+    public boolean isWebpSupported() {
+        return WEBP_SUPPORTED;
+    }
+
+    private byte[] readImage(Long bagId, String topicName, int index, ImageVariant variant)
+            throws BagReaderException {
         try (BagWrapper wrapper = getBagWrapper(bagId)) {
             BagFile bagFile = wrapper.getBagFile();
 
@@ -269,8 +475,15 @@ public class BagService extends StatusProvider {
                 throw new BagReaderException(errorMsg);
             }
             String messageType = mt.getPackage() + "/" + mt.getType();
-            if (messageType.equals("sensor_msgs/Image")) {
-                return convertImageToJpeg(getUncompressedImage(mt));
+            if (!variant.isOriginal()) {
+                try (MatPool pool = new MatPool()) {
+                    return encodeImage(decodeImageMessage(mt, pool), variant);
+                }
+            }
+            else if (messageType.equals("sensor_msgs/Image")) {
+                try (MatPool pool = new MatPool()) {
+                    return convertImageToJpeg(getUncompressedImage(mt, pool));
+                }
             }
             else if (messageType.equals("sensor_msgs/CompressedImage")) {
                 return getCompressedImage(mt);
@@ -282,13 +495,184 @@ public class BagService extends StatusProvider {
             }
 
         }
-        catch (BagReaderException | UninitializedFieldException | IOException e) {
+        catch (BagReaderException | UninitializedFieldException | IOException | NonexistentBagException e) {
             String msg = "Unable to read image for bag " + bagId + ": " + e.getLocalizedMessage();
             myLogger.error(msg, e);
             throw new BagReaderException(e);
         }
     }
 
+    /**
+     * Scales an image down to fit within a variant's bounds and encodes it
+     * in the variant's format.  Scaling is done with area averaging, which
+     * doesn't alias the way nearest-neighbor or bilinear sampling does when
+     * an image is shrunk by a large factor.
+     */
+    private byte[] encodeImage(BufferedImage image, ImageVariant variant) throws BagReaderException {
+        if (image == null) {
+            throw new BagReaderException("Unable to decode image.");
+        }
+        Mat source = toBgrMat(image);
+        Mat scaled = source;
+        MatOfInt params = new MatOfInt();
+        MatOfByte encoded = new MatOfByte();
+        try {
+            int[] size = variant.getScaledSize(image.getWidth(), image.getHeight());
+            if (size[0] != image.getWidth() || size[1] != image.getHeight()) {
+                scaled = new Mat();
+                Imgproc.resize(source, scaled, new Size(size[0], size[1]), 0, 0, Imgproc.INTER_AREA);
+            }
+
+            if (variant.getQuality() != null) {
+                int qualityParam = variant.getFormat() == ImageVariant.Format.WEBP ?
+                    Imgcodecs.IMWRITE_WEBP_QUALITY : Imgcodecs.IMWRITE_JPEG_QUALITY;
+                params.fromArray(qualityParam, variant.getQuality());
+            }
+            if (!Imgcodecs.imencode(variant.getFormat().getExtension(), scaled, encoded, params)) {
+                throw new BagReaderException("Unable to encode image as " + variant.getFormat());
+            }
+            return encoded.toArray();
+        }
+        finally {
+            params.release();
+            encoded.release();
+            if (scaled != source) {
+                scaled.release();
+            }
+            source.release();
+        }
+    }
+
+    /**
+     * Copies an image into an 8-bit, three-channel OpenCV matrix.
+     */
+    private static Mat toBgrMat(BufferedImage image) {
+        BufferedImage bgrImage = image;
+        if (image.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+            bgrImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D g = bgrImage.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+        }
+        byte[] pixels = ((DataBufferByte) bgrImage.getRaster().getDataBuffer()).getData();
+        Mat mat = new Mat(bgrImage.getHeight(), bgrImage.getWidth(), CvType.CV_8UC3);
+        mat.put(0, 0, pixels);
+        return mat;
+    }
+
+    private static boolean canEncodeWebp() {
+        Mat pixel = new Mat(1, 1, CvType.CV_8UC3);
+        MatOfByte encoded = new MatOfByte();
+        try {
+            return Imgcodecs.imencode(ImageVariant.Format.WEBP.getExtension(), pixel, encoded);
+        }
+        catch (Exception | UnsatisfiedLinkError e) {
+            return false;
+        }
+        finally {
+            encoded.release();
+            pixel.release();
+        }
+    }
+
+    /**
+     * Gets an entity tag that identifies the sprite sheet that would be
+     * returned by {@link #getSpriteSheet(Long, String)}.
+     */
+    public String getSpriteSheetETag(Long bagId, String topicName) throws NonexistentBagException {
+        return FrameCache.getKey(getBagMd5Sum(bagId), topicName, -1, SPRITE_SHEET_PARAMS);
+    }
+
+    /**
+     * Gets thumbnails of evenly spaced frames from an image topic, packed
+     * into a single image.  The sprite sheet is generated the first time
+     * it's requested if it wasn't already generated when the bag was added.
+     */
+    public SpriteSheet getSpriteSheet(Long bagId, String topicName)
+            throws NonexistentBagException, BagReaderException {
+        byte[] data = myFrameCache.get(getSpriteSheetETag(bagId, topicName),
+                                       () -> buildSpriteSheet(bagId, topicName).toBytes());
+        try {
+            return SpriteSheet.fromBytes(data);
+        }
+        catch (IOException e) {
+            throw new BagReaderException(e);
+        }
+    }
+
+    /**
+     * Generates sprite sheets for every image topic in a bag in the background.
+     */
+    public void queueSpriteSheets(Long bagId) {
+        mySpriteExecutor.execute(() -> {
+            for (Topic topic : myTopicRepository.findByBagId(bagId)) {
+                if (topic.getType() == null || !SPRITE_MESSAGE_TYPES.contains(topic.getType().getName())) {
+                    continue;
+                }
+                try {
+                    getSpriteSheet(bagId, topic.getTopicName());
+                }
+                catch (NonexistentBagException | BagReaderException | RuntimeException e) {
+                    myLogger.warn("Unable to generate sprite sheet for " + topic.getTopicName() +
+                                  " in bag " + bagId + ": " + e.getLocalizedMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Generates sprite sheets for bags once they've been added.  This waits
+     * for the new bags to be committed so that the background thread can
+     * see them.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onBagChange(BagChangeEvent event) {
+        if (event.getType() == BagChangeEvent.Type.ADDED) {
+            event.getBagIds().forEach(this::queueSpriteSheets);
+        }
+    }
+
+    private SpriteSheet buildSpriteSheet(Long bagId, String topicName) throws BagReaderException {
+        List<Topic> topics = myTopicRepository.findByTopicNameAndBagId(topicName, bagId);
+        if (topics.isEmpty() || topics.get(0).getMessageCount() == null) {
+            throw new BagReaderException("No messages found on topic: " + topicName);
+        }
+        myLogger.debug("Building sprite sheet for " + topicName + " in bag " + bagId);
+        try (BagWrapper wrapper = getBagWrapper(bagId);
+             MatPool pool = new MatPool()) {
+            // The sampled frames are looked up through the topic's message
+            // index so that the rest of the topic never has to be read.
+            BagFile bagFile = wrapper.getBagFile();
+            List<MessageIndex> indexes = getMessageIndexes(bagId, bagFile, topicName);
+            // Each frame is drawn into the sheet before the next one is
+            // decoded, so they can all share the same buffers.
+            SpriteSheet.Builder builder = new SpriteSheet.Builder(indexes.size(),
+                                                                  SPRITE_FRAME_COUNT, SPRITE_TILE_WIDTH,
+                                                                  SPRITE_COLUMNS, mt -> decodeImageMessage(mt, pool));
+            builder.readFrames(bagFile, indexes);
+            return builder.build();
+        }
+        catch (IOException | NonexistentBagException e) {
+            throw new BagReaderException(e);
+        }
+    }
+
+    private BufferedImage decodeImageMessage(com.github.swrirobotics.bags.reader.messages.serialization.MessageType mt,
+                                             MatPool pool)
+            throws IOException, UninitializedFieldException, BagReaderException {
+        String messageType = mt.getPackage() + "/" + mt.getType();
+        if (messageType.equals("sensor_msgs/Image")) {
+            return getUncompressedImage(mt, pool);
+        }
+        else if (messageType.equals("sensor_msgs/CompressedImage")) {
+            ArrayType data = mt.getField("data");
+            try (ByteArrayInputStream byteStream = new ByteArrayInputStream(data.getAsBytes())) {
+                return ImageIO.read(byteStream);
+            }
+        }
+        throw new BagReaderException("Unknown image message type: " + messageType);
+    }
+
     /**
      * Estimates determines the frame rate and duration of a topic from a bag
      * file.
@@ -391,21 +775,67 @@ public class BagService extends StatusProvider {
     /**
      * Runs ffmpeg as an external process in order to convert an image topic
      * into a VP8 video stream.
+     *
+     * Reading messages from the bag, converting them into frames that ffmpeg
+     * can read, and writing those frames to ffmpeg each happen on their own
+     * thread so that they can all run at the same time.  The stages pass a
+     * small, fixed set of frames between each other; a frame is only reused
+     * once ffmpeg has finished reading it.
      */
     private class FfmpegImageHandler implements MessageHandler {
+        // The number of frames that can be in the pipeline at once
+        private static final int PIPELINE_FRAMES = 4;
+
         private boolean myIsBigEndian = false;
-        private boolean myIsInitialized = false;
+        private volatile boolean myIsInitialized = false;
+        private boolean myHasReadFrame = false;
         private long myFrameCount = 0;
         private final double myDurationS;
         private final double myFrameRate;
         private int myHeight = 0;
         private int myWidth = 0;
         private long myFrameSkip = 1;
-        private OutputConsumer myConsumer = null;
+        private long myFrameLimit = Long.MAX_VALUE;
+        private volatile OutputConsumer myConsumer = null;
         private final OutputStream myOutput;
-        private Process myFfmpegProc = null;
+        private volatile Process myFfmpegProc = null;
         private String myPixelFormat = "";
         private int byteNb = 3;
+        // If set, compressed images are piped directly into ffmpeg, which will
+        // decode them with this codec.
+        private String myInputCodec = null;
+        // This is reused for every frame so that we don't create a new
+        // decoder at the frame rate of the video.
+        private ImageReader myImageReader = null;
+        // Matrices used to convert frames; only touched by the converter thread.
+        private final MatPool myMatPool = new MatPool();
+
+        // Converts frames on one thread and writes them to ffmpeg on another.
+        private final FramePipeline<Frame> myPipeline =
+                new FramePipeline<>(PIPELINE_FRAMES, Frame::new, this::convertFrame, this::writeFrame);
+        private AtomicLong myProgress = null;
+        private final EncoderProfile myProfile;
+
+        /**
+         * A single frame on its way through the pipeline.  The buffers that
+         * frames are converted into belong to the frame so that they can be
+         * reused without overwriting a frame that hasn't been written yet.
+         */
+        private class Frame {
+            // The image data as it was read from the bag
+            private byte[] myData = null;
+            // Disparities are converted into this array, which is reused
+            // every time the frame passes through the pipeline.
+            private float[] myDisparityData = null;
+            private boolean myIsCompressed = false;
+            private boolean myIsDisparity = false;
+            private float myMinDisparity = 0.0f;
+            private float myMaxDisparity = 0.0f;
+            // The data that will be written to ffmpeg
+            private byte[] myFrameData = null;
+            private BufferedImage myImage = null;
+            private byte[] myColorBuffer = null;
+        }
 
         private class OutputConsumer extends Thread {
             @Override
@@ -417,7 +847,8 @@ public class BagService extends StatusProvider {
                     IOUtils.copy(myFfmpegProc.getInputStream(), myOutput);
                 }
                 catch (IOException e) {
-                    if (e.getClass().getTypeName().equals("org.apache.catalina.connector.ClientAbortException")) {
+                    if (e.getClass().getTypeName().equals("org.apache.catalina.connector.ClientAbortException") ||
+                        e instanceof VideoCache.TranscodeAbandonedException) {
                         myLogger.warn("Client disconnected.");
                     }
                     else {
@@ -431,10 +862,14 @@ public class BagService extends StatusProvider {
             }
         }
 
-        FfmpegImageHandler(OutputStream output, double frameRate, double durationS) {
+        FfmpegImageHandler(OutputStream output, double frameRate, double durationS, EncoderProfile profile) {
             myOutput = output;
+            myProfile = profile;
             myFrameRate = frameRate;
             myDurationS = durationS;
+            // The converter is the only thing that uses the pool, so it's
+            // freed as soon as that stops, even if nothing waits for it.
+            myPipeline.setConverterCleanup(myMatPool::close);
             myLogger.info("Starting video stream.");
         }
 
@@ -442,110 +877,174 @@ public class BagService extends StatusProvider {
             this.myFrameSkip = frameSkip;
         }
 
+        /**
+         * Stop after a number of messages have been processed.  This is used
+         * to encode a range of the messages on a topic; the handler must be
+         * given the messages starting from the first one in the range.
+         * @param frameLimit The number of messages to process.
+         */
+        void setFrameLimit(long frameLimit) {
+            this.myFrameLimit = frameLimit;
+        }
+
+        /**
+         * @param progress If not null, this is incremented every time a frame
+         *                 is written to ffmpeg.
+         */
+        void setProgress(AtomicLong progress) {
+            this.myProgress = progress;
+        }
+
+        /**
+         * Reads the image out of a message and passes it on to be converted.
+         * This is called on the thread that is reading the bag, so it does
+         * as little as it can.
+         */
         @Override
         public boolean process(com.github.swrirobotics.bags.reader.messages.serialization.MessageType message,
                                Connection connection) {
-            if (myIsInitialized) {
-                if (myFrameCount % myFrameSkip != 0) {
-                    myFrameCount++;
-                    return true;
-                }
-
-                if (!myConsumer.isAlive()) {
-                    // After we've initialized ffmpeg and started processing frames, this thread
-                    // should be alive until we've finished.  If it dies early, that means the
-                    // client disconnected, so there's no point in continuing.
-                    myLogger.debug("Consumer thread terminated early.");
-                    return false;
-                }
+            if (myFrameCount >= myFrameLimit) {
+                return false;
+            }
+            if (myHasReadFrame && myFrameCount % myFrameSkip != 0) {
+                myFrameCount++;
+                return true;
+            }
+            if (myPipeline.hasFailed() || (myConsumer != null && !myConsumer.isAlive())) {
+                // After we've initialized ffmpeg and started processing frames, the consumer
+                // should be alive until we've finished.  If it dies early, that means the
+                // client disconnected, so there's no point in continuing.
+                myLogger.debug("Video pipeline terminated early.");
+                myPipeline.fail();
+                return false;
             }
             try {
+                Frame frame = myPipeline.takeFreeFrame();
+                if (frame == null) {
+                    return false;
+                }
+
                 String messageType = message.getPackage() + "/" + message.getType();
-                boolean isDisparity = messageType.equals("stereo_msgs/DisparityImage");
-                boolean isCompressed = messageType.equals("sensor_msgs/CompressedImage");
-                float minDisparity = 0.0f;
-                float maxDisparity = 0.0f;
+                frame.myIsDisparity = messageType.equals("stereo_msgs/DisparityImage");
+                frame.myIsCompressed = messageType.equals("sensor_msgs/CompressedImage");
 
-                if (isDisparity) {
+                if (frame.myIsDisparity) {
                     // If we're examining a DisparityImage, it contains the actual image
                     // inside it in a field named "image".  We can just get that and
                     // continue as normal.
-                    minDisparity = message.<Float32Type>getField("min_disparity").getValue();
-                    maxDisparity = message.<Float32Type>getField("max_disparity").getValue();
+                    frame.myMinDisparity = message.<Float32Type>getField("min_disparity").getValue();
+                    frame.myMaxDisparity = message.<Float32Type>getField("max_disparity").getValue();
                     message = message.getField("image");
                 }
 
                 ArrayType dataArray = message.getField("data");
-                byte[] byteData;
-
-                if (isCompressed) {
-                    byteData = processCompressedImage(dataArray);
-                }
-                else if (isDisparity) {
-                    byteData = processDisparityImage(dataArray, minDisparity, maxDisparity);
+                if (frame.myIsDisparity) {
+                    readFloats(dataArray, frame);
+                    frame.myData = null;
                 }
                 else {
-                    // If it's not compressed, and it's a regular image, just get the raw image.
-                    if (!myIsInitialized) {
-                        myIsBigEndian = message.<UInt8Type>getField("is_bigendian").getValue() > 0;
-                    }
-                    dataArray.setOrder(myIsBigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
-
-                    byteData = dataArray.getAsBytes();
-                }
-
-                if (byteData == null) {
-                    myLogger.error("Unable to retrieve image bytes.");
-                    return false;
-                }
-
-                if (!myIsInitialized) {
-                    String rosEncoding;
-                    if (!isCompressed) {
-                        // For uncompressed images, including disparity, we need to pull the
-                        // encoding, height, and width from the image.  Assume all images on
-                        // the same topic after the first have the same parameters.
-                        // For compressed images, these will be encoded in the image data
-                        // and are set by the processCompressedImage method.
-                        rosEncoding = message.<StringType>getField("encoding").getValue().trim().toLowerCase();
-                        myPixelFormat = convertRosEncodingToFfmpeg(rosEncoding);
-
-                        myHeight = message.<UInt32Type>getField("height").getValue().intValue();
-                        myWidth = message.<UInt32Type>getField("width").getValue().intValue();
-                    }
-                    else {
-                        rosEncoding = message.<StringType>getField("format").getValue().trim().toLowerCase();
-                        if (rosEncoding.contains("bgr8") && myPixelFormat.equals("bgr24")) {
-                            // If the compressed image is in bgr, Java's ImageIO will flip the channels to rgb when
-                            // it reads it in, which means that telling ffmpeg it's still bgr will cause it to flip
-                            // them back.  Instead we'll just tell ffmpeg that it's rgb24 now...
-                            myPixelFormat = "rgb24";
+                    if (!frame.myIsCompressed) {
+                        // If it's not compressed, and it's a regular image, just get the raw image.
+                        if (!myHasReadFrame) {
+                            myIsBigEndian = message.<UInt8Type>getField("is_bigendian").getValue() > 0;
                         }
+                        dataArray.setOrder(myIsBigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
                     }
-
-                    myIsInitialized = true;
-                    myLogger.debug("Image format: " + myPixelFormat +
-                                   " / " + myWidth + "x" + myHeight +
-                                   " / " + (myDurationS / (double)myFrameSkip) + "s" +
-                                   " / " + myFrameRate + " Hz");
-
-                    startFfmpeg();
+                    frame.myData = dataArray.getAsBytes();
                 }
 
-                IOUtils.write(byteData, myFfmpegProc.getOutputStream());
+                if (!myHasReadFrame && !frame.myIsCompressed) {
+                    // For uncompressed images, including disparity, we need to pull the
+                    // encoding, height, and width from the image.  Assume all images on
+                    // the same topic after the first have the same parameters.
+                    // For compressed images, these will be encoded in the image data
+                    // and are set by the processCompressedImage method.
+                    String rosEncoding = message.<StringType>getField("encoding").getValue().trim().toLowerCase();
+                    myPixelFormat = convertRosEncodingToFfmpeg(rosEncoding);
+
+                    myHeight = message.<UInt32Type>getField("height").getValue().intValue();
+                    myWidth = message.<UInt32Type>getField("width").getValue().intValue();
+                }
+                myHasReadFrame = true;
 
+                myPipeline.submit(frame);
                 myFrameCount++;
 
                 return true;
             }
             catch (Exception e) {
-                if (e.getClass().getTypeName().equals("org.apache.catalina.connector.ClientAbortException")) {
-                    myLogger.warn("Client disconnected.");
+                myLogger.error("Error encoding video:", e);
+                myPipeline.fail();
+                return false;
+            }
+        }
+
+        /**
+         * Copies the disparities out of a DisparityImage's data into the
+         * frame's own array, which is only reallocated if the size of the
+         * images changes.
+         */
+        private void readFloats(ArrayType dataArray, Frame frame) throws UninitializedFieldException {
+            FloatBuffer floats = ByteBuffer.wrap(dataArray.getAsBytes()).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            if (frame.myDisparityData == null || frame.myDisparityData.length != floats.remaining()) {
+                frame.myDisparityData = new float[floats.remaining()];
+            }
+            floats.get(frame.myDisparityData);
+        }
+
+        /**
+         * Converts a frame into the format ffmpeg expects; if this is the
+         * first frame, ffmpeg is started too.
+         */
+        private void convertFrame(Frame frame) throws IOException {
+            if (frame.myIsCompressed) {
+                if (!myIsInitialized) {
+                    myInputCodec = getCompressedCodec(frame.myData);
                 }
-                else {
-                    myLogger.error("Error encoding video:", e);
+                // If ffmpeg can decode the images itself, there's no need for us to.
+                frame.myFrameData = myInputCodec != null ? frame.myData : processCompressedImage(frame);
+            }
+            else if (frame.myIsDisparity) {
+                frame.myFrameData = processDisparityImage(frame);
+            }
+            else {
+                frame.myFrameData = frame.myData;
+            }
+
+            if (frame.myFrameData == null) {
+                myLogger.error("Unable to retrieve image bytes.");
+                myPipeline.fail();
+                return;
+            }
+
+            if (!myIsInitialized) {
+                // Compressed images are either passed to ffmpeg as-is or straight
+                // from the decoded image's buffer, so there's nothing else to set up.
+                myLogger.debug("Image format: " + (myInputCodec != null ? myInputCodec : myPixelFormat) +
+                               " / " + myWidth + "x" + myHeight +
+                               " / profile " + myProfile.getName() +
+                               " / " + myDurationS + "s" +
+                               " / " + (myFrameRate / (double)myFrameSkip) + " Hz");
+
+                startFfmpeg();
+                myIsInitialized = true;
+            }
+        }
+
+        /**
+         * Writes a converted frame to ffmpeg.
+         */
+        private void writeFrame(Frame frame) {
+            try {
+                IOUtils.write(frame.myFrameData, myFfmpegProc.getOutputStream());
+                if (myProgress != null) {
+                    // Count the frames that were skipped to get to this one, too.
+                    myProgress.addAndGet(myFrameSkip);
                 }
-                return false;
+            }
+            catch (IOException e) {
+                myLogger.warn("Unable to write to ffmpeg: " + e.getMessage());
+                myPipeline.fail();
             }
         }
 
@@ -554,149 +1053,202 @@ public class BagService extends StatusProvider {
          * the decompressed bytes.  This also has a side effect of setting the
          * myPixelFormat, myWidth, and myHeight member variables based on properties
          * found in the compressed image.
-         * @param dataArray An array from a ROS message containing a compressed image.
+         *
+         * Each frame is decoded into the same image every time it passes through
+         * the pipeline, and the returned array is that image's backing buffer.
+         * @param frame A frame containing a compressed image.
          * @return The decompressed image's bytes.
          * @throws IOException If there was an error reading the image.
          */
-        private byte[] processCompressedImage(ArrayType dataArray) throws IOException {
+        private byte[] processCompressedImage(Frame frame) throws IOException {
             // If the image is compressed, we need to decompress it and get a few
             // pieces of metadata from it.
-            byte[] compressedData = dataArray.getAsBytes();
-            byte[] byteData;
-            try (ByteArrayInputStream byteStream = new ByteArrayInputStream(compressedData)) {
-                BufferedImage image = ImageIO.read(byteStream);
-                if (!myIsInitialized) {
-                    // Only need to check these things for the first image; assume
-                    // the rest are the same.
-                    myWidth = image.getWidth();
-                    myHeight = image.getHeight();
-                    switch (image.getType()) {
-                        case BufferedImage.TYPE_3BYTE_BGR:
-                            myPixelFormat = "bgr24";
-                            byteNb = 3;
-                            break;
-                        case BufferedImage.TYPE_BYTE_GRAY:
-                            myPixelFormat = "gray";
-                            byteNb = 1;
-                            break;
-                        default:
-                            myLogger.warn("Unexpected encoding type: " + image.getType());
-                            return null;
+            BufferedImage image;
+            try (ImageInputStream imageStream =
+                     new MemoryCacheImageInputStream(new ByteArrayInputStream(frame.myData))) {
+                if (myImageReader == null) {
+                    Iterator<ImageReader> readers = ImageIO.getImageReaders(imageStream);
+                    if (!readers.hasNext()) {
+                        myLogger.warn("No image reader found for compressed image.");
+                        return null;
                     }
+                    myImageReader = readers.next();
+                }
+                myImageReader.setInput(imageStream, true, true);
+                ImageReadParam param = myImageReader.getDefaultReadParam();
+                if (frame.myImage != null) {
+                    param.setDestination(frame.myImage);
                 }
+                image = myImageReader.read(0, param);
+                frame.myImage = image;
+            }
 
-                // This probably isn't the most efficient way to do it, but it's
-                // easiest for us to just extract the raw image bytes so we can
-                // pipe them into ffmpeg the same way as an uncompressed image.
-                byteData = new byte[myWidth * myHeight * byteNb];
-                int[] intData = new int[myWidth * myHeight * byteNb];
-                image.getData().getPixels(0, 0, myWidth, myHeight, intData);
-                for (int i = 0; i < intData.length; i++) {
-                    byteData[i] = (byte) intData[i];
+            if (!myIsInitialized) {
+                // Only need to check these things for the first image; assume
+                // the rest are the same.
+                myWidth = image.getWidth();
+                myHeight = image.getHeight();
+                switch (image.getType()) {
+                    case BufferedImage.TYPE_3BYTE_BGR:
+                        myPixelFormat = "bgr24";
+                        byteNb = 3;
+                        break;
+                    case BufferedImage.TYPE_4BYTE_ABGR:
+                        myPixelFormat = "abgr";
+                        byteNb = 4;
+                        break;
+                    case BufferedImage.TYPE_BYTE_GRAY:
+                        myPixelFormat = "gray";
+                        byteNb = 1;
+                        break;
+                    default:
+                        myLogger.warn("Unexpected encoding type: " + image.getType());
+                        return null;
                 }
             }
 
+            // The pixels in these image types are stored in exactly the layout
+            // ffmpeg expects, so we can hand it the image's buffer directly.
+            Raster raster = image.getRaster();
+            if (!(raster.getDataBuffer() instanceof DataBufferByte) ||
+                !(raster.getSampleModel() instanceof ComponentSampleModel) ||
+                ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride() != myWidth * byteNb) {
+                myLogger.warn("Unexpected image layout: " + raster.getSampleModel());
+                return null;
+            }
+            byte[] byteData = ((DataBufferByte) raster.getDataBuffer()).getData();
+            if (byteData.length != myWidth * myHeight * byteNb) {
+                myLogger.warn("Unexpected image size: " + byteData.length + " bytes");
+                return null;
+            }
+
             return byteData;
         }
 
+        /**
+         * Identifies compressed images that ffmpeg can decode on its own.
+         * @param compressedData The data array from a ROS message containing a compressed image.
+         * @return The name of the ffmpeg decoder for the image, or null if it
+         *         should be decoded with ImageIO.
+         */
+        private String getCompressedCodec(byte[] compressedData) {
+            if (compressedData.length >= 2 &&
+                (compressedData[0] & 0xFF) == 0xFF && (compressedData[1] & 0xFF) == 0xD8) {
+                return "mjpeg";
+            }
+            if (compressedData.length >= 4 &&
+                (compressedData[0] & 0xFF) == 0x89 && compressedData[1] == 'P' &&
+                compressedData[2] == 'N' && compressedData[3] == 'G') {
+                return "png";
+            }
+            return null;
+        }
+
         /**
          * Reads in a disparity image and transforms it into a displayable RGB8 image.
          * Disparity images are sequences of 32-bit floating point values in a single channel
          * (32FC1 in OpenCV terms) that are constrained between a minimum and maximum value.
          * To make the output easier for a human to visually process, we map those values to
          * integers between 0 and 255 and then put it through a Jet color map.
-         * @param dataArray A ROS byte array containing a disparity image.
-         * @param minDisparity The minimum of any disparity value.
-         * @param maxDisparity The maximum of any dispairty value.
+         * @param frame A frame containing a disparity image.
          * @return A color RGB8 image representing the disparity.
          */
-        private byte[] processDisparityImage(ArrayType dataArray, float minDisparity, float maxDisparity) {
+        private byte[] processDisparityImage(Frame frame) {
             // For disparity images, we have to convert them into a format
             // that ffmpeg can interpret.
-            dataArray.setOrder(ByteOrder.LITTLE_ENDIAN);
-            float[] floatData = dataArray.getAsFloats();
-            float multiplier = 255.0f / (maxDisparity - minDisparity);
-            byte[] byteData = new byte[floatData.length];
+            float[] floatData = frame.myDisparityData;
+            float minDisparity = frame.myMinDisparity;
+            float multiplier = 255.0f / (frame.myMaxDisparity - minDisparity);
+            byte[] grayBuffer = myMatPool.getBuffer("disparity-gray", floatData.length);
             for (int i = 0; i < floatData.length; i++) {
-                byteData[i] = (byte)Math.min(255.0f,
-                                             Math.max(0.0f,
-                                                      (floatData[i] - minDisparity) * multiplier));
+                grayBuffer[i] = (byte)Math.min(255.0f,
+                                               Math.max(0.0f,
+                                                        (floatData[i] - minDisparity) * multiplier));
             }
             // At this point we've got an 8-bit grayscale image, but we
             // can make it prettier by putting it through a color map.
-            Mat grayMat = new Mat(myHeight, myWidth, CvType.CV_8UC1);
-            grayMat.put(0, 0, byteData);
-            Mat colorMat = new Mat();
+            Mat grayMat = myMatPool.getMat("disparity-gray", myHeight, myWidth, CvType.CV_8UC1);
+            grayMat.put(0, 0, grayBuffer);
+            Mat colorMat = myMatPool.getMat("disparity-color", myHeight, myWidth, CvType.CV_8UC3);
             Imgproc.applyColorMap(grayMat, colorMat, Imgproc.COLORMAP_JET);
-            byteData = new byte[(int)colorMat.total() * colorMat.channels()];
-            colorMat.get(0, 0, byteData);
+            int colorLength = (int)colorMat.total() * colorMat.channels();
+            if (frame.myColorBuffer == null || frame.myColorBuffer.length != colorLength) {
+                frame.myColorBuffer = new byte[colorLength];
+            }
+            colorMat.get(0, 0, frame.myColorBuffer);
 
-            return byteData;
+            return frame.myColorBuffer;
         }
 
         /**
          * Launches ffmpeg as an external process and passes in all of the command
-         * line parameters necessary for us to pipe raw images into stdin and
+         * line parameters necessary for us to pipe images into stdin and
          * get VP8 frames from stdout.
          * @throws IOException If there was an error launching ffmpeg.
          */
         private void startFfmpeg() throws IOException {
-            // TODO This should probably be configurable.  Lower-power system will
-            // want a lower bitrate...
-            String bitrate = "1M";
-            String durationStr = Double.toString(myDurationS / (double)myFrameSkip);
-            String frameRateStr = Double.toString(myFrameRate);
+            // Only every Nth frame is passed to ffmpeg, so the input rate is
+            // lower in order for the video to still play back in real time.
+            double inputFrameRate = myFrameRate / (double)myFrameSkip;
+            String durationStr = Double.toString(myDurationS);
+            String frameRateStr = Double.toString(inputFrameRate);
             // Generate key frames for seeking every 3 seconds
-            String keyFrameRate = Double.toString(3*myFrameRate);
-            // use (n-1) of n available processors, minimum 1
-            String numThreads = Integer.toString(Math.min(16, Math.max(Runtime.getRuntime().availableProcessors()-1, 1)));
-
-            // Default encoding to create a VP8 stream
-            String[] command = new String[]{"ffmpeg",
-                    "-f", "rawvideo",
-                    "-c:v", "rawvideo",
-                    "-pix_fmt", myPixelFormat,
-                    "-s:v", myWidth + "x" + myHeight,
-                    "-r:v", frameRateStr,
-                    "-i", "pipe:0",
-                    "-c:v", "libvpx",
+            String keyFrameRate = Double.toString(3*inputFrameRate);
+            // Share the available processors with any other encodes that are running
+            String numThreads = Integer.toString(myEncoderPool.getThreadsPerEncode());
+
+            List<String> command = Lists.newArrayList("ffmpeg");
+            if (myInputCodec != null) {
+                // A sequence of concatenated compressed images
+                command.addAll(List.of(
+                        "-f", "image2pipe",
+                        "-framerate", frameRateStr,
+                        "-c:v", myInputCodec));
+            }
+            else {
+                // Raw frames that we've decoded ourselves
+                command.addAll(List.of(
+                        "-f", "rawvideo",
+                        "-c:v", "rawvideo",
+                        "-pix_fmt", myPixelFormat,
+                        "-s:v", myWidth + "x" + myHeight,
+                        "-r:v", frameRateStr));
+            }
+            command.addAll(List.of("-i", "pipe:0"));
+
+            Integer maxDimension = myProfile.getMaxDimension();
+            if (maxDimension != null && maxDimension > 0) {
+                // Only ever scale down, and keep the aspect ratio
+                command.addAll(List.of(
+                        "-vf", "scale=w='min(iw," + maxDimension + ")':h='min(ih," + maxDimension + ")'" +
+                               ":force_original_aspect_ratio=decrease"));
+            }
+            command.addAll(List.of(
+                    "-c:v", myProfile.getCodec(),
                     "-f", "webm",
-                    "-auto-alt-ref", "0",
-                    "-minrate", bitrate,
-                    "-maxrate", bitrate,
-                    "-b:v", bitrate,
-                    "-threads", numThreads,
-                    "-crf", "10",
+                    "-auto-alt-ref", "0"));
+            if (!Strings.isNullOrEmpty(myProfile.getDeadline())) {
+                command.addAll(List.of("-deadline", myProfile.getDeadline()));
+            }
+            if (myProfile.getCpuUsed() != null) {
+                command.addAll(List.of("-cpu-used", myProfile.getCpuUsed().toString()));
+            }
+            if (!Strings.isNullOrEmpty(myProfile.getBitrate())) {
+                command.addAll(List.of(
+                        "-b:v", myProfile.getBitrate(),
+                        "-maxrate", myProfile.getBitrate()));
+            }
+            if (myProfile.getCrf() != null) {
+                command.addAll(List.of("-crf", myProfile.getCrf().toString()));
+            }
+            command.addAll(List.of("-threads", numThreads));
+            command.addAll(List.of(
                     "-t", durationStr,
                     "-g", keyFrameRate,
                     "pipe:1",
-                    "-v", "warning"
-            };
+                    "-v", "warning"));
 
-            // Faster encoding
-            if (myConfigService.getConfiguration().getFasterCodec()) {
-                command = new String[]{"ffmpeg",
-                        "-f", "rawvideo",
-                        "-c:v", "rawvideo",
-                        "-pix_fmt", myPixelFormat,
-                        "-s:v", myWidth + "x" + myHeight,
-                        "-r:v", frameRateStr,
-                        "-i", "pipe:0",
-                        "-c:v", "libvpx",
-                        "-f", "webm",
-                        "-auto-alt-ref", "0",
-                        "-vf", "scale=400:-1",
-                        "-threads", numThreads,
-                        "-crf", "28",
-                        "-r", "24",
-                        "-t", durationStr,
-                        "-g", keyFrameRate,
-                        "pipe:1",
-                        "-v", "warning"
-                };
-            }
-
-            myFfmpegProc = Runtime.getRuntime().exec(command);
+            myFfmpegProc = Runtime.getRuntime().exec(command.toArray(new String[0]));
 
             myConsumer = new OutputConsumer();
             myConsumer.start();
@@ -752,10 +1304,35 @@ public class BagService extends StatusProvider {
          * Also prints out anything that ffmpeg printed on stderr.
          */
         void finish() {
+            try {
+                // If ffmpeg stops reading frames because nobody is reading its
+                // output, it's killed so that the writer doesn't block forever.
+                myPipeline.finish(() -> {
+                    if (myFfmpegProc != null && myConsumer != null &&
+                        (myPipeline.hasFailed() || !myConsumer.isAlive())) {
+                        myPipeline.fail();
+                        myFfmpegProc.destroy();
+                    }
+                });
+            }
+            catch (InterruptedException e) {
+                myLogger.warn("Interrupted waiting for the video pipeline to finish.");
+                myPipeline.fail();
+            }
+            if (myImageReader != null) {
+                myImageReader.dispose();
+            }
             if (myFfmpegProc != null) {
                 IOUtils.closeQuietly(myFfmpegProc.getOutputStream());
                 try {
                     myConsumer.join();
+                    if (myPipeline.hasFailed()) {
+                        // Nobody is reading its output anymore, so it may never exit on its own.
+                        myFfmpegProc.destroy();
+                    }
+                    else if (myFfmpegProc.waitFor() != 0) {
+                        myPipeline.fail();
+                    }
 
                     List<String> lines =
                             IOUtils.readLines(myFfmpegProc.getErrorStream(), StandardCharsets.UTF_8);
@@ -766,42 +1343,438 @@ public class BagService extends StatusProvider {
                 }
                 catch (InterruptedException e) {
                     myLogger.warn("Interrupted waiting for consumer to finish.");
+                    myPipeline.fail();
                 }
             }
         }
+
+        /**
+         * @return True if the video could not be completely encoded.
+         */
+        boolean hasFailed() {
+            return myPipeline.hasFailed() || !myIsInitialized;
+        }
     }
 
-    @Transactional(readOnly = true)
-    void writeVideoStream(Long bagId, String topicName, Long frameSkip, OutputStream output) throws BagReaderException,
-        NonexistentBagException {
+    /**
+     * Looks up a configured encoder profile.
+     * @param name The profile's name.
+     * @return The profile.
+     * @throws IllegalArgumentException If there is no profile with that name.
+     */
+    public EncoderProfile getEncoderProfile(String name) {
+        for (EncoderProfile profile : getEncoderProfiles()) {
+            if (profile.getName().equals(name)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown encoder profile: " + name);
+    }
+
+    private List<EncoderProfile> getEncoderProfiles() {
+        Configuration config = myConfigService.getConfiguration();
+        if (config == null || config.getEncoderProfiles() == null || config.getEncoderProfiles().isEmpty()) {
+            return EncoderProfile.getDefaults();
+        }
+        return config.getEncoderProfiles();
+    }
+
+    /**
+     * Picks an encoder profile for a client that didn't ask for one.  If a
+     * default is configured, that's used; otherwise, faster profiles are
+     * used for larger images, and for any images while the encoder pool is full.
+     * @param considerLoad If false, the choice only depends on the topic, so
+     *                     that videos that have to match each other will.
+     *                     If true, a video that has already been encoded with
+     *                     any profile is also preferred over encoding a new one.
+     */
+    public EncoderProfile chooseEncoderProfile(Long bagId, String topicName, boolean considerLoad)
+            throws NonexistentBagException {
+        Configuration config = myConfigService.getConfiguration();
+        if (config != null && !Strings.isNullOrEmpty(config.getDefaultEncoderProfile())) {
+            return getEncoderProfile(config.getDefaultEncoderProfile());
+        }
+        List<EncoderProfile> profiles = getEncoderProfiles();
+
+        String name;
+        if (config != null && Boolean.TRUE.equals(config.getFasterCodec())) {
+            // Used to be the only way to make encoding faster
+            name = "fast";
+        }
+        else {
+            if (considerLoad) {
+                for (EncoderProfile profile : profiles) {
+                    long frameSkip = getFrameSkip(bagId, topicName, profile);
+                    if (getCachedVideo(bagId, topicName, frameSkip, profile) != null) {
+                        return profile;
+                    }
+                }
+            }
 
+            long pixels = 0;
+            try {
+                int[] resolution = getImageResolution(bagId, topicName);
+                pixels = (long) resolution[0] * (long) resolution[1];
+            }
+            catch (BagReaderException e) {
+                myLogger.warn("Unable to get the resolution of " + topicName + ": " + e.getLocalizedMessage());
+            }
+
+            if (pixels > LARGE_IMAGE_PIXELS || (considerLoad && myEncoderPool.isBusy())) {
+                name = "realtime";
+            }
+            else if (pixels > MEDIUM_IMAGE_PIXELS) {
+                name = "fast";
+            }
+            else {
+                name = "default";
+            }
+        }
+
+        for (EncoderProfile profile : profiles) {
+            if (profile.getName().equals(name)) {
+                return profile;
+            }
+        }
+        return profiles.get(0);
+    }
+
+    /**
+     * Picks how many frames to skip so that a video of a topic is close to
+     * its profile's target frame rate.
+     */
+    public long getFrameSkip(Long bagId, String topicName, EncoderProfile profile) {
+        List<Topic> dbTopics = myTopicRepository.findByTopicNameAndBagId(topicName, bagId);
+        return profile.getFrameSkip(dbTopics.isEmpty() ? null : dbTopics.get(0).getMeanFrequency());
+    }
+
+    /**
+     * Gets the size of the images on a topic from its first message.  This is
+     * cached after the first time it's read.
+     * @return The width and height of the images.
+     */
+    public int[] getImageResolution(Long bagId, String topicName) throws NonexistentBagException, BagReaderException {
+        String key = FrameCache.getKey(getBagMd5Sum(bagId), topicName, -1, RESOLUTION_PARAMS);
+        byte[] data = myFrameCache.get(key, () -> {
+            try (BagWrapper wrapper = getBagWrapper(bagId)) {
+                com.github.swrirobotics.bags.reader.messages.serialization.MessageType
+                        mt = wrapper.getBagFile().getFirstMessageOnTopic(topicName);
+                if (mt == null) {
+                    throw new BagReaderException("No messages found on topic: " + topicName);
+                }
+                String messageType = mt.getPackage() + "/" + mt.getType();
+                if (messageType.equals("stereo_msgs/DisparityImage")) {
+                    mt = mt.getField("image");
+                }
+
+                int width;
+                int height;
+                if (messageType.equals("sensor_msgs/CompressedImage")) {
+                    // The size is in the image's header, so there's no need to decode all of it.
+                    ArrayType dataArray = mt.getField("data");
+                    try (ImageInputStream imageStream =
+                             new MemoryCacheImageInputStream(new ByteArrayInputStream(dataArray.getAsBytes()))) {
+                        Iterator<ImageReader> readers = ImageIO.getImageReaders(imageStream);
+                        if (!readers.hasNext()) {
+                            throw new BagReaderException("No image reader found for compressed image.");
+                        }
+                        ImageReader reader = readers.next();
+                        try {
+                            reader.setInput(imageStream, true, true);
+                            width = reader.getWidth(0);
+                            height = reader.getHeight(0);
+                        }
+                        finally {
+                            reader.dispose();
+                        }
+                    }
+                }
+                else {
+                    width = mt.<UInt32Type>getField("width").getValue().intValue();
+                    height = mt.<UInt32Type>getField("height").getValue().intValue();
+                }
+                return ByteBuffer.allocate(8).putInt(width).putInt(height).array();
+            }
+            catch (IOException | NonexistentBagException | UninitializedFieldException e) {
+                throw new BagReaderException(e);
+            }
+        });
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        return new int[]{buffer.getInt(), buffer.getInt()};
+    }
+
+    /**
+     * Gets a key that identifies the video that would be produced by
+     * {@link #openVideo(Long, String, Long, EncoderProfile)}.
+     */
+    public String getVideoKey(Long bagId, String topicName, Long frameSkip, EncoderProfile profile)
+            throws NonexistentBagException {
+        return VideoCache.getKey(getBagMd5Sum(bagId), topicName, frameSkip, profile.getCacheParams());
+    }
+
+    /**
+     * Looks up a video that has already been completely transcoded.
+     * @return The video, or null if it has not been transcoded yet.
+     */
+    public File getCachedVideo(Long bagId, String topicName, Long frameSkip, EncoderProfile profile)
+            throws NonexistentBagException {
+        return myVideoCache.getCompletedVideo(getVideoKey(bagId, topicName, frameSkip, profile));
+    }
+
+    /**
+     * Opens a VP8 video of an image topic so that it can be streamed to a
+     * client.  Clients that request the same video at the same time share a
+     * single transcode, and the result is cached for later requests.
+     * @return A stream that must be closed when the client is done with it.
+     * @throws EncoderPoolFullException If the video needs to be encoded and the server is too busy.
+     */
+    public VideoCache.VideoStream openVideo(Long bagId, String topicName, Long frameSkip, EncoderProfile profile)
+            throws NonexistentBagException, IOException, EncoderPoolFullException {
+        return myVideoCache.openVideo(getVideoKey(bagId, topicName, frameSkip, profile),
+                                      out -> writeVideoStream(bagId, topicName, frameSkip, profile, out));
+    }
+
+    /**
+     * @return -1 if the video is not being transcoded, 0 if it is currently
+     *         being encoded, or its position in the queue if it is waiting.
+     */
+    public int getVideoQueuePosition(Long bagId, String topicName, Long frameSkip, EncoderProfile profile)
+            throws NonexistentBagException {
+        return myVideoCache.getQueuePosition(getVideoKey(bagId, topicName, frameSkip, profile));
+    }
+
+    /**
+     * Divides an image topic into segments that can be encoded independently.
+     * The index is built by reading every message on the topic the first time
+     * it is requested, and cached after that.
+     */
+    public VideoSegmentIndex getVideoSegmentIndex(Long bagId, String topicName)
+            throws NonexistentBagException, BagReaderException {
+        String key = FrameCache.getKey(getBagMd5Sum(bagId), topicName, -1, SEGMENT_INDEX_PARAMS);
+        byte[] data = myFrameCache.get(key, () -> {
+            myLogger.debug("Building segment index for " + topicName + " in bag " + bagId);
+            try (BagWrapper wrapper = getBagWrapper(bagId)) {
+                VideoSegmentIndex.Builder builder = new VideoSegmentIndex.Builder();
+                wrapper.getBagFile().forMessagesOnTopic(topicName, builder);
+                return builder.build().toBytes();
+            }
+            catch (IOException | NonexistentBagException e) {
+                throw new BagReaderException(e);
+            }
+        });
+
+        try {
+            return VideoSegmentIndex.fromBytes(data);
+        }
+        catch (IOException e) {
+            throw new BagReaderException(e);
+        }
+    }
+
+    private String getVideoSegmentKey(Long bagId, String topicName, int index, EncoderProfile profile)
+            throws NonexistentBagException {
+        return getVideoKey(bagId, topicName, 1L, profile) + "-" + VideoSegmentIndex.SEGMENT_DURATION_S + "-" + index;
+    }
+
+    /**
+     * Looks up a video segment that has already been completely transcoded.
+     * @return The segment, or null if it has not been transcoded yet.
+     */
+    public File getCachedVideoSegment(Long bagId, String topicName, int index, EncoderProfile profile)
+            throws NonexistentBagException {
+        return myVideoCache.getCompletedVideo(getVideoSegmentKey(bagId, topicName, index, profile));
+    }
+
+    /**
+     * Opens one segment of a VP8 video of an image topic so that it can be
+     * streamed to a client.  Segments are transcoded and cached separately.
+     * @return A stream that must be closed when the client is done with it.
+     * @throws BagReaderException If the segment doesn't exist.
+     * @throws EncoderPoolFullException If the segment needs to be encoded and the server is too busy.
+     */
+    public VideoCache.VideoStream openVideoSegment(Long bagId, String topicName, int index, EncoderProfile profile)
+            throws NonexistentBagException, BagReaderException, IOException, EncoderPoolFullException {
+        VideoSegmentIndex segments = getVideoSegmentIndex(bagId, topicName);
+        VideoSegmentIndex.Segment segment = segments.getSegment(index);
+        if (segment == null) {
+            throw new BagReaderException("Topic " + topicName + " has no segment " + index);
+        }
+        return myVideoCache.openVideo(getVideoSegmentKey(bagId, topicName, index, profile),
+                                      out -> writeVideoSegment(bagId, topicName, segment, profile, out, null));
+    }
+
+    /**
+     * Starts exporting an entire image topic as a single video.  The topic is
+     * split into ranges that are encoded at the same time and then joined.
+     * If the video has already been exported, or is being exported, this
+     * returns its current state instead of starting over.
+     * @return The state of the export.
+     */
+    public VideoExporter.Export exportVideo(Long bagId, String topicName)
+            throws NonexistentBagException, BagReaderException {
+        VideoSegmentIndex segments = getVideoSegmentIndex(bagId, topicName);
+        // There's no point in splitting it into more ranges than can be encoded at once.
+        int rangeCount = Math.min(Runtime.getRuntime().availableProcessors(),
+                                  myEncoderPool.getMaxConcurrentEncodes());
+        // Every range has to be encoded the same way so that they can be joined.
+        EncoderProfile profile = chooseEncoderProfile(bagId, topicName, false);
+        return myVideoExporter.startExport(getVideoExportKey(bagId, topicName, profile), segments.split(rangeCount),
+                                           (range, out, progress) ->
+                                                   writeVideoSegment(bagId, topicName, range, profile, out, progress));
+    }
+
+    /**
+     * @return The state of an export, or null if the topic hasn't been exported.
+     */
+    public VideoExporter.Export getVideoExport(Long bagId, String topicName) throws NonexistentBagException {
+        return myVideoExporter.getExport(getVideoExportKey(bagId, topicName,
+                                                           chooseEncoderProfile(bagId, topicName, false)));
+    }
+
+    /**
+     * @return A video that has been completely exported, or null if it hasn't been.
+     */
+    public File getExportedVideo(Long bagId, String topicName) throws NonexistentBagException {
+        return myVideoCache.getCompletedVideo(getVideoExportKey(bagId, topicName,
+                                                                chooseEncoderProfile(bagId, topicName, false)));
+    }
+
+    private String getVideoExportKey(Long bagId, String topicName, EncoderProfile profile)
+            throws NonexistentBagException {
+        return getVideoKey(bagId, topicName, 1L, profile) + "-export";
+    }
+
+    /**
+     * Encodes a range of messages on a topic.
+     * @param progress If not null, this is incremented as each frame is encoded.
+     */
+    private void writeVideoSegment(Long bagId, String topicName, VideoSegmentIndex.Segment segment,
+                                   EncoderProfile profile, OutputStream output, AtomicLong progress)
+            throws BagReaderException, NonexistentBagException {
         try (BagWrapper wrapper = getBagWrapper(bagId)) {
+            long firstMessage = segment.getFirstMessage();
+            double durationS = segment.getDurationS();
+            double frameRate = durationS > 0.0 ? (double) segment.getFrameCount() / durationS : 10.0;
+            myLogger.debug("Encoding segment " + segment.getIndex() + " of " + topicName + " in bag " + bagId +
+                           ": " + segment.getFrameCount() + " frames starting at message " + firstMessage);
+
+            FfmpegImageHandler handler = new FfmpegImageHandler(output, frameRate, durationS, profile);
+            // Use the whole topic's rate so that every segment of a video
+            // skips the same number of frames.
+            handler.setFrameSkip(getFrameSkip(bagId, topicName, profile));
+            handler.setFrameLimit(segment.getFrameCount());
+            handler.setProgress(progress);
             BagFile bagFile = wrapper.getBagFile();
+            forMessageRange(bagFile, getMessageIndexes(bagId, bagFile, topicName), firstMessage,
+                            firstMessage + segment.getFrameCount(), handler);
+            handler.finish();
+            if (handler.hasFailed()) {
+                throw new BagReaderException("Unable to encode segment " + segment.getIndex() +
+                                             " of topic " + topicName);
+            }
+        }
+        catch (IOException e) {
+            throw new BagReaderException(e);
+        }
+    }
 
-            long messageCount = -1;
-            for (TopicInfo topic : bagFile.getTopics()) {
-                if (topic.getName().equals(topicName)) {
-                    messageCount = topic.getMessageCount();
-                    break;
+    /**
+     * Gets the message index of a topic, which lists where every message on
+     * it is in the bag file.  Building it reads the index records of every
+     * chunk that contains the topic, so it's kept for a while after a video
+     * segment is encoded in case the topic's other segments are next.
+     * @param bagFile An open copy of the bag that is used if the index has to be built.
+     */
+    private List<MessageIndex> getMessageIndexes(Long bagId, BagFile bagFile, String topicName)
+            throws BagReaderException, NonexistentBagException {
+        String key = FrameCache.getKey(getBagMd5Sum(bagId), topicName, -1, MESSAGE_INDEX_PARAMS);
+        try {
+            // The index is sorted by the time that messages were recorded, which
+            // is the same order that forMessagesOnTopic reads them in, so
+            // positions in it match the positions in a VideoSegmentIndex.
+            return myMessageIndexes.get(key, () -> bagFile.generateIndexesForTopicList(List.of(topicName), null));
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof BagReaderException) {
+                throw (BagReaderException) e.getCause();
+            }
+            throw new BagReaderException(e.getCause());
+        }
+    }
+
+    /**
+     * Passes a range of the messages on a topic to a handler.  Messages are
+     * looked up through the topic's message index, so only the chunks that
+     * contain the range are read rather than every message before it.
+     * @param indexes The topic's message index.
+     * @param first The position of the first message in the topic's index.
+     * @param end The position after the last message.
+     */
+    static void forMessageRange(BagFile bagFile, List<MessageIndex> indexes, long first, long end,
+                                MessageHandler handler) throws BagReaderException {
+        int last = (int) Math.min(end, indexes.size());
+        for (int i = (int) first; i < last; i++) {
+            if (!handler.process(bagFile.getMessageFromIndex(indexes, i), null)) {
+                break;
+            }
+        }
+    }
+
+    void writeVideoStream(Long bagId, String topicName, Long frameSkip, EncoderProfile profile, OutputStream output)
+        throws BagReaderException, NonexistentBagException {
+
+        try (BagWrapper wrapper = getBagWrapper(bagId)) {
+            BagFile bagFile = wrapper.getBagFile();
+
+            double frameRate;
+            double durationS;
+            List<Topic> dbTopics = myTopicRepository.findByTopicNameAndBagId(topicName, bagId);
+            Topic dbTopic = dbTopics.isEmpty() ? null : dbTopics.get(0);
+            if (dbTopic != null && dbTopic.getMeanFrequency() != null) {
+                // The topic's exact statistics were computed when the bag was
+                // ingested, so there's no need to look at the bag to estimate them.
+                frameRate = dbTopic.getMeanFrequency();
+                if (dbTopic.getStartTime() != null && dbTopic.getEndTime() != null) {
+                    // The last frame is shown for one period after it starts.
+                    long spanNs = Duration.between(dbTopic.getStartTime().toInstant(),
+                                                   dbTopic.getEndTime().toInstant()).toNanos();
+                    durationS = spanNs / 1.0e9 + 1.0 / frameRate;
+                }
+                else {
+                    durationS = (double)dbTopic.getMessageCount() / frameRate;
+                }
+                myLogger.debug("Using stored statistics for " + dbTopic.getMessageCount() + " frames.");
+            }
+            else {
+                long messageCount = -1;
+                for (TopicInfo topic : bagFile.getTopics()) {
+                    if (topic.getName().equals(topicName)) {
+                        messageCount = topic.getMessageCount();
+                        break;
+                    }
                 }
+                myLogger.debug("Expecting " + messageCount + " frames.");
+
+                // We need to set the frame rate of the video we're producing, but
+                // that's not encoded anywhere in a ROS image.  Bags that were added
+                // before topic statistics were stored won't have it in the database,
+                // so we'll quickly examine the first few frames and estimate it.
+                FrameRateDeterminer determiner = new FrameRateDeterminer(messageCount);
+                bagFile.forMessagesOnTopic(topicName, determiner);
+                frameRate = determiner.getFrameRate();
+                durationS = determiner.getDurationS();
             }
-            myLogger.debug("Expecting " + messageCount + " frames.");
             myLogger.debug("Reading message from bag " + bagId +
                            " on topic [" + topicName + "]");
 
-            // We need to set the frame rate of the video we're producing, but
-            // that's not encoded anywhere in a ROS image.  So, we'll quickly
-            // examine the first ten frames and estimate the frame rate from them.
-            FrameRateDeterminer determiner = new FrameRateDeterminer(messageCount);
-            bagFile.forMessagesOnTopic(topicName, determiner);
-
             // Now we can actually convert the images to a WebM stream.
-            FfmpegImageHandler handler = new FfmpegImageHandler(output,
-                                                                determiner.getFrameRate(),
-                                                                determiner.getDurationS());
+            FfmpegImageHandler handler = new FfmpegImageHandler(output, frameRate, durationS, profile);
             handler.setFrameSkip(frameSkip);
             bagFile.forMessagesOnTopic(topicName, handler);
             handler.finish();
+            if (handler.hasFailed()) {
+                throw new BagReaderException("Unable to encode video for topic " + topicName);
+            }
         }
         catch (BagReaderException e) {
             String msg = "Unable to read image for bag " + bagId + ": " + e.getLocalizedMessage();
@@ -846,7 +1819,8 @@ public class BagService extends StatusProvider {
         return stream.toByteArray();
     }
 
-    private BufferedImage getUncompressedImage(com.github.swrirobotics.bags.reader.messages.serialization.MessageType mt)
+    private BufferedImage getUncompressedImage(com.github.swrirobotics.bags.reader.messages.serialization.MessageType mt,
+                                               MatPool pool)
             throws UninitializedFieldException, BagReaderException {
 
         String encoding = mt.<StringType>getField("encoding").getValue().trim().toLowerCase();
@@ -891,14 +1865,34 @@ public class BagService extends StatusProvider {
         }
 
         byte[] byteData = dataArray.getAsBytes();
-        return decodeImage(width, height, encoding, imageType, byteData);
+        return decodeImage(width, height, encoding, imageType, byteData, isBigEndian > 0, pool);
     }
 
     public BufferedImage decodeImage(int width, int height, String encoding, int imageType, byte[] byteData) {
+        try (MatPool pool = new MatPool()) {
+            return decodeImage(width, height, encoding, imageType, byteData, pool);
+        }
+    }
+
+    public BufferedImage decodeImage(int width, int height, String encoding, int imageType, byte[] byteData,
+                                     MatPool pool) {
+        return decodeImage(width, height, encoding, imageType, byteData, false, pool);
+    }
+
+    /**
+     * Decodes raw pixel data from a sensor_msgs/Image message, using the
+     * pool for any conversions that are necessary.  The returned image may
+     * wrap one of the pool's buffers, so it must not be used after the
+     * pool decodes another image.
+     * @param isBigEndian The message's is_bigendian field; determines the
+     *                    byte order of 16-bit pixels.
+     */
+    public BufferedImage decodeImage(int width, int height, String encoding, int imageType, byte[] byteData,
+                                     boolean isBigEndian, MatPool pool) {
         if (encoding.startsWith("bayer")) {
             // If the image is in a Bayer filter format, use OpenCV
             // to convert it to RGB8.
-            byteData = convertBayer(width, height, byteData, encoding);
+            byteData = convertBayer(width, height, byteData, encoding, pool);
         }
 
         // ImageIO won't output four-channel images to JPEG, so we have to downmix them to 3 channels, and
@@ -917,26 +1911,46 @@ public class BagService extends StatusProvider {
                 break;
         }
         if (mixChannels != null) {
-            byteData = mix2rgb(width, height, byteData, mixChannels);
-        }
-
-        // Java's ImageIO expects pixel data as an array of ints, so
-        // cast them all...
-        int[] intData = new int[byteData.length];
-        for (int i = 0; i < byteData.length; i++) {
-            intData[i] = byteData[i];
-        }
-
-        if (imageType == BufferedImage.TYPE_INT_ARGB) {
-            imageType = BufferedImage.TYPE_INT_RGB;
+            byteData = mix2rgb(width, height, byteData, mixChannels, pool);
+        }
+
+        // Wrap the pixel data in an image without copying it.
+        switch (imageType) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                // Four-channel images have been downmixed to RGB by now
+                return wrapBytes(width, height, byteData, new int[]{0, 1, 2}, ColorSpace.CS_sRGB);
+            case BufferedImage.TYPE_INT_BGR:
+                return wrapBytes(width, height, byteData, new int[]{2, 1, 0}, ColorSpace.CS_sRGB);
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return wrapBytes(width, height, byteData, new int[]{0}, ColorSpace.CS_GRAY);
+            default:
+                // 16-bit images have to be converted from bytes to shorts.
+                BufferedImage image = new BufferedImage(width, height, imageType);
+                short[] shortData = ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
+                ByteBuffer.wrap(byteData)
+                    .order(isBigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN)
+                    .asShortBuffer().get(shortData);
+                return image;
         }
+    }
 
-        BufferedImage image = new BufferedImage(width, height, imageType);
-        image.getRaster().setPixels(0, 0, width, height, intData);
-        return image;
+    /**
+     * Creates an image that is backed by an array of interleaved 8-bit pixels.
+     * @param bandOffsets The offset of each color channel within a pixel.
+     * @param colorSpace One of the ColorSpace.CS_* constants.
+     */
+    private static BufferedImage wrapBytes(int width, int height, byte[] byteData, int[] bandOffsets,
+                                           int colorSpace) {
+        DataBufferByte buffer = new DataBufferByte(byteData, byteData.length);
+        WritableRaster raster = Raster.createInterleavedRaster(
+            buffer, width, height, width * bandOffsets.length, bandOffsets.length, bandOffsets, null);
+        ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(colorSpace), false, false,
+                                                        Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        return new BufferedImage(colorModel, raster, false, null);
     }
 
-    private byte[] convertBayer(int width, int height, byte[] input, String encoding) {
+    private byte[] convertBayer(int width, int height, byte[] input, String encoding, MatPool pool) {
         int type;
         int pattern;
         if (encoding.startsWith("bayer_rggb")) {
@@ -957,23 +1971,26 @@ public class BagService extends StatusProvider {
         else {
             type = CvType.CV_16U;
         }
-        Mat sourceMat = new Mat(height, width, type);
+        Mat sourceMat = pool.getMat("bayer-source", height, width, type);
         sourceMat.put(0, 0, input);
-        Mat destMat = new Mat(height, width, type);
+        // Allocate the destination with three channels up front; otherwise
+        // cvtColor would replace it with a new matrix on every frame.
+        Mat destMat = pool.getMat("bayer-dest", height, width, CvType.makeType(type, 3));
         Imgproc.cvtColor(sourceMat, destMat, pattern);
-        byte[] output = new byte[(int)destMat.total() * destMat.channels()];
+        byte[] output = pool.getBuffer("bayer-output", (int)destMat.total() * destMat.channels());
         destMat.get(0, 0, output);
         return output;
     }
 
-    private byte[] mix2rgb(int width, int height, byte[] input, int[] mixChannels) {
+    private byte[] mix2rgb(int width, int height, byte[] input, int[] mixChannels, MatPool pool) {
         MatOfInt fromto = new MatOfInt(mixChannels);
-        var sourceMatList = Lists.newArrayList(new Mat(height, width, CvType.CV_8UC4));
+        var sourceMatList = Lists.newArrayList(pool.getMat("mix-source", height, width, CvType.CV_8UC4));
         sourceMatList.get(0).put(0, 0, input);
-        var destMatList = Lists.newArrayList(new Mat(height, width, CvType.CV_8UC3));
+        var destMatList = Lists.newArrayList(pool.getMat("mix-dest", height, width, CvType.CV_8UC3));
         Core.mixChannels(sourceMatList, destMatList, fromto);
+        fromto.release();
         var destMat = destMatList.get(0);
-        byte[] output = new byte[(int)destMat.total() * destMat.channels()];
+        byte[] output = pool.getBuffer("mix-output", (int)destMat.total() * destMat.channels());
         destMat.get(0, 0, output);
         return output;
     }
@@ -985,6 +2002,7 @@ public class BagService extends StatusProvider {
         reportStatus(Status.State.WORKING, msg);
         List<Bag> bags = myBagRepository.findAll();
         Map<String, List<Bag>> md5Bags = Maps.newHashMap();
+        List<Long> removedIds = Lists.newArrayList();
 
         for (Bag bag : bags) {
             List<Bag> tmp = md5Bags.computeIfAbsent(bag.getMd5sum(), k -> Lists.newArrayList());
@@ -1004,9 +2022,15 @@ public class BagService extends StatusProvider {
                     myLogger.debug(msg);
                     reportStatus(Status.State.WORKING, msg);
                     myBagRepository.delete(dupBag);
+                    myDirectoryCounter.adjustCount(dupBag.getStorageId(), dupBag.getPath(), -1);
+                    removedIds.add(dupBag.getId());
                 }
             }
         }
+        if (!removedIds.isEmpty()) {
+            myEventPublisher.publishEvent(TileService.PathChangeEvent.allPaths());
+            publishBagChange(new BagChangeEvent(BagChangeEvent.Type.REMOVED, removedIds));
+        }
         msg = "Done removing duplicates.";
         myLogger.info(msg);
         reportStatus(Status.State.IDLE, msg);
@@ -1033,6 +2057,7 @@ public class BagService extends StatusProvider {
         dbBag.getTags().addAll(newBag.getTags());
         dbBag.setUpdatedOn(new Timestamp(System.currentTimeMillis()));
         myBagRepository.save(dbBag);
+        publishBagChange(new BagChangeEvent(BagChangeEvent.Type.UPDATED, dbBag.getId()));
     }
 
     public void uploadBag(MultipartFile file, String targetDirectory, String storageId) throws IOException {
@@ -1043,14 +2068,6 @@ public class BagService extends StatusProvider {
         storage.uploadBag(file, targetDirectory);
     }
 
-    private Pageable createPageRequest(int page, int size, String dir, String sort) {
-        // ExtJS starts counting pages at 1, but Spring Data JPA starts counting at 0.
-        return PageRequest.of(page-1,
-                               size,
-                               dir.equalsIgnoreCase("ASC") ? Sort.Direction.ASC : Sort.Direction.DESC,
-                               sort);
-    }
-
     private <X> Predicate fromFilter(ExtJsFilter filter, CriteriaBuilder cb, Path<X> path) {
         Timestamp ts = null;
         switch (filter.getProperty()) {
@@ -1104,31 +2121,183 @@ public class BagService extends StatusProvider {
         return pred;
     }
 
+    /**
+     * Creates a predicate that matches bags whose start coordinate or GPS path
+     * intersects an area.  Every predicate is a combination of a bounding box
+     * test, which is answered by the spatial index, and an exact intersection
+     * test on the candidates that pass it.
+     *
+     * The filter's property must be either "coordinate" to search by the
+     * bag's starting coordinate or "path" to search anywhere along its GPS path.
+     * The value depends on the operator:
+     * <ul>
+     *     <li>bbox: "minLon,minLat,maxLon,maxLat"</li>
+     *     <li>polygon: A polygon in WKT format, e.g. "POLYGON((lon lat, ...))"</li>
+     *     <li>radius: "lon,lat,meters"</li>
+     * </ul>
+     */
+    private Predicate spatialPredicate(ExtJsFilter filter, CriteriaBuilder cb,
+                                       CriteriaQuery<?> query, Root<Bag> root) {
+        Geometry area = parseSpatialFilter(filter, myGeometryFactory);
+        switch (filter.getProperty()) {
+            case "coordinate":
+                return cb.and(SpatialPredicates.filter(cb, root.get(Bag_.coordinate), area),
+                              SpatialPredicates.intersects(cb, root.get(Bag_.coordinate), area));
+            case "path":
+                // The most detailed simplified path is within a meter of the full path
+                // and is a line rather than a set of points, so it catches places where
+                // the vehicle passed through an area between two GPS fixes.
+                Subquery<Long> pathQuery = query.subquery(Long.class);
+                Root<BagPath> pathRoot = pathQuery.from(BagPath.class);
+                pathQuery.select(pathRoot.get(BagPath_.bagId)).where(
+                        cb.equal(pathRoot.get(BagPath_.bagId), root.get(Bag_.id)),
+                        cb.equal(pathRoot.get(BagPath_.detailLevel), 1),
+                        SpatialPredicates.filter(cb, pathRoot.get(BagPath_.path), area),
+                        SpatialPredicates.intersects(cb, pathRoot.get(BagPath_.path), area));
+                return cb.exists(pathQuery);
+            default:
+                throw new IllegalArgumentException("Spatial filters are not supported for: " + filter.getProperty());
+        }
+    }
+
+    /**
+     * Checks that every spatial filter in a search can be parsed, so that
+     * malformed ones can be rejected before the search is run.
+     * @param filters The search's filters; may be null.
+     * @throws IllegalArgumentException If any spatial filter is invalid.
+     */
+    public static void validateSpatialFilters(ExtJsFilter[] filters) {
+        if (filters == null) {
+            return;
+        }
+        GeometryFactory factory = new GeometryFactory(new PrecisionModel(PrecisionModel.FLOATING), 4326);
+        for (ExtJsFilter filter : filters) {
+            if (filter != null && SPATIAL_OPERATORS.contains(filter.getOperator())) {
+                parseSpatialFilter(filter, factory);
+            }
+        }
+    }
+
+    private static Geometry parseSpatialFilter(ExtJsFilter filter, GeometryFactory factory) {
+        if (!"coordinate".equals(filter.getProperty()) && !"path".equals(filter.getProperty())) {
+            throw new IllegalArgumentException("Spatial filters are not supported for: " + filter.getProperty());
+        }
+        if (filter.getValue() == null) {
+            throw new IllegalArgumentException("Spatial filter has no value.");
+        }
+
+        Geometry area;
+        try {
+            switch (filter.getOperator()) {
+                case "bbox": {
+                    double[] values = parseDoubles(filter.getValue(), 4);
+                    checkLonLat(values[0], values[1]);
+                    checkLonLat(values[2], values[3]);
+                    if (values[0] > values[2] || values[1] > values[3]) {
+                        throw new IllegalArgumentException("Bounding box minimums must not be greater than " +
+                                                           "its maximums: " + filter.getValue());
+                    }
+                    area = factory.toGeometry(new Envelope(values[0], values[2], values[1], values[3]));
+                    break;
+                }
+                case "polygon":
+                    area = new WKTReader(factory).read(filter.getValue());
+                    if (!(area instanceof Polygon || area instanceof MultiPolygon) || !area.isValid()) {
+                        throw new IllegalArgumentException("Not a valid polygon: " + filter.getValue());
+                    }
+                    for (Coordinate coord : area.getCoordinates()) {
+                        checkLonLat(coord.x, coord.y);
+                    }
+                    break;
+                case "radius": {
+                    double[] values = parseDoubles(filter.getValue(), 3);
+                    checkLonLat(values[0], values[1]);
+                    if (!(values[2] > 0.0)) {
+                        throw new IllegalArgumentException("Radius must be greater than zero: " + filter.getValue());
+                    }
+                    // Approximate the circle as an ellipse in degrees; this is very accurate
+                    // for the small distances that people are likely to search for.
+                    double heightDeg = 2.0 * values[2] / METERS_PER_DEGREE;
+                    double widthDeg = heightDeg / Math.max(Math.cos(Math.toRadians(values[1])), 0.01);
+                    GeometricShapeFactory shapeFactory = new GeometricShapeFactory(factory);
+                    shapeFactory.setCentre(new Coordinate(values[0], values[1]));
+                    shapeFactory.setWidth(widthDeg);
+                    shapeFactory.setHeight(heightDeg);
+                    shapeFactory.setNumPoints(64);
+                    area = shapeFactory.createEllipse();
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown spatial operator: " + filter.getOperator());
+            }
+        }
+        catch (ParseException e) {
+            throw new IllegalArgumentException("Unable to parse polygon: " + filter.getValue(), e);
+        }
+        area.setSRID(factory.getSRID());
+        return area;
+    }
+
+    private static void checkLonLat(double lon, double lat) {
+        if (!(lon >= -180.0 && lon <= 180.0 && lat >= -90.0 && lat <= 90.0)) {
+            throw new IllegalArgumentException("Coordinate is out of range: " + lon + ", " + lat);
+        }
+    }
+
+    private static double[] parseDoubles(String value, int expectedCount) {
+        List<String> parts = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(value);
+        if (parts.size() != expectedCount) {
+            throw new IllegalArgumentException("Expected " + expectedCount + " comma-separated values: " + value);
+        }
+        return parts.stream().mapToDouble(Double::parseDouble).toArray();
+    }
+
     private Predicate fullTextPredicate(final String text,
                                         final String[] fields,
                                         CriteriaBuilder cb,
+                                        CriteriaQuery<?> query,
                                         Root<Bag> root) {
         final String wildcardText = "%" + text.toLowerCase() + "%";
         // We'll be searching through the text fields in all of the related tables
         // Fields that currently aren't being searched: md5sum
         // md5sum because nobody really cares about that
+        //
+        // Every lower(...) LIKE here is served by a trigram index in PostgreSQL
+        // (see db.changelog-2.4.yaml).  Related tables are searched with
+        // uncorrelated subqueries rather than joins so that each one is
+        // scanned through its index once, and so that a bag with many
+        // matching topics or tags doesn't produce duplicate rows that have to
+        // be removed with DISTINCT.
 
         List<Predicate> preds = Lists.newArrayList();
         for (String field : fields) {
             switch(field) {
-                case "messageType":
-                    Join<Bag, MessageType> mtJoin = root.join(Bag_.messageTypes, JoinType.LEFT);
-                    preds.add(cb.like(cb.lower(mtJoin.get(MessageType_.name)), wildcardText));
+                case "messageType": {
+                    Subquery<Long> mtQuery = query.subquery(Long.class);
+                    Root<MessageType> mtRoot = mtQuery.from(MessageType.class);
+                    Join<MessageType, Bag> bagJoin = mtRoot.join(MessageType_.bags);
+                    mtQuery.select(bagJoin.get(Bag_.id))
+                        .where(cb.like(cb.lower(mtRoot.get(MessageType_.name)), wildcardText));
+                    preds.add(root.get(Bag_.id).in(mtQuery));
                     break;
-                case "tags":
-                    Join<Bag, Tag> tagJoin = root.join(Bag_.tags, JoinType.LEFT);
-                    preds.add(cb.like(cb.lower(tagJoin.get(Tag_.tag)), wildcardText));
-                    preds.add(cb.like(cb.lower(tagJoin.get(Tag_.value)), wildcardText));
+                }
+                case "tags": {
+                    Subquery<Long> tagQuery = query.subquery(Long.class);
+                    Root<Tag> tagRoot = tagQuery.from(Tag.class);
+                    tagQuery.select(tagRoot.get(Tag_.bagId))
+                        .where(cb.or(cb.like(cb.lower(tagRoot.get(Tag_.tag)), wildcardText),
+                                     cb.like(cb.lower(tagRoot.get(Tag_.value)), wildcardText)));
+                    preds.add(root.get(Bag_.id).in(tagQuery));
                     break;
-                case "topicName":
-                    Join<Bag, Topic> topicJoin = root.join(Bag_.topics, JoinType.LEFT);
-                    preds.add(cb.like(cb.lower(topicJoin.get(Topic_.topicName)), wildcardText));
+                }
+                case "topicName": {
+                    Subquery<Long> topicQuery = query.subquery(Long.class);
+                    Root<Topic> topicRoot = topicQuery.from(Topic.class);
+                    topicQuery.select(topicRoot.get(Topic_.bagId))
+                        .where(cb.like(cb.lower(topicRoot.get(Topic_.topicName)), wildcardText));
+                    preds.add(root.get(Bag_.id).in(topicQuery));
                     break;
+                }
                 default:
                     preds.add(cb.like(cb.lower(root.get(field)), wildcardText));
                     break;
@@ -1138,63 +2307,647 @@ public class BagService extends StatusProvider {
         return cb.or(preds.toArray(new Predicate[0]));
     }
 
-    @Transactional(readOnly = true)
-    public BagList findBagsContainingText(final String text,
-                                          final String[] fields,
-                                          final ExtJsFilter[] filters,
-                                          int page,
-                                          int size,
-                                          String dir,
-                                          String sort) {
-        myLogger.trace("Executing specification.");
-
-        Page<Bag> bags;
-        Pageable pageReq = createPageRequest(page, size, dir, sort);
-
+    /**
+     * Builds a specification that matches every bag that satisfies a search.
+     * @return The specification, or null if the search matches every bag.
+     */
+    private Specification<Bag> searchSpecification(final String text,
+                                                   final String[] fields,
+                                                   final ExtJsFilter[] filters) {
         if ((text == null || text.trim().isEmpty() || fields == null || fields.length == 0) &&
             (filters == null || filters.length == 0)) {
-            bags = myBagRepository.findAll(pageReq);
+            return null;
         }
-        else {
-            bags = myBagRepository.findAll((root, query, cb) -> {
-                // We only want one result per bag file, though.
-                query.distinct(true);
-
-                List<Predicate> preds = Lists.newArrayList();
-                if (text != null && !text.trim().isEmpty() &&
-                    fields != null && fields.length != 0) {
-                    preds.add(fullTextPredicate(text, fields, cb, root));
-                }
-                if (filters != null && filters.length > 0) {
-                    for (ExtJsFilter filter : filters) {
+        return (root, query, cb) -> {
+            List<Predicate> preds = Lists.newArrayList();
+            if (text != null && !text.trim().isEmpty() &&
+                fields != null && fields.length != 0) {
+                preds.add(fullTextPredicate(text, fields, cb, query, root));
+            }
+            if (filters != null && filters.length > 0) {
+                for (ExtJsFilter filter : filters) {
+                    if (SPATIAL_OPERATORS.contains(filter.getOperator())) {
+                        preds.add(spatialPredicate(filter, cb, query, root));
+                    }
+                    else {
                         preds.add(fromFilter(filter, cb, root));
                     }
                 }
+            }
 
-                if (preds.size() == 1) {
-                    return preds.get(0);
-                }
-                else {
-                    return cb.and(preds.toArray(new Predicate[0]));
-                }
-            }, pageReq);
-        }
+            if (preds.size() == 1) {
+                return preds.get(0);
+            }
+            else {
+                return cb.and(preds.toArray(new Predicate[0]));
+            }
+        };
+    }
+
+    /**
+     * Searches for bags that match a set of criteria.  Only the columns
+     * that are displayed in lists of bags are returned; use
+     * {@link #fillBagDetails(List, boolean, boolean)} to add their topics
+     * and message types.
+     */
+    @Transactional(readOnly = true)
+    public BagSummaryList findBagsContainingText(final String text,
+                                                 final String[] fields,
+                                                 final ExtJsFilter[] filters,
+                                                 int page,
+                                                 int size,
+                                                 String dir,
+                                                 String sort) {
+        myLogger.trace("Executing specification.");
+
+        Specification<Bag> spec = searchSpecification(text, fields, filters);
+        SearchCounter.Count count = countBags(getQueryKey(text, fields, filters), spec);
+        // ExtJS starts counting pages at 1.
+        List<Long> ids = findBagIds(spec, dir.equalsIgnoreCase("ASC"), sort, (page - 1) * size, size);
         myLogger.trace("Finished executing.");
 
-        return new BagList(bags.getContent(), bags.getTotalElements());
+        BagSummaryList results = new BagSummaryList(getBagSummaries(ids), count.getValue());
+        setApproximateCount(results, count.isApproximate(), count.getCountId());
+        return results;
+    }
+
+    /**
+     * Searches for bags like {@link #findBagsContainingText(String, String[], ExtJsFilter[], int, int, String, String)},
+     * but finds each page by seeking past the last row of the previous page
+     * instead of skipping over every row before it, so that every page
+     * is about as fast to retrieve as the first one.  The total number of
+     * results is only counted for the first page.
+     * @param cursor The nextCursor of the previous page, or null or empty to
+     *               get the first page.
+     * @return A page of results; its nextCursor is null if this is the last page.
+     * @throws IllegalArgumentException If the cursor is invalid or was created
+     *         for a different sort order.
+     */
+    @Transactional(readOnly = true)
+    public BagSummaryList findBagsAfterCursor(final String text,
+                                              final String[] fields,
+                                              final ExtJsFilter[] filters,
+                                              String cursor,
+                                              int size,
+                                              String dir,
+                                              String sort) {
+        boolean isAscending = dir.equalsIgnoreCase("ASC");
+        SearchCursor after = null;
+        if (cursor != null && !cursor.isEmpty()) {
+            after = SearchCursor.decode(cursor);
+            if (!after.getSort().equals(sort) || after.isAscending() != isAscending) {
+                throw new IllegalArgumentException("Cursor was created for a different sort order.");
+            }
+        }
+
+        Specification<Bag> spec = searchSpecification(text, fields, filters);
+        String queryKey = getQueryKey(text, fields, filters);
+        SearchCounter.Count count;
+        if (after != null) {
+            // Use the exact count if it has been computed since the first page
+            Long cachedCount = mySearchCounter.getCachedCount(queryKey);
+            if (cachedCount != null) {
+                count = new SearchCounter.Count(cachedCount, false, null);
+            }
+            else {
+                count = new SearchCounter.Count(after.getTotalCount(),
+                                                mySearchCounter.isPossiblyApproximate(after.getTotalCount()),
+                                                SearchCounter.getCountId(queryKey));
+            }
+        }
+        else {
+            count = countBags(queryKey, spec);
+        }
+        long totalCount = count.getValue();
+
+        // Fetch one extra row to find out if there's another page.
+        List<Long> ids = findBagIdsAfter(spec, after, isAscending, sort, size + 1);
+        boolean hasMore = ids.size() > size;
+        List<BagSummary> bags = getBagSummaries(hasMore ? ids.subList(0, size) : ids);
+        BagSummaryList results = new BagSummaryList(bags, totalCount);
+        setApproximateCount(results, count.isApproximate(), count.getCountId());
+        if (hasMore) {
+            BagSummary last = bags.get(bags.size() - 1);
+            Object lastValue = new BeanWrapperImpl(last).getPropertyValue(sort);
+            results.setNextCursor(new SearchCursor(sort, isAscending, lastValue, last.getId(), totalCount).encode());
+        }
+        return results;
+    }
+
+    /**
+     * Builds a key that is the same for every search that has the same
+     * criteria, regardless of the order the fields and filters were given
+     * in or how they are paged and sorted.
+     */
+    static String getQueryKey(final String text,
+                              final String[] fields,
+                              final ExtJsFilter[] filters) {
+        List<String> parts = Lists.newArrayList();
+        if (text != null && !text.trim().isEmpty() && fields != null && fields.length != 0) {
+            parts.add("text:" + text.toLowerCase());
+            parts.add("fields:" + Arrays.stream(fields).distinct().sorted().collect(Collectors.joining(",")));
+        }
+        if (filters != null) {
+            Arrays.stream(filters)
+                .map(filter -> "filter:" + filter.getProperty() + " " + filter.getOperator() + " " + filter.getValue())
+                .distinct()
+                .sorted()
+                .forEach(parts::add);
+        }
+        return String.join("\n", parts);
+    }
+
+    /**
+     * Counts the bags that match a search; see {@link SearchCounter}.
+     */
+    private SearchCounter.Count countBags(String queryKey, Specification<Bag> spec) {
+        return mySearchCounter.count(queryKey,
+                                     limit -> countBagsUpTo(spec, limit),
+                                     () -> spec == null ? myBagRepository.count() : myBagRepository.count(spec));
+    }
+
+    /**
+     * Counts the bags that match a search, but stops once it has found a
+     * given number of them.  This is much faster than counting all of the
+     * results when a search matches most of the database.
+     *
+     * JPQL can't count the rows of a limited subquery, so instead this asks
+     * the database for the limit'th matching ID.  That only returns a single
+     * row, and the database can stop scanning as soon as it finds it; the
+     * matches are only counted exactly if there are fewer than the limit.
+     */
+    private long countBagsUpTo(Specification<Bag> spec, long limit) {
+        CriteriaBuilder cb = myEM.getCriteriaBuilder();
+        CriteriaQuery<Long> query = cb.createQuery(Long.class);
+        Root<Bag> root = query.from(Bag.class);
+        query.select(root.get(Bag_.id));
+        if (spec != null) {
+            query.where(spec.toPredicate(root, query, cb));
+        }
+        List<Long> lastId = myEM.createQuery(query)
+            .setFirstResult((int) Math.min(limit - 1, Integer.MAX_VALUE))
+            .setMaxResults(1)
+            .getResultList();
+        if (!lastId.isEmpty()) {
+            return limit;
+        }
+        return spec == null ? myBagRepository.count() : myBagRepository.count(spec);
+    }
+
+    /**
+     * Counts the bags that match a search for every vehicle, location, tag,
+     * message type, and storage backend.  Each facet is counted with a single
+     * grouped query, and the queries are run in parallel.
+     * @param limit The maximum number of values to return for each facet;
+     *              only the most common ones are returned.
+     * @return The counts for every facet.  Bags with no value for a
+     *         facet aren't counted in it.
+     * @throws IllegalArgumentException If the limit is less than 1.
+     */
+    public BagFacets getFacets(final String text,
+                               final String[] fields,
+                               final ExtJsFilter[] filters,
+                               int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Facet limit must be at least 1: " + limit);
+        }
+        Specification<Bag> spec = searchSpecification(text, fields, filters);
+        CompletableFuture<List<Object[]>> vehicles = countFacetAsync(spec, limit, false,
+            root -> List.of(root.get(Bag_.vehicle)));
+        CompletableFuture<List<Object[]>> locations = countFacetAsync(spec, limit, false,
+            root -> List.of(root.get(Bag_.location)));
+        CompletableFuture<List<Object[]>> tags = countFacetAsync(spec, limit, false, root -> {
+            Join<Bag, Tag> tag = root.join(Bag_.tags);
+            return List.of(tag.get(Tag_.tag), tag.get(Tag_.value));
+        });
+        // A bag may have several versions of the same message type.
+        CompletableFuture<List<Object[]>> messageTypes = countFacetAsync(spec, limit, true,
+            root -> List.of(root.join(Bag_.messageTypes).get(MessageType_.name)));
+        CompletableFuture<List<Object[]>> storageIds = countFacetAsync(spec, limit, false,
+            root -> List.of(root.get(Bag_.storageId)));
+
+        BagFacets facets = new BagFacets();
+        try {
+            facets.setVehicles(toFacetCounts(vehicles.join()));
+            facets.setLocations(toFacetCounts(locations.join()));
+            facets.setTags(tags.join().stream()
+                .map(row -> new BagFacets.TagFacetCount((String) row[0], (String) row[1],
+                                                        ((Number) row[2]).longValue()))
+                .collect(Collectors.toList()));
+            facets.setMessageTypes(toFacetCounts(messageTypes.join()));
+            facets.setStorageIds(toFacetCounts(storageIds.join()));
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return facets;
+    }
+
+    private CompletableFuture<List<Object[]>> countFacetAsync(Specification<Bag> spec, int limit,
+                                                              boolean countDistinct,
+                                                              Function<Root<Bag>, List<Expression<?>>> keys) {
+        return CompletableFuture.supplyAsync(() -> countFacet(spec, limit, countDistinct, keys), myFacetExecutor);
+    }
+
+    /**
+     * Counts the bags that match a search for each value of some expressions.
+     * @param spec The search criteria, or null to match every bag.
+     * @param limit The maximum number of rows to return.
+     * @param countDistinct True if the expressions join a collection that
+     *                      may have more than one row with the same values
+     *                      for a bag.
+     * @param keys Creates the expressions to group by.
+     * @return (key..., count) rows for the most common values, excluding nulls.
+     */
+    private List<Object[]> countFacet(Specification<Bag> spec, int limit, boolean countDistinct,
+                                      Function<Root<Bag>, List<Expression<?>>> keys) {
+        CriteriaBuilder cb = myEM.getCriteriaBuilder();
+        CriteriaQuery<Object[]> query = cb.createQuery(Object[].class);
+        Root<Bag> root = query.from(Bag.class);
+        List<Expression<?>> groupBy = keys.apply(root);
+        Expression<Long> count = countDistinct ? cb.countDistinct(root) : cb.count(root);
+
+        List<Selection<?>> selections = new ArrayList<>(groupBy);
+        selections.add(count);
+        List<Predicate> preds = groupBy.stream().map(cb::isNotNull).collect(Collectors.toList());
+        if (spec != null) {
+            preds.add(spec.toPredicate(root, query, cb));
+        }
+        List<Order> orders = Lists.newArrayList(cb.desc(count));
+        groupBy.forEach(key -> orders.add(cb.asc(key)));
+        query.multiselect(selections)
+            .where(preds.toArray(new Predicate[0]))
+            .groupBy(groupBy)
+            .orderBy(orders);
+
+        return myEM.createQuery(query)
+            .setMaxResults(limit)
+            .getResultList();
+    }
+
+    private static List<BagFacets.FacetCount> toFacetCounts(List<Object[]> rows) {
+        return rows.stream()
+            .map(row -> new BagFacets.FacetCount((String) row[0], ((Number) row[1]).longValue()))
+            .collect(Collectors.toList());
+    }
+
+    private static void setApproximateCount(BagSummaryList results, boolean isApproximate, String countId) {
+        results.setTotalCountApproximate(isApproximate);
+        if (isApproximate) {
+            results.setCountId(countId);
+        }
+    }
+
+    /**
+     * Finds the IDs of a page of bags that match a search.  Results are
+     * sorted by (sort value is null, sort value, ID) so that the order is
+     * the same on every database and ties are broken consistently.
+     * @param spec The search criteria, or null to match every bag.
+     */
+    private List<Long> findBagIds(Specification<Bag> spec, boolean isAscending,
+                                  String sort, int firstResult, int maxResults) {
+        CriteriaBuilder cb = myEM.getCriteriaBuilder();
+        CriteriaQuery<Long> query = cb.createQuery(Long.class);
+        Root<Bag> root = query.from(Bag.class);
+        Path<Comparable<Object>> sortPath = root.get(sort);
+        Path<Long> idPath = root.get(Bag_.id);
+        // Databases disagree on where nulls go, so sort them explicitly:
+        // after everything else in ascending order, before it in descending.
+        Expression<Integer> nullRank = cb.<Integer>selectCase().when(cb.isNull(sortPath), 1).otherwise(0);
+        if (isAscending) {
+            query.orderBy(cb.asc(nullRank), cb.asc(sortPath), cb.asc(idPath));
+        }
+        else {
+            query.orderBy(cb.desc(nullRank), cb.desc(sortPath), cb.desc(idPath));
+        }
+        query.select(idPath);
+        if (spec != null) {
+            query.where(spec.toPredicate(root, query, cb));
+        }
+
+        return myEM.createQuery(query)
+            .setFirstResult(firstResult)
+            .setMaxResults(maxResults)
+            .getResultList();
+    }
+
+    /**
+     * Finds the IDs of the bags that come after a cursor, in the same order
+     * as {@link #findBagIds(Specification, boolean, String, int, int)}.
+     * Bags with and without a sort value are found with separate queries
+     * so that each one can be read in order from the (sort column, ID) or
+     * primary key index instead of sorting every matching bag.
+     * @param after If not null, only bags after this cursor are returned.
+     */
+    private List<Long> findBagIdsAfter(Specification<Bag> spec, SearchCursor after, boolean isAscending,
+                                       String sort, int maxResults) {
+        boolean isInNulls = after != null && after.getLastValue() == null;
+        List<Long> ids = Lists.newArrayList();
+        if (isAscending) {
+            // Nulls come last.
+            if (!isInNulls) {
+                ids.addAll(findKeysetPage(spec, after, true, sort, false, maxResults));
+            }
+            if (ids.size() < maxResults) {
+                ids.addAll(findKeysetPage(spec, isInNulls ? after : null, true, sort, true,
+                                          maxResults - ids.size()));
+            }
+        }
+        else {
+            // Nulls come first.
+            if (after == null || isInNulls) {
+                ids.addAll(findKeysetPage(spec, after, false, sort, true, maxResults));
+            }
+            if (ids.size() < maxResults) {
+                ids.addAll(findKeysetPage(spec, isInNulls ? null : after, false, sort, false,
+                                          maxResults - ids.size()));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Finds bags that come after a cursor among either the bags that have no
+     * value in the sort column or the ones that do.
+     * @param after If not null, only bags after this cursor are returned;
+     *              its sort value must be null if isNull is true.
+     * @param isNull True to find bags whose sort value is null.
+     */
+    private List<Long> findKeysetPage(Specification<Bag> spec, SearchCursor after, boolean isAscending,
+                                      String sort, boolean isNull, int maxResults) {
+        CriteriaBuilder cb = myEM.getCriteriaBuilder();
+        CriteriaQuery<Long> query = cb.createQuery(Long.class);
+        Root<Bag> root = query.from(Bag.class);
+        List<Predicate> preds = Lists.newArrayList();
+        if (spec != null) {
+            preds.add(spec.toPredicate(root, query, cb));
+        }
+        Path<Comparable<Object>> sortPath = root.get(sort);
+        Path<Long> idPath = root.get(Bag_.id);
+        if (isNull) {
+            preds.add(cb.isNull(sortPath));
+            if (after != null) {
+                preds.add(isAscending ? cb.greaterThan(idPath, after.getLastId()) :
+                                        cb.lessThan(idPath, after.getLastId()));
+            }
+            query.orderBy(isAscending ? cb.asc(idPath) : cb.desc(idPath));
+        }
+        else {
+            preds.add(cb.isNotNull(sortPath));
+            if (after != null) {
+                // (sort, id) comes after (last sort value, last id)
+                preds.add(cb.isTrue(cb.function(
+                    isAscending ? RowValueFunctionContributor.ROW_GREATER_THAN :
+                                  RowValueFunctionContributor.ROW_LESS_THAN,
+                    Boolean.class, sortPath, idPath,
+                    cb.literal(after.getLastValue()), cb.literal(after.getLastId()))));
+            }
+            query.orderBy(isAscending ? List.of(cb.asc(sortPath), cb.asc(idPath)) :
+                                        List.of(cb.desc(sortPath), cb.desc(idPath)));
+        }
+        query.select(idPath).where(preds.toArray(new Predicate[0]));
+
+        return myEM.createQuery(query)
+            .setMaxResults(maxResults)
+            .getResultList();
+    }
+
+    /**
+     * Loads the summaries of a list of bags, including their tags, in two queries.
+     * @return The summaries, in the same order as the IDs.
+     */
+    private List<BagSummary> getBagSummaries(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Lists.newArrayList();
+        }
+        Map<Long, BagSummary> summaries = Maps.newHashMap();
+        for (BagSummary summary : myBagRepository.findSummariesByIdIn(ids)) {
+            summaries.put(summary.getId(), summary);
+        }
+        List<BagSummary> results = ids.stream().map(summaries::get)
+            .filter(Objects::nonNull).collect(Collectors.toList());
+        fillTags(results);
+        return results;
+    }
+
+    private void fillTags(Collection<BagSummary> summaries) {
+        if (summaries.isEmpty()) {
+            return;
+        }
+        Map<Long, BagSummary> summariesById = Maps.newHashMap();
+        for (BagSummary summary : summaries) {
+            summariesById.put(summary.getId(), summary);
+        }
+        for (Object[] row : myTagRepository.findTagValuesByBagIdIn(summariesById.keySet())) {
+            Tag tag = new Tag();
+            tag.setBagId((Long) row[0]);
+            tag.setTag((String) row[1]);
+            tag.setValue((String) row[2]);
+            summariesById.get(tag.getBagId()).getTags().add(tag);
+        }
+    }
+
+    /**
+     * Adds the topics and message types of a page of bags to their summaries.
+     * Each collection is loaded for every bag on the page in a single query
+     * without loading the bags themselves, so this doesn't take longer for
+     * bags that have more topics.
+     */
+    @Transactional(readOnly = true)
+    public void fillBagDetails(List<BagSummary> summaries, boolean fillTopics, boolean fillTypes) {
+        if (summaries.isEmpty() || (!fillTopics && !fillTypes)) {
+            return;
+        }
+        Map<Long, BagSummary> summariesById = Maps.newHashMap();
+        for (BagSummary summary : summaries) {
+            summariesById.put(summary.getId(), summary);
+        }
+        if (fillTopics) {
+            summaries.forEach(summary -> summary.setTopics(Sets.newHashSet()));
+            for (Topic topic : myTopicRepository.findWithTypeByBagIdIn(summariesById.keySet())) {
+                summariesById.get(topic.getBagId()).getTopics().add(topic);
+            }
+        }
+        if (fillTypes) {
+            summaries.forEach(summary -> summary.setMessageTypes(Sets.newHashSet()));
+            for (Object[] row : myMTRepository.findWithBagIdByBagIdIn(summariesById.keySet())) {
+                summariesById.get((Long) row[0]).getMessageTypes().add((MessageType) row[1]);
+            }
+        }
     }
 
     @Transactional(readOnly = true)
     public List<Double[]> getGpsCoordsForBags(final Collection<Long> bagIds) {
-        myLogger.debug("getGpsCoordsForBags: " + Joiner.on(", ").skipNulls().join(bagIds));
+        return getGpsCoordsForBags(bagIds, null, null);
+    }
+
+    /**
+     * Writes the GPS path for a set of bags to a stream in a compact encoding.
+     * When the full path is requested, positions are read straight from a
+     * database cursor and encoded as they arrive, so memory usage doesn't
+     * depend on the number of positions.
+     * @param bagIds All of the bags to get coordinates for.
+     * @param zoom If not null, the zoom level of the map the path will be displayed on.
+     * @param maxPoints If not null, the maximum number of points to write (if possible).
+     * @param format The encoding to use.
+     * @param output The stream to write to.
+     * @throws IOException If there was an error writing to the stream.
+     */
+    @Transactional(readOnly = true)
+    public void writeEncodedGpsCoordsForBags(final Collection<Long> bagIds,
+                                             final Integer zoom,
+                                             final Integer maxPoints,
+                                             final CoordinateEncoder.Format format,
+                                             final OutputStream output) throws IOException {
+        myLogger.debug("writeEncodedGpsCoordsForBags: " + Joiner.on(", ").skipNulls().join(bagIds) +
+                       " / format: " + format);
+        final CoordinateEncoder encoder = CoordinateEncoder.create(format, output);
+        if (bagIds.isEmpty()) {
+            return;
+        }
+
+        if (getDetailLevel(bagIds, zoom, maxPoints) > 0) {
+            // Simplified paths are small enough that there's no benefit to streaming them.
+            for (Double[] coord : getGpsCoordsForBags(bagIds, zoom, maxPoints)) {
+                encoder.write(coord[0], coord[1]);
+            }
+        }
+        else {
+            String sql = "SELECT ST_X(position), ST_Y(position) FROM bag_positions WHERE bagid IN (" +
+                    Joiner.on(',').join(Collections.nCopies(bagIds.size(), "?")) +
+                    ") ORDER BY positiontime ASC";
+            try {
+                myEM.unwrap(Session.class).doWork(connection -> {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                        // The Postgres driver only uses a cursor instead of reading the entire
+                        // result set into memory if a fetch size is set inside a transaction.
+                        statement.setFetchSize(COORDINATE_FETCH_SIZE);
+                        int index = 1;
+                        for (Long bagId : bagIds) {
+                            statement.setLong(index++, bagId);
+                        }
+                        try (ResultSet results = statement.executeQuery()) {
+                            while (results.next()) {
+                                encoder.write(results.getDouble(1), results.getDouble(2));
+                            }
+                        }
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        output.flush();
+        myLogger.debug("Wrote " + encoder.getPointCount() + " encoded points.");
+    }
 
-        List<BagPosition> positions =
-                myBagPositionRepository.findByBagIdInOrderByPositionTimeAsc(bagIds);
+    /**
+     * Determines the appropriate level of detail for displaying a set of bags'
+     * GPS paths.
+     * @param bagIds All of the bags that will be displayed.
+     * @param zoom If not null, the zoom level of the map the path will be displayed on.
+     * @param maxPoints If not null, the maximum number of points that should be displayed.
+     *                  Bags without simplified paths have all of their positions
+     *                  displayed at every level, so they count at their full size.
+     * @return The level of detail; 0 means every position.
+     */
+    private int getDetailLevel(final Collection<Long> bagIds, final Integer zoom, final Integer maxPoints) {
+        int level = 0;
+        if (zoom != null) {
+            level = GpsPathSimplifier.levelForZoom(zoom);
+        }
+        if (maxPoints != null) {
+            Map<Long, Long> positionCounts = Maps.newHashMap();
+            for (Object[] row : myBagPositionRepository.countByBagIdInGroupByBagId(bagIds)) {
+                positionCounts.put((Long) row[0], ((Number) row[1]).longValue());
+            }
+            long[] pointCounts = new long[GpsPathSimplifier.TOLERANCES.length + 1];
+            pointCounts[0] = positionCounts.values().stream().mapToLong(Long::longValue).sum();
+
+            for (Long bagId : myBagPathRepository.findBagIdsByBagIdIn(bagIds)) {
+                positionCounts.remove(bagId);
+            }
+            long unsimplifiedCount = positionCounts.values().stream().mapToLong(Long::longValue).sum();
+            Arrays.fill(pointCounts, 1, pointCounts.length, unsimplifiedCount);
+            for (Object[] row : myBagPathRepository.countPointsByDetailLevel(bagIds)) {
+                pointCounts[((Number) row[0]).intValue()] += ((Number) row[1]).longValue();
+            }
+            level = Math.max(level, GpsPathSimplifier.levelForPointBudget(pointCounts, maxPoints));
+        }
+        return level;
+    }
+
+    /**
+     * Gets the GPS path for a set of bags, simplified to a level of detail
+     * that is appropriate for displaying it on a map.
+     * @param bagIds All of the bags to get coordinates for.
+     * @param zoom If not null, the zoom level of the map the path will be displayed
+     *             on; points that are closer together than about a pixel will be removed.
+     * @param maxPoints If not null, the path will be simplified until it has no more
+     *                  than this many points (if possible).
+     * @return A flat list of (longitude, latitude) coordinates.  If both
+     *         zoom and maxPoints are null, every stored position is returned.
+     */
+    @Transactional(readOnly = true)
+    public List<Double[]> getGpsCoordsForBags(final Collection<Long> bagIds,
+                                              final Integer zoom,
+                                              final Integer maxPoints) {
+        myLogger.debug("getGpsCoordsForBags: " + Joiner.on(", ").skipNulls().join(bagIds) +
+                       " / zoom: " + zoom + " / maxPoints: " + maxPoints);
+
+        int level = getDetailLevel(bagIds, zoom, maxPoints);
+
+        List<Double[]> coords;
+        if (level == 0) {
+            List<BagPosition> positions =
+                    myBagPositionRepository.findByBagIdInOrderByPositionTimeAsc(bagIds);
+
+            coords = positions.parallelStream().map(p -> new Double[] {
+                    p.getLongitude(), p.getLatitude()}).collect(Collectors.toList());
+        }
+        else {
+            // Each bag's path, keyed by the time it starts
+            List<Map.Entry<Timestamp, List<Double[]>>> paths = Lists.newArrayList();
+            Set<Long> missingBagIds = Sets.newHashSet(bagIds);
+            for (BagPath path : myBagPathRepository.findByBagIdInAndDetailLevelOrderByStartTimeAsc(bagIds, level)) {
+                missingBagIds.remove(path.getBagId());
+                List<Double[]> pathCoords = Lists.newArrayList();
+                for (Coordinate coord : path.getPath().getCoordinates()) {
+                    pathCoords.add(new Double[] {coord.x, coord.y});
+                }
+                paths.add(Maps.immutableEntry(path.getStartTime(), pathCoords));
+            }
+            if (!missingBagIds.isEmpty()) {
+                // Bags whose paths have only one point or whose simplified paths
+                // haven't been generated yet won't have any; just use all of
+                // their positions.
+                Map<Long, List<Double[]>> missingPaths = Maps.newHashMap();
+                for (BagPosition p : myBagPositionRepository.findByBagIdInOrderByPositionTimeAsc(missingBagIds)) {
+                    missingPaths.computeIfAbsent(p.getBag().getId(), bagId -> {
+                        List<Double[]> pathCoords = Lists.newArrayList();
+                        paths.add(Maps.immutableEntry(p.getPositionTime(), pathCoords));
+                        return pathCoords;
+                    }).add(new Double[] {p.getLongitude(), p.getLatitude()});
+                }
+                paths.sort(Map.Entry.comparingByKey(Comparator.nullsFirst(Comparator.<Timestamp>naturalOrder())));
+            }
 
-        List<Double[]> coords = positions.parallelStream().map(p -> new Double[] {
-                p.getLongitude(), p.getLatitude()}).collect(Collectors.toList());
+            coords = new ArrayList<>();
+            for (Map.Entry<Timestamp, List<Double[]>> path : paths) {
+                coords.addAll(path.getValue());
+            }
+        }
 
-        myLogger.debug("Returning " + coords.size() + " points.");
+        myLogger.debug("Returning " + coords.size() + " points at level of detail " + level + ".");
 
         return coords;
     }
@@ -1326,12 +3079,10 @@ public class BagService extends StatusProvider {
     public List<String> getPaths() {
         Set<String> paths = new HashSet<>();
         for (BagStorage storage : myBagStorages.values()) {
-            List<String> tmpPaths = myBagRepository.getDisinctPathsByStorageId(storage.getStorageId());
-            List<String> filteredPaths = new ArrayList<>();
-            for (String path : tmpPaths) {
-                filteredPaths.add(path.replaceFirst(storage.getRootPath(), ""));
+            String rootPath = storage.getRootPath();
+            for (String path : myDirectoryTree.getPaths(storage.getStorageId())) {
+                paths.add(path.startsWith(rootPath) ? path.substring(rootPath.length()) : path);
             }
-            paths.addAll(filteredPaths);
         }
         List<String> sortedPaths = Lists.newArrayList(paths);
         sortedPaths.sort(String::compareToIgnoreCase);
@@ -1375,6 +3126,7 @@ public class BagService extends StatusProvider {
             Bag bag = myBagRepository.getOne(bagId);
             updateGpsPositions(bag, getAllGpsMessages(bagFile));
             myBagRepository.save(bag);
+            publishBagChange(new BagChangeEvent(BagChangeEvent.Type.UPDATED, bagId));
         }
         catch (BagReaderException | IOException e) {
             reportStatus(Status.State.ERROR,
@@ -1382,6 +3134,32 @@ public class BagService extends StatusProvider {
         }
     }
 
+    /**
+     * Recomputes the statistics for every topic in a bag file.  This is only
+     * necessary for bags that were added before topic statistics were stored.
+     * @param bagId The database ID of the bag to update.
+     * @throws NonexistentBagException If there is no bag with the given ID.
+     */
+    @Transactional
+    public void updateTopicStatisticsForBagId(long bagId) throws NonexistentBagException {
+        try (BagWrapper wrapper = getBagWrapper(bagId)) {
+            BagFile bagFile = wrapper.getBagFile();
+
+            Bag bag = myBagRepository.getOne(bagId);
+            Map<String, TopicStatistics> statistics = TopicStatistics.collect(bagFile,
+                bag.getTopics().stream().map(Topic::getTopicName).collect(Collectors.toSet()));
+            for (Topic topic : bag.getTopics()) {
+                statistics.get(topic.getTopicName()).applyTo(topic);
+            }
+            myBagRepository.save(bag);
+            publishBagChange(new BagChangeEvent(BagChangeEvent.Type.UPDATED, bagId));
+        }
+        catch (BagReaderException | IOException e) {
+            reportStatus(Status.State.ERROR,
+                         "Unable to get topic statistics for bag " + bagId + ": " + e.getLocalizedMessage());
+        }
+    }
+
     @Transactional
     public void updateGpsPositions(final Bag bag, Collection<GpsPosition> gpsPositions) {
         List<BagPosition> existingPositions = bag.getBagPositions();
@@ -1390,6 +3168,14 @@ public class BagService extends StatusProvider {
                                   "some in the database is not supported.  " +
                                   "Manually remove the old ones first.");
             bag.setHasPath(true);
+            if (myBagPathRepository.countByBagId(bag.getId()) == 0) {
+                // Bags that were added before simplified paths were stored
+                // can still have them generated from their existing positions.
+                List<BagPosition> sortedPositions = Lists.newArrayList(existingPositions);
+                sortedPositions.sort(Comparator.comparing(BagPosition::getPositionTime,
+                                                           Comparator.nullsFirst(Comparator.naturalOrder())));
+                updateSimplifiedPaths(bag, sortedPositions);
+            }
             return;
         }
 
@@ -1405,12 +3191,62 @@ public class BagService extends StatusProvider {
             pos = myBagPositionRepository.save(pos);
             bag.getBagPositions().add(pos);
         }
+        updateSimplifiedPaths(bag, bag.getBagPositions());
         msg = "Saved " + gpsPositions.size() + " GPS positions for " +
                 bag.getFilename() + ".";
         myLogger.debug(msg);
         reportStatus(Status.State.WORKING, msg);
     }
 
+    /**
+     * Replaces the simplified versions of a bag's GPS path that are used for
+     * drawing it on a map at lower levels of detail.
+     * @param bag The bag to update.
+     * @param positions All of the bag's positions, sorted by time.
+     */
+    @Transactional
+    public void updateSimplifiedPaths(final Bag bag, final List<BagPosition> positions) {
+        myBagPathRepository.deleteByBagId(bag.getId());
+        if (positions.isEmpty()) {
+            return;
+        }
+
+        Coordinate[] coords = positions.stream()
+                .map(p -> p.getPosition().getCoordinate())
+                .toArray(Coordinate[]::new);
+        List<BagPath> paths = myPathSimplifier.simplify(bag.getId(), coords, positions.get(0).getPositionTime());
+        myBagPathRepository.saveAll(paths);
+        myLogger.debug("Saved " + paths.size() + " simplified paths for " + bag.getFilename() + ".");
+
+        Envelope envelope = new Envelope();
+        for (Coordinate coord : coords) {
+            envelope.expandToInclude(coord);
+        }
+        myEventPublisher.publishEvent(new TileService.PathChangeEvent(envelope));
+    }
+
+    /**
+     * Generates the simplified paths for a bag from the GPS positions that are
+     * already in the database.
+     * @param bagId The bag to update.
+     */
+    @Transactional
+    public void updateSimplifiedPathsForBagId(final Long bagId) {
+        Bag bag = myBagRepository.findById(bagId).orElse(null);
+        if (bag == null) {
+            return;
+        }
+        updateSimplifiedPaths(bag, myBagPositionRepository.findByBagIdOrderByPositionTimeAsc(bagId));
+    }
+
+    /**
+     * @return The IDs of every bag that has a GPS path but no simplified paths.
+     */
+    @Transactional(readOnly = true)
+    public List<Long> getBagIdsWithoutSimplifiedPaths() {
+        return myBagPositionRepository.findBagIdsWithoutSimplifiedPaths();
+    }
+
     @Transactional
     public void removeTagForBag(Collection<String> tagNames,
                                 final Long bagId) throws NonexistentBagException {
@@ -1419,6 +3255,7 @@ public class BagService extends StatusProvider {
         }
 
         myTagRepository.deleteByBagIdAndTagIn(bagId, tagNames);
+        publishBagChange(new BagChangeEvent(BagChangeEvent.Type.TAGGED, bagId));
     }
 
     @Transactional
@@ -1442,6 +3279,7 @@ public class BagService extends StatusProvider {
         tag.setValue(value == null ? "" : value.trim());
         myLogger.debug("Setting value of tag with key '" + tagName + "' to '" + tag.getValue() + "'");
         myTagRepository.save(tag);
+        publishBagChange(new BagChangeEvent(BagChangeEvent.Type.TAGGED, bagId));
     }
 
     @Transactional
@@ -1520,6 +3358,9 @@ public class BagService extends StatusProvider {
                                 final Map<String, MessageType> dbMessageTypes) throws BagReaderException {
         myLogger.trace("Adding topics.");
         List<TopicInfo> topics = bagFile.getTopics();
+        myLogger.trace("Computing topic statistics.");
+        Map<String, TopicStatistics> statistics = TopicStatistics.collect(bagFile,
+            topics.stream().map(TopicInfo::getName).collect(Collectors.toSet()));
         for (TopicInfo topic : topics) {
             MessageType dbType = dbMessageTypes.get(topic.getMessageType());
             if (dbType == null) {
@@ -1551,6 +3392,8 @@ public class BagService extends StatusProvider {
             dbTopic.setMessageCount(topic.getMessageCount());
             dbTopic.setConnectionCount(topic.getConnectionCount());
             dbTopic.setBag(bag);
+
+            statistics.get(topic.getName()).applyTo(dbTopic);
             bag.getTopics().add(dbTopic);
         }
     }
@@ -1589,6 +3432,7 @@ public class BagService extends StatusProvider {
                 myTagRepository.save(bagTag);
             }
         }
+        publishBagChange(new BagChangeEvent(BagChangeEvent.Type.TAGGED, bag.getId()));
     }
 
     public void updateBagFile(final BagWrapper wrapper,
@@ -1755,6 +3599,8 @@ public class BagService extends StatusProvider {
                                    final String storageId)
             throws DuplicateBagException, BagReaderException {
         Bag bag;
+        String oldStorageId = null;
+        String oldPath = null;
         if (bagId == null) {
             bag = insertNewBag(wrapper, md5sum, locationName, gpsPositions, storageId);
         }
@@ -1768,6 +3614,8 @@ public class BagService extends StatusProvider {
             // If we found a missing one, remove it from the list and update
             // its path.
             bag = myBagRepository.findById(bagId).orElseThrow();
+            oldStorageId = bag.getStorageId();
+            oldPath = bag.getPath();
             bag.setPath(wrapper.getPath());
             bag.setFilename(wrapper.getFilename());
             bag.setMissing(false);
@@ -1776,6 +3624,12 @@ public class BagService extends StatusProvider {
             addTagsToBag(wrapper.getBagFile(), bag);
         }
         myBagRepository.save(bag);
+        if (!Objects.equals(oldStorageId, bag.getStorageId()) || !Objects.equals(oldPath, bag.getPath())) {
+            myDirectoryCounter.adjustCount(oldStorageId, oldPath, -1);
+            myDirectoryCounter.adjustCount(bag.getStorageId(), bag.getPath(), 1);
+        }
+        publishBagChange(new BagChangeEvent(bagId == null ? BagChangeEvent.Type.ADDED : BagChangeEvent.Type.UPDATED,
+                                            bag.getId()));
         String msg = "Committing: " + wrapper.getPath() + wrapper.getFilename();
         myLogger.debug(msg);
         reportStatus(Status.State.WORKING, msg);
@@ -1790,6 +3644,7 @@ public class BagService extends StatusProvider {
         for (BagStorage storage : myBagStorages.values()) {
             nodes.addAll(storage.getTreeNodes(targetPath));
         }
+        fillTags(nodes.stream().map(node -> node.bag).filter(Objects::nonNull).collect(Collectors.toList()));
 
         return nodes;
     }
@@ -1804,10 +3659,7 @@ public class BagService extends StatusProvider {
      */
     @Transactional(readOnly = true)
     public BagCount[] checkFilteredBagCounts(String filterText) {
-        TypedQuery<BagCount> query = myEM.createNamedQuery("Bag.countBagPaths", BagCount.class);
-        query.setParameter("text", filterText);
-        List<BagCount> results = query.getResultList();
-        return results.toArray(new BagCount[0]);
+        return myDirectoryCounter.getFilteredCounts(filterText).toArray(new BagCount[0]);
     }
 
     @Transactional
@@ -1817,8 +3669,14 @@ public class BagService extends StatusProvider {
         // Using bagRepository.delete here doesn't work.  It just executes another
         // select statement.  No idea why.  Spring Data JPA repositories are so
         // annoying sometimes.
+        List<Object[]> missingCounts = myBagRepository.countMissingByStorageIdAndPath();
         Query query = myEM.createQuery("delete from Bag b where b.missing = true");
         int numberRemoved = query.executeUpdate();
+        myDirectoryCounter.removeBags(missingCounts);
+        if (numberRemoved > 0) {
+            myEventPublisher.publishEvent(TileService.PathChangeEvent.allPaths());
+            publishBagChange(BagChangeEvent.allBags(BagChangeEvent.Type.REMOVED));
+        }
         String msg = "Removed " + numberRemoved + " missing bags.";
         myLogger.debug(msg);
         reportStatus(Status.State.IDLE, msg);
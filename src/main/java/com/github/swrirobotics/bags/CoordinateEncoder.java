@@ -0,0 +1,163 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a sequence of GPS coordinates to a stream in a compact format that
+ * is much smaller and cheaper to produce than a JSON array of arrays.
+ *
+ * Coordinates are written one at a time so that they can be encoded directly
+ * from a database cursor without holding the whole path in memory.
+ */
+abstract class CoordinateEncoder {
+    public enum Format {
+        /**
+         * Pairs of (longitude, latitude) in integer microdegrees.  Each value
+         * is the difference from the previous point (or from 0 for the first
+         * point), zigzag-encoded and written as a little-endian base-128 varint,
+         * just like a Protocol Buffers sint32.
+         */
+        ZIGZAG("application/octet-stream"),
+        /**
+         * A Google Encoded Polyline string with five digits of precision.
+         * Note that, unlike everything else here, polylines are in (latitude,
+         * longitude) order.
+         */
+        POLYLINE("text/plain");
+
+        private final String myContentType;
+
+        Format(String contentType) {
+            myContentType = contentType;
+        }
+
+        public String getContentType() {
+            return myContentType;
+        }
+    }
+
+    protected final OutputStream myOutput;
+    private int myPointCount = 0;
+
+    protected CoordinateEncoder(OutputStream output) {
+        myOutput = output;
+    }
+
+    static CoordinateEncoder create(Format format, OutputStream output) {
+        switch (format) {
+            case POLYLINE:
+                return new PolylineEncoder(output);
+            case ZIGZAG:
+            default:
+                return new ZigzagEncoder(output);
+        }
+    }
+
+    /**
+     * Encodes a single coordinate.
+     * @param longitude The longitude of the point, in degrees.
+     * @param latitude The latitude of the point, in degrees.
+     * @throws IOException If there was an error writing to the stream.
+     */
+    void write(double longitude, double latitude) throws IOException {
+        encode(longitude, latitude);
+        myPointCount++;
+    }
+
+    int getPointCount() {
+        return myPointCount;
+    }
+
+    protected abstract void encode(double longitude, double latitude) throws IOException;
+
+    private static class ZigzagEncoder extends CoordinateEncoder {
+        private int myPreviousLon = 0;
+        private int myPreviousLat = 0;
+
+        ZigzagEncoder(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        protected void encode(double longitude, double latitude) throws IOException {
+            int lon = (int) Math.round(longitude * 1e6);
+            int lat = (int) Math.round(latitude * 1e6);
+            writeVarint(zigzag(lon - myPreviousLon));
+            writeVarint(zigzag(lat - myPreviousLat));
+            myPreviousLon = lon;
+            myPreviousLat = lat;
+        }
+
+        private static int zigzag(int value) {
+            return (value << 1) ^ (value >> 31);
+        }
+
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                myOutput.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            myOutput.write(value);
+        }
+    }
+
+    private static class PolylineEncoder extends CoordinateEncoder {
+        private long myPreviousLat = 0;
+        private long myPreviousLon = 0;
+
+        PolylineEncoder(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        protected void encode(double longitude, double latitude) throws IOException {
+            long lat = Math.round(latitude * 1e5);
+            long lon = Math.round(longitude * 1e5);
+            writeValue(lat - myPreviousLat);
+            writeValue(lon - myPreviousLon);
+            myPreviousLat = lat;
+            myPreviousLon = lon;
+        }
+
+        private void writeValue(long value) throws IOException {
+            value = value < 0 ? ~(value << 1) : (value << 1);
+            while (value >= 0x20) {
+                myOutput.write((int) ((0x20 | (value & 0x1F)) + 63));
+                value >>= 5;
+            }
+            myOutput.write((int) (value + 63));
+        }
+    }
+}
@@ -0,0 +1,339 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.persistence.BagCount;
+import com.github.swrirobotics.persistence.BagDirectoryCount;
+import com.github.swrirobotics.persistence.BagDirectoryCountRepository;
+import com.github.swrirobotics.persistence.BagRepository;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Maintains the number of bags in every directory, including its
+ * subdirectories, in the bag_directory_counts table.
+ *
+ * Counting them on demand requires matching every bag's path against every
+ * directory's path, which gets slow quickly as the number of directories
+ * grows.  Instead, the counts are adjusted in the same transaction that adds,
+ * moves, or removes a bag, so looking up a directory's count only needs its
+ * primary key.
+ *
+ * Bags that don't belong to any storage backend are counted under
+ * {@link #NO_STORAGE_ID}.
+ */
+@Component
+public class DirectoryCounter {
+    /**
+     * Published whenever the number of bags directly in a directory changes.
+     * Every event has a sequence number that is higher than the ones created
+     * before it, so listeners can tell whether a change was made before they
+     * last read the counts.
+     */
+    public static class CountChangeEvent {
+        private static final AtomicLong myLastSequence = new AtomicLong();
+
+        private final String myStorageId;
+        private final String myPath;
+        private final long myDelta;
+        private final long mySequence;
+
+        public CountChangeEvent(String storageId, String path, long delta) {
+            myStorageId = storageId;
+            myPath = path;
+            myDelta = delta;
+            mySequence = myLastSequence.incrementAndGet();
+        }
+
+        /**
+         * @return The sequence number of the most recently created event.
+         */
+        public static long getLastSequence() {
+            return myLastSequence.get();
+        }
+
+        public String getStorageId() {
+            return myStorageId;
+        }
+
+        public String getPath() {
+            return myPath;
+        }
+
+        public long getDelta() {
+            return myDelta;
+        }
+
+        public long getSequence() {
+            return mySequence;
+        }
+    }
+
+    /**
+     * Published when the counts for many directories were changed at once, so
+     * anything that tracks them should reload them from the database.
+     */
+    public static class CountsResetEvent {
+    }
+
+    /**
+     * The storage ID that bags without one are counted under.
+     */
+    public static final String NO_STORAGE_ID = "";
+
+    private final BagDirectoryCountRepository myCountRepository;
+    private final BagRepository myBagRepository;
+    private final ApplicationEventPublisher myEventPublisher;
+    private final TransactionTemplate myNewTransaction;
+
+    @PersistenceContext
+    private EntityManager myEM;
+
+    private static final Logger myLogger = LoggerFactory.getLogger(DirectoryCounter.class);
+
+    public DirectoryCounter(BagDirectoryCountRepository countRepository, BagRepository bagRepository,
+                            ApplicationEventPublisher eventPublisher,
+                            PlatformTransactionManager transactionManager) {
+        myCountRepository = countRepository;
+        myBagRepository = bagRepository;
+        myEventPublisher = eventPublisher;
+        myNewTransaction = new TransactionTemplate(transactionManager);
+        myNewTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    private static String getStorageKey(String storageId) {
+        return storageId == null ? NO_STORAGE_ID : storageId;
+    }
+
+    /**
+     * Lists a directory and every directory above it.
+     * @param path A bag's path; "/bags/2020/" gives "/", "/bags/", and "/bags/2020/".
+     * @return The directories, from the top down.
+     */
+    public static List<String> getDirectories(String path) {
+        List<String> directories = Lists.newArrayList();
+        for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)) {
+            directories.add(path.substring(0, i + 1));
+        }
+        if (!path.isEmpty() && !path.endsWith("/")) {
+            directories.add(path);
+        }
+        return directories;
+    }
+
+    /**
+     * Adds to the count of a directory and every directory above it.
+     *
+     * Directories that don't have a count yet are created with a count of
+     * zero in their own transactions first, so that two transactions adding
+     * the first bags to a directory at the same time don't both try to insert
+     * it; one of them will fail, and then both of them just add to it.
+     * Counts that drop to zero are kept until the counts are rebuilt, since
+     * deleting one would make creating it again later in the same
+     * transaction wait for that transaction to finish.
+     * @param storageId The ID of the storage backend the directory is in.
+     * @param path The directory's path.
+     * @param delta The number of bags that were added; negative if they were removed.
+     */
+    @Transactional
+    public void adjustCount(String storageId, String path, long delta) {
+        if (path == null || delta == 0) {
+            return;
+        }
+        List<String> directories = getDirectories(path);
+        if (directories.isEmpty()) {
+            return;
+        }
+        myEventPublisher.publishEvent(new CountChangeEvent(storageId, path, delta));
+
+        String storageKey = getStorageKey(storageId);
+        if (delta > 0) {
+            createCounts(storageKey, directories);
+        }
+        int updated = myCountRepository.addToCounts(storageKey, directories, delta);
+        if (delta > 0 && updated < directories.size()) {
+            throw new IllegalStateException("Unable to create the bag counts for " + path + ".");
+        }
+    }
+
+    private void createCounts(String storageId, List<String> directories) {
+        Set<String> existing = Sets.newHashSet(myCountRepository.findExistingPaths(storageId, directories));
+        for (String directory : directories) {
+            if (existing.contains(directory)) {
+                continue;
+            }
+            try {
+                myNewTransaction.executeWithoutResult(status -> {
+                    BagDirectoryCount count = new BagDirectoryCount();
+                    count.setStorageId(storageId);
+                    count.setPath(directory);
+                    count.setBagCount(0L);
+                    // Saving it through the repository would merge it into
+                    // one that was just created rather than failing.
+                    myEM.persist(count);
+                    myEM.flush();
+                });
+            }
+            catch (DataIntegrityViolationException | PersistenceException e) {
+                myLogger.debug("Count for " + directory + " was created by another transaction.");
+            }
+        }
+    }
+
+    /**
+     * Removes bags from the counts.
+     * @param removedBags (storageId, path, count) rows for the bags that were removed.
+     */
+    @Transactional
+    public void removeBags(Collection<Object[]> removedBags) {
+        for (Object[] row : removedBags) {
+            adjustCount((String) row[0], (String) row[1], -((Number) row[2]).longValue());
+        }
+    }
+
+    /**
+     * Removes the counts for every storage backend except the given ones.
+     */
+    @Transactional
+    public void retainStorages(Collection<String> storageIds) {
+        Set<String> retained = Sets.newHashSet(storageIds);
+        retained.add(NO_STORAGE_ID);
+        myCountRepository.deleteByStorageIdNotIn(retained);
+        myEventPublisher.publishEvent(new CountsResetEvent());
+    }
+
+    /**
+     * Gets the number of bags in a directory and all of its subdirectories.
+     */
+    @Transactional(readOnly = true)
+    public long getCount(String storageId, String path) {
+        Long count = myCountRepository.findBagCount(getStorageKey(storageId), path);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Counts the bags under every path that bags are in whose file names
+     * contain some text.  Only the bags that match are read from the
+     * database; they are added up into their directories here.
+     * @param filterText Text to look for in file names; counts every bag if empty.
+     * @return The counts for every path that directly contains any bags,
+     *         across all storage backends, including the bags in their
+     *         subdirectories.
+     */
+    @Transactional(readOnly = true)
+    public List<BagCount> getFilteredCounts(String filterText) {
+        Map<String, Long> directoryCounts = Maps.newHashMap();
+        if (filterText == null || filterText.isEmpty()) {
+            for (Object[] row : myCountRepository.sumCountsByPath()) {
+                directoryCounts.put((String) row[0], ((Number) row[1]).longValue());
+            }
+        }
+        else {
+            for (Object[] row : myBagRepository.countByPathAndFilenameLike("%" + filterText.toLowerCase() + "%")) {
+                if (row[0] == null) {
+                    continue;
+                }
+                long count = ((Number) row[1]).longValue();
+                for (String directory : getDirectories((String) row[0])) {
+                    directoryCounts.merge(directory, count, Long::sum);
+                }
+            }
+        }
+
+        return myBagRepository.findDistinctPaths().stream().filter(Objects::nonNull).map(path -> {
+            BagCount count = new BagCount();
+            count.path = path;
+            count.count = directoryCounts.getOrDefault(path, 0L);
+            return count;
+        }).collect(Collectors.toList());
+    }
+
+    /**
+     * Recounts every directory if there are bags but no counts, which is the
+     * case the first time the application starts after the table was created.
+     */
+    @Transactional
+    public void initializeCounts() {
+        if (myCountRepository.count() == 0 && myBagRepository.count() > 0) {
+            rebuildCounts();
+        }
+    }
+
+    /**
+     * Discards every count and recounts them from the bags table.
+     */
+    @Transactional
+    public void rebuildCounts() {
+        myLogger.info("Counting bags in every directory.");
+        myCountRepository.deleteAllInBatch();
+        Map<List<String>, Long> counts = Maps.newHashMap();
+        for (Object[] row : myBagRepository.countByStorageIdAndPath()) {
+            if (row[1] == null) {
+                continue;
+            }
+            String storageId = getStorageKey((String) row[0]);
+            long count = ((Number) row[2]).longValue();
+            for (String directory : getDirectories((String) row[1])) {
+                counts.merge(List.of(storageId, directory), count, Long::sum);
+            }
+        }
+        myCountRepository.saveAll(counts.entrySet().stream().map(entry -> {
+            BagDirectoryCount count = new BagDirectoryCount();
+            count.setStorageId(entry.getKey().get(0));
+            count.setPath(entry.getKey().get(1));
+            count.setBagCount(entry.getValue());
+            return count;
+        }).collect(Collectors.toList()));
+        myLogger.info("Counted bags in " + counts.size() + " directories.");
+        myEventPublisher.publishEvent(new CountsResetEvent());
+    }
+}
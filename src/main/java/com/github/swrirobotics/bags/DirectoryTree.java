@@ -0,0 +1,306 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.persistence.BagRepository;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps every storage backend's directories in memory as a tree so that the
+ * folder view and the list of paths can be built without listing directories
+ * on disk or querying the database for every directory.
+ *
+ * Each directory knows how many bags are directly in it and how many are in
+ * it and all of its subdirectories.  The tree is read from the database the
+ * first time it's needed and is then kept up to date by the events that
+ * {@link DirectoryCounter} publishes.  It may be read from any number of
+ * threads at once while it's being updated.
+ *
+ * Changes are applied after their transactions commit, so a change that was
+ * made before the tree finished being read may or may not already be in it.  Rather
+ * than risk counting those bags twice, the tree is read again the next time
+ * it's needed.
+ */
+@Component
+public class DirectoryTree {
+    /**
+     * A directory's name and the number of bags in it.
+     */
+    public static class Directory {
+        private final String myName;
+        private final long myBagCount;
+        private final boolean myHasSubdirectories;
+
+        Directory(String name, long bagCount, boolean hasSubdirectories) {
+            myName = name;
+            myBagCount = bagCount;
+            myHasSubdirectories = hasSubdirectories;
+        }
+
+        public String getName() {
+            return myName;
+        }
+
+        /**
+         * @return The number of bags in this directory and all of its subdirectories.
+         */
+        public long getBagCount() {
+            return myBagCount;
+        }
+
+        public boolean hasSubdirectories() {
+            return myHasSubdirectories;
+        }
+    }
+
+    private static class Node {
+        final ConcurrentNavigableMap<String, Node> myChildren = new ConcurrentSkipListMap<>();
+        final AtomicLong myBagCount = new AtomicLong();
+        final AtomicLong myDirectBagCount = new AtomicLong();
+        // The path of the bags directly in this directory, exactly as it's
+        // stored in the database; null if it has never directly held any.
+        volatile String myPath;
+    }
+
+    private final BagRepository myBagRepository;
+    // Maps storage IDs to the root of their directories; null until loaded.
+    private volatile ConcurrentMap<String, Node> myRoots;
+    // The sequence number of the last count change made before the tree
+    // finished being read from the database; only later changes are certain
+    // not to be in it.
+    private long myLoadedSequence;
+    private final Object myLock = new Object();
+
+    private static final Logger myLogger = LoggerFactory.getLogger(DirectoryTree.class);
+
+    public DirectoryTree(BagRepository bagRepository) {
+        myBagRepository = bagRepository;
+    }
+
+    /**
+     * Splits a path into the names of its directories, ignoring empty ones,
+     * so that "/bags/2020/", "bags/2020", and "bags//2020/" are all the same.
+     */
+    @VisibleForTesting
+    static List<String> getSegments(String path) {
+        List<String> segments = Lists.newArrayList();
+        if (path == null) {
+            return segments;
+        }
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Gets the subdirectories of a directory that contain any bags.
+     * @param storageId The storage backend that contains the directory.
+     * @param path The directory's path.
+     * @return The subdirectories, sorted by name; empty if the directory
+     *         doesn't contain any bags.
+     */
+    public List<Directory> getSubdirectories(String storageId, String path) {
+        List<Directory> directories = Lists.newArrayList();
+        Node parent = findNode(storageId, path);
+        if (parent == null) {
+            return directories;
+        }
+        for (Map.Entry<String, Node> entry : parent.myChildren.entrySet()) {
+            Node child = entry.getValue();
+            long count = child.myBagCount.get();
+            if (count > 0) {
+                directories.add(new Directory(entry.getKey(), count, !child.myChildren.isEmpty()));
+            }
+        }
+        return directories;
+    }
+
+    /**
+     * Gets the number of bags in a directory and all of its subdirectories.
+     * @param storageId The storage backend that contains the directory.
+     * @param path The directory's path.
+     */
+    public long getBagCount(String storageId, String path) {
+        Node node = findNode(storageId, path);
+        return node == null ? 0 : Math.max(node.myBagCount.get(), 0);
+    }
+
+    /**
+     * Gets the paths of every directory that directly contains bags.
+     * @param storageId The storage backend to list.
+     * @return The paths, as they're stored in the database.
+     */
+    public List<String> getPaths(String storageId) {
+        List<String> paths = Lists.newArrayList();
+        Node root = getRoots().get(storageId);
+        if (root != null) {
+            addPaths(root, paths);
+        }
+        return paths;
+    }
+
+    private static void addPaths(Node node, List<String> paths) {
+        String path = node.myPath;
+        if (path != null && node.myDirectBagCount.get() > 0) {
+            paths.add(path);
+        }
+        for (Node child : node.myChildren.values()) {
+            addPaths(child, paths);
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onCountChange(DirectoryCounter.CountChangeEvent event) {
+        synchronized (myLock) {
+            if (myRoots == null) {
+                // It'll be up to date when it's loaded.
+                return;
+            }
+            if (event.getSequence() <= myLoadedSequence) {
+                myLogger.debug("Reloading directories after a change that was made while they were loaded.");
+                myRoots = null;
+                return;
+            }
+            addBags(myRoots, event.getStorageId(), event.getPath(), event.getDelta());
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onCountsReset(DirectoryCounter.CountsResetEvent event) {
+        reload();
+    }
+
+    /**
+     * Discards the tree and reads it from the database again.
+     */
+    public void reload() {
+        synchronized (myLock) {
+            myRoots = load();
+        }
+    }
+
+    private ConcurrentMap<String, Node> getRoots() {
+        ConcurrentMap<String, Node> roots = myRoots;
+        if (roots == null) {
+            synchronized (myLock) {
+                if (myRoots == null) {
+                    myRoots = load();
+                }
+                roots = myRoots;
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Reads the tree from the database.  Must be called while holding myLock.
+     */
+    private ConcurrentMap<String, Node> load() {
+        ConcurrentMap<String, Node> roots = new ConcurrentHashMap<>();
+        int directoryCount = 0;
+        for (Object[] row : myBagRepository.countByStorageIdAndPath()) {
+            if (row[0] == null || row[1] == null) {
+                continue;
+            }
+            addBags(roots, (String) row[0], (String) row[1], ((Number) row[2]).longValue());
+            directoryCount++;
+        }
+        // Events are created before their transactions commit, so a change
+        // whose event comes after this can't be in what was just read.  Any
+        // change from before it might be, even one that was made after the
+        // query started, so it can't be read any earlier.
+        myLoadedSequence = DirectoryCounter.CountChangeEvent.getLastSequence();
+        myLogger.debug("Loaded " + directoryCount + " directories that contain bags.");
+        return roots;
+    }
+
+    /**
+     * Adds bags to a directory, creating it if necessary, and to every
+     * directory above it.  Directories that no longer contain any bags are
+     * removed.  Must be called while holding myLock or before the tree is
+     * visible to other threads.
+     */
+    private static void addBags(ConcurrentMap<String, Node> roots, String storageId, String path, long delta) {
+        if (storageId == null || path == null || delta == 0) {
+            return;
+        }
+        Node node = roots.computeIfAbsent(storageId, id -> new Node());
+        List<Node> nodes = Lists.newArrayList(node);
+        List<String> segments = getSegments(path);
+        for (String segment : segments) {
+            node = node.myChildren.computeIfAbsent(segment, name -> new Node());
+            nodes.add(node);
+        }
+        if (delta > 0) {
+            node.myPath = path;
+        }
+        node.myDirectBagCount.addAndGet(delta);
+        for (Node ancestor : nodes) {
+            ancestor.myBagCount.addAndGet(delta);
+        }
+
+        for (int i = segments.size(); i > 0; i--) {
+            Node child = nodes.get(i);
+            if (child.myBagCount.get() > 0) {
+                break;
+            }
+            nodes.get(i - 1).myChildren.remove(segments.get(i - 1), child);
+        }
+    }
+
+    private Node findNode(String storageId, String path) {
+        Node node = getRoots().get(storageId);
+        for (String segment : getSegments(path)) {
+            if (node == null) {
+                return null;
+            }
+            node = node.myChildren.get(segment);
+        }
+        return node;
+    }
+}
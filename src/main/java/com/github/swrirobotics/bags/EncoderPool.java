@@ -0,0 +1,234 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.config.ConfigService;
+import com.github.swrirobotics.support.web.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Limits how many video encodes can run at the same time.
+ *
+ * Each encode has to hold a {@link Ticket} while it runs.  Only
+ * {@link Configuration#getMaxConcurrentEncodes()} tickets can be active at
+ * once; the rest wait in a first-come, first-served queue that can hold up to
+ * {@link Configuration#getMaxQueuedEncodes()} tickets.  Requests beyond that
+ * are rejected so that video streaming can't starve the rest of the server.
+ * Background jobs such as exports use {@link #acquireWhenIdle(String)}
+ * instead, which never takes a place in the queue.
+ */
+@Component
+public class EncoderPool {
+    // ffmpeg doesn't get much faster with more threads than this
+    private static final int MAX_THREADS_PER_ENCODE = 16;
+    // Rough guess at how long it takes for a slot in the pool to open up
+    private static final long RETRY_AFTER_S = 30;
+
+    private final ConfigService myConfigService;
+    // Both of these are guarded by "this".
+    private final List<Ticket> myQueue = new ArrayList<>();
+    private final Set<Ticket> myActive = new HashSet<>();
+
+    private static final Logger myLogger = LoggerFactory.getLogger(EncoderPool.class);
+
+    /**
+     * A place in the pool.  It must be closed when the encode is finished or
+     * is no longer needed, whether or not it ever became active.
+     */
+    public class Ticket implements AutoCloseable {
+        private final String myDescription;
+        private boolean myIsActive = false;
+        private boolean myIsClosed = false;
+
+        private Ticket(String description) {
+            myDescription = description;
+        }
+
+        /**
+         * Blocks until this ticket is allowed to start encoding.
+         * @return True if the ticket is active, or false if it was closed while waiting.
+         * @throws InterruptedException If the thread was interrupted while waiting.
+         */
+        public boolean await() throws InterruptedException {
+            synchronized (EncoderPool.this) {
+                while (!myIsActive && !myIsClosed) {
+                    EncoderPool.this.wait();
+                }
+                return myIsActive;
+            }
+        }
+
+        /**
+         * Gives up this ticket's place in the queue if it hasn't started yet.
+         * @return True if the ticket was waiting and has been closed.
+         */
+        public boolean cancelIfWaiting() {
+            synchronized (EncoderPool.this) {
+                if (myIsActive || myIsClosed) {
+                    return false;
+                }
+                close();
+                return true;
+            }
+        }
+
+        /**
+         * @return 0 if this ticket is active, or its position in the queue
+         *         starting at 1 if it is still waiting.
+         */
+        public int getPosition() {
+            synchronized (EncoderPool.this) {
+                return myIsActive ? 0 : myQueue.indexOf(this) + 1;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (EncoderPool.this) {
+                myIsActive = false;
+                myIsClosed = true;
+                if (myActive.remove(this) || myQueue.remove(this)) {
+                    myLogger.debug("Released encoder for " + myDescription + ".");
+                    promote();
+                }
+            }
+        }
+    }
+
+    public EncoderPool(ConfigService configService) {
+        myConfigService = configService;
+    }
+
+    /**
+     * Gets in line for an encoder.
+     * @param description A description of the encode for logging.
+     * @return A ticket that will become active when an encoder is available.
+     * @throws EncoderPoolFullException If the queue is full.
+     */
+    public synchronized Ticket enqueue(String description) throws EncoderPoolFullException {
+        if (myActive.size() >= getMaxConcurrentEncodes() && myQueue.size() >= getMaxQueuedEncodes()) {
+            myLogger.warn("Rejecting encode for " + description + "; " + myActive.size() +
+                          " encodes are running and " + myQueue.size() + " are waiting.");
+            throw new EncoderPoolFullException("Too many videos are being encoded right now.", RETRY_AFTER_S);
+        }
+        Ticket ticket = new Ticket(description);
+        myQueue.add(ticket);
+        promote();
+        if (!ticket.myIsActive) {
+            myLogger.info("Queued encode for " + description + " at position " + myQueue.size() + ".");
+        }
+        return ticket;
+    }
+
+    /**
+     * Gets an encoder for a background job without taking a place in the
+     * queue.  This waits until an encoder is free and nothing is waiting in
+     * the queue, so that background jobs never make requests that were made
+     * after them wait longer or get rejected because the queue is full.
+     * @param description A description of the encode for logging.
+     * @return A ticket that is already active.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public synchronized Ticket acquireWhenIdle(String description) throws InterruptedException {
+        // Wake up now and then in case the configuration changed.
+        while (myActive.size() >= getMaxConcurrentEncodes() || !myQueue.isEmpty()) {
+            wait(1000);
+        }
+        Ticket ticket = new Ticket(description);
+        ticket.myIsActive = true;
+        myActive.add(ticket);
+        myLogger.debug("Starting background encode for " + description + ".");
+        return ticket;
+    }
+
+    /**
+     * Divides the available processors among the encoders so that a full
+     * pool doesn't oversubscribe the system.
+     * @return How many threads each encoder should use.
+     */
+    public int getThreadsPerEncode() {
+        int processors = Math.max(Runtime.getRuntime().availableProcessors() - 1, 1);
+        return Math.min(MAX_THREADS_PER_ENCODE, Math.max(1, processors / getMaxConcurrentEncodes()));
+    }
+
+    /**
+     * @return True if a new encode would have to wait for an encoder.
+     */
+    public synchronized boolean isBusy() {
+        return myActive.size() >= getMaxConcurrentEncodes();
+    }
+
+    public synchronized int getActiveCount() {
+        return myActive.size();
+    }
+
+    public synchronized int getQueuedCount() {
+        return myQueue.size();
+    }
+
+    /**
+     * Activates waiting tickets until the pool is full.  Must be called while
+     * holding the lock on this object.
+     */
+    private void promote() {
+        int maxEncodes = getMaxConcurrentEncodes();
+        while (myActive.size() < maxEncodes && !myQueue.isEmpty()) {
+            Ticket ticket = myQueue.remove(0);
+            ticket.myIsActive = true;
+            myActive.add(ticket);
+            myLogger.debug("Starting encode for " + ticket.myDescription + ".");
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return The number of encodes that can run at the same time.
+     */
+    public int getMaxConcurrentEncodes() {
+        Configuration config = myConfigService.getConfiguration();
+        Integer max = config == null ? null : config.getMaxConcurrentEncodes();
+        return Math.max(1, max == null ? new Configuration().getMaxConcurrentEncodes() : max);
+    }
+
+    private int getMaxQueuedEncodes() {
+        Configuration config = myConfigService.getConfiguration();
+        Integer max = config == null ? null : config.getMaxQueuedEncodes();
+        return Math.max(0, max == null ? new Configuration().getMaxQueuedEncodes() : max);
+    }
+}
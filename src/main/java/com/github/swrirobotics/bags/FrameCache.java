@@ -0,0 +1,215 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.bags.reader.exceptions.BagReaderException;
+import com.github.swrirobotics.config.ConfigService;
+import com.github.swrirobotics.support.web.Configuration;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Caches encoded frames that have been extracted from bag files.
+ *
+ * Since a bag's MD5 sum identifies its contents, a frame rendered from a
+ * particular message with a particular set of output parameters never changes,
+ * so they can be cached indefinitely.  Recently used frames are kept in memory,
+ * and everything is written to disk in the "frames" cache directory.  The disk
+ * tier is limited to {@link Configuration#getFrameCacheSizeMb()}; when it grows
+ * beyond that, the least recently used frames are deleted.
+ */
+@Component
+public class FrameCache {
+    /**
+     * Renders a frame that was not found in the cache.
+     */
+    public interface FrameLoader {
+        byte[] load() throws BagReaderException;
+    }
+
+    private static final long MEMORY_TIER_BYTES = 64L * 1024 * 1024;
+    private static final String FILE_SUFFIX = ".frame";
+
+    private final ConfigService myConfigService;
+    private final Cache<String, byte[]> myMemoryTier = CacheBuilder.newBuilder()
+            .maximumWeight(MEMORY_TIER_BYTES)
+            .weigher((String key, byte[] value) -> value.length)
+            .build();
+
+    private LruFileIndex myDiskTier = null;
+    private boolean myDiskInitialized = false;
+
+    private static final Logger myLogger = LoggerFactory.getLogger(FrameCache.class);
+
+    public FrameCache(ConfigService configService) {
+        myConfigService = configService;
+    }
+
+    /**
+     * Generates the cache key for a frame.  This is also suitable for use as
+     * an HTTP entity tag.
+     * @param md5sum The MD5 sum of the bag file containing the frame.
+     * @param topic The topic the frame was published on.
+     * @param index The index of the message on the topic.
+     * @param params A description of any parameters that affect the output.
+     * @return A key that uniquely identifies the frame.
+     */
+    public static String getKey(String md5sum, String topic, int index, String params) {
+        return Hashing.sha256().hashString(md5sum + "\n" + topic + "\n" + index + "\n" + params,
+                                           StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Gets a frame from the cache, rendering and caching it if necessary.
+     * Concurrent requests for the same frame will wait for a single render.
+     * @param key The frame's key, from {@link #getKey(String, String, int, String)}.
+     * @param loader Renders the frame if it isn't cached.
+     * @return The encoded frame.
+     * @throws BagReaderException If the frame could not be rendered.
+     */
+    public byte[] get(String key, FrameLoader loader) throws BagReaderException {
+        try {
+            return myMemoryTier.get(key, () -> {
+                byte[] data = readFromDisk(key);
+                if (data == null) {
+                    data = loader.load();
+                    writeToDisk(key, data);
+                }
+                return data;
+            });
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof BagReaderException) {
+                throw (BagReaderException) e.getCause();
+            }
+            throw new BagReaderException(e.getCause());
+        }
+    }
+
+    /**
+     * Removes every cached frame.
+     */
+    public void clear() {
+        myMemoryTier.invalidateAll();
+        LruFileIndex diskTier = getDiskTier();
+        if (diskTier != null) {
+            diskTier.clear();
+        }
+    }
+
+    private byte[] readFromDisk(String key) {
+        LruFileIndex diskTier = getDiskTier();
+        File file = diskTier == null ? null : diskTier.get(key);
+        if (file == null) {
+            return null;
+        }
+
+        try {
+            return Files.readAllBytes(file.toPath());
+        }
+        catch (IOException e) {
+            // It may have been evicted while we were reading it; it can just be rendered again.
+            myLogger.debug("Unable to read cached frame " + file + ": " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, byte[] data) {
+        LruFileIndex diskTier = getDiskTier();
+        if (diskTier == null) {
+            return;
+        }
+
+        try {
+            File tmpFile = File.createTempFile("frame", ".tmp", diskTier.getDirectory());
+            try {
+                Files.write(tmpFile.toPath(), data);
+                synchronized (diskTier) {
+                    Files.move(tmpFile.toPath(), diskTier.getFile(key).toPath(),
+                               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    diskTier.add(key, data.length, getMaxDiskBytes());
+                }
+            }
+            finally {
+                Files.deleteIfExists(tmpFile.toPath());
+            }
+        }
+        catch (IOException e) {
+            myLogger.warn("Unable to write frame to cache: " + e.getLocalizedMessage());
+        }
+    }
+
+    private long getMaxDiskBytes() {
+        Configuration config = myConfigService.getConfiguration();
+        if (config == null || config.getFrameCacheSizeMb() == null) {
+            return new Configuration().getFrameCacheSizeMb() * 1024L * 1024L;
+        }
+        return Math.max(0, config.getFrameCacheSizeMb()) * 1024L * 1024L;
+    }
+
+    /**
+     * Gets the disk tier, loading the existing contents of the cache the
+     * first time it's called.
+     * @return The disk tier, or null if it is unavailable.
+     */
+    private synchronized LruFileIndex getDiskTier() {
+        if (myDiskInitialized) {
+            return myDiskTier;
+        }
+        myDiskInitialized = true;
+
+        try {
+            File directory = myConfigService.getCacheDirectory("frames");
+            if (directory != null) {
+                myDiskTier = new LruFileIndex(directory, FILE_SUFFIX);
+                myDiskTier.evict(getMaxDiskBytes());
+            }
+        }
+        catch (IOException e) {
+            myLogger.error("Unable to access the frame cache; frames will only be cached in memory.", e);
+        }
+
+        return myDiskTier;
+    }
+}
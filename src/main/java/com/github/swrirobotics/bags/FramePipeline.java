@@ -0,0 +1,227 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Passes frames of video through two stages that each run on their own
+ * thread, so that reading images out of a bag, converting them, and writing
+ * them to an encoder can all happen at the same time.
+ *
+ * A fixed number of frames circulate through the pipeline and are reused,
+ * along with any buffers that they own, so that new frames aren't allocated
+ * at the frame rate of the video.  Each stage handles frames in the order
+ * they were submitted.  Once a stage fails, frames are returned to the pool
+ * without being processed any further and {@link #takeFreeFrame()} returns
+ * null, so that whatever is submitting frames knows to stop.
+ * @param <F> The type of frame.
+ */
+class FramePipeline<F> {
+    /**
+     * One step in processing a frame.
+     */
+    interface Stage<F> {
+        void process(F frame) throws Exception;
+    }
+
+    private final BlockingQueue<F> myFreeFrames;
+    // These have room for every frame plus the end of the stream, so adding
+    // to them never blocks.
+    private final BlockingQueue<F> myConvertQueue;
+    private final BlockingQueue<F> myWriteQueue;
+    private final F myEndOfStream;
+    private final Thread myConverter;
+    private final Thread myWriter;
+    private boolean myIsStarted = false;
+    private Runnable myConverterCleanup = () -> {};
+    private volatile boolean myHasFailed = false;
+
+    private static final Logger myLogger = LoggerFactory.getLogger(FramePipeline.class);
+
+    /**
+     * @param frameCount The number of frames that can be in the pipeline at once.
+     * @param frameFactory Creates the frames.
+     * @param converter The first stage.
+     * @param writer The second stage.
+     */
+    FramePipeline(int frameCount, Supplier<F> frameFactory, Stage<F> converter, Stage<F> writer) {
+        myFreeFrames = new ArrayBlockingQueue<>(frameCount);
+        myConvertQueue = new ArrayBlockingQueue<>(frameCount + 1);
+        myWriteQueue = new ArrayBlockingQueue<>(frameCount + 1);
+        for (int i = 0; i < frameCount; i++) {
+            myFreeFrames.add(frameFactory.get());
+        }
+        myEndOfStream = frameFactory.get();
+        myConverter = new Thread(() -> {
+            try {
+                runStage(myConvertQueue, converter, myWriteQueue);
+            }
+            finally {
+                runConverterCleanup();
+            }
+        }, "frame-converter");
+        myWriter = new Thread(() -> runStage(myWriteQueue, writer, null), "frame-writer");
+    }
+
+    /**
+     * Sets something to run on the first stage's thread after it has
+     * stopped, so that anything only that stage uses can be released even if
+     * {@link #finish(Runnable)} gives up waiting for it.  If the pipeline was
+     * never started, {@link #finish(Runnable)} runs it instead.  Either way,
+     * it runs exactly once.
+     */
+    void setConverterCleanup(Runnable cleanup) {
+        myConverterCleanup = cleanup;
+    }
+
+    private void runConverterCleanup() {
+        try {
+            myConverterCleanup.run();
+        }
+        catch (RuntimeException e) {
+            myLogger.error("Error cleaning up after converting video frames:", e);
+        }
+    }
+
+    /**
+     * Waits for a frame that isn't being used by any stage, starting the
+     * stages the first time it's called.
+     * @return A frame, or null if the pipeline has failed.
+     */
+    F takeFreeFrame() throws InterruptedException {
+        if (!myIsStarted) {
+            myIsStarted = true;
+            myConverter.start();
+            myWriter.start();
+        }
+        while (!myHasFailed) {
+            F frame = myFreeFrames.poll(100, TimeUnit.MILLISECONDS);
+            if (frame != null) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Passes a frame from {@link #takeFreeFrame()} to the first stage.
+     */
+    void submit(F frame) {
+        myConvertQueue.add(frame);
+    }
+
+    /**
+     * Ends the stream and waits for the first stage to finish, then waits
+     * for the second.
+     * @param onWriterStalled Called about once a second for as long as the
+     *                        second stage is still running, so that it can
+     *                        be unblocked if it's stuck.
+     */
+    void finish(Runnable onWriterStalled) throws InterruptedException {
+        if (!myIsStarted) {
+            // Nothing else will ever start the converter now.
+            myIsStarted = true;
+            runConverterCleanup();
+            return;
+        }
+        myConvertQueue.add(myEndOfStream);
+        myConverter.join();
+        while (myWriter.isAlive()) {
+            myWriter.join(1000);
+            if (myWriter.isAlive()) {
+                onWriterStalled.run();
+            }
+        }
+    }
+
+    /**
+     * @return True if any stage might still be running.
+     */
+    boolean isRunning() {
+        return myConverter.isAlive() || myWriter.isAlive();
+    }
+
+    /**
+     * Stops processing frames; every frame that is still in the pipeline
+     * will be returned to the pool without being processed.
+     */
+    void fail() {
+        myHasFailed = true;
+    }
+
+    boolean hasFailed() {
+        return myHasFailed;
+    }
+
+    private void runStage(BlockingQueue<F> input, Stage<F> stage, BlockingQueue<F> output) {
+        try {
+            while (true) {
+                F frame = input.take();
+                if (frame == myEndOfStream) {
+                    break;
+                }
+                if (!myHasFailed) {
+                    try {
+                        stage.process(frame);
+                    }
+                    catch (Exception e) {
+                        myLogger.error("Error processing video frame:", e);
+                        myHasFailed = true;
+                    }
+                }
+                // Once something has gone wrong, just give frames back
+                // until the reader notices and stops.
+                if (output == null || myHasFailed) {
+                    myFreeFrames.add(frame);
+                }
+                else {
+                    output.add(frame);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            myLogger.warn("Interrupted processing video frames.");
+            myHasFailed = true;
+        }
+        finally {
+            if (output != null) {
+                output.add(myEndOfStream);
+            }
+        }
+    }
+}
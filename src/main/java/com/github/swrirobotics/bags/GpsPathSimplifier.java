@@ -0,0 +1,138 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.persistence.BagPath;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Produces simplified versions of GPS paths at several levels of detail and
+ * decides which level is appropriate for a given map zoom level or point budget.
+ *
+ * Level 0 is always the full set of positions; every level above that is
+ * simplified from the full path with the Douglas-Peucker algorithm using a
+ * tolerance ten times larger than the previous level, so no point on the full
+ * path is farther than that level's tolerance from its simplified path.
+ */
+public class GpsPathSimplifier {
+    /**
+     * Simplification tolerances, in degrees, for levels 1 and up.  At the
+     * equator these are roughly 1 m, 10 m, 100 m, and 1 km.
+     */
+    public static final double[] TOLERANCES = {0.00001, 0.0001, 0.001, 0.01};
+
+    private final GeometryFactory myGeometryFactory;
+
+    GpsPathSimplifier(GeometryFactory geometryFactory) {
+        myGeometryFactory = geometryFactory;
+    }
+
+    /**
+     * Simplifies a path at every level of detail.
+     * @param bagId The bag the path belongs to.
+     * @param coords The full path, in (longitude, latitude) order.
+     * @param startTime The timestamp of the first position in the path.
+     * @return Simplified paths for every level above 0; empty if the path has
+     *         fewer than two points.
+     */
+    List<BagPath> simplify(Long bagId, Coordinate[] coords, Timestamp startTime) {
+        List<BagPath> paths = new ArrayList<>();
+        if (coords.length < 2) {
+            return paths;
+        }
+
+        Geometry full = myGeometryFactory.createLineString(coords);
+        for (int i = 0; i < TOLERANCES.length; i++) {
+            // Simplifying each level from the one before it would be faster, but
+            // every pass measures distances from an already simplified line, so
+            // their errors would add up.
+            Geometry simplified = DouglasPeuckerSimplifier.simplify(full, TOLERANCES[i]);
+            if (!(simplified instanceof LineString) || simplified.getNumPoints() < 2) {
+                simplified = myGeometryFactory.createLineString(new Coordinate[]{
+                        coords[0], coords[coords.length - 1]});
+            }
+            simplified.setSRID(myGeometryFactory.getSRID());
+
+            BagPath path = new BagPath();
+            path.setBagId(bagId);
+            path.setDetailLevel(i + 1);
+            path.setTolerance(TOLERANCES[i]);
+            path.setPointCount(simplified.getNumPoints());
+            path.setStartTime(startTime);
+            path.setPath((LineString) simplified);
+            paths.add(path);
+        }
+
+        return paths;
+    }
+
+    /**
+     * Picks the most simplified level of detail whose tolerance is still smaller
+     * than a single pixel at a given zoom level of a standard web mercator map.
+     * @param zoom The map's zoom level.
+     * @return The appropriate level of detail.
+     */
+    public static int levelForZoom(int zoom) {
+        double degreesPerPixel = 360.0 / (256.0 * Math.pow(2.0, zoom));
+        int level = 0;
+        for (int i = 0; i < TOLERANCES.length; i++) {
+            if (TOLERANCES[i] <= degreesPerPixel) {
+                level = i + 1;
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Picks the most detailed level that fits within a point budget.
+     * @param pointCounts The total number of points at each level, starting with level 0.
+     * @param maxPoints The maximum number of points to return.
+     * @return The appropriate level of detail; if no level fits, the most
+     *         simplified one.
+     */
+    static int levelForPointBudget(long[] pointCounts, int maxPoints) {
+        for (int level = 0; level < pointCounts.length; level++) {
+            if (pointCounts[level] <= maxPoints) {
+                return level;
+            }
+        }
+        return pointCounts.length - 1;
+    }
+}
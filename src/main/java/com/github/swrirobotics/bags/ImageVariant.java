@@ -0,0 +1,213 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Describes how an image extracted from a bag should be encoded: its format,
+ * the largest size it may be scaled to, and the encoder's quality setting.
+ * Images are only ever scaled down, and their aspect ratios are preserved.
+ */
+public class ImageVariant {
+    public enum Format {
+        JPEG("image/jpeg", ".jpg"),
+        PNG("image/png", ".png"),
+        WEBP("image/webp", ".webp");
+
+        private final String myMimeType;
+        private final String myExtension;
+
+        Format(String mimeType, String extension) {
+            myMimeType = mimeType;
+            myExtension = extension;
+        }
+
+        public String getMimeType() {
+            return myMimeType;
+        }
+
+        public String getExtension() {
+            return myExtension;
+        }
+    }
+
+    /** Full-size JPEGs with the default quality; these are what getImage always returned. */
+    public static final ImageVariant ORIGINAL = new ImageVariant(Format.JPEG, null, null, null);
+
+    private final Format myFormat;
+    private final Integer myMaxWidth;
+    private final Integer myMaxHeight;
+    private final Integer myQuality;
+
+    /**
+     * @param format    The output format.
+     * @param maxWidth  The widest the image may be; null for no limit.
+     * @param maxHeight The tallest the image may be; null for no limit.
+     * @param quality   Encoder quality from 1 to 100; null for the encoder's default.
+     *                  PNG is lossless and ignores this.
+     * @throws IllegalArgumentException If a dimension or the quality is out of range.
+     */
+    public ImageVariant(Format format, Integer maxWidth, Integer maxHeight, Integer quality) {
+        if ((maxWidth != null && maxWidth < 1) || (maxHeight != null && maxHeight < 1)) {
+            throw new IllegalArgumentException("Image dimensions must be positive.");
+        }
+        if (quality != null && (quality < 1 || quality > 100)) {
+            throw new IllegalArgumentException("Image quality must be between 1 and 100.");
+        }
+        myFormat = format;
+        myMaxWidth = maxWidth;
+        myMaxHeight = maxHeight;
+        myQuality = format == Format.PNG ? null : quality;
+    }
+
+    /**
+     * Picks the output format that the client most prefers out of the ones
+     * that can be written.
+     * @param accept        The value of the request's Accept header; may be null.
+     * @param webpSupported Whether a WebP encoder is available.
+     * @return The preferred format, or null if the client won't accept any
+     * format that can be written.
+     */
+    public static Format negotiateFormat(String accept, boolean webpSupported) {
+        if (accept == null || accept.trim().isEmpty()) {
+            return Format.JPEG;
+        }
+        List<MediaType> mediaTypes;
+        try {
+            mediaTypes = MediaType.parseMediaTypes(accept);
+        }
+        catch (InvalidMediaTypeException e) {
+            return Format.JPEG;
+        }
+        MediaType.sortBySpecificityAndQuality(mediaTypes);
+        for (MediaType mediaType : mediaTypes) {
+            if (mediaType.getQualityValue() == 0.0) {
+                continue;
+            }
+            if (mediaType.isWildcardType() ||
+                    (mediaType.isWildcardSubtype() && mediaType.getType().equals("image"))) {
+                return Format.JPEG;
+            }
+            for (Format format : Format.values()) {
+                if (format == Format.WEBP && !webpSupported) {
+                    continue;
+                }
+                if (MediaType.valueOf(format.getMimeType()).equalsTypeAndSubtype(mediaType)) {
+                    return format;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return True if this variant is a full-size image at the default
+     * JPEG quality, which can be served straight out of a compressed bag.
+     */
+    public boolean isOriginal() {
+        return equals(ORIGINAL);
+    }
+
+    /**
+     * Computes the size an image should be scaled to so that it fits within
+     * this variant's bounds.
+     * @param width  The width of the source image.
+     * @param height The height of the source image.
+     * @return The scaled width and height.
+     */
+    public int[] getScaledSize(int width, int height) {
+        double scale = 1.0;
+        if (myMaxWidth != null) {
+            scale = Math.min(scale, (double) myMaxWidth / width);
+        }
+        if (myMaxHeight != null) {
+            scale = Math.min(scale, (double) myMaxHeight / height);
+        }
+        return new int[]{Math.max(1, (int) Math.round(width * scale)),
+                         Math.max(1, (int) Math.round(height * scale))};
+    }
+
+    /**
+     * @return A string that distinguishes this variant's output in the frame cache.
+     */
+    public String getCacheParams() {
+        if (isOriginal()) {
+            // Matches the key that was used before variants existed
+            return "jpeg";
+        }
+        return myFormat.name().toLowerCase() +
+            "-w" + (myMaxWidth == null ? "" : myMaxWidth) +
+            "-h" + (myMaxHeight == null ? "" : myMaxHeight) +
+            "-q" + (myQuality == null ? "" : myQuality);
+    }
+
+    public Format getFormat() {
+        return myFormat;
+    }
+
+    public Integer getMaxWidth() {
+        return myMaxWidth;
+    }
+
+    public Integer getMaxHeight() {
+        return myMaxHeight;
+    }
+
+    public Integer getQuality() {
+        return myQuality;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ImageVariant that = (ImageVariant) o;
+        return myFormat == that.myFormat &&
+            Objects.equals(myMaxWidth, that.myMaxWidth) &&
+            Objects.equals(myMaxHeight, that.myMaxHeight) &&
+            Objects.equals(myQuality, that.myQuality);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(myFormat, myMaxWidth, myMaxHeight, myQuality);
+    }
+}
@@ -0,0 +1,188 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Keeps track of the files in a cache directory and removes the least
+ * recently used ones when their total size grows too large.
+ *
+ * Files are named after their cache key plus a fixed suffix.  The order in
+ * which files were used is stored in their modification times so that it
+ * survives restarts.
+ */
+public class LruFileIndex {
+    private final File myDirectory;
+    private final String mySuffix;
+    // Every file in the directory and its size, in order from least to most recently used.
+    private final LinkedHashMap<String, Long> myEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long myTotalBytes = 0;
+
+    private static final Logger myLogger = LoggerFactory.getLogger(LruFileIndex.class);
+
+    /**
+     * Loads the existing contents of a cache directory.
+     * @param directory The directory containing cached files.
+     * @param suffix The suffix of every cached file.
+     */
+    public LruFileIndex(File directory, String suffix) {
+        myDirectory = directory;
+        mySuffix = suffix;
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(suffix));
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                String name = file.getName();
+                long size = file.length();
+                myEntries.put(name.substring(0, name.length() - suffix.length()), size);
+                myTotalBytes += size;
+            }
+        }
+        myLogger.info("Loaded " + myEntries.size() + " cached files (" + myTotalBytes + " bytes) from " +
+                      directory);
+    }
+
+    public File getDirectory() {
+        return myDirectory;
+    }
+
+    /**
+     * @return The file that the given key should be stored in.
+     */
+    public File getFile(String key) {
+        return new File(myDirectory, key + mySuffix);
+    }
+
+    /**
+     * Looks up a cached file and marks it as recently used.
+     * @return The file, or null if it isn't in the cache.
+     */
+    public synchronized File get(String key) {
+        if (myEntries.get(key) == null) {
+            return null;
+        }
+        File file = getFile(key);
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            myLogger.trace("Unable to update timestamp on " + file);
+        }
+        return file;
+    }
+
+    /**
+     * Records that a file has been written to the cache, then removes the
+     * least recently used files until the cache is no larger than maxBytes.
+     */
+    public synchronized void add(String key, long size, long maxBytes) {
+        Long previous = myEntries.put(key, size);
+        myTotalBytes += size - (previous == null ? 0 : previous);
+        evict(maxBytes);
+    }
+
+    /**
+     * Removes the least recently used files until the cache is no larger than maxBytes.
+     */
+    public synchronized void evict(long maxBytes) {
+        Iterator<Map.Entry<String, Long>> iter = myEntries.entrySet().iterator();
+        while (myTotalBytes > maxBytes && iter.hasNext()) {
+            Map.Entry<String, Long> eldest = iter.next();
+            delete(eldest.getKey());
+            myTotalBytes -= eldest.getValue();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Removes a file from the cache, if it is present.
+     * @return True if the file was in the cache.
+     */
+    public synchronized boolean remove(String key) {
+        Long size = myEntries.remove(key);
+        if (size == null) {
+            return false;
+        }
+        delete(key);
+        myTotalBytes -= size;
+        return true;
+    }
+
+    /**
+     * Removes every file whose key matches a predicate.
+     * @return The number of files that were removed.
+     */
+    public synchronized int removeIf(Predicate<String> predicate) {
+        int removed = 0;
+        Iterator<Map.Entry<String, Long>> iter = myEntries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Long> entry = iter.next();
+            if (predicate.test(entry.getKey())) {
+                delete(entry.getKey());
+                myTotalBytes -= entry.getValue();
+                iter.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every file in the cache.
+     */
+    public synchronized void clear() {
+        for (String key : myEntries.keySet()) {
+            delete(key);
+        }
+        myEntries.clear();
+        myTotalBytes = 0;
+    }
+
+    public synchronized int getFileCount() {
+        return myEntries.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return myTotalBytes;
+    }
+
+    private void delete(String key) {
+        File file = getFile(key);
+        if (file.exists() && !file.delete()) {
+            myLogger.warn("Unable to delete cached file " + file);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.opencv.core.Mat;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds OpenCV matrices and byte arrays so that converting a sequence of
+ * frames doesn't allocate new native and heap buffers for every one.
+ *
+ * Buffers are looked up by a name chosen by the caller and are reallocated
+ * only when the requested size or type changes.  A pool is not thread-safe;
+ * each stream or thread that converts images should have its own, and it
+ * must be closed when the stream ends so that the native memory held by its
+ * matrices is released immediately rather than whenever the garbage
+ * collector gets around to finalizing them.
+ *
+ * The native memory held by all open pools is published as the
+ * "bagdb.opencv.native.bytes" metric.
+ */
+public class MatPool implements AutoCloseable {
+    private static final AtomicLong ourNativeBytes = new AtomicLong();
+    private static final AtomicLong ourOpenPools = new AtomicLong();
+
+    private final Map<String, Mat> myMats = new HashMap<>();
+    private final Map<String, byte[]> myBuffers = new HashMap<>();
+    private boolean myIsClosed = false;
+
+    public MatPool() {
+        ourOpenPools.incrementAndGet();
+    }
+
+    /**
+     * Gets a matrix with the given dimensions and type.  Its contents are
+     * whatever was left in it by the last caller.
+     * @param name Identifies the matrix within this pool.
+     * @param rows The number of rows.
+     * @param cols The number of columns.
+     * @param type The OpenCV type, such as CvType.CV_8UC3.
+     * @return The pooled matrix; it remains owned by the pool.
+     */
+    public Mat getMat(String name, int rows, int cols, int type) {
+        if (myIsClosed) {
+            throw new IllegalStateException("Pool has been closed.");
+        }
+        Mat mat = myMats.get(name);
+        if (mat != null && mat.rows() == rows && mat.cols() == cols && mat.type() == type) {
+            return mat;
+        }
+        if (mat != null) {
+            release(mat);
+        }
+        mat = new Mat(rows, cols, type);
+        ourNativeBytes.addAndGet(mat.total() * mat.elemSize());
+        myMats.put(name, mat);
+        return mat;
+    }
+
+    /**
+     * Gets a byte array of exactly the given length.  Its contents are
+     * whatever was left in it by the last caller.
+     * @param name   Identifies the array within this pool.
+     * @param length The length of the array.
+     * @return The pooled array; it will be handed out again by the next call
+     *         with the same name, so callers must be done with it by then.
+     */
+    public byte[] getBuffer(String name, int length) {
+        byte[] buffer = myBuffers.get(name);
+        if (buffer == null || buffer.length != length) {
+            buffer = new byte[length];
+            myBuffers.put(name, buffer);
+        }
+        return buffer;
+    }
+
+    private static void release(Mat mat) {
+        ourNativeBytes.addAndGet(-mat.total() * mat.elemSize());
+        mat.release();
+    }
+
+    /**
+     * Releases the native memory held by every matrix in the pool.
+     */
+    @Override
+    public void close() {
+        if (myIsClosed) {
+            return;
+        }
+        myIsClosed = true;
+        myMats.values().forEach(MatPool::release);
+        myMats.clear();
+        myBuffers.clear();
+        ourOpenPools.decrementAndGet();
+    }
+
+    /**
+     * @return The number of bytes of native memory held by all open pools.
+     */
+    public static long getNativeBytes() {
+        return ourNativeBytes.get();
+    }
+
+    /**
+     * Publishes the pools' memory usage to the application's metrics.
+     */
+    @Component
+    public static class Metrics implements MeterBinder {
+        @Override
+        public void bindTo(MeterRegistry registry) {
+            Gauge.builder("bagdb.opencv.native.bytes", ourNativeBytes, AtomicLong::get)
+                .description("Native memory held by pooled OpenCV matrices")
+                .baseUnit("bytes")
+                .register(registry);
+            Gauge.builder("bagdb.opencv.pools", ourOpenPools, AtomicLong::get)
+                .description("Image conversion buffer pools that are currently open")
+                .register(registry);
+        }
+    }
+}
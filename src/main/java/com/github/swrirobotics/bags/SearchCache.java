@@ -0,0 +1,193 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.support.web.BagFacets;
+import com.github.swrirobotics.support.web.BagSummary;
+import com.github.swrirobotics.support.web.BagSummaryList;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Caches pages of search results so that searches that are repeated
+ * frequently, such as by dashboards that refresh periodically, don't have to
+ * hit the database every time.
+ *
+ * Entries never expire on their own; instead, they're discarded when a
+ * {@link BagChangeEvent} is committed.  Changes that only affect tags only
+ * discard results that could have been affected: pages that contain one of
+ * the changed bags, and searches for text in tags.  Any other change
+ * discards everything.
+ *
+ * Facet counts for searches are cached the same way, except that every
+ * change discards all of them, since any bag that matches a search could
+ * have been counted in them.
+ */
+@Component
+public class SearchCache {
+    private static class Entry {
+        final BagSummaryList myResults;
+        final Set<Long> myBagIds;
+        final boolean mySearchesTags;
+
+        Entry(BagSummaryList results, boolean searchesTags) {
+            myResults = results;
+            myBagIds = results.getBags().stream().map(BagSummary::getId).collect(Collectors.toSet());
+            mySearchesTags = searchesTags;
+        }
+    }
+
+    private static final int MAX_ENTRIES = 500;
+
+    private final SearchCounter mySearchCounter;
+    private final Cache<String, Entry> myEntries = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ENTRIES)
+            .build();
+    private final Cache<String, BagFacets> myFacets = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ENTRIES)
+            .build();
+    // Incremented whenever entries are discarded, so that searches that were
+    // started before a change aren't cached after it.
+    private final AtomicLong myGeneration = new AtomicLong();
+
+    private static final Logger myLogger = LoggerFactory.getLogger(SearchCache.class);
+
+    public SearchCache(SearchCounter searchCounter) {
+        mySearchCounter = searchCounter;
+    }
+
+    /**
+     * Gets a page of search results from the cache, running the search and
+     * caching its results if necessary.  The results must not be modified.
+     * @param queryKey Identifies the search criteria; see
+     *                 {@link BagService#getQueryKey(String, String[], com.github.swrirobotics.support.web.ExtJsFilter[])}.
+     * @param pageKey Identifies which page of results to get and anything
+     *                else that affects their contents, such as the sort order.
+     * @param searchesTags True if the search looks for text in tags.
+     * @param search Runs the search if it isn't cached.
+     * @return The search results.
+     */
+    public BagSummaryList get(String queryKey, String pageKey, boolean searchesTags,
+                              Supplier<BagSummaryList> search) {
+        String key = queryKey + "\n" + pageKey;
+        Entry entry = myEntries.getIfPresent(key);
+        if (entry != null) {
+            return withExactCount(queryKey, entry.myResults);
+        }
+
+        long generation = myGeneration.get();
+        BagSummaryList results = search.get();
+        synchronized (myGeneration) {
+            if (myGeneration.get() == generation) {
+                myEntries.put(key, new Entry(results, searchesTags));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Gets the facet counts for a search from the cache, counting and caching
+     * them if necessary.  The counts must not be modified.
+     * @param queryKey Identifies the search criteria.
+     * @param facetKey Identifies anything else that affects the counts, such
+     *                 as how many values are returned for each facet.
+     * @param count Counts the facets if they aren't cached.
+     * @return The facet counts.
+     */
+    public BagFacets getFacets(String queryKey, String facetKey, Supplier<BagFacets> count) {
+        String key = queryKey + "\n" + facetKey;
+        BagFacets facets = myFacets.getIfPresent(key);
+        if (facets != null) {
+            return facets;
+        }
+
+        long generation = myGeneration.get();
+        facets = count.get();
+        synchronized (myGeneration) {
+            if (myGeneration.get() == generation) {
+                myFacets.put(key, facets);
+            }
+        }
+        return facets;
+    }
+
+    /**
+     * Discards every cached page and facet count.
+     */
+    public void clear() {
+        synchronized (myGeneration) {
+            myGeneration.incrementAndGet();
+            myEntries.invalidateAll();
+            myFacets.invalidateAll();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onBagChange(BagChangeEvent event) {
+        myLogger.debug("Invalidating search results: " + event);
+        if (event.getType() != BagChangeEvent.Type.TAGGED || event.isForAllBags()) {
+            clear();
+            return;
+        }
+        synchronized (myGeneration) {
+            myGeneration.incrementAndGet();
+            myFacets.invalidateAll();
+            myEntries.asMap().values().removeIf(entry ->
+                entry.mySearchesTags || entry.myBagIds.stream().anyMatch(event.getBagIds()::contains));
+        }
+    }
+
+    /**
+     * If a page was cached with an approximate count that has since been
+     * counted exactly, returns a copy of it with the exact count.
+     */
+    private BagSummaryList withExactCount(String queryKey, BagSummaryList results) {
+        if (!results.isTotalCountApproximate()) {
+            return results;
+        }
+        Long exactCount = mySearchCounter.getCachedCount(queryKey);
+        if (exactCount == null) {
+            return results;
+        }
+        BagSummaryList exact = new BagSummaryList(results.getBags(), exactCount);
+        exact.setNextCursor(results.getNextCursor());
+        return exact;
+    }
+}
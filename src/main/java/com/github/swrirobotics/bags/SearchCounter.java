@@ -0,0 +1,253 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts the total number of results for searches without making every page
+ * of every search wait for an exact count.
+ *
+ * Exact counts are cached by query, so paging through or repeating a search
+ * doesn't count it again.  For queries that aren't cached, counting stops
+ * after {@link #COUNT_LIMIT} matches; if there are more than that, the limit
+ * is returned as an approximate count ("10,000+") and the exact count is
+ * computed in the background.  When it finishes, it is cached and published
+ * on {@link #COUNT_TOPIC} so that clients can update the total they display.
+ */
+@Component
+public class SearchCounter {
+    /**
+     * Counts the results of a query, stopping early if there are more than a limit.
+     */
+    public interface CappedCounter {
+        long count(long limit);
+    }
+
+    /**
+     * The result of counting a search.
+     */
+    public static class Count {
+        private final long myValue;
+        private final boolean myApproximate;
+        private final String myCountId;
+
+        public Count(long value, boolean approximate, String countId) {
+            myValue = value;
+            myApproximate = approximate;
+            myCountId = countId;
+        }
+
+        /**
+         * @return The exact count, or a lower bound on it if it is approximate.
+         */
+        public long getValue() {
+            return myValue;
+        }
+
+        public boolean isApproximate() {
+            return myApproximate;
+        }
+
+        /**
+         * @return Identifies the query in the updates published on
+         *         {@link #COUNT_TOPIC} when its exact count is known.
+         */
+        public String getCountId() {
+            return myCountId;
+        }
+    }
+
+    /**
+     * Published on {@link #COUNT_TOPIC} when the exact count of a search
+     * that was previously approximated is known.
+     */
+    public static class CountUpdate {
+        private final String countId;
+        private final long totalCount;
+
+        public CountUpdate(String countId, long totalCount) {
+            this.countId = countId;
+            this.totalCount = totalCount;
+        }
+
+        public String getCountId() {
+            return countId;
+        }
+
+        public long getTotalCount() {
+            return totalCount;
+        }
+    }
+
+    public static final long COUNT_LIMIT = 10000;
+    public static final String COUNT_TOPIC = "/topic/search_count";
+
+    private final SimpMessagingTemplate myMessagingTemplate;
+    private final long myCountLimit;
+    private final ExecutorService myExecutor;
+    private final Cache<String, Long> myExactCounts = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .build();
+    private final Set<String> myPendingCounts = ConcurrentHashMap.newKeySet();
+    // Incremented whenever the cache is cleared, so that counts that were
+    // started before then aren't cached afterward.
+    private final AtomicLong myGeneration = new AtomicLong();
+
+    private static final Logger myLogger = LoggerFactory.getLogger(SearchCounter.class);
+
+    @Autowired
+    public SearchCounter(SimpMessagingTemplate messagingTemplate) {
+        this(messagingTemplate, COUNT_LIMIT, Executors.newSingleThreadExecutor());
+    }
+
+    @VisibleForTesting
+    SearchCounter(SimpMessagingTemplate messagingTemplate, long countLimit, ExecutorService executor) {
+        myMessagingTemplate = messagingTemplate;
+        myCountLimit = countLimit;
+        myExecutor = executor;
+    }
+
+    /**
+     * Counts the results of a search.
+     * @param queryKey Uniquely identifies the search criteria; queries with
+     *                 the same key must have the same number of results.
+     * @param cappedCount Counts the results, but may stop after it has
+     *                    found more than the number it's given.
+     * @param exactCount Counts all of the results.  This may be called on
+     *                   another thread.
+     * @return The number of results.
+     */
+    public Count count(String queryKey, CappedCounter cappedCount, LongSupplier exactCount) {
+        String countId = getCountId(queryKey);
+        Long cached = myExactCounts.getIfPresent(queryKey);
+        if (cached != null) {
+            return new Count(cached, false, countId);
+        }
+
+        long generation = myGeneration.get();
+        long count = cappedCount.count(myCountLimit + 1);
+        if (count <= myCountLimit) {
+            putIfCurrent(queryKey, count, generation);
+            return new Count(count, false, countId);
+        }
+
+        if (myPendingCounts.add(queryKey)) {
+            myExecutor.submit(() -> refineCount(queryKey, countId, exactCount, generation));
+        }
+        return new Count(myCountLimit, true, countId);
+    }
+
+    /**
+     * @return The exact count of a search if it's cached, or null otherwise.
+     */
+    public Long getCachedCount(String queryKey) {
+        return myExactCounts.getIfPresent(queryKey);
+    }
+
+    /**
+     * @return True if a count could be a result of stopping at the limit
+     *         rather than an exact count.
+     */
+    public boolean isPossiblyApproximate(long count) {
+        return count >= myCountLimit;
+    }
+
+    /**
+     * Forgets every cached count.  This is called whenever a
+     * {@link BagChangeEvent} is committed.
+     */
+    public void clear() {
+        synchronized (myGeneration) {
+            myGeneration.incrementAndGet();
+            myExactCounts.invalidateAll();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onBagChange(BagChangeEvent event) {
+        clear();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        myExecutor.shutdownNow();
+    }
+
+    private void refineCount(String queryKey, String countId, LongSupplier exactCount, long generation) {
+        try {
+            long count = exactCount.getAsLong();
+            putIfCurrent(queryKey, count, generation);
+            myMessagingTemplate.convertAndSend(COUNT_TOPIC, new CountUpdate(countId, count));
+        }
+        catch (RuntimeException e) {
+            myLogger.warn("Unable to count search results", e);
+        }
+        finally {
+            myPendingCounts.remove(queryKey);
+        }
+    }
+
+    private void putIfCurrent(String queryKey, long count, long generation) {
+        synchronized (myGeneration) {
+            if (myGeneration.get() == generation) {
+                myExactCounts.put(queryKey, count);
+            }
+        }
+    }
+
+    /**
+     * @return The ID that updates to a query's count are published with.
+     */
+    public static String getCountId(String queryKey) {
+        return Hashing.sha256().hashString(queryKey, StandardCharsets.UTF_8).toString().substring(0, 16);
+    }
+}
@@ -0,0 +1,218 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Base64;
+
+/**
+ * Marks a position in a sorted list of search results so that the next page
+ * can be found by seeking past the last row that was returned, rather than
+ * by counting and skipping every row before it.
+ *
+ * Clients treat cursors as opaque strings; they encode the sort column and
+ * direction they were created for, the sort value and ID of the last row
+ * on the page, and the total number of results so that it doesn't have to
+ * be counted again for every page.
+ */
+final class SearchCursor {
+    private static final byte VERSION = 2;
+
+    private final String mySort;
+    private final boolean myIsAscending;
+    private final Object myLastValue;
+    private final long myLastId;
+    private final long myTotalCount;
+
+    SearchCursor(String sort, boolean isAscending, Object lastValue, long lastId, long totalCount) {
+        mySort = sort;
+        myIsAscending = isAscending;
+        myLastValue = lastValue;
+        myLastId = lastId;
+        myTotalCount = totalCount;
+    }
+
+    String getSort() {
+        return mySort;
+    }
+
+    boolean isAscending() {
+        return myIsAscending;
+    }
+
+    /**
+     * @return The value of the sort column in the last row; may be null.
+     */
+    Object getLastValue() {
+        return myLastValue;
+    }
+
+    long getLastId() {
+        return myLastId;
+    }
+
+    long getTotalCount() {
+        return myTotalCount;
+    }
+
+    /**
+     * @return The cursor as a URL-safe string.
+     * @throws IllegalArgumentException If the sort value isn't a type that
+     *         can be encoded.
+     */
+    String encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            writeString(out, mySort);
+            out.writeBoolean(myIsAscending);
+            out.writeLong(myLastId);
+            out.writeLong(myTotalCount);
+            if (myLastValue == null) {
+                out.writeByte('n');
+            }
+            else if (myLastValue instanceof String) {
+                out.writeByte('s');
+                writeString(out, (String) myLastValue);
+            }
+            else if (myLastValue instanceof Timestamp) {
+                // Timestamps from bags have nanosecond precision, and rows
+                // would be skipped or repeated if any of it were lost.
+                Timestamp timestamp = (Timestamp) myLastValue;
+                out.writeByte('t');
+                out.writeLong(timestamp.getTime());
+                out.writeInt(timestamp.getNanos());
+            }
+            else if (myLastValue instanceof Long) {
+                out.writeByte('l');
+                out.writeLong((Long) myLastValue);
+            }
+            else if (myLastValue instanceof Integer) {
+                out.writeByte('i');
+                out.writeInt((Integer) myLastValue);
+            }
+            else if (myLastValue instanceof Double) {
+                out.writeByte('d');
+                out.writeDouble((Double) myLastValue);
+            }
+            else if (myLastValue instanceof Boolean) {
+                out.writeByte('b');
+                out.writeBoolean((Boolean) myLastValue);
+            }
+            else {
+                throw new IllegalArgumentException("Results can't be paged by " + mySort);
+            }
+        }
+        catch (IOException e) {
+            // Writing to memory doesn't fail.
+            throw new IllegalStateException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * @param cursor A string produced by {@link #encode()}.
+     * @return The decoded cursor.
+     * @throws IllegalArgumentException If the string isn't a valid cursor.
+     */
+    static SearchCursor decode(String cursor) {
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)))) {
+            if (in.readByte() != VERSION) {
+                throw new IllegalArgumentException("Unsupported cursor version.");
+            }
+            String sort = readString(in);
+            boolean isAscending = in.readBoolean();
+            long lastId = in.readLong();
+            long totalCount = in.readLong();
+            Object lastValue;
+            byte type = in.readByte();
+            switch (type) {
+                case 'n':
+                    lastValue = null;
+                    break;
+                case 's':
+                    lastValue = readString(in);
+                    break;
+                case 't':
+                    Timestamp timestamp = new Timestamp(in.readLong());
+                    timestamp.setNanos(in.readInt());
+                    lastValue = timestamp;
+                    break;
+                case 'l':
+                    lastValue = in.readLong();
+                    break;
+                case 'i':
+                    lastValue = in.readInt();
+                    break;
+                case 'd':
+                    lastValue = in.readDouble();
+                    break;
+                case 'b':
+                    lastValue = in.readBoolean();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid cursor.");
+            }
+            return new SearchCursor(sort, isAscending, lastValue, lastId, totalCount);
+        }
+        catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+        }
+    }
+
+    /**
+     * Writes a string of any length.  DataOutputStream.writeUTF can't be
+     * used because it's limited to 64 KB, and text columns can be longer.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
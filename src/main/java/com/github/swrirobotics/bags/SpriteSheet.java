@@ -0,0 +1,289 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.github.swrirobotics.bags.reader.BagFile;
+import com.github.swrirobotics.bags.reader.MessageHandler;
+import com.github.swrirobotics.bags.reader.MessageIndex;
+import com.github.swrirobotics.bags.reader.exceptions.BagReaderException;
+import com.github.swrirobotics.bags.reader.messages.serialization.MessageType;
+import com.github.swrirobotics.bags.reader.records.Connection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.List;
+
+/**
+ * A single image containing thumbnails of evenly spaced frames from an image
+ * topic, along with the time of each frame, so that clients can show a
+ * preview of the topic without streaming a video.
+ *
+ * Thumbnails are laid out left to right, top to bottom, in rows of
+ * {@link #getColumns()}.  Times are in seconds from the first message on the
+ * topic and are based on header stamps, the same as {@link VideoSegmentIndex}.
+ */
+public class SpriteSheet {
+    private final int myTileWidth;
+    private final int myTileHeight;
+    private final int myColumns;
+    private final double[] myTimes;
+    private final long[] myMessageIndexes;
+    private final byte[] myImage;
+
+    private static final double DEFAULT_FRAME_RATE = 10.0;
+
+    private static final Logger myLogger = LoggerFactory.getLogger(SpriteSheet.class);
+
+    /**
+     * Converts an image message into an image.
+     */
+    interface ImageDecoder {
+        BufferedImage decode(MessageType message) throws Exception;
+    }
+
+    /**
+     * Draws evenly spaced messages from a topic into a sprite sheet.  The
+     * messages can either be looked up directly with
+     * {@link #readFrames(BagFile, List)} or passed in one at a time as a
+     * {@link MessageHandler}; either way, only the sampled messages are
+     * decoded.
+     */
+    static class Builder implements MessageHandler {
+        private final ImageDecoder myDecoder;
+        private final long myMessageCount;
+        private final int myFrameCount;
+        private final int myTileWidth;
+        private final int myColumns;
+        private final double[] myTimes;
+        private final long[] myMessageIndexes;
+        private long myCurrentMessage = 0;
+        private int myCurrentFrame = 0;
+        private Long myFirstNs = null;
+        private int myTileHeight = 0;
+        private BufferedImage mySheet = null;
+        private Graphics2D myGraphics = null;
+
+        /**
+         * @param messageCount The number of messages on the topic.
+         * @param frameCount The number of frames to put in the sprite sheet.
+         * @param tileWidth The width of each frame in the sheet; the height is
+         *                  chosen to match the aspect ratio of the first frame.
+         * @param columns The number of frames in each row of the sheet.
+         * @param decoder Converts messages into images.
+         */
+        Builder(long messageCount, int frameCount, int tileWidth, int columns, ImageDecoder decoder) {
+            myMessageCount = messageCount;
+            myFrameCount = (int) Math.max(0, Math.min(frameCount, messageCount));
+            myTileWidth = tileWidth;
+            myColumns = columns;
+            myDecoder = decoder;
+            myTimes = new double[myFrameCount];
+            myMessageIndexes = new long[myFrameCount];
+            for (int i = 0; i < myFrameCount; i++) {
+                myMessageIndexes[i] = (long) i * messageCount / myFrameCount;
+            }
+        }
+
+        /**
+         * Reads only the sampled messages from a bag, using the topic's
+         * message index to find them.
+         * @param indexes The topic's message index; it should have one entry
+         *                for every message the builder was created with.
+         */
+        void readFrames(BagFile bagFile, List<MessageIndex> indexes) throws BagReaderException {
+            while (myCurrentFrame < myFrameCount && myMessageIndexes[myCurrentFrame] < indexes.size()) {
+                long index = myMessageIndexes[myCurrentFrame];
+                addFrame(index, bagFile.getMessageFromIndex(indexes, (int) index));
+            }
+        }
+
+        @Override
+        public boolean process(MessageType message, Connection connection) {
+            if (myCurrentFrame >= myFrameCount) {
+                return false;
+            }
+            long index = myCurrentMessage++;
+            if (index != myMessageIndexes[myCurrentFrame]) {
+                return true;
+            }
+            addFrame(index, message);
+
+            return myCurrentFrame < myFrameCount;
+        }
+
+        private void addFrame(long index, MessageType message) {
+            // The first message is always in the sheet, so this is where times start.
+            Long stampNs = VideoSegmentIndex.Builder.getStampNs(message);
+            if (index == 0) {
+                myFirstNs = stampNs;
+            }
+            myTimes[myCurrentFrame] = stampNs != null && myFirstNs != null ?
+                                      Math.max(0.0, (double) (stampNs - myFirstNs) / 1.0e9) :
+                                      (double) index / DEFAULT_FRAME_RATE;
+
+            try {
+                drawFrame(myCurrentFrame, myDecoder.decode(message));
+            }
+            catch (Exception e) {
+                // Leave a blank spot for this frame rather than giving up on the whole sheet.
+                myLogger.warn("Unable to decode message " + index + " for sprite sheet: " + e.getLocalizedMessage());
+            }
+            myCurrentFrame++;
+        }
+
+        private void drawFrame(int frame, BufferedImage image) {
+            if (image == null) {
+                return;
+            }
+            if (mySheet == null) {
+                myTileHeight = Math.max(1, (int) Math.round((double) myTileWidth *
+                                                            image.getHeight() / image.getWidth()));
+                int rows = (myFrameCount + myColumns - 1) / myColumns;
+                mySheet = new BufferedImage(Math.min(myColumns, myFrameCount) * myTileWidth,
+                                            rows * myTileHeight, BufferedImage.TYPE_INT_RGB);
+                myGraphics = mySheet.createGraphics();
+                myGraphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                                            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            }
+            myGraphics.drawImage(image,
+                                 (frame % myColumns) * myTileWidth, (frame / myColumns) * myTileHeight,
+                                 myTileWidth, myTileHeight, null);
+        }
+
+        SpriteSheet build() throws IOException {
+            if (mySheet == null) {
+                throw new IOException("None of the frames could be decoded.");
+            }
+            myGraphics.dispose();
+            ByteArrayOutputStream image = new ByteArrayOutputStream();
+            if (!ImageIO.write(mySheet, "jpeg", image)) {
+                throw new IOException("Unable to write sprite sheet as a JPEG.");
+            }
+            // If the topic ended before we expected it to, drop the frames we never saw.
+            double[] times = new double[myCurrentFrame];
+            long[] indexes = new long[myCurrentFrame];
+            System.arraycopy(myTimes, 0, times, 0, myCurrentFrame);
+            System.arraycopy(myMessageIndexes, 0, indexes, 0, myCurrentFrame);
+            return new SpriteSheet(myTileWidth, myTileHeight, Math.min(myColumns, myFrameCount),
+                                   times, indexes, image.toByteArray());
+        }
+    }
+
+    private SpriteSheet(int tileWidth, int tileHeight, int columns,
+                        double[] times, long[] messageIndexes, byte[] image) {
+        myTileWidth = tileWidth;
+        myTileHeight = tileHeight;
+        myColumns = columns;
+        myTimes = times;
+        myMessageIndexes = messageIndexes;
+        myImage = image;
+    }
+
+    public int getTileWidth() {
+        return myTileWidth;
+    }
+
+    public int getTileHeight() {
+        return myTileHeight;
+    }
+
+    public int getColumns() {
+        return myColumns;
+    }
+
+    /**
+     * @return The time of each frame in the sheet, in seconds from the start of the topic.
+     */
+    public double[] getTimes() {
+        return myTimes;
+    }
+
+    /**
+     * @return The index of the message on the topic that each frame came from.
+     */
+    public long[] getMessageIndexes() {
+        return myMessageIndexes;
+    }
+
+    /**
+     * @return The sprite sheet, encoded as a JPEG.
+     */
+    @JsonIgnore
+    public byte[] getImage() {
+        return myImage;
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(myTileWidth);
+            output.writeInt(myTileHeight);
+            output.writeInt(myColumns);
+            output.writeInt(myTimes.length);
+            for (int i = 0; i < myTimes.length; i++) {
+                output.writeDouble(myTimes[i]);
+                output.writeLong(myMessageIndexes[i]);
+            }
+            output.writeInt(myImage.length);
+            output.write(myImage);
+        }
+        catch (IOException e) {
+            // This can't happen when writing to a byte array.
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static SpriteSheet fromBytes(byte[] data) throws IOException {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(data))) {
+            int tileWidth = input.readInt();
+            int tileHeight = input.readInt();
+            int columns = input.readInt();
+            int length = input.readInt();
+            double[] times = new double[length];
+            long[] indexes = new long[length];
+            for (int i = 0; i < length; i++) {
+                times[i] = input.readDouble();
+                indexes[i] = input.readLong();
+            }
+            byte[] image = new byte[input.readInt()];
+            input.readFully(image);
+            return new SpriteSheet(tileWidth, tileHeight, columns, times, indexes, image);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.bags.reader.BagFile;
+import com.github.swrirobotics.bags.reader.MessageHandler;
+import com.github.swrirobotics.bags.reader.MessageIndex;
+import com.github.swrirobotics.bags.reader.exceptions.BagReaderException;
+import com.github.swrirobotics.bags.reader.exceptions.UninitializedFieldException;
+import com.github.swrirobotics.bags.reader.messages.serialization.ArrayType;
+import com.github.swrirobotics.bags.reader.messages.serialization.Field;
+import com.github.swrirobotics.bags.reader.messages.serialization.MessageType;
+import com.github.swrirobotics.bags.reader.messages.serialization.TimeType;
+import com.github.swrirobotics.bags.reader.messages.serialization.UInt32Type;
+import com.github.swrirobotics.bags.reader.records.Connection;
+import com.github.swrirobotics.persistence.Topic;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates exact statistics about the messages on a topic: the first and
+ * last message times, the mean, minimum, and maximum rate at which messages
+ * were published, and the total and largest message payload sizes.
+ *
+ * Times come from the messages' header stamps if they have them and from the
+ * times the messages were recorded otherwise.  The bag reader doesn't expose
+ * the serialized size of individual messages, so message sizes are measured
+ * from the message's "data" array, which is where nearly all of the bytes
+ * live for the large message types we care about (images, point clouds,
+ * compressed data, etc.).  Topics whose messages have no data array will
+ * have null statistics for those fields.
+ *
+ * Use {@link #collect(BagFile, Collection)} to compute the statistics for
+ * every topic in a bag in a single pass over it.
+ */
+class TopicStatistics {
+    private final Times myStampTimes = new Times();
+    // Used instead of the header stamps if messages don't have them
+    private final Times myRecordTimes = new Times();
+    private long myMessageCount = 0;
+    private long myTotalBytes = 0;
+    private long myMaxBytes = 0;
+    private boolean myHasData = false;
+
+    private static class Times {
+        private long myCount = 0;
+        private long myFirstNs = Long.MAX_VALUE;
+        private long myLastNs = Long.MIN_VALUE;
+        private long myPreviousNs = 0;
+        private long myMinPeriodNs = Long.MAX_VALUE;
+        private long myMaxPeriodNs = 0;
+
+        void add(long timeNs) {
+            if (myCount > 0) {
+                long periodNs = timeNs - myPreviousNs;
+                // Times aren't guaranteed to be monotonic; only count
+                // periods between messages that are actually in order.
+                if (periodNs > 0) {
+                    myMinPeriodNs = Math.min(myMinPeriodNs, periodNs);
+                    myMaxPeriodNs = Math.max(myMaxPeriodNs, periodNs);
+                }
+            }
+            myFirstNs = Math.min(myFirstNs, timeNs);
+            myLastNs = Math.max(myLastNs, timeNs);
+            myPreviousNs = timeNs;
+            myCount++;
+        }
+    }
+
+    /**
+     * Reads every message on a set of topics once and computes the
+     * statistics for all of them.
+     * @param bagFile The bag file to read.
+     * @param topics The names of the topics to compute statistics for.
+     * @return The statistics for each topic, by name.
+     * @throws BagReaderException If there was an error reading the bag file.
+     */
+    static Map<String, TopicStatistics> collect(BagFile bagFile, Collection<String> topics) throws BagReaderException {
+        Map<String, TopicStatistics> statistics = Maps.newHashMap();
+        for (String topic : topics) {
+            statistics.put(topic, new TopicStatistics());
+        }
+        if (topics.isEmpty()) {
+            return statistics;
+        }
+        List<String> topicList = Lists.newArrayList(topics);
+
+        // The index holds the time every message was recorded, so those can
+        // be read without decompressing or deserializing any messages.
+        for (MessageIndex index : bagFile.generateIndexesForTopicList(topicList, null)) {
+            TopicStatistics stats = statistics.get(index.topic);
+            if (stats != null) {
+                stats.addRecordTime(index.timestamp);
+            }
+        }
+
+        bagFile.forMessagesOnTopics(topicList, new MessageHandler() {
+            @Override
+            public boolean process(MessageType message, Connection connection) {
+                TopicStatistics stats = statistics.get(connection.getTopic());
+                if (stats != null) {
+                    stats.process(message);
+                }
+                return true;
+            }
+        });
+        return statistics;
+    }
+
+    /**
+     * Adds a message's header stamp and size to the statistics.
+     */
+    void process(MessageType message) {
+        myMessageCount++;
+        if ((message.getPackage() + "/" + message.getType()).equals("stereo_msgs/DisparityImage")) {
+            // The interesting parts of a disparity image are in its "image" field.
+            message = message.getField("image");
+        }
+
+        Field header = message.getField("header");
+        if (header instanceof MessageType) {
+            Field stamp = ((MessageType) header).getField("stamp");
+            if (stamp instanceof TimeType) {
+                try {
+                    addStamp(toNanoseconds(((TimeType) stamp).getValue()));
+                }
+                catch (UninitializedFieldException e) {
+                    // Just skip this message's stamp
+                }
+            }
+        }
+
+        Field data = message.getField("data");
+        if (data instanceof ArrayType) {
+            addMessageBytes(getDataBytes(message, (ArrayType) data));
+        }
+    }
+
+    /**
+     * Finds the size of a message's data array.  Images and point clouds
+     * record the size of their data in other fields, so their data doesn't
+     * have to be copied out of the message to measure it.
+     */
+    private static long getDataBytes(MessageType message, ArrayType data) {
+        try {
+            Field height = message.getField("height");
+            Field rowSize = message.getField("step");
+            if (rowSize == null) {
+                rowSize = message.getField("row_step");
+            }
+            if (height instanceof UInt32Type && rowSize instanceof UInt32Type) {
+                return ((UInt32Type) height).getValue() * ((UInt32Type) rowSize).getValue();
+            }
+        }
+        catch (UninitializedFieldException e) {
+            // Fall back to measuring the array
+        }
+        return data.getAsBytes().length;
+    }
+
+    void addStamp(long stampNs) {
+        myStampTimes.add(stampNs);
+    }
+
+    void addRecordTime(long recordNs) {
+        myRecordTimes.add(recordNs);
+    }
+
+    void addMessageBytes(long size) {
+        myTotalBytes += size;
+        myMaxBytes = Math.max(myMaxBytes, size);
+        myHasData = true;
+    }
+
+    /**
+     * @return The header stamps if any messages had them, or the record
+     *         times otherwise.
+     */
+    private Times getTimes() {
+        return myStampTimes.myCount > 0 ? myStampTimes : myRecordTimes;
+    }
+
+    private static long toNanoseconds(Timestamp time) {
+        return Math.floorDiv(time.getTime(), 1000L) * 1000000000L + time.getNanos();
+    }
+
+    private static Timestamp toTimestamp(long nanoseconds) {
+        Timestamp time = new Timestamp(Math.floorDiv(nanoseconds, 1000000000L) * 1000L);
+        time.setNanos((int) Math.floorMod(nanoseconds, 1000000000L));
+        return time;
+    }
+
+    long getMessageCount() {
+        return myMessageCount;
+    }
+
+    /**
+     * @return The number of seconds between the first and last messages,
+     *         or null if there were fewer than two of them.
+     */
+    Double getDurationS() {
+        Times times = getTimes();
+        if (times.myCount < 2) {
+            return null;
+        }
+        return (double) (times.myLastNs - times.myFirstNs) / 1.0e9;
+    }
+
+    /**
+     * @return The average rate in Hz at which messages were published, or
+     *         null if it couldn't be determined.
+     */
+    Double getMeanFrequency() {
+        Double durationS = getDurationS();
+        if (durationS == null || durationS <= 0.0) {
+            return null;
+        }
+        return (double) (getTimes().myCount - 1) / durationS;
+    }
+
+    Double getMinFrequency() {
+        Times times = getTimes();
+        return times.myMaxPeriodNs > 0 ? 1.0e9 / (double) times.myMaxPeriodNs : null;
+    }
+
+    Double getMaxFrequency() {
+        Times times = getTimes();
+        return times.myMinPeriodNs < Long.MAX_VALUE ? 1.0e9 / (double) times.myMinPeriodNs : null;
+    }
+
+    Long getTotalBytes() {
+        return myHasData ? myTotalBytes : null;
+    }
+
+    Long getMaxMessageBytes() {
+        return myHasData ? myMaxBytes : null;
+    }
+
+    /**
+     * Copies all of the accumulated statistics onto a topic.
+     * @param topic The topic to update.
+     */
+    void applyTo(Topic topic) {
+        Times times = getTimes();
+        topic.setStartTime(times.myCount > 0 ? toTimestamp(times.myFirstNs) : null);
+        topic.setEndTime(times.myCount > 0 ? toTimestamp(times.myLastNs) : null);
+        topic.setMeanFrequency(getMeanFrequency());
+        topic.setMinFrequency(getMinFrequency());
+        topic.setMaxFrequency(getMaxFrequency());
+        topic.setTotalBytes(getTotalBytes());
+        topic.setMaxMessageBytes(getMaxMessageBytes());
+    }
+}
@@ -0,0 +1,537 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.bags.reader.exceptions.BagReaderException;
+import com.github.swrirobotics.config.ConfigService;
+import com.github.swrirobotics.support.web.Configuration;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shares and caches videos that have been transcoded from image topics.
+ *
+ * The first request for a video starts a transcode that writes to a file in
+ * the "videos" cache directory.  That request, and any others for the same
+ * video that arrive before it has finished, read from the file as it is
+ * written, so only one copy of the video is ever encoded at a time.  Once a
+ * transcode has finished, the file can be served directly.  If every client
+ * watching a transcode disconnects before it finishes, it is abandoned.
+ *
+ * Transcodes have to wait for a slot in the {@link EncoderPool} before they
+ * start, so new requests may be rejected if the server is too busy.
+ *
+ * Completed videos are limited to {@link Configuration#getVideoCacheSizeMb()};
+ * when they grow beyond that, the least recently used videos are deleted.
+ */
+@Component
+public class VideoCache {
+    /**
+     * Encodes a video into a stream.
+     */
+    public interface VideoEncoder {
+        void encode(OutputStream output) throws BagReaderException, NonexistentBagException;
+    }
+
+    /**
+     * Thrown to stop an encoder when there is nobody left to watch its output.
+     */
+    static class TranscodeAbandonedException extends IOException {
+        TranscodeAbandonedException() {
+            super("All clients have disconnected.");
+        }
+    }
+
+    private static final String FILE_SUFFIX = ".webm";
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ConfigService myConfigService;
+    private final EncoderPool myEncoderPool;
+    private final ExecutorService myExecutor = Executors.newCachedThreadPool();
+    // Transcodes that are currently running, by key.  Guarded by "this".
+    private final Map<String, Transcode> myTranscodes = new HashMap<>();
+    private LruFileIndex myIndex = null;
+    private boolean myIndexInitialized = false;
+
+    private static final Logger myLogger = LoggerFactory.getLogger(VideoCache.class);
+
+    /**
+     * A single run of an encoder whose output is being written to the cache.
+     */
+    private class Transcode implements Runnable {
+        private final String myKey;
+        private final VideoEncoder myEncoder;
+        private final LruFileIndex myTargetIndex;
+        private final File myPartialFile;
+        private final FileOutputStream myFileOutput;
+        private final EncoderPool.Ticket myTicket;
+        // These are all guarded by this object.
+        private long myLength = 0;
+        private int myReaders = 0;
+        private boolean myIsDone = false;
+        private boolean myIsSuccessful = false;
+
+        Transcode(String key, VideoEncoder encoder, LruFileIndex index, EncoderPool.Ticket ticket)
+                throws IOException {
+            myKey = key;
+            myEncoder = encoder;
+            myTargetIndex = index;
+            myTicket = ticket;
+            myPartialFile = new File(index.getDirectory(), key + PARTIAL_SUFFIX);
+            myFileOutput = new FileOutputStream(myPartialFile);
+        }
+
+        @Override
+        public void run() {
+            boolean success = false;
+            try (EncoderPool.Ticket ticket = myTicket;
+                 OutputStream output = new TranscodeOutputStream()) {
+                if (!ticket.await()) {
+                    throw new TranscodeAbandonedException();
+                }
+                myEncoder.encode(output);
+                success = !isAbandoned();
+            }
+            catch (BagReaderException | NonexistentBagException | IOException | InterruptedException |
+                   RuntimeException e) {
+                if (isAbandoned()) {
+                    myLogger.info("Abandoned transcode of " + myKey + ".");
+                }
+                else {
+                    myLogger.error("Unable to transcode video " + myKey + ":", e);
+                }
+            }
+
+            synchronized (VideoCache.this) {
+                myTranscodes.remove(myKey);
+                try {
+                    if (success) {
+                        // Anybody who is still reading the partial file will keep
+                        // their handle to it after it's renamed.
+                        Files.move(myPartialFile.toPath(), myTargetIndex.getFile(myKey).toPath(),
+                                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        myTargetIndex.add(myKey, getLength(), getMaxBytes());
+                        myLogger.info("Finished transcoding " + myKey + " (" + getLength() + " bytes).");
+                    }
+                    else {
+                        Files.deleteIfExists(myPartialFile.toPath());
+                    }
+                }
+                catch (IOException e) {
+                    success = false;
+                    myLogger.error("Unable to store transcoded video " + myKey + ":", e);
+                }
+            }
+
+            synchronized (this) {
+                myIsDone = true;
+                myIsSuccessful = success;
+                notifyAll();
+            }
+        }
+
+        synchronized long getLength() {
+            return myLength;
+        }
+
+        synchronized void attach() {
+            myReaders++;
+        }
+
+        synchronized void detach() {
+            myReaders--;
+            if (myReaders <= 0 && myTicket.cancelIfWaiting()) {
+                myLogger.info("Nobody is waiting for " + myKey + " anymore; removed it from the queue.");
+            }
+        }
+
+        synchronized boolean isAbandoned() {
+            return myReaders <= 0;
+        }
+
+        /**
+         * Copies the output of the transcode to a client as it is produced.
+         * @param input A stream that was opened on the partial file.
+         * @param output The client's stream.
+         * @throws IOException If the client disconnected or the transcode failed.
+         */
+        void copyTo(InputStream input, OutputStream output) throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = 0;
+            while (true) {
+                int count = input.read(buffer);
+                if (count > 0) {
+                    output.write(buffer, 0, count);
+                    position += count;
+                    continue;
+                }
+
+                // We've caught up to the encoder; wait for it to produce more.
+                output.flush();
+                synchronized (this) {
+                    try {
+                        while (!myIsDone && myLength <= position) {
+                            wait();
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for video.");
+                    }
+                    if (myIsDone && myLength <= position) {
+                        if (!myIsSuccessful) {
+                            throw new IOException("Transcode of " + myKey + " failed.");
+                        }
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes to the partial file and wakes up any clients that are waiting
+         * for more data.
+         */
+        private class TranscodeOutputStream extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (isAbandoned()) {
+                    throw new TranscodeAbandonedException();
+                }
+                myFileOutput.write(b, off, len);
+                synchronized (Transcode.this) {
+                    myLength += len;
+                    Transcode.this.notifyAll();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                myFileOutput.close();
+            }
+        }
+    }
+
+    /**
+     * A client's view of a video.  It must be closed when the client is done with it.
+     */
+    public class VideoStream implements Closeable {
+        private final InputStream myInput;
+        private final Transcode myTranscode;
+        private final VideoEncoder myEncoder;
+        private final EncoderPool.Ticket myTicket;
+
+        private VideoStream(InputStream input, Transcode transcode, VideoEncoder encoder, EncoderPool.Ticket ticket) {
+            myInput = input;
+            myTranscode = transcode;
+            myEncoder = encoder;
+            myTicket = ticket;
+        }
+
+        /**
+         * @return 0 if the video is ready to be streamed, or its position in
+         *         the queue of videos waiting to be encoded.
+         */
+        public int getQueuePosition() {
+            if (myTranscode != null) {
+                return myTranscode.myTicket.getPosition();
+            }
+            return myTicket == null ? 0 : myTicket.getPosition();
+        }
+
+        /**
+         * Writes the video to a stream, blocking until all of it has been written.
+         * @param output The stream to write the video to.
+         * @throws IOException If the video could not be encoded or written.
+         */
+        public void writeTo(OutputStream output) throws IOException {
+            if (myInput == null) {
+                // Without anywhere to cache it, every client just gets its own copy.
+                try {
+                    if (!myTicket.await()) {
+                        throw new IOException("Video stream was closed.");
+                    }
+                    myEncoder.encode(output);
+                }
+                catch (BagReaderException | NonexistentBagException e) {
+                    throw new IOException(e);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for an encoder.");
+                }
+            }
+            else if (myTranscode == null) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = myInput.read(buffer)) > 0) {
+                    output.write(buffer, 0, count);
+                }
+            }
+            else {
+                myTranscode.copyTo(myInput, output);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (myInput != null) {
+                    myInput.close();
+                }
+            }
+            finally {
+                if (myTranscode != null) {
+                    myTranscode.detach();
+                }
+                if (myTicket != null) {
+                    myTicket.close();
+                }
+            }
+        }
+    }
+
+    public VideoCache(ConfigService configService, EncoderPool encoderPool) {
+        myConfigService = configService;
+        myEncoderPool = encoderPool;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        myExecutor.shutdownNow();
+    }
+
+    /**
+     * Generates the cache key for a video.
+     * @param md5sum The MD5 sum of the bag file containing the video.
+     * @param topic The image topic the video is made from.
+     * @param frameSkip Only every Nth frame is included in the video.
+     * @param params A description of any parameters that affect the output.
+     * @return A key that uniquely identifies the video.
+     */
+    public static String getKey(String md5sum, String topic, long frameSkip, String params) {
+        return Hashing.sha256().hashString(md5sum + "\n" + topic + "\n" + frameSkip + "\n" + params,
+                                           StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Looks up a video that has finished transcoding and marks it as recently used.
+     * @param key The video's key.
+     * @return The video's file, or null if it has not been completely transcoded.
+     */
+    public File getCompletedVideo(String key) {
+        LruFileIndex index = getIndex();
+        return index == null ? null : index.get(key);
+    }
+
+    /**
+     * Opens a video so that it can be written to a client.  If it is cached,
+     * it will be read from the cache; if it is currently being transcoded for
+     * another client, this will follow along with that transcode; otherwise,
+     * a new transcode is queued.
+     * @param key The video's key.
+     * @param encoder Encodes the video if it is not already cached.
+     * @return A stream that must be closed when the client is done with it.
+     * @throws IOException If the cache could not be accessed.
+     * @throws EncoderPoolFullException If a new transcode is needed and the server is too busy.
+     */
+    public VideoStream openVideo(String key, VideoEncoder encoder) throws IOException, EncoderPoolFullException {
+        synchronized (this) {
+            LruFileIndex index = getIndex();
+            if (index == null) {
+                return new VideoStream(null, null, encoder, myEncoderPool.enqueue(key));
+            }
+
+            File completed = index.get(key);
+            if (completed != null) {
+                return new VideoStream(new FileInputStream(completed), null, null, null);
+            }
+
+            Transcode transcode = myTranscodes.get(key);
+            boolean isNew = transcode == null;
+            if (isNew) {
+                EncoderPool.Ticket ticket = myEncoderPool.enqueue(key);
+                try {
+                    transcode = new Transcode(key, encoder, index, ticket);
+                }
+                catch (IOException e) {
+                    ticket.close();
+                    throw e;
+                }
+            }
+            // The partial file has to be opened while we hold the lock, since
+            // it will be renamed as soon as the transcode finishes.
+            InputStream input;
+            try {
+                input = new FileInputStream(transcode.myPartialFile);
+            }
+            catch (IOException e) {
+                if (isNew) {
+                    transcode.myTicket.close();
+                }
+                throw e;
+            }
+            transcode.attach();
+            if (isNew) {
+                myTranscodes.put(key, transcode);
+                myLogger.info("Starting transcode of " + key + ".");
+                myExecutor.execute(transcode);
+            }
+            else {
+                myLogger.info("Joining transcode of " + key + " in progress.");
+            }
+            return new VideoStream(input, transcode, null, null);
+        }
+    }
+
+    /**
+     * Writes a video to a stream; see {@link #openVideo(String, VideoEncoder)}.
+     * This will block until the entire video has been written.
+     */
+    public void writeVideo(String key, VideoEncoder encoder, OutputStream output)
+            throws IOException, EncoderPoolFullException {
+        try (VideoStream stream = openVideo(key, encoder)) {
+            stream.writeTo(output);
+        }
+    }
+
+    /**
+     * Gets the queue position of a transcode that hasn't finished yet.
+     * @param key The video's key.
+     * @return -1 if the video is not being transcoded, 0 if it is currently
+     *         being encoded, or its position in the queue if it is waiting.
+     */
+    public synchronized int getQueuePosition(String key) {
+        Transcode transcode = myTranscodes.get(key);
+        return transcode == null ? -1 : transcode.myTicket.getPosition();
+    }
+
+    /**
+     * Gets a file in the cache directory that a video can be assembled in
+     * before it's added with {@link #storeVideo(String, File)}.  If it's
+     * left behind, it will be deleted the next time the cache is loaded.
+     * @param name A name for the file that nothing else is using.
+     * @return The file, or null if the cache directory is unavailable.
+     */
+    public File getPartialFile(String name) {
+        LruFileIndex index = getIndex();
+        return index == null ? null : new File(index.getDirectory(), name + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * Adds a video that was written somewhere else to the cache.
+     * @param key The video's key.
+     * @param partialFile A file from {@link #getPartialFile(String)}; it will be moved into the cache.
+     * @return The cached video.
+     * @throws IOException If the file could not be moved into the cache.
+     */
+    public synchronized File storeVideo(String key, File partialFile) throws IOException {
+        LruFileIndex index = getIndex();
+        if (index == null) {
+            throw new IOException("The video cache is unavailable.");
+        }
+        File target = index.getFile(key);
+        long length = partialFile.length();
+        Files.move(partialFile.toPath(), target.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index.add(key, length, getMaxBytes());
+        return target;
+    }
+
+    /**
+     * Removes every cached video.  Transcodes that are in progress are unaffected.
+     */
+    public void clear() {
+        LruFileIndex index = getIndex();
+        if (index != null) {
+            index.clear();
+        }
+    }
+
+    private long getMaxBytes() {
+        Configuration config = myConfigService.getConfiguration();
+        if (config == null || config.getVideoCacheSizeMb() == null) {
+            return new Configuration().getVideoCacheSizeMb() * 1024L * 1024L;
+        }
+        return Math.max(0, config.getVideoCacheSizeMb()) * 1024L * 1024L;
+    }
+
+    /**
+     * Gets the index of completed videos, loading the existing contents of the
+     * cache and removing any partial files left over from a previous run the
+     * first time it's called.
+     * @return The index, or null if the cache directory is unavailable.
+     */
+    private synchronized LruFileIndex getIndex() {
+        if (myIndexInitialized) {
+            return myIndex;
+        }
+        myIndexInitialized = true;
+
+        try {
+            File directory = myConfigService.getCacheDirectory("videos");
+            if (directory != null) {
+                File[] partialFiles = directory.listFiles((dir, name) -> name.endsWith(PARTIAL_SUFFIX));
+                if (partialFiles != null) {
+                    for (File partialFile : partialFiles) {
+                        Files.deleteIfExists(partialFile.toPath());
+                    }
+                }
+                myIndex = new LruFileIndex(directory, FILE_SUFFIX);
+                myIndex.evict(getMaxBytes());
+            }
+        }
+        catch (IOException e) {
+            myLogger.error("Unable to access the video cache; videos will not be cached.", e);
+        }
+
+        return myIndex;
+    }
+}
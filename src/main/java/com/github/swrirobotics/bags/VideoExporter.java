@@ -0,0 +1,352 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.bags.reader.exceptions.BagReaderException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exports entire image topics as downloadable videos.
+ *
+ * Rather than encoding a topic from start to finish with a single ffmpeg
+ * process, an export splits it into ranges that are encoded at the same time,
+ * each in its own slot in the {@link EncoderPool}, and then joins the results
+ * with ffmpeg's concat demuxer without re-encoding them.  The finished video
+ * is stored in the {@link VideoCache}.
+ */
+@Component
+public class VideoExporter {
+    /**
+     * Encodes one range of a topic.
+     */
+    public interface RangeEncoder {
+        /**
+         * @param range The range of the topic to encode.
+         * @param output The stream to write the range's video to.
+         * @param progress Should be incremented as each frame is encoded.
+         */
+        void encode(VideoSegmentIndex.Segment range, OutputStream output, AtomicLong progress)
+                throws BagReaderException, NonexistentBagException;
+    }
+
+    public enum State {
+        QUEUED, ENCODING, JOINING, COMPLETE, FAILED
+    }
+
+    /**
+     * The progress of encoding a single range of an export.
+     */
+    public static class RangeProgress {
+        private final VideoSegmentIndex.Segment myRange;
+        private final AtomicLong myFramesEncoded = new AtomicLong(0);
+        private volatile State myState = State.QUEUED;
+
+        RangeProgress(VideoSegmentIndex.Segment range) {
+            myRange = range;
+        }
+
+        public int getIndex() {
+            return myRange.getIndex();
+        }
+
+        public double getStartS() {
+            return myRange.getStartS();
+        }
+
+        public double getDurationS() {
+            return myRange.getDurationS();
+        }
+
+        public long getFrameCount() {
+            return myRange.getFrameCount();
+        }
+
+        public long getFramesEncoded() {
+            return myFramesEncoded.get();
+        }
+
+        public State getState() {
+            return myState;
+        }
+    }
+
+    /**
+     * The state of an export.
+     */
+    public static class Export {
+        private final String myKey;
+        private final List<RangeProgress> myRanges;
+        private volatile State myState;
+        // Guarded by this object.
+        private int myRemainingRanges;
+
+        Export(String key, List<VideoSegmentIndex.Segment> ranges, State state) {
+            myKey = key;
+            List<RangeProgress> progress = new ArrayList<>(ranges.size());
+            for (VideoSegmentIndex.Segment range : ranges) {
+                progress.add(new RangeProgress(range));
+            }
+            myRanges = Collections.unmodifiableList(progress);
+            myRemainingRanges = progress.size();
+            myState = state;
+        }
+
+        public State getState() {
+            return myState;
+        }
+
+        public List<RangeProgress> getRanges() {
+            return myRanges;
+        }
+
+        /**
+         * @return The fraction of the topic's frames that have been encoded,
+         *         between 0.0 and 1.0.
+         */
+        public double getProgress() {
+            if (myState == State.COMPLETE) {
+                return 1.0;
+            }
+            long total = 0;
+            long encoded = 0;
+            for (RangeProgress range : myRanges) {
+                total += range.getFrameCount();
+                encoded += Math.min(range.getFramesEncoded(), range.getFrameCount());
+            }
+            return total == 0 ? 0.0 : (double) encoded / (double) total;
+        }
+
+        private synchronized boolean isFinished() {
+            return myRemainingRanges <= 0;
+        }
+
+        /**
+         * @return True if this was the last range to finish.
+         */
+        private synchronized boolean finishRange() {
+            myRemainingRanges--;
+            return myRemainingRanges == 0;
+        }
+    }
+
+    private final VideoCache myVideoCache;
+    private final EncoderPool myEncoderPool;
+    private final ExecutorService myExecutor = Executors.newCachedThreadPool();
+    // Exports that are still running, by key.  Finished exports are removed;
+    // completed ones can still be found in the video cache.  Guarded by "this".
+    private final Map<String, Export> myExports = new HashMap<>();
+
+    private static final Logger myLogger = LoggerFactory.getLogger(VideoExporter.class);
+
+    public VideoExporter(VideoCache videoCache, EncoderPool encoderPool) {
+        myVideoCache = videoCache;
+        myEncoderPool = encoderPool;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        myExecutor.shutdownNow();
+    }
+
+    /**
+     * Starts an export, unless it has already finished or is in progress.
+     * Exports that failed are started over.
+     * @param key The key that the finished video will be cached under.
+     * @param ranges The ranges of the topic that will be encoded separately.
+     * @param encoder Encodes each range.
+     * @return The state of the export.
+     */
+    public synchronized Export startExport(String key, List<VideoSegmentIndex.Segment> ranges,
+                                           RangeEncoder encoder) {
+        Export export = getExport(key);
+        if (export != null && (export.getState() != State.FAILED || !export.isFinished())) {
+            // Failed exports can't be restarted until all of their ranges have
+            // stopped, since the new ranges would be written to the same files.
+            return export;
+        }
+
+        export = new Export(key, ranges, State.QUEUED);
+        myExports.put(key, export);
+        myLogger.info("Exporting " + key + " in " + ranges.size() + " ranges.");
+        if (ranges.isEmpty()) {
+            export.myState = State.FAILED;
+        }
+        for (RangeProgress range : export.getRanges()) {
+            Export currentExport = export;
+            myExecutor.execute(() -> encodeRange(currentExport, range, encoder));
+        }
+        return export;
+    }
+
+    /**
+     * @param key The export's key.
+     * @return The state of the export, or null if it isn't running and isn't
+     *         in the video cache, which includes exports that failed.
+     */
+    public synchronized Export getExport(String key) {
+        Export export = myExports.get(key);
+        boolean isCached = myVideoCache.getCompletedVideo(key) != null;
+        if (export == null) {
+            // It may have been exported before the server was restarted.
+            return isCached ? new Export(key, Collections.emptyList(), State.COMPLETE) : null;
+        }
+        if (export.getState() == State.COMPLETE && !isCached) {
+            // It was evicted from the cache.
+            myExports.remove(key);
+            return null;
+        }
+        return export;
+    }
+
+    private File getRangeFile(Export export, RangeProgress range) {
+        return myVideoCache.getPartialFile(export.myKey + "-" + range.getIndex());
+    }
+
+    private void encodeRange(Export export, RangeProgress range, RangeEncoder encoder) {
+        boolean success = false;
+        // Ranges only start when an encoder is idle, so an export never fills
+        // the queue that interactive requests wait in.
+        try (EncoderPool.Ticket ticket = myEncoderPool.acquireWhenIdle(export.myKey + " range " + range.getIndex())) {
+            if (export.getState() != State.FAILED) {
+                range.myState = State.ENCODING;
+                export.myState = State.ENCODING;
+                File file = getRangeFile(export, range);
+                if (file == null) {
+                    throw new IOException("The video cache is unavailable.");
+                }
+                try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+                    encoder.encode(range.myRange, output, range.myFramesEncoded);
+                }
+                success = true;
+            }
+        }
+        catch (BagReaderException | NonexistentBagException | IOException | RuntimeException e) {
+            myLogger.error("Unable to encode range " + range.getIndex() + " of " + export.myKey + ":", e);
+        }
+        catch (InterruptedException e) {
+            myLogger.warn("Interrupted encoding range " + range.getIndex() + " of " + export.myKey + ".");
+        }
+
+        range.myState = success ? State.COMPLETE : State.FAILED;
+        if (!success) {
+            export.myState = State.FAILED;
+        }
+        if (export.finishRange()) {
+            if (export.getState() != State.FAILED) {
+                joinRanges(export);
+            }
+            for (RangeProgress otherRange : export.getRanges()) {
+                File file = getRangeFile(export, otherRange);
+                if (file != null && file.exists() && !file.delete()) {
+                    myLogger.warn("Unable to delete " + file.getAbsolutePath());
+                }
+            }
+            removeExport(export);
+        }
+    }
+
+    /**
+     * Forgets about an export once all of its ranges have stopped.
+     */
+    private synchronized void removeExport(Export export) {
+        myExports.remove(export.myKey, export);
+    }
+
+    /**
+     * Concatenates every range of an export into a single video and adds it to the cache.
+     */
+    private void joinRanges(Export export) {
+        export.myState = State.JOINING;
+        File listFile = myVideoCache.getPartialFile(export.myKey + "-list");
+        File outputFile = myVideoCache.getPartialFile(export.myKey);
+        try {
+            if (listFile == null || outputFile == null) {
+                throw new IOException("The video cache is unavailable.");
+            }
+            List<String> lines = new ArrayList<>();
+            for (RangeProgress range : export.getRanges()) {
+                lines.add("file '" + getRangeFile(export, range).getAbsolutePath().replace("'", "'\\''") + "'");
+            }
+            Files.write(listFile.toPath(), lines, StandardCharsets.UTF_8);
+
+            Process process = new ProcessBuilder("ffmpeg", "-y",
+                                                 "-f", "concat", "-safe", "0", "-i", listFile.getAbsolutePath(),
+                                                 "-c", "copy", "-f", "webm", outputFile.getAbsolutePath(),
+                                                 "-v", "warning")
+                    .redirectErrorStream(true)
+                    .start();
+            String output = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8).trim();
+            if (process.waitFor() != 0) {
+                throw new IOException("ffmpeg was unable to join the video:\n" + output);
+            }
+            else if (!output.isEmpty()) {
+                myLogger.warn("ffmpeg output:\n" + output);
+            }
+
+            myVideoCache.storeVideo(export.myKey, outputFile);
+            export.myState = State.COMPLETE;
+            myLogger.info("Finished exporting " + export.myKey + ".");
+        }
+        catch (IOException e) {
+            myLogger.error("Unable to join the ranges of " + export.myKey + ":", e);
+            export.myState = State.FAILED;
+        }
+        catch (InterruptedException e) {
+            myLogger.warn("Interrupted joining the ranges of " + export.myKey + ".");
+            export.myState = State.FAILED;
+        }
+        finally {
+            if (listFile != null && listFile.exists() && !listFile.delete()) {
+                myLogger.warn("Unable to delete " + listFile.getAbsolutePath());
+            }
+            if (outputFile != null && outputFile.exists() && !outputFile.delete()) {
+                myLogger.warn("Unable to delete " + outputFile.getAbsolutePath());
+            }
+        }
+    }
+}
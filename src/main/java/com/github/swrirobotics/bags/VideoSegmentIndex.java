@@ -0,0 +1,282 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.bags.reader.MessageHandler;
+import com.github.swrirobotics.bags.reader.exceptions.UninitializedFieldException;
+import com.github.swrirobotics.bags.reader.messages.serialization.Field;
+import com.github.swrirobotics.bags.reader.messages.serialization.MessageType;
+import com.github.swrirobotics.bags.reader.messages.serialization.TimeType;
+import com.github.swrirobotics.bags.reader.records.Connection;
+
+import java.io.*;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Divides an image topic into segments that each cover a fixed window of
+ * time, so that any part of the topic can be encoded without encoding
+ * everything before it.
+ *
+ * Segments are located by the header stamps of the messages on the topic;
+ * each one starts with the first message whose stamp is at least
+ * {@link #SEGMENT_DURATION_S} seconds after the start of the previous one.
+ * Topics without header stamps are assumed to be published at 10 Hz.
+ */
+public class VideoSegmentIndex {
+    public static final double SEGMENT_DURATION_S = 4.0;
+    private static final double DEFAULT_FRAME_RATE = 10.0;
+
+    // The position of the first message of each segment in the topic's
+    // message index, followed by the total number of messages.  Segments are
+    // encoded by reading from these positions, so no segment has to read the
+    // messages before it.
+    private final long[] myFirstMessages;
+    // The start time of each segment in seconds from the start of the topic,
+    // followed by the end time of the last segment.
+    private final double[] myStartTimes;
+
+    public static class Segment {
+        private final int myIndex;
+        private final double myStartS;
+        private final double myDurationS;
+        private final long myFrameCount;
+        private final long myFirstMessage;
+
+        Segment(int index, double startS, double durationS, long frameCount, long firstMessage) {
+            myIndex = index;
+            myStartS = startS;
+            myDurationS = durationS;
+            myFrameCount = frameCount;
+            myFirstMessage = firstMessage;
+        }
+
+        public int getIndex() {
+            return myIndex;
+        }
+
+        public double getStartS() {
+            return myStartS;
+        }
+
+        public double getDurationS() {
+            return myDurationS;
+        }
+
+        public long getFrameCount() {
+            return myFrameCount;
+        }
+
+        /**
+         * @return The index of the first message on the topic that is in this segment.
+         */
+        long getFirstMessage() {
+            return myFirstMessage;
+        }
+    }
+
+    /**
+     * Reads the header stamps of every message on a topic and finds the
+     * boundaries between segments.
+     */
+    static class Builder implements MessageHandler {
+        private final List<Long> myFirstMessages = new ArrayList<>();
+        private final List<Double> myStartTimes = new ArrayList<>();
+        private long myMessageCount = 0;
+        private long myFirstNs = 0;
+        private long myLastNs = 0;
+        private long myStampedCount = 0;
+
+        @Override
+        public boolean process(MessageType message, Connection connection) {
+            if ((message.getPackage() + "/" + message.getType()).equals("stereo_msgs/DisparityImage")) {
+                message = message.getField("image");
+            }
+
+            Long stampNs = getStampNs(message);
+            if (stampNs != null) {
+                if (myStampedCount == 0) {
+                    myFirstNs = stampNs;
+                }
+                // Stamps aren't guaranteed to be in order; only move forward.
+                myLastNs = Math.max(myLastNs, stampNs);
+                myStampedCount++;
+            }
+
+            double timeS = myStampedCount > 0 ?
+                           (double) (myLastNs - myFirstNs) / 1.0e9 :
+                           (double) myMessageCount / DEFAULT_FRAME_RATE;
+            if (myStartTimes.isEmpty() ||
+                timeS >= myStartTimes.get(myStartTimes.size() - 1) + SEGMENT_DURATION_S) {
+                myFirstMessages.add(myMessageCount);
+                myStartTimes.add(myStartTimes.isEmpty() ? 0.0 : timeS);
+            }
+            myMessageCount++;
+
+            return true;
+        }
+
+        VideoSegmentIndex build() {
+            long[] firstMessages = new long[myFirstMessages.size() + 1];
+            double[] startTimes = new double[myStartTimes.size() + 1];
+            for (int i = 0; i < myFirstMessages.size(); i++) {
+                firstMessages[i] = myFirstMessages.get(i);
+                startTimes[i] = myStartTimes.get(i);
+            }
+            firstMessages[firstMessages.length - 1] = myMessageCount;
+
+            // The last frame should be shown for as long as any other frame.
+            double endS;
+            if (myStampedCount > 1 && myLastNs > myFirstNs) {
+                double totalS = (double) (myLastNs - myFirstNs) / 1.0e9;
+                endS = totalS + totalS / (double) (myStampedCount - 1);
+            }
+            else {
+                endS = (double) myMessageCount / DEFAULT_FRAME_RATE;
+            }
+            startTimes[startTimes.length - 1] = Math.max(endS, startTimes[Math.max(0, startTimes.length - 2)]);
+
+            return new VideoSegmentIndex(firstMessages, startTimes);
+        }
+
+        static Long getStampNs(MessageType message) {
+            Field header = message.getField("header");
+            if (header instanceof MessageType) {
+                Field stamp = ((MessageType) header).getField("stamp");
+                if (stamp instanceof TimeType) {
+                    try {
+                        Timestamp time = ((TimeType) stamp).getValue();
+                        return Math.floorDiv(time.getTime(), 1000L) * 1000000000L + time.getNanos();
+                    }
+                    catch (UninitializedFieldException e) {
+                        return null;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private VideoSegmentIndex(long[] firstMessages, double[] startTimes) {
+        myFirstMessages = firstMessages;
+        myStartTimes = startTimes;
+    }
+
+    public int getSegmentCount() {
+        return myFirstMessages.length - 1;
+    }
+
+    public double getDurationS() {
+        return myStartTimes[myStartTimes.length - 1];
+    }
+
+    public List<Segment> getSegments() {
+        List<Segment> segments = new ArrayList<>(getSegmentCount());
+        for (int i = 0; i < getSegmentCount(); i++) {
+            segments.add(getSegment(i));
+        }
+        return segments;
+    }
+
+    /**
+     * @param index The index of a segment.
+     * @return The segment, or null if it's out of range.
+     */
+    public Segment getSegment(int index) {
+        if (index < 0 || index >= getSegmentCount()) {
+            return null;
+        }
+        return getRange(index, index, index + 1);
+    }
+
+    /**
+     * Divides the topic into contiguous ranges that each contain about the
+     * same number of segments.
+     * @param count The number of ranges to create.
+     * @return The ranges; there will be fewer than requested if there aren't
+     *         enough segments.
+     */
+    public List<Segment> split(int count) {
+        int rangeCount = Math.max(1, Math.min(count, getSegmentCount()));
+        List<Segment> ranges = new ArrayList<>(rangeCount);
+        for (int i = 0; i < rangeCount && getSegmentCount() > 0; i++) {
+            int first = (int) ((long) i * getSegmentCount() / rangeCount);
+            int end = (int) ((long) (i + 1) * getSegmentCount() / rangeCount);
+            ranges.add(getRange(i, first, end));
+        }
+        return ranges;
+    }
+
+    private Segment getRange(int index, int firstSegment, int endSegment) {
+        return new Segment(index, myStartTimes[firstSegment],
+                           myStartTimes[endSegment] - myStartTimes[firstSegment],
+                           myFirstMessages[endSegment] - myFirstMessages[firstSegment],
+                           myFirstMessages[firstSegment]);
+    }
+
+    /**
+     * @return The index of the first message on the topic that is in a segment.
+     */
+    long getFirstMessage(int index) {
+        return myFirstMessages[index];
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(myFirstMessages.length);
+            for (int i = 0; i < myFirstMessages.length; i++) {
+                output.writeLong(myFirstMessages[i]);
+                output.writeDouble(myStartTimes[i]);
+            }
+        }
+        catch (IOException e) {
+            // This can't happen when writing to a byte array.
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static VideoSegmentIndex fromBytes(byte[] data) throws IOException {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(data))) {
+            int length = input.readInt();
+            long[] firstMessages = new long[length];
+            double[] startTimes = new double[length];
+            for (int i = 0; i < length; i++) {
+                firstMessages[i] = input.readLong();
+                startTimes[i] = input.readDouble();
+            }
+            return new VideoSegmentIndex(firstMessages, startTimes);
+        }
+    }
+}
@@ -31,6 +31,7 @@
 package com.github.swrirobotics.bags.storage;
 
 
+import com.github.swrirobotics.bags.BagChangeEvent;
 import com.github.swrirobotics.bags.BagService;
 import com.github.swrirobotics.bags.NonexistentBagException;
 import com.github.swrirobotics.bags.reader.BagFile;
@@ -117,12 +118,17 @@ public class BagScanner extends StatusProvider implements BagStorageChangeListen
         Collection<BagStorage> storages = myBagService.getBagStorages();
 
         myBagService.deleteUnownedBags();
+        myBagService.initializeDirectoryCounts();
 
         for (BagStorage storage : storages) {
             myBagStorages.put(storage.getStorageId(), storage);
             storage.addChangeListener(this);
             scanStorage(storage, false);
         }
+
+        // Bags that were added before simplified paths were stored need them
+        // for map tiles, path filters, and reduced GPS paths.
+        backfillSimplifiedPaths();
     }
 
     /**
@@ -180,6 +186,7 @@ public class BagScanner extends StatusProvider implements BagStorageChangeListen
                 String location = myGeocodingService.getLocationName(bag.getLatitudeDeg(), bag.getLongitudeDeg());
                 bag.setLocation(location);
                 myBagRepo.save(bag);
+                myBagService.publishBagChange(new BagChangeEvent(BagChangeEvent.Type.UPDATED, bagId));
             }
         }
     }
@@ -210,6 +217,7 @@ public class BagScanner extends StatusProvider implements BagStorageChangeListen
                                        bag.getFilename() + " to " + name);
                         bag.setVehicle(name);
                         myBagRepo.save(bag);
+                        myBagService.publishBagChange(new BagChangeEvent(BagChangeEvent.Type.UPDATED, bagId));
                     }
                 }
                 catch (BagReaderException | IOException e) {
@@ -270,6 +278,26 @@ public class BagScanner extends StatusProvider implements BagStorageChangeListen
         }
     }
 
+    private class TopicStatisticsUpdater extends MassBagUpdater {
+        @Override
+        protected String updateType() {
+            return "topic statistics";
+        }
+
+        @Override
+        @Transactional
+        public void updateBag(Long bagId) {
+            try {
+                myBagService.updateTopicStatisticsForBagId(bagId);
+            }
+            catch (NonexistentBagException e) {
+                reportStatus(Status.State.ERROR,
+                    "Unable to get topic statistics from bag " +
+                        bagId + ": " + e.getLocalizedMessage());
+            }
+        }
+    }
+
     private class GpsInfoUpdater extends MassBagUpdater {
         @Override
         protected String updateType() {
@@ -304,6 +332,7 @@ public class BagScanner extends StatusProvider implements BagStorageChangeListen
                         myLogger.debug("Setting lat/lon for " + bag.getFilename() + " to: " +
                                                bag.getLatitudeDeg() + " / " + bag.getLongitudeDeg());
                         myBagRepo.save(bag);
+                        myBagService.publishBagChange(new BagChangeEvent(BagChangeEvent.Type.UPDATED, bagId));
                     }
                 }
                 catch (BagReaderException | UninitializedFieldException | IOException e) {
@@ -333,6 +362,10 @@ public class BagScanner extends StatusProvider implements BagStorageChangeListen
         myExecutor.execute(new GpsPathUpdater());
     }
 
+    public void updateAllTopicStatistics() {
+        myExecutor.execute(new TopicStatisticsUpdater());
+    }
+
     public void updateAllVehicleNames() {
         myExecutor.execute(new VehicleNameUpdater());
     }
@@ -341,6 +374,34 @@ public class BagScanner extends StatusProvider implements BagStorageChangeListen
         myExecutor.execute(new TagUpdater());
     }
 
+    /**
+     * Generates simplified paths for every bag that has a GPS path but no
+     * simplified paths.  This only reads positions from the database, not
+     * the bag files.
+     */
+    public void backfillSimplifiedPaths() {
+        myExecutor.execute(() -> {
+            List<Long> bagIds = myBagService.getBagIdsWithoutSimplifiedPaths();
+            if (bagIds.isEmpty()) {
+                return;
+            }
+            String updateMsg = "Generating simplified GPS paths for " + bagIds.size() + " bag files.";
+            myLogger.info(updateMsg);
+            reportStatus(Status.State.WORKING, updateMsg);
+            for (Long bagId : bagIds) {
+                try {
+                    myBagService.updateSimplifiedPathsForBagId(bagId);
+                }
+                catch (RuntimeException e) {
+                    myLogger.warn("Unable to generate simplified GPS paths for bag " + bagId, e);
+                }
+            }
+            String doneMsg = "Done generating simplified GPS paths.";
+            reportStatus(Status.State.IDLE, doneMsg);
+            myLogger.info(doneMsg);
+        });
+    }
+
     public void scanAllStorages(boolean forceUpdate) {
         myLogger.info("Scanning all storage backends: " + Joiner.on(',').join(myBagStorages.keySet()));
         for (BagStorage storage : myBagStorages.values()) {
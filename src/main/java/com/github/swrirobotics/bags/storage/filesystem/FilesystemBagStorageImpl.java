@@ -31,7 +31,9 @@
 package com.github.swrirobotics.bags.storage.filesystem;
 
 import com.esotericsoftware.yamlbeans.YamlWriter;
+import com.github.swrirobotics.bags.BagChangeEvent;
 import com.github.swrirobotics.bags.BagService;
+import com.github.swrirobotics.bags.DirectoryTree;
 import com.github.swrirobotics.bags.storage.*;
 import com.github.swrirobotics.bags.storage.filesystem.watcher.DefaultRecursiveWatcher;
 import com.github.swrirobotics.bags.storage.filesystem.watcher.RecursiveWatcher;
@@ -39,6 +41,7 @@ import com.github.swrirobotics.persistence.Bag;
 import com.github.swrirobotics.persistence.BagRepository;
 import com.github.swrirobotics.status.Status;
 import com.github.swrirobotics.status.StatusProvider;
+import com.github.swrirobotics.support.web.BagSummary;
 import com.github.swrirobotics.support.web.BagTreeNode;
 import com.google.common.collect.Sets;
 import org.apache.commons.io.FileUtils;
@@ -119,6 +122,7 @@ public class FilesystemBagStorageImpl extends StatusProvider implements BagStora
         myLogger.info("Storage[" + getStorageId() + "]: updateBagExistence");
         Stream<Bag> bags = bagRepository.findByStorageId(myConfig.storageId);
 
+        List<Long> changedIds = new ArrayList<>();
         bags.forEach(bag -> {
             String fullPath = bag.getPath() + bag.getFilename();
             boolean isMissing = !bagExists(fullPath);
@@ -127,8 +131,12 @@ public class FilesystemBagStorageImpl extends StatusProvider implements BagStora
                 myLogger.info("Bag at " + fullPath + " has " + (isMissing ? "gone missing." : "been found!"));
                 bag.setMissing(isMissing);
                 bagRepository.save(bag);
+                changedIds.add(bag.getId());
             }
         });
+        if (!changedIds.isEmpty()) {
+            bagService.publishBagChange(new BagChangeEvent(BagChangeEvent.Type.MISSING, changedIds));
+        }
     }
 
     @Override
@@ -207,46 +215,37 @@ public class FilesystemBagStorageImpl extends StatusProvider implements BagStora
             bagDir = basePath;
         }
 
-        java.nio.file.Path path = FileSystems.getDefault().getPath(bagDir);
-        String parentId = path.toFile().getCanonicalPath() + "/";
+        java.nio.file.Path path = FileSystems.getDefault().getPath(bagDir).toAbsolutePath().normalize();
+        String parentId = path.toString();
+        if (!parentId.endsWith("/")) {
+            parentId += "/";
+        }
 
         if (!parentId.startsWith(basePath)) {
             // Don't allow somebody to list paths outside of the bag path.
             return nodes;
         }
 
-        // First, add any child directories to the node list.
-        try (DirectoryStream<java.nio.file.Path> dirStream = Files.newDirectoryStream(path)) {
-            for (java.nio.file.Path child : dirStream) {
-                File childFile = child.toFile();
-                if (!childFile.isDirectory()) {
-                    continue;
-                }
-                String filename = childFile.getName();
-                Pattern p = Pattern.compile("@.*");
-                Matcher m = p.matcher(filename);
-                if(m.find()){
-                    continue;
-                }
-                BagTreeNode childNode = new BagTreeNode();
-                childNode.filename = filename;
-                childNode.parentId = parentId;
-                childNode.leaf = false;
-                childNode.storageId = getStorageId();
-                childNode.id = parentId + filename;
-                java.nio.file.Path subdirPath = FileSystems.getDefault().getPath(childNode.id);
-                try (DirectoryStream<java.nio.file.Path> subdirStream = Files.newDirectoryStream(subdirPath)) {
-                    Iterator<Path> iter = subdirStream.iterator();
-                    childNode.expanded = !iter.hasNext();
-                }
-                childNode.bagCount = bagRepository.countByPathStartsWithAndStorageId(childNode.id, getStorageId());
-                nodes.add(childNode);
-            }
+        // First, add any child directories that contain bags to the node list.
+        // These come from the BagService's directory tree, so the directory
+        // doesn't have to be listed on disk; directories that are skipped
+        // while scanning never contain any bags, so they aren't in it.
+        for (DirectoryTree.Directory directory : bagService.getSubdirectories(parentId, getStorageId())) {
+            String filename = directory.getName();
+            BagTreeNode childNode = new BagTreeNode();
+            childNode.filename = filename;
+            childNode.parentId = parentId;
+            childNode.leaf = false;
+            childNode.storageId = getStorageId();
+            childNode.id = parentId + filename;
+            childNode.expanded = false;
+            childNode.bagCount = directory.getBagCount();
+            nodes.add(childNode);
         }
 
         // Next, get all the bags in that directory and add them.
-        List<Bag> bags = bagRepository.findByPathAndStorageId(parentId, getStorageId());
-        for (Bag bag : bags) {
+        List<BagSummary> bags = bagRepository.findSummariesByPathAndStorageId(parentId, getStorageId());
+        for (BagSummary bag : bags) {
             BagTreeNode childNode = new BagTreeNode();
             childNode.filename = bag.getFilename();
             childNode.parentId = parentId;
@@ -30,17 +30,19 @@
 
 package com.github.swrirobotics.bags.storage.s3;
 
+import com.github.swrirobotics.bags.BagChangeEvent;
 import com.github.swrirobotics.bags.BagService;
+import com.github.swrirobotics.bags.DirectoryTree;
 import com.github.swrirobotics.bags.storage.*;
 import com.github.swrirobotics.config.ConfigService;
 import com.github.swrirobotics.persistence.Bag;
 import com.github.swrirobotics.persistence.BagRepository;
 import com.github.swrirobotics.status.Status;
 import com.github.swrirobotics.status.StatusProvider;
+import com.github.swrirobotics.support.web.BagSummary;
 import com.github.swrirobotics.support.web.BagTreeNode;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
 import com.google.common.base.Supplier;
 import org.apache.commons.lang3.StringUtils;
 import org.hibernate.exception.ConstraintViolationException;
@@ -125,6 +127,7 @@ public class S3BagStorageImpl extends StatusProvider implements BagStorage {
         myLogger.info(myConfig.storageId + ": updateBagExistence");
         Stream<Bag> bags = bagRepository.findByStorageId(myConfig.storageId);
 
+        List<Long> changedIds = new ArrayList<>();
         bags.forEach(bag -> {
             String fullPath = normalizePath(bag.getPath() + bag.getFilename());
             boolean isMissing = !bagExists(fullPath);
@@ -133,8 +136,12 @@ public class S3BagStorageImpl extends StatusProvider implements BagStorage {
                 myLogger.info("Bag at " + fullPath + " has " + (isMissing ? "gone missing." : "been found!"));
                 bag.setMissing(isMissing);
                 bagRepository.save(bag);
+                changedIds.add(bag.getId());
             }
         });
+        if (!changedIds.isEmpty()) {
+            bagService.publishBagChange(new BagChangeEvent(BagChangeEvent.Type.MISSING, changedIds));
+        }
     }
 
     public boolean updateKeyCache(Supplier<Stream<S3Object>> response) {
@@ -267,37 +274,28 @@ public class S3BagStorageImpl extends StatusProvider implements BagStorage {
         myLogger.trace(getStorageId() + ": getTreeNodes: " + targetPath);
         List<BagTreeNode> nodes = new ArrayList<>();
 
-        var response = listObjects(targetPath);
         // The ExtJS tree structure expects a branch node for every directory and a leaf node for every bag.
-        // This is a little inconvenient here because S3 does not have any concept of directories; it just returns
-        // a list of objects and the "key" is the full path to the file.  "Empty" directories can also be indicated
-        // by a key that ends in ".bzEmpty".  Also, this function should only return nodes directly inside targetPath,
-        // not any nodes below that.
-        // This will attempt to filter that list down to a set of unique directories in targetPath.
-        Set<String> paths = response.get().map(obj -> Splitter.on('/')
-            .splitToList(obj.key().replaceFirst(targetPath + "/", "")).get(0))
-            .filter(obj -> !obj.isEmpty() && !obj.endsWith(".bzEmpty") && !obj.endsWith(".bag"))
-            .collect(Collectors.toSet());
-
+        // S3 does not have any concept of directories, so rather than listing every object under targetPath and
+        // picking out the unique directories directly inside it, this uses the BagService's directory tree, which
+        // already knows every directory that contains bags.
         String parentId = normalizePath(targetPath.equals("root") ? "" : targetPath);
-        for (String path : paths) {
-            myLogger.debug("Adding branch node: " + path);
+        for (DirectoryTree.Directory directory : bagService.getSubdirectories(parentId, getStorageId())) {
+            myLogger.debug("Adding branch node: " + directory.getName());
 
             BagTreeNode childNode = new BagTreeNode();
-            childNode.filename = path;
+            childNode.filename = directory.getName();
             childNode.parentId = parentId;
             childNode.leaf = false;
             childNode.storageId = getStorageId();
-            childNode.id = normalizePath(Joiner.on('/').join(parentId, path));
+            childNode.id = normalizePath(Joiner.on('/').join(parentId, directory.getName()));
             childNode.expanded = false;
-            myLogger.debug("Counting bags in path: " + childNode.id);
-            childNode.bagCount = bagRepository.countByPathStartsWithAndStorageId(childNode.id + "/", getStorageId());
+            childNode.bagCount = directory.getBagCount();
             nodes.add(childNode);
         }
 
-        List<Bag> bags = bagRepository.findByPathAndStorageId(parentId + "/", getStorageId());
+        List<BagSummary> bags = bagRepository.findSummariesByPathAndStorageId(parentId + "/", getStorageId());
         myLogger.debug("Found " + bags.size() + " bags in path: " + parentId);
-        for (Bag bag : bags) {
+        for (BagSummary bag : bags) {
             myLogger.debug("Adding leaf node: " + bag.getFilename());
             BagTreeNode childNode = new BagTreeNode();
             childNode.filename = bag.getFilename();
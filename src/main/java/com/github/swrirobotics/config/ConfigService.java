@@ -120,6 +120,30 @@ public class ConfigService {
         return config;
     }
 
+    /**
+     * Gets a directory that can be used to cache generated data.  The directory
+     * is created if it does not already exist.
+     * @param name The name of the cache; each cache gets its own subdirectory.
+     * @return The cache directory.
+     * @throws IOException If the directory could not be created.
+     */
+    public File getCacheDirectory(String name) throws IOException {
+        String cachePath = getConfiguration().getCachePath();
+        File cacheDir;
+        if (cachePath == null || cachePath.isEmpty()) {
+            cacheDir = new File(new File(new URL(filename).getFile()).getParentFile(), "cache");
+        }
+        else {
+            cacheDir = new File(cachePath);
+        }
+
+        File dir = new File(cacheDir, name);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create cache directory: " + dir);
+        }
+        return dir;
+    }
+
     @Secured("ROLE_ADMIN")
     public void setConfiguration(Configuration config) throws IOException {
         URL fileUrl;
@@ -35,6 +35,7 @@ import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import org.h2gis.functions.factory.H2GISDBFactory;
 import org.hibernate.cfg.Environment;
+import org.hibernate.jpa.boot.internal.EntityManagerFactoryBuilderImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -118,6 +119,9 @@ public class JpaConfig implements TransactionManagementConfigurer {
         jpaProperties.put(Environment.ORDER_INSERTS, "true");
         jpaProperties.put(Environment.ORDER_UPDATES, "true");
         jpaProperties.put(Environment.USE_NEW_ID_GENERATOR_MAPPINGS, "true");
+        // Used for keyset paging of search results
+        jpaProperties.put(EntityManagerFactoryBuilderImpl.METADATA_BUILDER_CONTRIBUTOR,
+                          new RowValueFunctionContributor());
         entityManagerFactoryBean.setJpaProperties(jpaProperties);
 
         return entityManagerFactoryBean;
@@ -173,6 +173,7 @@ class SecurityConfig extends WebSecurityConfigurerAdapter {
                     .authorizeRequests()
                         .antMatchers("/",
                                      "/bags/**",
+                                     "/tiles/**",
                                      "/scripts/**",
                                      "/register/**",
                                      "/status/**").permitAll()
@@ -0,0 +1,69 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.persistence;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface BagDirectoryCountRepository extends JpaRepository<BagDirectoryCount, BagDirectoryCountKey> {
+    // Counts are modified with bulk updates, which bypass any entities that
+    // have already been loaded, so they are always read as plain values.
+    @Query("SELECT c.bagCount FROM BagDirectoryCount c WHERE c.storageId = ?1 AND c.path = ?2")
+    Long findBagCount(String storageId, String path);
+
+    @Query("SELECT c.path FROM BagDirectoryCount c WHERE c.storageId = ?1 AND c.path IN ?2")
+    List<String> findExistingPaths(String storageId, Collection<String> paths);
+
+    /**
+     * Adds to the counts of a set of directories that already exist.
+     * @return The number of directories that were updated.
+     */
+    @Modifying
+    @Query("UPDATE BagDirectoryCount c SET c.bagCount = c.bagCount + ?3 WHERE c.storageId = ?1 AND c.path IN ?2")
+    int addToCounts(String storageId, Collection<String> paths, long delta);
+
+    @Modifying
+    @Query("DELETE FROM BagDirectoryCount c WHERE c.storageId NOT IN ?1")
+    void deleteByStorageIdNotIn(Collection<String> storageIds);
+
+    /**
+     * Adds up the counts for every directory across all storage backends.
+     * @return A list of (path, count) pairs.
+     */
+    @Query("SELECT c.path, SUM(c.bagCount) FROM BagDirectoryCount c GROUP BY c.path")
+    List<Object[]> sumCountsByPath();
+}
@@ -0,0 +1,115 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.persistence;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.locationtech.jts.geom.LineString;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.sql.Timestamp;
+
+/**
+ * A simplified version of a bag's GPS path.  Each bag that has a path will
+ * have one of these for every level of detail; higher levels are simplified
+ * with a larger tolerance and so have fewer points.  Level 0 is the full path,
+ * which is stored in {@link BagPosition} and is not duplicated here.
+ */
+@Entity
+@Table(name="bag_paths")
+@IdClass(BagPathKey.class)
+public class BagPath implements Serializable {
+    @Id
+    private Long bagId;
+
+    @Id
+    private Integer detailLevel;
+
+    @Column(nullable = false)
+    private Double tolerance;
+
+    @Column(nullable = false)
+    private Integer pointCount;
+
+    private Timestamp startTime;
+
+    @JsonIgnore
+    private LineString path;
+
+    public Long getBagId() {
+        return bagId;
+    }
+
+    public void setBagId(Long bagId) {
+        this.bagId = bagId;
+    }
+
+    public Integer getDetailLevel() {
+        return detailLevel;
+    }
+
+    public void setDetailLevel(Integer detailLevel) {
+        this.detailLevel = detailLevel;
+    }
+
+    public Double getTolerance() {
+        return tolerance;
+    }
+
+    public void setTolerance(Double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public Integer getPointCount() {
+        return pointCount;
+    }
+
+    public void setPointCount(Integer pointCount) {
+        this.pointCount = pointCount;
+    }
+
+    public Timestamp getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(Timestamp startTime) {
+        this.startTime = startTime;
+    }
+
+    public LineString getPath() {
+        return path;
+    }
+
+    public void setPath(LineString path) {
+        this.path = path;
+    }
+}
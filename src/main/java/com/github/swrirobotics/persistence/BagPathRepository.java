@@ -0,0 +1,63 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.persistence;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface BagPathRepository extends JpaRepository<BagPath, BagPathKey> {
+    List<BagPath> findByBagIdInAndDetailLevelOrderByStartTimeAsc(Collection<Long> bagIds, Integer detailLevel);
+
+    long countByBagId(Long bagId);
+
+    @Query("SELECT DISTINCT p.bagId FROM BagPath p WHERE p.bagId IN ?1")
+    List<Long> findBagIdsByBagIdIn(Collection<Long> bagIds);
+
+    @Modifying
+    @Query("DELETE FROM BagPath p WHERE p.bagId = ?1")
+    void deleteByBagId(Long bagId);
+
+    /**
+     * Sums up the number of points in the paths at every level of detail for
+     * a set of bags.
+     * @param bagIds The bags to count points for.
+     * @return A list of (detailLevel, pointCount) pairs.
+     */
+    @Query("SELECT p.detailLevel, SUM(p.pointCount) FROM BagPath p WHERE p.bagId IN ?1 GROUP BY p.detailLevel")
+    List<Object[]> countPointsByDetailLevel(Collection<Long> bagIds);
+}
@@ -32,6 +32,7 @@ package com.github.swrirobotics.persistence;
 
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.util.Collection;
@@ -42,4 +43,22 @@ public interface BagPositionRepository extends JpaRepository<BagPosition, Long>,
     List<BagPosition> findByBagIdOrderByPositionTimeAsc(Long bagId);
 
     List<BagPosition> findByBagIdInOrderByPositionTimeAsc(Collection<Long> bags);
+
+    long countByBagIdIn(Collection<Long> bags);
+
+    /**
+     * Counts the positions of each of a set of bags.
+     * @return A list of (bagId, positionCount) pairs for the bags that have any.
+     */
+    @Query("SELECT p.bag.id, COUNT(p) FROM BagPosition p WHERE p.bag.id IN ?1 GROUP BY p.bag.id")
+    List<Object[]> countByBagIdInGroupByBagId(Collection<Long> bags);
+
+    /**
+     * Finds the bags whose GPS paths are long enough to be simplified but
+     * don't have any simplified paths, such as bags that were added before
+     * simplified paths were stored.
+     */
+    @Query("SELECT p.bag.id FROM BagPosition p WHERE p.bag.id NOT IN (SELECT bp.bagId FROM BagPath bp) " +
+           "GROUP BY p.bag.id HAVING COUNT(p) > 1")
+    List<Long> findBagIdsWithoutSimplifiedPaths();
 }
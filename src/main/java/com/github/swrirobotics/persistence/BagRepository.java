@@ -30,23 +30,50 @@
 
 package com.github.swrirobotics.persistence;
 
+import com.github.swrirobotics.support.web.BagSummary;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.stream.Stream;
 
 @Repository
 public interface BagRepository extends JpaRepository<Bag, Long>, JpaSpecificationExecutor<Bag> {
-    Long countByPathStartsWithAndStorageId(String path, String storageId);
+    // Reads the columns of com.github.swrirobotics.support.web.BagSummary without
+    // loading Bag entities, which would also load all of their topics and tags.
+    String SUMMARY_SELECT = "select new com.github.swrirobotics.support.web.BagSummary(" +
+        "b.id, b.filename, b.path, b.storageId, b.version, b.duration, b.startTime, b.endTime, " +
+        "b.size, b.messageCount, b.indexed, b.compressed, b.createdOn, b.updatedOn, b.missing, " +
+        "b.hasPath, b.vehicle, b.description, b.md5sum, b.location, b.latitudeDeg, b.longitudeDeg) " +
+        "from Bag b ";
+
     List<Bag> findByPathAndFilename(String path, String filename);
     List<Bag> findByPathAndStorageId(String path, String storageId);
+    @Query(SUMMARY_SELECT + "where b.path = ?1 and b.storageId = ?2")
+    List<BagSummary> findSummariesByPathAndStorageId(String path, String storageId);
+    @Query(SUMMARY_SELECT + "where b.id in ?1")
+    List<BagSummary> findSummariesByIdIn(Collection<Long> ids);
     List<Bag> findByMissing(boolean isMissing);
     Stream<Bag> findByStorageId(String storageId);
     Stream<Bag> findByStorageIdAndMissing(String storageId, boolean isMissing);
     Bag findByMd5sum(String md5sum);
     @Query("select distinct b.path from Bag b where b.storageId = ?1")
     List<String> getDisinctPathsByStorageId(String storageId);
+    @Query("select distinct b.path from Bag b")
+    List<String> findDistinctPaths();
+    // These count the bags directly in every directory that contains any
+    // and return (storageId, path, count) or (path, count) rows.
+    @Query("select b.storageId, b.path, count(b) from Bag b group by b.storageId, b.path")
+    List<Object[]> countByStorageIdAndPath();
+    @Query("select b.storageId, b.path, count(b) from Bag b where b.missing = true " +
+           "group by b.storageId, b.path")
+    List<Object[]> countMissingByStorageIdAndPath();
+    @Query("select b.storageId, b.path, count(b) from Bag b where b.storageId not in ?1 or b.storageId is null " +
+           "group by b.storageId, b.path")
+    List<Object[]> countUnownedByStorageIdAndPath(Collection<String> storageIds);
+    @Query("select b.path, count(b) from Bag b where lower(b.filename) like ?1 group by b.path")
+    List<Object[]> countByPathAndFilenameLike(String filenamePattern);
 }
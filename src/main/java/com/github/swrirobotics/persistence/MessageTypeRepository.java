@@ -31,10 +31,17 @@
 package com.github.swrirobotics.persistence;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
+import java.util.List;
+
 @Repository
 @Transactional(readOnly = true)
 public interface MessageTypeRepository extends JpaRepository<MessageType, MessageTypeKey> {
+    // Returns (bagId, MessageType) rows so that the bags themselves aren't loaded
+    @Query("select b.id, mt from Bag b join b.messageTypes mt where b.id in ?1")
+    List<Object[]> findWithBagIdByBagIdIn(Collection<Long> bagIds);
 }
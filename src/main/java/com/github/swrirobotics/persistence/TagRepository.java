@@ -31,10 +31,12 @@
 package com.github.swrirobotics.persistence;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 @Repository
@@ -45,4 +47,7 @@ public interface TagRepository extends JpaRepository<Tag, TagKey> {
     Set<Tag> findByTag(String tag);
     Set<Tag> findByBagId(Long bagId);
     void deleteByBagIdAndTagIn(Long bagId, Collection<String> tags);
+    // Returns (bagId, tag, value) rows so that the tags' bags aren't loaded
+    @Query("select t.bagId, t.tag, t.value from Tag t where t.bagId in ?1")
+    List<Object[]> findTagValuesByBagIdIn(Collection<Long> bagIds);
 }
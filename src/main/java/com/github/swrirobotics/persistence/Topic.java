@@ -36,6 +36,7 @@ import com.fasterxml.jackson.annotation.ObjectIdGenerators;
 
 import javax.persistence.*;
 import java.io.Serializable;
+import java.sql.Timestamp;
 
 @Entity
 @Table(name="topics", indexes = {@Index(columnList = "topicName")})
@@ -50,9 +51,11 @@ public class Topic implements Serializable {
     @Id
     private Long bagId;
 
+    // Lazy so that topics can be loaded for a list of bags without also
+    // loading the bags and all of their other collections.
     @MapsId("bagId")
     @JoinColumn(name = "bagId")
-    @ManyToOne(optional = false)
+    @ManyToOne(optional = false, fetch = FetchType.LAZY)
     private Bag bag;
 
     @Column(nullable = false)
@@ -63,6 +66,16 @@ public class Topic implements Serializable {
     private MessageType type;
     @Column(nullable = false)
     private Long connectionCount;
+    // The following statistics are computed from every message on the topic when
+    // the bag is ingested.  Times and frequencies come from message header stamps,
+    // so they will be null for topics whose messages have no std_msgs/Header.
+    private Timestamp startTime;
+    private Timestamp endTime;
+    private Double meanFrequency;
+    private Double minFrequency;
+    private Double maxFrequency;
+    private Long totalBytes;
+    private Long maxMessageBytes;
 
     public Long getBagId() {
         return bagId;
@@ -112,4 +125,60 @@ public class Topic implements Serializable {
     public void setConnectionCount(Long connectionCount) {
         this.connectionCount = connectionCount;
     }
+
+    public Timestamp getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(Timestamp startTime) {
+        this.startTime = startTime;
+    }
+
+    public Timestamp getEndTime() {
+        return endTime;
+    }
+
+    public void setEndTime(Timestamp endTime) {
+        this.endTime = endTime;
+    }
+
+    public Double getMeanFrequency() {
+        return meanFrequency;
+    }
+
+    public void setMeanFrequency(Double meanFrequency) {
+        this.meanFrequency = meanFrequency;
+    }
+
+    public Double getMinFrequency() {
+        return minFrequency;
+    }
+
+    public void setMinFrequency(Double minFrequency) {
+        this.minFrequency = minFrequency;
+    }
+
+    public Double getMaxFrequency() {
+        return maxFrequency;
+    }
+
+    public void setMaxFrequency(Double maxFrequency) {
+        this.maxFrequency = maxFrequency;
+    }
+
+    public Long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public void setTotalBytes(Long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    public Long getMaxMessageBytes() {
+        return maxMessageBytes;
+    }
+
+    public void setMaxMessageBytes(Long maxMessageBytes) {
+        this.maxMessageBytes = maxMessageBytes;
+    }
 }
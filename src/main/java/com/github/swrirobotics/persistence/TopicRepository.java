@@ -31,13 +31,19 @@
 package com.github.swrirobotics.persistence;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
 @Transactional(readOnly = true)
 public interface TopicRepository extends JpaRepository<Topic, TopicKey> {
     List<Topic> findByTopicNameAndBagId(String topicName, Long bagId);
+    List<Topic> findByBagId(Long bagId);
+    // Loads the topics of several bags, along with their message types, in one query
+    @Query("select t from Topic t join fetch t.type where t.bagId in ?1")
+    List<Topic> findWithTypeByBagIdIn(Collection<Long> bagIds);
 }
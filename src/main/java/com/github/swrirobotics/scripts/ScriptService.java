@@ -32,6 +32,7 @@ package com.github.swrirobotics.scripts;
 
 import com.amihaiemil.docker.Docker;
 import com.amihaiemil.docker.TcpDocker;
+import com.github.swrirobotics.bags.BagChangeEvent;
 import com.github.swrirobotics.bags.NonexistentBagException;
 import com.github.swrirobotics.config.ConfigService;
 import com.github.swrirobotics.persistence.*;
@@ -249,6 +250,8 @@ public class ScriptService extends StatusProvider {
             JsonObject object = reader.readObject();
 
             boolean saveBags = false;
+            // True if anything other than tags changed
+            boolean updatedBags = false;
             List<Bag> bags = bagRepository.findAllById(bagIds);
 
             // Add new tags
@@ -313,6 +316,7 @@ public class ScriptService extends StatusProvider {
                 }
                 else {
                     saveBags = true;
+                    updatedBags = true;
                     for (Bag bag : bags) {
                         bag.setCoordinate(myGeometryFactory.createPoint(new Coordinate(longitude, latitude)));
                     }
@@ -323,6 +327,7 @@ public class ScriptService extends StatusProvider {
             String description = object.getString("setDescription", null);
             if (description != null) {
                 saveBags = true;
+                updatedBags = true;
                 for (Bag bag : bags) {
                     bag.setDescription(description);
                 }
@@ -332,6 +337,7 @@ public class ScriptService extends StatusProvider {
             String location = object.getString("setLocation", null);
             if (location != null) {
                 saveBags = true;
+                updatedBags = true;
                 for (Bag bag : bags) {
                     bag.setLocation(location);
                 }
@@ -341,6 +347,7 @@ public class ScriptService extends StatusProvider {
             String vehicle = object.getString("setVehicle", null);
             if (vehicle != null) {
                 saveBags = true;
+                updatedBags = true;
                 for (Bag bag : bags) {
                     bag.setVehicle(vehicle);
                 }
@@ -348,6 +355,8 @@ public class ScriptService extends StatusProvider {
 
             if (saveBags) {
                 bagRepository.saveAll(bags);
+                myAC.publishEvent(new BagChangeEvent(
+                    updatedBags ? BagChangeEvent.Type.UPDATED : BagChangeEvent.Type.TAGGED, bagIds));
             }
         }
         catch (JsonException | IllegalStateException e) {
@@ -0,0 +1,110 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.support.web;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The number of bags that match a search for each of the values of the
+ * fields that searches are commonly filtered by.  Each list is sorted
+ * from the most common value to the least.
+ */
+public class BagFacets {
+    public static class FacetCount {
+        public final String value;
+        public final long count;
+
+        public FacetCount(String value, long count) {
+            this.value = value;
+            this.count = count;
+        }
+    }
+
+    public static class TagFacetCount {
+        public final String tag;
+        public final String value;
+        public final long count;
+
+        public TagFacetCount(String tag, String value, long count) {
+            this.tag = tag;
+            this.value = value;
+            this.count = count;
+        }
+    }
+
+    private List<FacetCount> vehicles = new ArrayList<>();
+    private List<FacetCount> locations = new ArrayList<>();
+    private List<TagFacetCount> tags = new ArrayList<>();
+    private List<FacetCount> messageTypes = new ArrayList<>();
+    private List<FacetCount> storageIds = new ArrayList<>();
+
+    public List<FacetCount> getVehicles() {
+        return vehicles;
+    }
+
+    public void setVehicles(List<FacetCount> vehicles) {
+        this.vehicles = vehicles;
+    }
+
+    public List<FacetCount> getLocations() {
+        return locations;
+    }
+
+    public void setLocations(List<FacetCount> locations) {
+        this.locations = locations;
+    }
+
+    public List<TagFacetCount> getTags() {
+        return tags;
+    }
+
+    public void setTags(List<TagFacetCount> tags) {
+        this.tags = tags;
+    }
+
+    public List<FacetCount> getMessageTypes() {
+        return messageTypes;
+    }
+
+    public void setMessageTypes(List<FacetCount> messageTypes) {
+        this.messageTypes = messageTypes;
+    }
+
+    public List<FacetCount> getStorageIds() {
+        return storageIds;
+    }
+
+    public void setStorageIds(List<FacetCount> storageIds) {
+        this.storageIds = storageIds;
+    }
+}
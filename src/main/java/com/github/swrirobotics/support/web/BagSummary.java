@@ -0,0 +1,239 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.support.web;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.github.swrirobotics.persistence.Bag;
+import com.github.swrirobotics.persistence.MessageType;
+import com.github.swrirobotics.persistence.Tag;
+import com.github.swrirobotics.persistence.Topic;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The columns of a bag that are displayed in lists of search results and in
+ * the folder view.  These are read straight from the bags table, so unlike
+ * loading {@link Bag} entities, loading a page of them doesn't also load
+ * every bag's topics and message types.  The full details of a bag can be
+ * retrieved from /bags/get.
+ */
+public class BagSummary {
+    private final Long id;
+    private final String filename;
+    private final String path;
+    private final String storageId;
+    private final String version;
+    private final Double duration;
+    private final Timestamp startTime;
+    private final Timestamp endTime;
+    private final Long size;
+    private final Long messageCount;
+    private final Boolean indexed;
+    private final Boolean compressed;
+    private final Timestamp createdOn;
+    private final Timestamp updatedOn;
+    private final Boolean missing;
+    private final Boolean hasPath;
+    private final String vehicle;
+    private final String description;
+    private final String md5sum;
+    private final String location;
+    private final Double latitudeDeg;
+    private final Double longitudeDeg;
+    private List<Tag> tags = new ArrayList<>();
+    // Only filled in if a client asks for them
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @JsonIgnoreProperties("bag")
+    private Set<Topic> topics = null;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Set<MessageType> messageTypes = null;
+
+    /**
+     * Used by constructor expressions in JPQL queries; see
+     * {@link com.github.swrirobotics.persistence.BagRepository#SUMMARY_SELECT}.
+     */
+    public BagSummary(Long id, String filename, String path, String storageId, String version,
+                      Double duration, Timestamp startTime, Timestamp endTime, Long size,
+                      Long messageCount, Boolean indexed, Boolean compressed, Timestamp createdOn,
+                      Timestamp updatedOn, Boolean missing, Boolean hasPath, String vehicle,
+                      String description, String md5sum, String location, Double latitudeDeg,
+                      Double longitudeDeg) {
+        this.id = id;
+        this.filename = filename;
+        this.path = path;
+        this.storageId = storageId;
+        this.version = version;
+        this.duration = duration;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.size = size;
+        this.messageCount = messageCount;
+        this.indexed = indexed;
+        this.compressed = compressed;
+        this.createdOn = createdOn;
+        this.updatedOn = updatedOn;
+        this.missing = missing;
+        this.hasPath = hasPath != null && hasPath;
+        this.vehicle = vehicle;
+        this.description = description;
+        this.md5sum = md5sum;
+        this.location = location;
+        this.latitudeDeg = latitudeDeg;
+        this.longitudeDeg = longitudeDeg;
+    }
+
+    public BagSummary(Bag bag) {
+        this(bag.getId(), bag.getFilename(), bag.getPath(), bag.getStorageId(), bag.getVersion(),
+             bag.getDuration(), bag.getStartTime(), bag.getEndTime(), bag.getSize(),
+             bag.getMessageCount(), bag.getIndexed(), bag.getCompressed(), bag.getCreatedOn(),
+             bag.getUpdatedOn(), bag.getMissing(), bag.getHasPath(), bag.getVehicle(),
+             bag.getDescription(), bag.getMd5sum(), bag.getLocation(), bag.getLatitudeDeg(),
+             bag.getLongitudeDeg());
+        tags = new ArrayList<>(bag.getTags());
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getStorageId() {
+        return storageId;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public Double getDuration() {
+        return duration;
+    }
+
+    public Timestamp getStartTime() {
+        return startTime;
+    }
+
+    public Timestamp getEndTime() {
+        return endTime;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public Long getMessageCount() {
+        return messageCount;
+    }
+
+    public Boolean getIndexed() {
+        return indexed;
+    }
+
+    public Boolean getCompressed() {
+        return compressed;
+    }
+
+    public Timestamp getCreatedOn() {
+        return createdOn;
+    }
+
+    public Timestamp getUpdatedOn() {
+        return updatedOn;
+    }
+
+    public Boolean getMissing() {
+        return missing;
+    }
+
+    public Boolean getHasPath() {
+        return hasPath;
+    }
+
+    public String getVehicle() {
+        return vehicle;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getMd5sum() {
+        return md5sum;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public Double getLatitudeDeg() {
+        return latitudeDeg;
+    }
+
+    public Double getLongitudeDeg() {
+        return longitudeDeg;
+    }
+
+    public List<Tag> getTags() {
+        return tags;
+    }
+
+    public void setTags(List<Tag> tags) {
+        this.tags = tags;
+    }
+
+    public Set<Topic> getTopics() {
+        return topics;
+    }
+
+    public void setTopics(Set<Topic> topics) {
+        this.topics = topics;
+    }
+
+    public Set<MessageType> getMessageTypes() {
+        return messageTypes;
+    }
+
+    public void setMessageTypes(Set<MessageType> messageTypes) {
+        this.messageTypes = messageTypes;
+    }
+}
@@ -0,0 +1,98 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.support.web;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+public class BagSummaryList {
+    private List<BagSummary> bags = null;
+    private long totalCount = 0;
+    // True if totalCount is only a lower bound on the number of results
+    private boolean totalCountApproximate = false;
+    // Only set if the total count is approximate; identifies the updates
+    // published when the exact count is known
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String countId = null;
+    // Only set for keyset-paginated searches that have more results
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String nextCursor = null;
+
+    public BagSummaryList() {
+    }
+
+    public BagSummaryList(final List<BagSummary> bags, long totalCount) {
+        this.bags = bags;
+        this.totalCount = totalCount;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public void setTotalCount(long totalCount) {
+        this.totalCount = totalCount;
+    }
+
+    public boolean isTotalCountApproximate() {
+        return totalCountApproximate;
+    }
+
+    public void setTotalCountApproximate(boolean totalCountApproximate) {
+        this.totalCountApproximate = totalCountApproximate;
+    }
+
+    public String getCountId() {
+        return countId;
+    }
+
+    public void setCountId(String countId) {
+        this.countId = countId;
+    }
+
+    public List<BagSummary> getBags() {
+        return bags;
+    }
+
+    public void setBags(List<BagSummary> bags) {
+        this.bags = bags;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+}
@@ -30,8 +30,6 @@
 
 package com.github.swrirobotics.support.web;
 
-import com.github.swrirobotics.persistence.Bag;
-
 public class BagTreeNode {
     public String id;
     public String parentId;
@@ -40,6 +38,6 @@ public class BagTreeNode {
     public Boolean expanded = false;
     public String filename;
     public Boolean leaf = false;
-    public Bag bag = null;
+    public BagSummary bag = null;
     public String storageId = null;
 }
@@ -64,6 +64,24 @@ public class Configuration implements Serializable {
     private String ldapSearchBase = "";
     private String ldapServer = "";
     private String ldapUserPattern = "";
+    // Directory for files generated from bags that can be safely deleted, such
+    // as map tiles; if empty, a directory next to the settings file is used.
+    private String cachePath = "";
+    // Maximum size of the on-disk cache of frames extracted from image topics.
+    private Integer frameCacheSizeMb = 1024;
+    // Maximum size of the on-disk cache of videos transcoded from image topics.
+    private Integer videoCacheSizeMb = 4096;
+    // Maximum size of the on-disk cache of rendered map tiles.
+    private Integer tileCacheSizeMb = 512;
+    // Limits on how many videos can be encoded at once and how many more can
+    // wait for an encoder before new requests are turned away.
+    private Integer maxConcurrentEncodes = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+    private Integer maxQueuedEncodes = 8;
+    // Named sets of ffmpeg settings that clients can choose between, and the
+    // one to use when they don't; if that's blank, one is picked based on the
+    // size of the images and how busy the server is.
+    private List<EncoderProfile> encoderProfiles = EncoderProfile.getDefaults();
+    private String defaultEncoderProfile = "";
 
     // Named "useMapQuest" for legacy support with older configs;
     // MapQuest is actually unsupported now and this will enable/disable
@@ -299,4 +317,68 @@ public class Configuration implements Serializable {
     public void setStorageConfigurations(List<BagStorageConfiguration> storageConfigurations) {
         this.storageConfigurations = storageConfigurations;
     }
+
+    public String getCachePath() {
+        return cachePath;
+    }
+
+    public void setCachePath(String cachePath) {
+        this.cachePath = cachePath;
+    }
+
+    public Integer getFrameCacheSizeMb() {
+        return frameCacheSizeMb;
+    }
+
+    public void setFrameCacheSizeMb(Integer frameCacheSizeMb) {
+        this.frameCacheSizeMb = frameCacheSizeMb;
+    }
+
+    public Integer getVideoCacheSizeMb() {
+        return videoCacheSizeMb;
+    }
+
+    public void setVideoCacheSizeMb(Integer videoCacheSizeMb) {
+        this.videoCacheSizeMb = videoCacheSizeMb;
+    }
+
+    public Integer getTileCacheSizeMb() {
+        return tileCacheSizeMb;
+    }
+
+    public void setTileCacheSizeMb(Integer tileCacheSizeMb) {
+        this.tileCacheSizeMb = tileCacheSizeMb;
+    }
+
+    public Integer getMaxConcurrentEncodes() {
+        return maxConcurrentEncodes;
+    }
+
+    public void setMaxConcurrentEncodes(Integer maxConcurrentEncodes) {
+        this.maxConcurrentEncodes = maxConcurrentEncodes;
+    }
+
+    public Integer getMaxQueuedEncodes() {
+        return maxQueuedEncodes;
+    }
+
+    public void setMaxQueuedEncodes(Integer maxQueuedEncodes) {
+        this.maxQueuedEncodes = maxQueuedEncodes;
+    }
+
+    public List<EncoderProfile> getEncoderProfiles() {
+        return encoderProfiles;
+    }
+
+    public void setEncoderProfiles(List<EncoderProfile> encoderProfiles) {
+        this.encoderProfiles = encoderProfiles;
+    }
+
+    public String getDefaultEncoderProfile() {
+        return defaultEncoderProfile;
+    }
+
+    public void setDefaultEncoderProfile(String defaultEncoderProfile) {
+        this.defaultEncoderProfile = defaultEncoderProfile;
+    }
 }
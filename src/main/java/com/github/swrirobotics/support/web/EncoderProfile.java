@@ -0,0 +1,174 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.support.web;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A named set of ffmpeg settings for encoding videos from image topics.
+ * Profiles trade picture quality against how fast a video can be encoded.
+ */
+public class EncoderProfile implements Serializable {
+    private static final long serialVersionUID = 3402714953316092816L;
+
+    private String name = "";
+    // The ffmpeg encoder; videos are WebM, so this should be libvpx or libvpx-vp9.
+    private String codec = "libvpx";
+    // libvpx's -deadline: "best", "good", or "realtime"; blank for ffmpeg's default.
+    private String deadline = "";
+    // libvpx's -cpu-used; higher is faster.  Null for ffmpeg's default.
+    private Integer cpuUsed = null;
+    // Target bitrate such as "1M"; blank to let the quality setting decide.
+    private String bitrate = "";
+    // Quality from 4 (best) to 63 (worst); null for ffmpeg's default.
+    private Integer crf = null;
+    // Videos are scaled down so that neither side is larger than this; 0 to keep the source size.
+    private Integer maxDimension = 0;
+    // Frames are skipped to get as close as possible to this rate; 0 to keep every frame.
+    private Double targetFps = 0.0;
+
+    public EncoderProfile() {
+    }
+
+    public EncoderProfile(String name, String deadline, Integer cpuUsed, String bitrate, Integer crf,
+                          Integer maxDimension, Double targetFps) {
+        this.name = name;
+        this.deadline = deadline;
+        this.cpuUsed = cpuUsed;
+        this.bitrate = bitrate;
+        this.crf = crf;
+        this.maxDimension = maxDimension;
+        this.targetFps = targetFps;
+    }
+
+    /**
+     * @return The profiles that are available if none are configured.
+     */
+    public static List<EncoderProfile> getDefaults() {
+        List<EncoderProfile> profiles = new ArrayList<>();
+        // The settings that were used before profiles were configurable
+        profiles.add(new EncoderProfile("default", "", null, "1M", 10, 0, 0.0));
+        // Smaller, lower quality videos; this is what fasterCodec selects
+        profiles.add(new EncoderProfile("fast", "", null, "", 28, 400, 0.0));
+        // For large images or a busy server
+        profiles.add(new EncoderProfile("realtime", "realtime", 8, "500k", 32, 640, 15.0));
+        profiles.add(new EncoderProfile("quality", "good", 1, "4M", 6, 0, 0.0));
+        return profiles;
+    }
+
+    /**
+     * @return A description of every setting that affects the encoded video,
+     *         suitable for distinguishing cached videos from each other.
+     */
+    public String getCacheParams() {
+        return String.join(",", codec, deadline, String.valueOf(cpuUsed), bitrate, String.valueOf(crf),
+                           String.valueOf(maxDimension), String.valueOf(targetFps));
+    }
+
+    /**
+     * Picks how many frames to skip to get close to the target frame rate.
+     * @param sourceFps The frame rate of the image topic, or null if it's unknown.
+     * @return Only every Nth frame should be encoded.
+     */
+    public long getFrameSkip(Double sourceFps) {
+        if (targetFps == null || targetFps <= 0.0 || sourceFps == null || sourceFps <= targetFps) {
+            return 1;
+        }
+        return Math.max(1, Math.round(sourceFps / targetFps));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public void setCodec(String codec) {
+        this.codec = codec;
+    }
+
+    public String getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(String deadline) {
+        this.deadline = deadline;
+    }
+
+    public Integer getCpuUsed() {
+        return cpuUsed;
+    }
+
+    public void setCpuUsed(Integer cpuUsed) {
+        this.cpuUsed = cpuUsed;
+    }
+
+    public String getBitrate() {
+        return bitrate;
+    }
+
+    public void setBitrate(String bitrate) {
+        this.bitrate = bitrate;
+    }
+
+    public Integer getCrf() {
+        return crf;
+    }
+
+    public void setCrf(Integer crf) {
+        this.crf = crf;
+    }
+
+    public Integer getMaxDimension() {
+        return maxDimension;
+    }
+
+    public void setMaxDimension(Integer maxDimension) {
+        this.maxDimension = maxDimension;
+    }
+
+    public Double getTargetFps() {
+        return targetFps;
+    }
+
+    public void setTargetFps(Double targetFps) {
+        this.targetFps = targetFps;
+    }
+}
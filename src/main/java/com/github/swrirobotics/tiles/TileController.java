@@ -0,0 +1,84 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.tiles;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+
+@RestController
+@RequestMapping("tiles")
+public class TileController {
+    public static final MediaType VECTOR_TILE_TYPE = MediaType.parseMediaType("application/vnd.mapbox-vector-tile");
+
+    private final TileService myTileService;
+
+    private final Logger myLogger = LoggerFactory.getLogger(TileController.class);
+
+    public TileController(TileService myTileService) {
+        this.myTileService = myTileService;
+    }
+
+    /**
+     * Gets a Mapbox Vector Tile containing the GPS paths of every bag in the
+     * database that passes through it.  The tile has a single layer named
+     * "bags" and one line feature per bag, identified by its database ID.
+     * @param z The zoom level.
+     * @param x The tile column.
+     * @param y The tile row, with 0 at the top.
+     * @return The encoded tile.
+     */
+    @GetMapping("/{z}/{x}/{y}")
+    public ResponseEntity<byte[]> getTile(@PathVariable int z,
+                                          @PathVariable int x,
+                                          @PathVariable int y) throws IOException {
+        myLogger.trace("getTile: " + z + "/" + x + "/" + y);
+        int tileCount = 1 << Math.min(z, TileService.MAX_ZOOM);
+        if (z < 0 || z > TileService.MAX_ZOOM || x < 0 || x >= tileCount || y < 0 || y >= tileCount) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        return ResponseEntity.ok()
+            .contentType(VECTOR_TILE_TYPE)
+            .cacheControl(CacheControl.noCache())
+            .body(myTileService.getTile(z, x, y));
+    }
+}
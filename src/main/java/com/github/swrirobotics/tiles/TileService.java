@@ -0,0 +1,462 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.tiles;
+
+import com.github.swrirobotics.bags.GpsPathSimplifier;
+import com.github.swrirobotics.bags.LruFileIndex;
+import com.github.swrirobotics.config.ConfigService;
+import com.github.swrirobotics.support.web.Configuration;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders the GPS paths of every bag in the database into Mapbox Vector Tiles.
+ *
+ * Paths are read from the simplified copies in the bag_paths table at the level
+ * of detail appropriate for each zoom level, using the spatial index to find
+ * only the paths that intersect a tile.  They are then clipped to the tile,
+ * projected into tile coordinates, and quantized.  Rendered tiles are cached
+ * on disk until the paths they contain change or the cache grows larger than
+ * {@link Configuration#getTileCacheSizeMb()}, at which point the least
+ * recently used tiles are removed.
+ */
+@Service
+public class TileService {
+    /**
+     * Published whenever bags' GPS paths change.  Cached tiles are discarded
+     * once the transaction that changed the paths has been committed, so that
+     * they aren't rendered again from the old paths.
+     */
+    public static class PathChangeEvent {
+        private final Envelope myEnvelope;
+
+        /**
+         * @param envelope The area that has changed, in degrees of longitude
+         *                 and latitude, or null if any area could have changed.
+         */
+        public PathChangeEvent(Envelope envelope) {
+            myEnvelope = envelope;
+        }
+
+        /**
+         * Creates an event for a change that could have affected any path.
+         */
+        public static PathChangeEvent allPaths() {
+            return new PathChangeEvent(null);
+        }
+
+        public Envelope getEnvelope() {
+            return myEnvelope;
+        }
+    }
+
+    public static final int MAX_ZOOM = 22;
+    private static final String LAYER_NAME = "bags";
+    private static final String FILE_SUFFIX = ".mvt";
+    // Lines are clipped slightly outside of the tile's boundaries so that
+    // renderers don't draw their end caps at the edge of the tile.
+    private static final int BUFFER = 64;
+    private static final double MAX_LATITUDE = 85.0511287798066;
+
+    private final ConfigService myConfigService;
+    @PersistenceContext
+    private EntityManager myEM;
+
+    private final GeometryFactory myGeometryFactory =
+            new GeometryFactory(new PrecisionModel(PrecisionModel.FLOATING), 4326);
+    // Incremented every time the cache is invalidated so that tiles rendered
+    // from data that was changed while they were being rendered aren't cached.
+    private final AtomicLong myGeneration = new AtomicLong(0);
+    private LruFileIndex myIndex = null;
+    private boolean myIndexInitialized = false;
+
+    private static final Logger myLogger = LoggerFactory.getLogger(TileService.class);
+
+    public TileService(ConfigService configService) {
+        myConfigService = configService;
+    }
+
+    /**
+     * Gets an encoded vector tile, rendering it if it isn't already cached.
+     * @param z The zoom level.
+     * @param x The tile column.
+     * @param y The tile row, with 0 at the top.
+     * @return The tile encoded as a Mapbox Vector Tile.
+     * @throws IOException If the tile cache could not be accessed.
+     */
+    @Transactional(readOnly = true)
+    public byte[] getTile(int z, int x, int y) throws IOException {
+        String key = getKey(z, x, y);
+        LruFileIndex index = getIndex();
+        File tileFile = index == null ? null : index.get(key);
+        if (tileFile != null) {
+            try {
+                return Files.readAllBytes(tileFile.toPath());
+            }
+            catch (IOException e) {
+                // It might have been invalidated while we were reading it; just render it again.
+                myLogger.debug("Unable to read cached tile " + tileFile + ": " + e.getLocalizedMessage());
+            }
+        }
+
+        long generation = myGeneration.get();
+        byte[] tile = renderTile(z, x, y);
+        if (index == null) {
+            return tile;
+        }
+
+        File tmpFile = File.createTempFile("tile", ".tmp", index.getDirectory());
+        try {
+            Files.write(tmpFile.toPath(), tile);
+            synchronized (myGeneration) {
+                if (generation == myGeneration.get()) {
+                    Files.move(tmpFile.toPath(), index.getFile(key).toPath(),
+                               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    index.add(key, tile.length, getMaxBytes());
+                }
+            }
+        }
+        finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+
+        return tile;
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onPathChange(PathChangeEvent event) {
+        if (event.getEnvelope() == null) {
+            invalidateAll();
+        }
+        else {
+            invalidate(event.getEnvelope());
+        }
+    }
+
+    /**
+     * Removes every cached tile that could contain any part of the given area.
+     * Most changes only cover a few tiles at each zoom level, so those are
+     * removed directly; if there are more tiles in the area than there are
+     * in the cache, the cache's contents are checked instead.
+     * @param envelope The area that has changed, in degrees of longitude and latitude.
+     */
+    public void invalidate(Envelope envelope) {
+        if (envelope == null || envelope.isNull()) {
+            return;
+        }
+
+        LruFileIndex index = getIndex();
+        synchronized (myGeneration) {
+            myGeneration.incrementAndGet();
+            if (index == null) {
+                return;
+            }
+            int removed = 0;
+            for (int z = 0; z <= MAX_ZOOM; z++) {
+                // Include the neighboring tiles, since their buffers may overlap the area.
+                int lastTile = (1 << z) - 1;
+                int minX = Math.max(0, lonToTileX(envelope.getMinX(), z) - 1);
+                int maxX = Math.min(lastTile, lonToTileX(envelope.getMaxX(), z) + 1);
+                int minY = Math.max(0, latToTileY(envelope.getMaxY(), z) - 1);
+                int maxY = Math.min(lastTile, latToTileY(envelope.getMinY(), z) + 1);
+                long tileCount = (long) (maxX - minX + 1) * (maxY - minY + 1);
+                if (tileCount <= index.getFileCount()) {
+                    for (int x = minX; x <= maxX; x++) {
+                        for (int y = minY; y <= maxY; y++) {
+                            if (index.remove(getKey(z, x, y))) {
+                                removed++;
+                            }
+                        }
+                    }
+                }
+                else {
+                    final int zoom = z;
+                    removed += index.removeIf(key -> {
+                        int[] tile = parseKey(key);
+                        return tile != null && tile[0] == zoom &&
+                               tile[1] >= minX && tile[1] <= maxX &&
+                               tile[2] >= minY && tile[2] <= maxY;
+                    });
+                }
+            }
+            myLogger.debug("Invalidated " + removed + " cached tiles.");
+        }
+    }
+
+    /**
+     * Removes every cached tile.
+     */
+    public void invalidateAll() {
+        LruFileIndex index = getIndex();
+        synchronized (myGeneration) {
+            myGeneration.incrementAndGet();
+            if (index != null) {
+                index.clear();
+            }
+        }
+    }
+
+    private byte[] renderTile(int z, int x, int y) {
+        double n = Math.pow(2.0, z);
+        double bufferTiles = (double) BUFFER / VectorTileEncoder.EXTENT;
+        Envelope clipEnvelope = new Envelope(
+                tileXToLon(x - bufferTiles, n), tileXToLon(x + 1 + bufferTiles, n),
+                tileYToLat(y + 1 + bufferTiles, n), tileYToLat(y - bufferTiles, n));
+        Geometry clip = myGeometryFactory.toGeometry(clipEnvelope);
+
+        int level = GpsPathSimplifier.levelForZoom(z);
+        Map<Long, Geometry> paths = level == 0 ? readFullPaths(clipEnvelope) : readPaths(level, clipEnvelope);
+
+        VectorTileEncoder encoder = new VectorTileEncoder(LAYER_NAME);
+        for (Map.Entry<Long, Geometry> entry : paths.entrySet()) {
+            Geometry path = entry.getValue();
+            Geometry clipped;
+            try {
+                clipped = path.intersection(clip);
+            }
+            catch (TopologyException e) {
+                clipped = path;
+            }
+
+            List<int[]> lines = new ArrayList<>();
+            for (int i = 0; i < clipped.getNumGeometries(); i++) {
+                Geometry part = clipped.getGeometryN(i);
+                if (part instanceof LineString) {
+                    int[] line = quantize(part.getCoordinates(), z, x, y);
+                    if (line.length >= 4) {
+                        lines.add(line);
+                    }
+                }
+            }
+            encoder.addLineFeature(entry.getKey(), lines);
+        }
+
+        myLogger.debug("Rendered tile " + z + "/" + x + "/" + y + " with " +
+                       encoder.getFeatureCount() + " paths at level " + level + ".");
+        return encoder.encode();
+    }
+
+    /**
+     * Reads the simplified paths at a level of detail that intersect an area.
+     * @return Every path, keyed by the ID of its bag.
+     */
+    private Map<Long, Geometry> readPaths(int level, Envelope envelope) {
+        Query query = myEM.createNativeQuery(
+                "SELECT bagid, ST_AsBinary(path) FROM bag_paths " +
+                "WHERE detaillevel = ?1 AND path && ST_MakeEnvelope(?2, ?3, ?4, ?5, 4326) " +
+                "ORDER BY bagid");
+        setEnvelopeParameters(query.setParameter(1, level), envelope);
+
+        Map<Long, Geometry> paths = new LinkedHashMap<>();
+        WKBReader reader = new WKBReader(myGeometryFactory);
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = query.getResultList();
+        for (Object[] row : rows) {
+            long bagId = ((Number) row[0]).longValue();
+            try {
+                paths.put(bagId, reader.read((byte[]) row[1]));
+            }
+            catch (ParseException e) {
+                myLogger.warn("Unable to parse path for bag " + bagId + ": " + e.getLocalizedMessage());
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Reads the full-resolution paths of every bag that passes through an
+     * area.  The least simplified path is used to find the bags, since the
+     * spatial index covers bag_paths, but every one of their positions is
+     * returned so that the lines are still continuous where they cross the
+     * edge of the area.
+     * @return Every path, keyed by the ID of its bag.
+     */
+    private Map<Long, Geometry> readFullPaths(Envelope envelope) {
+        Query query = myEM.createNativeQuery(
+                "SELECT p.bagid, ST_X(p.position), ST_Y(p.position) FROM bag_positions p " +
+                "WHERE p.bagid IN (SELECT bagid FROM bag_paths " +
+                "WHERE detaillevel = ?1 AND path && ST_MakeEnvelope(?2, ?3, ?4, ?5, 4326)) " +
+                "ORDER BY p.bagid, p.positiontime, p.id");
+        setEnvelopeParameters(query.setParameter(1, 1), envelope);
+
+        Map<Long, Geometry> paths = new LinkedHashMap<>();
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = query.getResultList();
+        List<Coordinate> coords = new ArrayList<>();
+        Long currentBagId = null;
+        for (Object[] row : rows) {
+            long bagId = ((Number) row[0]).longValue();
+            if (currentBagId != null && bagId != currentBagId) {
+                addLine(paths, currentBagId, coords);
+                coords.clear();
+            }
+            currentBagId = bagId;
+            coords.add(new Coordinate(((Number) row[1]).doubleValue(), ((Number) row[2]).doubleValue()));
+        }
+        if (currentBagId != null) {
+            addLine(paths, currentBagId, coords);
+        }
+        return paths;
+    }
+
+    private void addLine(Map<Long, Geometry> paths, long bagId, List<Coordinate> coords) {
+        if (coords.size() >= 2) {
+            paths.put(bagId, myGeometryFactory.createLineString(coords.toArray(new Coordinate[0])));
+        }
+    }
+
+    private static void setEnvelopeParameters(Query query, Envelope envelope) {
+        query.setParameter(2, envelope.getMinX());
+        query.setParameter(3, envelope.getMinY());
+        query.setParameter(4, envelope.getMaxX());
+        query.setParameter(5, envelope.getMaxY());
+    }
+
+    /**
+     * Projects coordinates into the integer coordinate space of a tile and
+     * removes any consecutive points that end up in the same spot.
+     * @return A flattened array of (x, y) pairs.
+     */
+    private static int[] quantize(Coordinate[] coords, int z, int x, int y) {
+        double n = Math.pow(2.0, z);
+        int[] points = new int[coords.length * 2];
+        int count = 0;
+        for (Coordinate coord : coords) {
+            double lat = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, coord.y));
+            double latRad = Math.toRadians(lat);
+            double tileX = (coord.x + 180.0) / 360.0 * n;
+            double tileY = (1.0 - Math.log(Math.tan(latRad) + 1.0 / Math.cos(latRad)) / Math.PI) / 2.0 * n;
+            int px = (int) Math.round((tileX - x) * VectorTileEncoder.EXTENT);
+            int py = (int) Math.round((tileY - y) * VectorTileEncoder.EXTENT);
+            if (count > 0 && points[count * 2 - 2] == px && points[count * 2 - 1] == py) {
+                continue;
+            }
+            points[count * 2] = px;
+            points[count * 2 + 1] = py;
+            count++;
+        }
+        int[] result = new int[count * 2];
+        System.arraycopy(points, 0, result, 0, result.length);
+        return result;
+    }
+
+    private static double tileXToLon(double x, double n) {
+        return x / n * 360.0 - 180.0;
+    }
+
+    private static double tileYToLat(double y, double n) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1.0 - 2.0 * y / n))));
+    }
+
+    private static int lonToTileX(double lon, int z) {
+        return (int) Math.floor((lon + 180.0) / 360.0 * Math.pow(2.0, z));
+    }
+
+    private static int latToTileY(double lat, int z) {
+        double latRad = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat)));
+        return (int) Math.floor((1.0 - Math.log(Math.tan(latRad) + 1.0 / Math.cos(latRad)) / Math.PI) / 2.0 *
+                                Math.pow(2.0, z));
+    }
+
+    private static String getKey(int z, int x, int y) {
+        return z + "-" + x + "-" + y;
+    }
+
+    /**
+     * @return The (z, x, y) coordinates of a cached tile, or null if the key
+     *         isn't valid.
+     */
+    private static int[] parseKey(String key) {
+        String[] parts = key.split("-");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])};
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private long getMaxBytes() {
+        Configuration config = myConfigService.getConfiguration();
+        if (config == null || config.getTileCacheSizeMb() == null) {
+            return new Configuration().getTileCacheSizeMb() * 1024L * 1024L;
+        }
+        return Math.max(0, config.getTileCacheSizeMb()) * 1024L * 1024L;
+    }
+
+    /**
+     * Gets the index of cached tiles, loading the existing contents of the
+     * cache the first time it's called.
+     * @return The index, or null if the cache is unavailable.
+     */
+    private synchronized LruFileIndex getIndex() {
+        if (myIndexInitialized) {
+            return myIndex;
+        }
+        myIndexInitialized = true;
+
+        try {
+            File directory = myConfigService.getCacheDirectory("tiles");
+            if (directory != null) {
+                myIndex = new LruFileIndex(directory, FILE_SUFFIX);
+                myIndex.evict(getMaxBytes());
+            }
+        }
+        catch (IOException e) {
+            myLogger.error("Unable to access the tile cache; tiles will not be cached.", e);
+        }
+
+        return myIndex;
+    }
+}
@@ -0,0 +1,178 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.tiles;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes a single-layer Mapbox Vector Tile containing line features.
+ *
+ * The format is a small Protocol Buffers schema (see
+ * https://github.com/mapbox/vector-tile-spec/tree/master/2.1), so rather than
+ * pulling in a protobuf library and generated classes, the handful of fields
+ * we need are written by hand.
+ */
+class VectorTileEncoder {
+    static final int EXTENT = 4096;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+
+    private static final int GEOM_TYPE_LINESTRING = 2;
+    private static final int CMD_MOVE_TO = 1;
+    private static final int CMD_LINE_TO = 2;
+
+    private static final String BAG_ID_KEY = "bagId";
+
+    private final String myLayerName;
+    private final ByteArrayOutputStream myFeatures = new ByteArrayOutputStream();
+    private final Map<Long, Integer> myValues = new LinkedHashMap<>();
+    private int myFeatureCount = 0;
+
+    VectorTileEncoder(String layerName) {
+        myLayerName = layerName;
+    }
+
+    /**
+     * Adds a feature made up of one or more lines to the tile.
+     * @param bagId The ID of the bag the lines came from; this is used as
+     *              both the feature's ID and its "bagId" attribute.
+     * @param lines Lines in tile coordinates; each line is an array of (x, y) pairs
+     *              with consecutive duplicate points already removed.  Lines with
+     *              fewer than two points are skipped.
+     */
+    void addLineFeature(long bagId, List<int[]> lines) {
+        ByteArrayOutputStream geometry = new ByteArrayOutputStream();
+        int cursorX = 0;
+        int cursorY = 0;
+        for (int[] line : lines) {
+            int pointCount = line.length / 2;
+            if (pointCount < 2) {
+                continue;
+            }
+            writeVarint(geometry, command(CMD_MOVE_TO, 1));
+            writeVarint(geometry, zigzag(line[0] - cursorX));
+            writeVarint(geometry, zigzag(line[1] - cursorY));
+            writeVarint(geometry, command(CMD_LINE_TO, pointCount - 1));
+            for (int i = 1; i < pointCount; i++) {
+                writeVarint(geometry, zigzag(line[i * 2] - line[i * 2 - 2]));
+                writeVarint(geometry, zigzag(line[i * 2 + 1] - line[i * 2 - 1]));
+            }
+            cursorX = line[line.length - 2];
+            cursorY = line[line.length - 1];
+        }
+        if (geometry.size() == 0) {
+            return;
+        }
+
+        Integer valueIndex = myValues.computeIfAbsent(bagId, k -> myValues.size());
+        ByteArrayOutputStream tags = new ByteArrayOutputStream();
+        writeVarint(tags, 0);
+        writeVarint(tags, valueIndex);
+
+        ByteArrayOutputStream feature = new ByteArrayOutputStream();
+        writeTag(feature, 1, WIRE_VARINT);
+        writeVarint(feature, bagId);
+        writeBytes(feature, 2, tags.toByteArray());
+        writeTag(feature, 3, WIRE_VARINT);
+        writeVarint(feature, GEOM_TYPE_LINESTRING);
+        writeBytes(feature, 4, geometry.toByteArray());
+
+        writeBytes(myFeatures, 2, feature.toByteArray());
+        myFeatureCount++;
+    }
+
+    int getFeatureCount() {
+        return myFeatureCount;
+    }
+
+    /**
+     * @return The encoded tile.  A tile with no features is encoded as an
+     *         empty tile with no layers.
+     */
+    byte[] encode() {
+        ByteArrayOutputStream tile = new ByteArrayOutputStream();
+        if (myFeatureCount == 0) {
+            return tile.toByteArray();
+        }
+
+        ByteArrayOutputStream layer = new ByteArrayOutputStream();
+        writeTag(layer, 15, WIRE_VARINT);
+        writeVarint(layer, 2);
+        writeBytes(layer, 1, myLayerName.getBytes(StandardCharsets.UTF_8));
+        byte[] features = myFeatures.toByteArray();
+        layer.write(features, 0, features.length);
+        writeBytes(layer, 3, BAG_ID_KEY.getBytes(StandardCharsets.UTF_8));
+        for (Long value : myValues.keySet()) {
+            ByteArrayOutputStream valueMsg = new ByteArrayOutputStream();
+            // Field 5 is uint_value
+            writeTag(valueMsg, 5, WIRE_VARINT);
+            writeVarint(valueMsg, value);
+            writeBytes(layer, 4, valueMsg.toByteArray());
+        }
+        writeTag(layer, 5, WIRE_VARINT);
+        writeVarint(layer, EXTENT);
+
+        writeBytes(tile, 3, layer.toByteArray());
+        return tile.toByteArray();
+    }
+
+    private static int command(int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+        writeVarint(out, (field << 3) | wireType);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, int field, byte[] bytes) {
+        writeTag(out, field, WIRE_LENGTH_DELIMITED);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
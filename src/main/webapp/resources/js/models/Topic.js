@@ -48,5 +48,19 @@ Ext.define('BagDatabase.models.Topic', {
         name: 'messageType', mapping: 'type.name'
     }, {
         name: 'md5sum', mapping: 'type.md5sum'
+    }, {
+        name: 'startTime', type: 'date', dateFormat: 'time'
+    }, {
+        name: 'endTime', type: 'date', dateFormat: 'time'
+    }, {
+        name: 'meanFrequency', type: 'float', allowNull: true
+    }, {
+        name: 'minFrequency', type: 'float', allowNull: true
+    }, {
+        name: 'maxFrequency', type: 'float', allowNull: true
+    }, {
+        name: 'totalBytes', type: 'int', allowNull: true
+    }, {
+        name: 'maxMessageBytes', type: 'int', allowNull: true
     }]
 });
\ No newline at end of file
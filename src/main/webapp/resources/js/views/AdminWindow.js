@@ -98,6 +98,18 @@ Ext.define('BagDatabase.views.AdminWindow', {
                     url: 'admin/updateGpsPaths'
                 });
             }
+        }, {
+            xtype: 'button',
+            text: 'Re-scan all topic statistics',
+            margin: '5 0 0 0',
+            handler: function() {
+                var params = {};
+                params[csrfName] = csrfToken;
+                Ext.Ajax.request({
+                    params: params,
+                    url: 'admin/updateTopicStatistics'
+                });
+            }
         }, {
             xtype: 'button',
             text: 'Update reverse-geocoded locations',
@@ -570,7 +570,8 @@ Ext.define('BagDatabase.views.BagGrid', {
         loadMask.show();
 
         params = {
-            bagIds: bagIds
+            bagIds: bagIds,
+            maxPoints: 20000
         };
         params[csrfName] = csrfToken;
         Ext.Ajax.request({
@@ -693,8 +694,14 @@ Ext.define('BagDatabase.views.BagGrid', {
 
       document.body.removeChild(textArea);
     },
+    updateCountTitle: function(count, isApproximate) {
+        this.setTitle(this.baseTitle + ' (' + Ext.util.Format.number(count, '0,000') +
+                      (isApproximate ? '+' : '') + ' bags)');
+    },
     initComponent: function() {
-        var me = this;
+        var me, viewport;
+        me = this;
+        viewport = me.up('viewport');
 
         Ext.apply(this, {
             store: Ext.create('BagDatabase.stores.BagStore', {
@@ -705,13 +712,28 @@ Ext.define('BagDatabase.views.BagGrid', {
                         me.setLoading(true);
                     },
                     load: function(store) {
+                        var rawData = store.getProxy().getReader().rawData;
                         me.setLoading(false);
-                        me.setTitle(me.baseTitle + ' (' + store.getCount() + ' bags)');
+                        // Very large result sets are only counted up to a limit at first;
+                        // the exact count is published over the websocket when it's ready.
+                        me.countId = rawData && rawData.totalCountApproximate ? rawData.countId : null;
+                        me.updateCountTitle(store.getCount(), me.countId !== null);
                     }
                 }
             })
         });
 
+        if (viewport) {
+            viewport.subscribeToTopic('/topic/search_count', function(message) {
+                var update = Ext.JSON.decode(message.body);
+                if (me.countId && update.countId === me.countId) {
+                    me.countId = null;
+                    me.store.totalCount = update.totalCount;
+                    me.updateCountTitle(update.totalCount, false);
+                }
+            });
+        }
+
         this.callParent(arguments);
 
         this.baseTitle = this.title;
@@ -57,6 +57,19 @@ Ext.define('BagDatabase.views.MapWindow', {
                     })
                 }));
             }
+            // Paths of every bag in the database, rendered on the server
+            layers.push(new ol.layer.VectorTile({
+                source: new ol.source.VectorTile({
+                    format: new ol.format.MVT(),
+                    url: 'tiles/{z}/{x}/{y}'
+                }),
+                style: new ol.style.Style({
+                    stroke: new ol.style.Stroke({
+                        color: 'rgba(0,0,255,0.4)',
+                        width: 1
+                    })
+                })
+            }));
             win.map = new ol.Map({
                 target: win.getId() + '-innerCt', layers: layers,
                 view: new ol.View({
@@ -51,6 +51,31 @@ Ext.define('BagDatabase.views.TopicGrid', {
         text: 'Messages', dataIndex: 'messageCount', flex: 1
     }, {
         text: 'Connections', dataIndex: 'connectionCount', flex: 1
+    }, {
+        text: 'Rate (Hz)', dataIndex: 'meanFrequency', flex: 1,
+        renderer: function(value) {
+            return value === null ? '' : value.toFixed(2);
+        }
+    }, {
+        text: 'Min Rate (Hz)', dataIndex: 'minFrequency', flex: 1, hidden: true,
+        renderer: function(value) {
+            return value === null ? '' : value.toFixed(2);
+        }
+    }, {
+        text: 'Max Rate (Hz)', dataIndex: 'maxFrequency', flex: 1, hidden: true,
+        renderer: function(value) {
+            return value === null ? '' : value.toFixed(2);
+        }
+    }, {
+        text: 'Data (MB)', dataIndex: 'totalBytes', flex: 1,
+        renderer: function(value) {
+            return value === null ? '' : (value / 1024.0 / 1024.0).toFixed(3);
+        }
+    }, {
+        text: 'Largest Message (KB)', dataIndex: 'maxMessageBytes', flex: 1, hidden: true,
+        renderer: function(value) {
+            return value === null ? '' : (value / 1024.0).toFixed(1);
+        }
     }, {
         xtype: 'actioncolumn',
         width: 25,
@@ -94,7 +119,13 @@ Ext.define('BagDatabase.views.TopicGrid', {
             },
             handler: function(grid, rowIndex, colIndex) {
                 var record = grid.getStore().getAt(rowIndex);
-                grid.ownerCt.showVideo(record.get('topicName'), 1);
+                if (window.MediaSource && MediaSource.isTypeSupported('video/webm; codecs="vp8"')) {
+                    // Segmented videos can be seeked without encoding everything before them
+                    grid.ownerCt.showSegmentedVideo(record.get('topicName'));
+                }
+                else {
+                    grid.ownerCt.showVideo(record.get('topicName'), 1);
+                }
             }
         }]
     }, {
@@ -127,7 +158,119 @@ Ext.define('BagDatabase.views.TopicGrid', {
                     }, window, false, '10');
             }
         }]
+    }, {
+        xtype: 'actioncolumn',
+        width: 25,
+        items: [{
+            iconCls: 'bag-action-icon save-icon',
+            isDisabled: function(view, rowIndex, colIndex, item, record) {
+                var mt = record.get('messageType');
+                return mt !== 'sensor_msgs/Image' &&
+                       mt !== 'sensor_msgs/CompressedImage' &&
+                       mt !== 'stereo_msgs/DisparityImage';
+            },
+            getTip: function(value, metadata, record) {
+                var mt, isImage;
+                mt = record.get('messageType');
+                isImage = (mt === 'sensor_msgs/Image' ||
+                               mt === 'sensor_msgs/CompressedImage' ||
+                               mt === 'stereo_msgs/DisparityImage');
+                return isImage ? 'Export Video' : 'Not an image topic';
+            },
+            handler: function(grid, rowIndex, colIndex) {
+                var record = grid.getStore().getAt(rowIndex);
+                grid.ownerCt.exportVideo(record.get('topicName'));
+            }
+        }]
     }],
+    listeners: {
+        afterRender: function(grid) {
+            grid.createPreviewTip();
+        },
+        destroy: function(grid) {
+            if (grid.previewTip) {
+                grid.previewTip.destroy();
+            }
+        }
+    },
+    // Shows a preview of an image topic while the mouse is over its row; moving
+    // the mouse from left to right scrubs through the topic.
+    createPreviewTip: function() {
+        var grid, view, sheets, currentTopic, currentFraction;
+        grid = this;
+        view = this.getView();
+        sheets = {};
+        currentFraction = 0.0;
+
+        function isPreviewable(record) {
+            var mt = record.get('messageType');
+            return mt === 'sensor_msgs/Image' || mt === 'sensor_msgs/CompressedImage';
+        }
+
+        function showFrame() {
+            var sheet, frame, x, y, url;
+            sheet = sheets[currentTopic];
+            if (!sheet || !grid.previewTip.isVisible()) {
+                return;
+            }
+            if (sheet.error) {
+                grid.previewTip.update('No preview is available.');
+                return;
+            }
+            frame = Math.min(sheet.times.length - 1, Math.floor(currentFraction * sheet.times.length));
+            x = (frame % sheet.columns) * sheet.tileWidth;
+            y = Math.floor(frame / sheet.columns) * sheet.tileHeight;
+            url = 'bags/sprites/image?bagId=' + grid.bagId + '&topic=' + encodeURIComponent(currentTopic);
+            grid.previewTip.update(
+                '<div style="width: ' + sheet.tileWidth + 'px; height: ' + sheet.tileHeight + 'px; ' +
+                    'background: url(\'' + url + '\') -' + x + 'px -' + y + 'px no-repeat;"></div>' +
+                '<div>' + sheet.times[frame].toFixed(1) + 's</div>');
+        }
+
+        this.previewTip = Ext.create('Ext.tip.ToolTip', {
+            target: view.el,
+            delegate: view.itemSelector,
+            trackMouse: true,
+            showDelay: 500,
+            listeners: {
+                beforeshow: function(tip) {
+                    var record = view.getRecord(tip.triggerElement);
+                    if (!record || !isPreviewable(record)) {
+                        return false;
+                    }
+                    currentTopic = record.get('topicName');
+                    if (sheets[currentTopic]) {
+                        Ext.defer(showFrame, 1);
+                        return;
+                    }
+                    tip.update('Loading preview...');
+                    Ext.Ajax.request({
+                        url: 'bags/sprites',
+                        params: {
+                            bagId: grid.bagId,
+                            topic: currentTopic
+                        },
+                        success: function(response, opts) {
+                            sheets[opts.params.topic] = Ext.decode(response.responseText);
+                            showFrame();
+                        },
+                        failure: function(response, opts) {
+                            sheets[opts.params.topic] = {error: true};
+                            showFrame();
+                        }
+                    });
+                }
+            }
+        });
+
+        view.el.on('mousemove', function(e) {
+            var row = e.getTarget(view.itemSelector, null, true);
+            if (row) {
+                currentFraction = Math.max(0.0, Math.min(1.0, (e.getX() - row.getX()) / row.getWidth()));
+                showFrame();
+            }
+        });
+    },
     showImage: function(topic) {
         var win = Ext.create('Ext.window.Window', {
             title: topic,
@@ -157,21 +300,247 @@ Ext.define('BagDatabase.views.TopicGrid', {
         });
         win.show();
     },
+    showSegmentedVideo: function(topic) {
+        var win, params, segments, video, mediaSource, sourceBuffer, loaded = {}, fetching = false;
+        params = 'bagId=' + this.bagId + '&topic=' + topic;
+        win = Ext.create('Ext.window.Window', {
+            title: topic,
+            width: 730,
+            height: 521,
+            html: '<div>' +
+                    '<video style="max-width: 100%; max-height: 100%; width: 100%; height: 100%;" controls autoplay>' +
+                    '</video>' +
+                  '</div>',
+            listeners: {
+                close: function() {
+                    if (video && video.src) {
+                        URL.revokeObjectURL(video.src);
+                    }
+                }
+            }
+        });
+        win.show();
+        win.setLoading('Indexing topic...');
+
+        // Finds the segment that contains a point in time
+        function segmentAt(time) {
+            var i;
+            for (i = segments.length - 1; i > 0; i--) {
+                if (segments[i].startS <= time) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        // Loads the segment at the playhead and the one after it, so that
+        // seeking only has to wait for the segments that are actually watched.
+        function loadNext() {
+            var current, i;
+            if (fetching || !sourceBuffer || sourceBuffer.updating || mediaSource.readyState !== 'open') {
+                return;
+            }
+            current = segmentAt(video.currentTime);
+            for (i = current; i < Math.min(current + 2, segments.length); i++) {
+                if (!loaded[i]) {
+                    fetchSegment(i);
+                    return;
+                }
+            }
+            if (Object.keys(loaded).length === segments.length) {
+                mediaSource.endOfStream();
+            }
+        }
+
+        function fetchSegment(index) {
+            var xhr = new XMLHttpRequest();
+            fetching = true;
+            xhr.open('GET', 'bags/video/segment?' + params + '&index=' + index);
+            xhr.responseType = 'arraybuffer';
+            xhr.onload = function() {
+                var retryAfter;
+                fetching = false;
+                if (xhr.status === 503) {
+                    // The server is busy; wait for it to be ready.
+                    retryAfter = parseInt(xhr.getResponseHeader('Retry-After'), 10) || 10;
+                    win.setTitle(topic + ' (waiting for an encoder)');
+                    Ext.defer(loadNext, retryAfter * 1000);
+                    return;
+                }
+                if (xhr.status !== 200) {
+                    win.setHtml('<p>Unable to load segment ' + index + ' of this video.</p>');
+                    return;
+                }
+                win.setTitle(topic);
+                loaded[index] = true;
+                // Every segment's timestamps start at zero.
+                sourceBuffer.timestampOffset = segments[index].startS;
+                sourceBuffer.appendBuffer(xhr.response);
+            };
+            xhr.send();
+        }
+
+        Ext.Ajax.request({
+            url: 'bags/video/segments?' + params,
+            success: function(response) {
+                var index = Ext.decode(response.responseText);
+                win.setLoading(false);
+                segments = index.segments;
+                if (segments.length === 0) {
+                    win.setHtml('<p>There are no images on this topic.</p>');
+                    return;
+                }
+                video = win.getEl().down('video', true);
+                mediaSource = new MediaSource();
+                mediaSource.addEventListener('sourceopen', function() {
+                    mediaSource.duration = index.durationS;
+                    sourceBuffer = mediaSource.addSourceBuffer('video/webm; codecs="vp8"');
+                    sourceBuffer.mode = 'segments';
+                    sourceBuffer.addEventListener('updateend', loadNext);
+                    loadNext();
+                });
+                video.addEventListener('seeking', loadNext);
+                video.addEventListener('timeupdate', loadNext);
+                video.src = URL.createObjectURL(mediaSource);
+            },
+            failure: function() {
+                win.setLoading(false);
+                win.setHtml('<p>Unable to index this topic.</p>');
+            }
+        });
+    },
+    exportVideo: function(topic) {
+        var win, params, statusTask;
+        params = {
+            bagId: this.bagId,
+            topic: topic
+        };
+        win = Ext.create('Ext.window.Window', {
+            title: 'Exporting ' + topic,
+            width: 400,
+            bodyPadding: 10,
+            html: '<p>Starting export...</p>',
+            listeners: {
+                close: function() {
+                    if (statusTask) {
+                        statusTask.destroy();
+                    }
+                }
+            }
+        });
+        win.show();
+
+        // Shows the progress of every range of the topic that's being encoded;
+        // returns true once the export is finished.
+        function showStatus(exp) {
+            var html, i, range;
+            if (exp.state === 'COMPLETE') {
+                win.setHtml('<p>The video is ready. <a href="bags/video/export/download?' +
+                            Ext.Object.toQueryString(params) + '">Download it</a></p>');
+                return true;
+            }
+            if (exp.state === 'FAILED') {
+                win.setHtml('<p>Unable to export this video.</p>');
+                return true;
+            }
+            html = '<p>' + (exp.state === 'JOINING' ? 'Joining segments' : 'Encoding') + ': ' +
+                   (exp.progress * 100).toFixed(1) + '%</p><table>';
+            for (i = 0; i < exp.ranges.length; i++) {
+                range = exp.ranges[i];
+                html += '<tr><td>' + range.startS.toFixed(1) + 's - ' +
+                        (range.startS + range.durationS).toFixed(1) + 's</td><td>' +
+                        (range.state === 'QUEUED' ? 'Waiting for an encoder' :
+                            range.framesEncoded + ' / ' + range.frameCount + ' frames') +
+                        '</td></tr>';
+            }
+            win.setHtml(html + '</table>');
+            win.updateLayout();
+            return false;
+        }
+
+        statusTask = Ext.TaskManager.newTask({
+            interval: 2000,
+            run: function() {
+                Ext.Ajax.request({
+                    url: 'bags/video/export',
+                    method: 'GET',
+                    params: params,
+                    success: function(response) {
+                        if (showStatus(Ext.decode(response.responseText))) {
+                            statusTask.stop();
+                        }
+                    },
+                    failure: function() {
+                        // Exports that failed are forgotten once they stop.
+                        win.setHtml('<p>Unable to export this video.</p>');
+                        statusTask.stop();
+                    }
+                });
+            }
+        });
+        Ext.Ajax.request({
+            url: 'bags/video/export',
+            method: 'POST',
+            params: params,
+            success: function(response) {
+                if (!showStatus(Ext.decode(response.responseText))) {
+                    statusTask.start();
+                }
+            },
+            failure: function() {
+                win.setHtml('<p>Unable to export this video.</p>');
+            }
+        });
+    },
     showVideo: function(topic, frameSkip) {
-        var vidWidth, vidHeight, win;
+        var vidWidth, vidHeight, win, params, queueTask;
         vidWidth = 720;
         vidHeight = 480;
+        params = 'bagId=' + this.bagId + '&topic=' + topic + '&frameSkip=' + frameSkip;
         win = Ext.create('Ext.window.Window', {
             title: topic,
             width: vidWidth + 10,
             height: vidHeight + 41,
             html: '<div>' +
                     '<video style="max-width: 100%; max-height: 100%; width: 100%; height: 100%;" controls autoplay>' +
-                        '<source src="bags/video?bagId=' + this.bagId + '&topic=' + topic + '&frameSkip=' + frameSkip + '">' +
+                        '<source src="bags/video?' + params + '">' +
                         'Your browser does not support embedded video.' +
                     '</video>' +
-                  '</div>'
+                  '</div>',
+            listeners: {
+                close: function() {
+                    queueTask.destroy();
+                }
+            }
         });
         win.show();
+
+        // If the server is busy, the video has to wait for an encoder; let
+        // the user know where it is in line until it starts playing.
+        queueTask = Ext.TaskManager.newTask({
+            interval: 2000,
+            run: function() {
+                var video = win.getEl().down('video', true);
+                if (video && video.readyState > 0) {
+                    win.setTitle(topic);
+                    queueTask.stop();
+                    return;
+                }
+                Ext.Ajax.request({
+                    url: 'bags/video/queue?' + params,
+                    success: function(response) {
+                        var position = Ext.decode(response.responseText).position;
+                        win.setTitle(position > 0 ?
+                            topic + ' (waiting for an encoder; position ' + position + ')' : topic);
+                    }
+                });
+            }
+        });
+        queueTask.start();
+        win.getEl().down('source', true).addEventListener('error', function() {
+            queueTask.stop();
+            win.setHtml('<p>Unable to load this video.  The server may be too busy to encode it right now; ' +
+                        'please try again later.</p>');
+        });
     }
 });
\ No newline at end of file
@@ -40,7 +40,10 @@ import com.github.swrirobotics.persistence.Bag;
 import com.github.swrirobotics.persistence.MessageType;
 import com.github.swrirobotics.persistence.Tag;
 import com.github.swrirobotics.persistence.Topic;
+import com.github.swrirobotics.support.web.BagFacets;
 import com.github.swrirobotics.support.web.BagList;
+import com.github.swrirobotics.support.web.BagSummary;
+import com.github.swrirobotics.support.web.BagSummaryList;
 import com.github.swrirobotics.support.web.ExtJsFilter;
 import org.assertj.core.util.Lists;
 import org.junit.Test;
@@ -49,6 +52,7 @@ import org.springframework.core.io.AbstractResource;
 import org.springframework.core.io.Resource;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.restdocs.payload.FieldDescriptor;
+import org.springframework.restdocs.payload.JsonFieldType;
 
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
@@ -56,11 +60,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Set;
 
 import static org.junit.Assert.assertTrue;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
 import static org.springframework.restdocs.headers.HeaderDocumentation.headerWithName;
 import static org.springframework.restdocs.headers.HeaderDocumentation.requestHeaders;
 import static org.springframework.restdocs.mockmvc.MockMvcRestDocumentation.document;
@@ -179,6 +185,11 @@ public class BagControllerTest extends WebAppConfigurationAware {
         testTopic.setMessageCount(50L);
         testTopic.setTopicName("/rosout");
         testTopic.setType(type);
+        testTopic.setStartTime(bag.getStartTime());
+        testTopic.setEndTime(new Timestamp(bag.getStartTime().getTime() + 4900));
+        testTopic.setMeanFrequency(10.0);
+        testTopic.setMinFrequency(9.5);
+        testTopic.setMaxFrequency(10.5);
         bag.getTopics().add(testTopic);
 
         return bag;
@@ -192,6 +203,17 @@ public class BagControllerTest extends WebAppConfigurationAware {
         return bags;
     }
 
+    public BagSummaryList makeTestBagSummaryList() {
+        Bag testBag = makeTestBag();
+        BagSummary summary = new BagSummary(testBag);
+        summary.setTopics(testBag.getTopics());
+        summary.setMessageTypes(testBag.getMessageTypes());
+        BagSummaryList bags = new BagSummaryList();
+        bags.setBags(new ArrayList<>(){{add(summary);}});
+        bags.setTotalCount(1);
+        return bags;
+    }
+
     public FieldDescriptor[] getBagListFields() {
         return new FieldDescriptor[] {
             fieldWithPath("id").description("Database ID of the bag file"),
@@ -225,6 +247,14 @@ public class BagControllerTest extends WebAppConfigurationAware {
         };
     }
 
+    public FieldDescriptor[] getBagSummaryFields() {
+        return Arrays.stream(getBagListFields())
+            .filter(field -> !Set.of("parentId", "expanded", "leaf").contains(field.getPath()))
+            // Only present if fillTopics or fillTypes is true
+            .map(field -> Set.of("messageTypes", "topics").contains(field.getPath()) ? field.optional() : field)
+            .toArray(FieldDescriptor[]::new);
+    }
+
     public FieldDescriptor[] getMessageTypesFields() {
         return new FieldDescriptor[] {
             fieldWithPath("md5sum").description("ROS MD5 Sum of the message type"),
@@ -239,10 +269,23 @@ public class BagControllerTest extends WebAppConfigurationAware {
             fieldWithPath("bag").description("Database ID of the bag file (redundant, for internal use only)"),
             fieldWithPath("messageCount").description("Number of messages on this topic"),
             fieldWithPath("type").description("MD5 Sum of this topic's message type"),
-            fieldWithPath("connectionCount").description("Number of connections made on this topic")
+            fieldWithPath("connectionCount").description("Number of connections made on this topic"),
+            fieldWithPath("startTime").description("Header stamp of the earliest message on this topic").optional(),
+            fieldWithPath("endTime").description("Header stamp of the latest message on this topic").optional(),
+            fieldWithPath("meanFrequency").description("Average rate in Hz at which messages were published").optional(),
+            fieldWithPath("minFrequency").description("Slowest rate in Hz between two consecutive messages").optional(),
+            fieldWithPath("maxFrequency").description("Fastest rate in Hz between two consecutive messages").optional(),
+            fieldWithPath("totalBytes").description("Total size of the data arrays of all messages on this topic").optional(),
+            fieldWithPath("maxMessageBytes").description("Size of the largest data array on this topic").optional()
         };
     }
 
+    public FieldDescriptor[] getSummaryTopicsFields() {
+        return Arrays.stream(getTopicsFields())
+            .filter(field -> !field.getPath().equals("bag"))
+            .toArray(FieldDescriptor[]::new);
+    }
+
     public FieldDescriptor[] getTagsFields() {
         return new FieldDescriptor[] {
             fieldWithPath("tag").description("Name of the tag"),
@@ -251,6 +294,13 @@ public class BagControllerTest extends WebAppConfigurationAware {
         };
     }
 
+    public FieldDescriptor[] getFacetCountFields() {
+        return new FieldDescriptor[] {
+            fieldWithPath("value").description("A value of the facet"),
+            fieldWithPath("count").description("Number of matching bags with that value")
+        };
+    }
+
     public FieldDescriptor[] getGpsCoordinateFields() {
         return new FieldDescriptor[] {
             fieldWithPath("[0]").description("Longitude coordinate"),
@@ -281,11 +331,13 @@ public class BagControllerTest extends WebAppConfigurationAware {
 
     @Test
     public void getBagImage() throws Exception {
-        when(bagService.getImage(1L, "/topic", 1)).thenReturn(new byte[]{});
+        when(bagService.getImage(1L, "/topic", 1, ImageVariant.ORIGINAL)).thenReturn(new byte[]{});
+        when(bagService.getImageETag(1L, "/topic", 1, ImageVariant.ORIGINAL)).thenReturn("test");
         mockMvc.perform(get("/bags/image")
                 .param("bagId", "1")
                 .param("topic", "/topic")
                 .param("index", "1")).andExpect(status().isOk())
+            .andExpect(header().string("ETag", "\"test\""))
         .andDo(document("bags/{method-name}",
             preprocessRequest(prettyPrint()),
             preprocessResponse(prettyPrint()),
@@ -294,10 +346,62 @@ public class BagControllerTest extends WebAppConfigurationAware {
                 parameterWithName("topic").description("Name of the image topic"),
                 parameterWithName("index").description("Index of the message to retrieve on the message topic; note " +
                     "that this method must iterate through (N-1) messages to retrieve the Nth message on a topic, so" +
-                    "this can be slow")
+                    "this can be slow"),
+                parameterWithName("width").optional().description("Maximum width of the image; it will be " +
+                    "scaled down to fit, preserving its aspect ratio"),
+                parameterWithName("height").optional().description("Maximum height of the image"),
+                parameterWithName("quality").optional().description("JPEG quality from 1 to 100")
+            )));
+    }
+
+    @Test
+    public void getBagRawImage() throws Exception {
+        ImageVariant variant = new ImageVariant(ImageVariant.Format.PNG, 320, null, null);
+        when(bagService.getImage(1L, "/topic", 1, variant)).thenReturn(new byte[]{1, 2, 3});
+        when(bagService.getImageETag(1L, "/topic", 1, variant)).thenReturn("test");
+        mockMvc.perform(get("/bags/image/raw")
+                .header("Accept", "image/png, image/*;q=0.8")
+                .param("bagId", "1")
+                .param("topic", "/topic")
+                .param("index", "1")
+                .param("width", "320")).andExpect(status().isOk())
+            .andExpect(header().string("ETag", "\"test\""))
+            .andExpect(header().string("Content-Type", "image/png"))
+            .andExpect(header().string("Vary", "Accept"))
+            .andExpect(content().bytes(new byte[]{1, 2, 3}))
+        .andDo(document("bags/{method-name}",
+            preprocessRequest(prettyPrint()),
+            requestParameters(
+                parameterWithName("bagId").description("Database ID of the bag to retrieve an image from"),
+                parameterWithName("topic").description("Name of the image topic"),
+                parameterWithName("index").description("Index of the message to retrieve on the message topic"),
+                parameterWithName("width").optional().description("Maximum width of the image"),
+                parameterWithName("height").optional().description("Maximum height of the image"),
+                parameterWithName("quality").optional().description("JPEG or WebP quality from 1 to 100")
             )));
     }
 
+    @Test
+    public void getBagRawImageNotAcceptable() throws Exception {
+        mockMvc.perform(get("/bags/image/raw")
+                .header("Accept", "image/gif")
+                .param("bagId", "1")
+                .param("topic", "/topic")
+                .param("index", "1")).andExpect(status().isNotAcceptable());
+        verify(bagService, never()).getImage(anyLong(), anyString(), anyInt(), any(ImageVariant.class));
+    }
+
+    @Test
+    public void getBagImageNotModified() throws Exception {
+        when(bagService.getImageETag(1L, "/topic", 1, ImageVariant.ORIGINAL)).thenReturn("test");
+        mockMvc.perform(get("/bags/image")
+                .header("If-None-Match", "\"test\"")
+                .param("bagId", "1")
+                .param("topic", "/topic")
+                .param("index", "1")).andExpect(status().isNotModified());
+        verify(bagService, never()).getImage(anyLong(), anyString(), anyInt(), any(ImageVariant.class));
+    }
+
     @Test
     public void downloadBag() throws Exception {
         when(bagService.getBagWrapper(1L)).thenReturn(makeTestBagWrapper());
@@ -322,6 +426,28 @@ public class BagControllerTest extends WebAppConfigurationAware {
             )));
     }
 
+    @Test
+    public void downloadBagRangeCapped() throws Exception {
+        when(bagService.getBagWrapper(1L)).thenReturn(makeTestBagWrapper());
+        when(bagService.getBagMd5Sum(1L)).thenReturn("test");
+        mockMvc.perform(get("/bags/download")
+                .header("Range", "bytes=1500-5000")
+                .param("bagId", "1"))
+            .andExpect(status().isPartialContent())
+            .andExpect(header().string("Content-Length", "500"))
+            .andExpect(header().string("Content-Range", "bytes 1500-1999/2000"));
+    }
+
+    @Test
+    public void downloadBagRangeNotSatisfiable() throws Exception {
+        when(bagService.getBagWrapper(1L)).thenReturn(makeTestBagWrapper());
+        mockMvc.perform(get("/bags/download")
+                .header("Range", "bytes=2000-")
+                .param("bagId", "1"))
+            .andExpect(status().isRequestedRangeNotSatisfiable())
+            .andExpect(header().string("Content-Range", "bytes */2000"));
+    }
+
     @Test
     public void getBagStorageIds() throws Exception {
         when(bagService.getBagStorageIds()).thenReturn(Lists.newArrayList("default"));
@@ -406,7 +532,7 @@ public class BagControllerTest extends WebAppConfigurationAware {
             100,
             "ASC",
             "filename"))
-            .thenReturn(makeTestBagList());
+            .thenReturn(makeTestBagSummaryList());
         ObjectMapper mapper = new ObjectMapper();
         mockMvc.perform(get("/bags/search")
             .param("text", "Key")
@@ -433,6 +559,9 @@ public class BagControllerTest extends WebAppConfigurationAware {
                     "both messageType and topicName at the same time is complex and may be slow.  May include any of: " +
                     "filename, description, tags, path, location, vehicle, messageType, topicName, tags").optional(),
                 parameterWithName("page").description("Page number of results to return; 1 is the first page"),
+                parameterWithName("cursor").description("Pages through results by seeking instead of by page " +
+                    "number, which is faster for deep pages; empty for the first page, or the nextCursor of the " +
+                    "previous page.  Overrides page if present").optional(),
                 parameterWithName("limit").description("Maximum number of results per page"),
                 parameterWithName("sort").description("Column to sort the results on; must be one of: " +
                     "id, path, filename, location, vehicle, description, latitudeDeg, longitudeDeg, missing, " +
@@ -446,15 +575,130 @@ public class BagControllerTest extends WebAppConfigurationAware {
                     "false to leave it empty").optional()
             ), responseFields(
                 fieldWithPath("totalCount").description("Total number of bag files returned by the search"),
+                fieldWithPath("totalCountApproximate").description("True if the search matched too many bag " +
+                    "files to count quickly; totalCount is then a lower bound, and the exact count will be " +
+                    "published on /topic/search_count when it is known"),
+                fieldWithPath("countId").type(JsonFieldType.STRING).optional().description("When the total " +
+                    "count is approximate, identifies the update that will be published with the exact count"),
+                fieldWithPath("nextCursor").type(JsonFieldType.STRING).optional().description("When paging " +
+                    "with a cursor, the cursor for the next page; absent on the last page"),
                 fieldWithPath("bags").description("The requested page of bags that match the search")
             )
-                .andWithPrefix("bags[].", getBagListFields())
+                .andWithPrefix("bags[].", getBagSummaryFields())
                 .andWithPrefix("bags[].messageTypes[].", getMessageTypesFields())
-                .andWithPrefix("bags[].topics[].", getTopicsFields())
+                .andWithPrefix("bags[].topics[].", getSummaryTopicsFields())
                 .andWithPrefix("bags[].tags[].", getTagsFields())
         ));
     }
 
+    @Test
+    public void searchInvalidSpatialFilter() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        for (String[] filterValue : new String[][]{
+            {"bbox", "-99,29,-98"},
+            {"bbox", "-98,29,-99,30"},
+            {"bbox", "-99,north,-98,30"},
+            {"radius", "-98.5,29.5,-10"},
+            {"radius", "-98.5,95,100"},
+            {"polygon", "LINESTRING(-99 29, -98 30)"},
+            {"polygon", "POLYGON((-99 29, -98 29"}}) {
+            ExtJsFilter spatialFilter = new ExtJsFilter();
+            spatialFilter.setProperty("path");
+            spatialFilter.setOperator(filterValue[0]);
+            spatialFilter.setValue(filterValue[1]);
+            mockMvc.perform(get("/bags/search")
+                .param("text", "")
+                .param("page", "1")
+                .param("limit", "100")
+                .param("sort", "filename")
+                .param("dir", "ASC")
+                .param("filter", mapper.writeValueAsString(new ExtJsFilter[]{spatialFilter}))
+            ).andExpect(status().isBadRequest());
+        }
+        verify(bagService, never()).findBagsContainingText(any(), any(), any(), anyInt(), anyInt(), any(), any());
+    }
+
+    @Test
+    public void facets() throws Exception {
+        BagFacets facets = new BagFacets();
+        facets.setVehicles(Lists.newArrayList(new BagFacets.FacetCount("Test Vehicle", 2L)));
+        facets.setLocations(Lists.newArrayList(new BagFacets.FacetCount("Test Location", 1L)));
+        facets.setTags(Lists.newArrayList(new BagFacets.TagFacetCount("weather", "rainy", 2L)));
+        facets.setMessageTypes(Lists.newArrayList(new BagFacets.FacetCount("sensor_msgs/NavSatFix", 2L)));
+        facets.setStorageIds(Lists.newArrayList(new BagFacets.FacetCount("default", 2L)));
+        when(bagService.getFacets("Vehicle", new String[]{"vehicle"}, null, 10)).thenReturn(facets);
+        mockMvc.perform(get("/bags/facets")
+            .param("text", "Vehicle")
+            .param("fields", "vehicle")
+            .param("limit", "10")
+        )
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.vehicles[0].value").value("Test Vehicle"))
+        .andExpect(jsonPath("$.tags[0].count").value(2L))
+        .andDo(document("bags/{method-name}",
+            preprocessRequest(prettyPrint()),
+            preprocessResponse(prettyPrint()),
+            requestParameters(
+                parameterWithName("text").description("Text to search for in selected fields, as for " +
+                    "/bags/search").optional(),
+                parameterWithName("fields").description("List of fields to search for text, as for " +
+                    "/bags/search").optional(),
+                parameterWithName("filter").description("A list of ExtJsFilter objects, as for " +
+                    "/bags/search").optional(),
+                parameterWithName("limit").description("Maximum number of values to return for each facet; " +
+                    "the most common values are returned.  Default: 100, maximum: 1000").optional()
+            ), responseFields(
+                fieldWithPath("vehicles").description("Number of matching bags for each vehicle"),
+                fieldWithPath("locations").description("Number of matching bags for each location"),
+                fieldWithPath("tags").description("Number of matching bags for each tag key and value"),
+                fieldWithPath("messageTypes").description("Number of matching bags that contain each " +
+                    "message type"),
+                fieldWithPath("storageIds").description("Number of matching bags in each storage backend"),
+                fieldWithPath("tags[].tag").description("The tag's key"),
+                fieldWithPath("tags[].value").description("The tag's value"),
+                fieldWithPath("tags[].count").description("Number of matching bags with that tag")
+            )
+                .andWithPrefix("vehicles[].", getFacetCountFields())
+                .andWithPrefix("locations[].", getFacetCountFields())
+                .andWithPrefix("messageTypes[].", getFacetCountFields())
+                .andWithPrefix("storageIds[].", getFacetCountFields())
+        ));
+    }
+
+    @Test
+    public void facetsInvalidLimit() throws Exception {
+        for (String limit : new String[]{"0", "-5", "ten"}) {
+            mockMvc.perform(get("/bags/facets")
+                .param("text", "Vehicle")
+                .param("limit", limit)
+            ).andExpect(status().isBadRequest());
+        }
+        verify(bagService, never()).getFacets(any(), any(), any(), anyInt());
+    }
+
+    @Test
+    public void facetsLimitIsClamped() throws Exception {
+        when(bagService.getFacets(any(), any(), any(), anyInt())).thenReturn(new BagFacets());
+        mockMvc.perform(get("/bags/facets")
+            .param("text", "Clamped")
+            .param("limit", "1000000")
+        ).andExpect(status().isOk());
+        verify(bagService).getFacets(eq("Clamped"), any(), any(), eq(BagController.MAX_FACET_LIMIT));
+    }
+
+    @Test
+    public void facetsInvalidSpatialFilter() throws Exception {
+        ExtJsFilter spatialFilter = new ExtJsFilter();
+        spatialFilter.setProperty("path");
+        spatialFilter.setOperator("bbox");
+        spatialFilter.setValue("-99,29,-98");
+        mockMvc.perform(get("/bags/facets")
+            .param("text", "")
+            .param("filter", new ObjectMapper().writeValueAsString(new ExtJsFilter[]{spatialFilter}))
+        ).andExpect(status().isBadRequest());
+        verify(bagService, never()).getFacets(any(), any(), any(), anyInt());
+    }
+
     @Test
     public void getTagsForBag() throws Exception {
         when(bagService.getBag(1L)).thenReturn(makeTestBag());
@@ -533,14 +777,15 @@ public class BagControllerTest extends WebAppConfigurationAware {
 
     @Test
     public void getGpsCoordsForBag() throws Exception {
-        when(bagService.getGpsCoordsForBags(new ArrayList<>(){{add(1L); add(2L); add(3L);}}))
+        when(bagService.getGpsCoordsForBags(new ArrayList<>(){{add(1L); add(2L); add(3L);}}, null, 5000))
             .thenReturn(new ArrayList<>() {{
                 add(new Double[]{1.0, 2.0});
                 add(new Double[]{1.0, 3.0});
                 add(new Double[]{2.0, 3.0});
             }});
         mockMvc.perform(get("/bags/coords")
-            .param("bagIds", "1", "2", "3"))
+            .param("bagIds", "1", "2", "3")
+            .param("maxPoints", "5000"))
             .andExpect(status().isOk())
             .andExpect(jsonPath("$[0][0]").value("1.0"))
             .andExpect(jsonPath("$[0][1]").value("2.0"))
@@ -552,7 +797,11 @@ public class BagControllerTest extends WebAppConfigurationAware {
             preprocessRequest(prettyPrint()),
             preprocessResponse(prettyPrint()),
             requestParameters(
-                parameterWithName("bagIds").description("Database IDs of bags to get GPS coordinates for")
+                parameterWithName("bagIds").description("Database IDs of bags to get GPS coordinates for"),
+                parameterWithName("zoom").description("Zoom level of the map that will display the path; " +
+                    "points closer together than about one pixel will be removed").optional(),
+                parameterWithName("maxPoints").description("Maximum number of points to return; the path " +
+                    "will be simplified until it fits if possible").optional()
             ),
             responseFields(
                 fieldWithPath("[]").description("A list of (longitude, latitude) coordinates from each bag file.")
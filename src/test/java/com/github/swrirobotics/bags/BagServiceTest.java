@@ -38,28 +38,72 @@ import com.github.swrirobotics.bags.reader.messages.serialization.MessageType;
 import com.github.swrirobotics.bags.reader.messages.serialization.StringType;
 import com.github.swrirobotics.config.ConfigService;
 import com.github.swrirobotics.config.WebAppConfigurationAware;
+import com.github.swrirobotics.persistence.Bag;
+import com.github.swrirobotics.persistence.BagPosition;
+import com.github.swrirobotics.persistence.BagPositionRepository;
+import com.github.swrirobotics.persistence.BagRepository;
+import com.github.swrirobotics.persistence.MessageTypeRepository;
+import com.github.swrirobotics.persistence.Tag;
+import com.github.swrirobotics.persistence.TagRepository;
+import com.github.swrirobotics.persistence.Topic;
+import com.github.swrirobotics.support.web.BagFacets;
+import com.github.swrirobotics.support.web.BagSummaryList;
 import com.github.swrirobotics.support.web.Configuration;
+import com.github.swrirobotics.support.web.ExtJsFilter;
+import com.google.common.collect.Lists;
+import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.Rollback;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
+@Rollback
 public class BagServiceTest extends WebAppConfigurationAware {
     @Autowired
     BagService myBagService;
+    @Autowired
+    BagRepository myBagRepository;
+    @Autowired
+    TagRepository myTagRepository;
+    @Autowired
+    MessageTypeRepository myMTRepository;
+    @Autowired
+    BagPositionRepository myPositionRepository;
+    @Autowired
+    SearchCounter mySearchCounter;
+    @Autowired
+    PlatformTransactionManager myTransactionManager;
     @MockBean
     ConfigService myConfigService;
 
     private static final Logger myLogger = LoggerFactory.getLogger(BagServiceTest.class);
 
+    @Before
+    public void clearSearchCounts() {
+        // Counts are cached across tests, but each test's bags are rolled back
+        mySearchCounter.clear();
+    }
+
     @Test
     public void testGetMetadata() throws BagReaderException {
         // Set up a mock bag file to provide some test data to the service
@@ -93,6 +137,56 @@ public class BagServiceTest extends WebAppConfigurationAware {
         assertEquals("jdoe@example.com", metadata.get("email"));
     }
 
+    @Test
+    public void testDecodeWithPool() {
+        long baseline = MatPool.getNativeBytes();
+        byte[] data = {1, 2, 3, 4};
+        try (MatPool pool = new MatPool()) {
+            var first = myBagService.decodeImage(1, 1, "rgba8", BufferedImage.TYPE_INT_ARGB, data, pool);
+            assertEquals(1, new Color(first.getRGB(0, 0)).getRed());
+            long pooled = MatPool.getNativeBytes();
+            assertTrue(pooled > baseline);
+
+            // Decoding another frame of the same size reuses the same matrices
+            byte[] data2 = {5, 6, 7, 8};
+            var second = myBagService.decodeImage(1, 1, "rgba8", BufferedImage.TYPE_INT_ARGB, data2, pool);
+            assertEquals(5, new Color(second.getRGB(0, 0)).getRed());
+            assertEquals(pooled, MatPool.getNativeBytes());
+        }
+        assertEquals(baseline, MatPool.getNativeBytes());
+    }
+
+    @Test
+    public void testForMessageRangeSeeks() throws BagReaderException {
+        BagFile bagFile = mock(BagFile.class);
+        when(bagFile.getMessageFromIndex(any(), anyInt())).thenReturn(mock(MessageType.class));
+        List<MessageType> messages = new ArrayList<>();
+        MessageHandler handler = (message, connection) -> messages.add(message) && messages.size() < 2;
+
+        BagService.forMessageRange(bagFile, Collections.nCopies(10, null), 4, 8, handler);
+
+        // Reading stops as soon as the handler returns false, and nothing
+        // before the start of the range is read.
+        assertEquals(2, messages.size());
+        verify(bagFile).getMessageFromIndex(any(), eq(4));
+        verify(bagFile).getMessageFromIndex(any(), eq(5));
+        verify(bagFile, times(2)).getMessageFromIndex(any(), anyInt());
+        verify(bagFile, never()).forMessagesOnTopic(any(), any());
+        verify(bagFile, never()).generateIndexesForTopicList(any(), any());
+    }
+
+    @Test
+    public void testDecodeMono16ByteOrder() {
+        byte[] data = {0x01, 0x02};
+        try (MatPool pool = new MatPool()) {
+            var little = myBagService.decodeImage(1, 1, "mono16", BufferedImage.TYPE_USHORT_GRAY, data, false, pool);
+            assertEquals(0x0201, little.getRaster().getSample(0, 0, 0));
+
+            var big = myBagService.decodeImage(1, 1, "mono16", BufferedImage.TYPE_USHORT_GRAY, data, true, pool);
+            assertEquals(0x0102, big.getRaster().getSample(0, 0, 0));
+        }
+    }
+
     @Test
     public void testDecodeBgra() {
         byte[] data = {1, 2, 3, 4};
@@ -120,4 +214,279 @@ public class BagServiceTest extends WebAppConfigurationAware {
         assertEquals(2, color.getGreen());
         assertEquals(3, color.getBlue());
     }
+
+    private Bag insertBagAt(String md5sum, double latitude, double longitude) {
+        Bag bag = new Bag();
+        bag.setMd5sum(md5sum);
+        bag.setCreatedOn(new Timestamp(System.currentTimeMillis()));
+        bag.setDuration(0.0);
+        bag.setStartTime(new Timestamp(System.currentTimeMillis()));
+        bag.setEndTime(new Timestamp(System.currentTimeMillis()));
+        bag.setFilename(md5sum + ".bag");
+        bag.setPath("/test/");
+        bag.setVersion("2.0");
+        bag.setCompressed(false);
+        bag.setIndexed(true);
+        bag.setMessageCount(0L);
+        bag.setMissing(false);
+        bag.setSize(0L);
+        bag.setCoordinate(myBagService.makePoint(latitude, longitude));
+        return myBagRepository.save(bag);
+    }
+
+    private List<BagPosition> insertLine(Bag bag, int count, long startTimeMs, double latitude) {
+        List<BagPosition> positions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            BagPosition position = new BagPosition();
+            position.setBag(bag);
+            position.setPosition(myBagService.makePoint(latitude, -98.0 + i * 0.001));
+            position.setPositionTime(new Timestamp(startTimeMs + i * 1000L));
+            positions.add(myPositionRepository.save(position));
+        }
+        return positions;
+    }
+
+    private void insertTag(Bag bag, String name, String value) {
+        Tag tag = new Tag();
+        tag.setTag(name);
+        tag.setValue(value);
+        tag.setBag(bag);
+        tag.setBagId(bag.getId());
+        myTagRepository.save(tag);
+    }
+
+    private ExtJsFilter makeFilter(String property, String operator, String value) {
+        ExtJsFilter filter = new ExtJsFilter();
+        filter.setProperty(property);
+        filter.setOperator(operator);
+        filter.setValue(value);
+        return filter;
+    }
+
+    @Test
+    @Transactional
+    public void testSpatialFilters() {
+        Bag sanAntonio = insertBagAt("spatial1", 29.448972, -98.621488);
+        insertBagAt("spatial2", 30.267153, -97.743061);
+
+        BagSummaryList bags = myBagService.findBagsContainingText(null, null, new ExtJsFilter[]{
+            makeFilter("coordinate", "bbox", "-99.0,29.0,-98.0,30.0")}, 1, 10, "ASC", "id");
+        assertEquals(1, bags.getTotalCount());
+        assertEquals(sanAntonio.getId(), bags.getBags().get(0).getId());
+
+        bags = myBagService.findBagsContainingText(null, null, new ExtJsFilter[]{
+            makeFilter("coordinate", "radius", "-98.6215,29.449,100")}, 1, 10, "ASC", "id");
+        assertEquals(1, bags.getTotalCount());
+
+        bags = myBagService.findBagsContainingText(null, null, new ExtJsFilter[]{
+            makeFilter("coordinate", "polygon", "POLYGON((-100 28, -96 28, -96 31, -100 31, -100 28))")},
+            1, 10, "ASC", "id");
+        assertEquals(2, bags.getTotalCount());
+    }
+
+    @Test
+    @Transactional
+    public void testGpsCoordsWithoutSimplifiedPaths() {
+        // This bag was added before simplified paths were stored, so every
+        // one of its positions is used at every level of detail.
+        Bag legacy = insertBagAt("gps1", 29.0, -98.0);
+        insertLine(legacy, 50, 1000000L, 29.0);
+        Bag simplified = insertBagAt("gps2", 30.0, -98.0);
+        myBagService.updateSimplifiedPaths(simplified, insertLine(simplified, 50, 2000000L, 30.0));
+
+        List<Long> bagIds = List.of(simplified.getId(), legacy.getId());
+        // Level 1 fits; 50 positions from one bag and 2 points from the other
+        List<Double[]> coords = myBagService.getGpsCoordsForBags(bagIds, null, 60);
+        assertEquals(52, coords.size());
+        // The paths are still in order of time
+        assertEquals(29.0, coords.get(0)[1], 1e-9);
+        assertEquals(29.0, coords.get(49)[1], 1e-9);
+        assertEquals(30.0, coords.get(50)[1], 1e-9);
+
+        assertEquals(100, myBagService.getGpsCoordsForBags(bagIds, null, 100).size());
+        assertEquals(List.of(legacy.getId()), myBagService.getBagIdsWithoutSimplifiedPaths().stream()
+            .filter(bagIds::contains).collect(Collectors.toList()));
+    }
+
+    @Test
+    @Transactional
+    public void testTextSearch() {
+        Bag rainy = insertBagAt("text1", 29.448972, -98.621488);
+        Bag sunny = insertBagAt("text2", 30.267153, -97.743061);
+        // Two matching tags on the same bag must still only return it once
+        insertTag(rainy, "weather", "Rainy");
+        insertTag(rainy, "rain gauge", "12mm");
+        insertTag(sunny, "weather", "sunny");
+
+        BagSummaryList bags = myBagService.findBagsContainingText("RAIN", new String[]{"tags"}, null,
+                                                                  1, 10, "ASC", "id");
+        assertEquals(1, bags.getTotalCount());
+        assertEquals(rainy.getId(), bags.getBags().get(0).getId());
+        assertEquals(2, bags.getBags().get(0).getTags().size());
+        // Topics are only loaded if they're asked for
+        assertNull(bags.getBags().get(0).getTopics());
+
+        bags = myBagService.findBagsContainingText("text2", new String[]{"tags", "filename"}, null,
+                                                   1, 10, "ASC", "id");
+        assertEquals(1, bags.getTotalCount());
+        assertEquals(sunny.getId(), bags.getBags().get(0).getId());
+
+        bags = myBagService.findBagsContainingText("text", new String[]{"filename"}, new ExtJsFilter[]{
+            makeFilter("coordinate", "bbox", "-99.0,29.0,-98.0,30.0")}, 1, 10, "ASC", "id");
+        assertEquals(1, bags.getTotalCount());
+        assertEquals(rainy.getId(), bags.getBags().get(0).getId());
+    }
+
+    @Test
+    @Transactional
+    public void testFillBagDetails() {
+        com.github.swrirobotics.persistence.MessageType type = new com.github.swrirobotics.persistence.MessageType();
+        type.setName("sensor_msgs/Image");
+        type.setMd5sum("060021388200f6f0f447d0fcd9c64743");
+        type = myMTRepository.save(type);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Bag bag = insertBagAt("details" + i, 29.0, -98.0);
+            bag.getMessageTypes().add(type);
+            for (int j = 0; j <= i; j++) {
+                Topic topic = new Topic();
+                topic.setTopicName("/camera" + j);
+                topic.setType(type);
+                topic.setMessageCount(10L);
+                topic.setConnectionCount(1L);
+                topic.setBag(bag);
+                bag.getTopics().add(topic);
+            }
+            ids.add(myBagRepository.save(bag).getId());
+        }
+        // Insert another bag that shouldn't be loaded
+        insertBagAt("other", 29.0, -98.0);
+
+        BagSummaryList bags = myBagService.findBagsContainingText("details", new String[]{"filename"}, null,
+                                                                  1, 10, "ASC", "id");
+        assertEquals(2, bags.getTotalCount());
+        myBagService.fillBagDetails(bags.getBags(), true, false);
+        assertEquals(1, bags.getBags().get(0).getTopics().size());
+        assertEquals(2, bags.getBags().get(1).getTopics().size());
+        assertEquals("sensor_msgs/Image", bags.getBags().get(1).getTopics().iterator().next().getType().getName());
+        assertNull(bags.getBags().get(0).getMessageTypes());
+
+        myBagService.fillBagDetails(bags.getBags(), false, true);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(ids.get(i), bags.getBags().get(i).getId());
+            assertEquals(1, bags.getBags().get(i).getMessageTypes().size());
+        }
+    }
+
+    @Test
+    public void testFacets() {
+        // The facets are counted on other threads, so the bags have to be
+        // committed for them to be visible.
+        TransactionTemplate template = new TransactionTemplate(myTransactionManager);
+        List<Long> ids = template.execute(status -> {
+            List<Long> bagIds = new ArrayList<>();
+            String[] vehicles = {"truck", "car", "truck"};
+            String[] weather = {"rainy", "rainy", "sunny"};
+            for (int i = 0; i < vehicles.length; i++) {
+                Bag bag = insertBagAt("facet" + i, 29.0, -98.0);
+                bag.setVehicle(vehicles[i]);
+                bag.setStorageId("default");
+                insertTag(bag, "weather", weather[i]);
+                bagIds.add(bag.getId());
+            }
+            return bagIds;
+        });
+
+        try {
+            String[] fields = {"filename"};
+            BagFacets facets = myBagService.getFacets("facet", fields, null, 10);
+            assertEquals(2, facets.getVehicles().size());
+            assertEquals("truck", facets.getVehicles().get(0).value);
+            assertEquals(2, facets.getVehicles().get(0).count);
+            assertEquals("weather", facets.getTags().get(0).tag);
+            assertEquals("rainy", facets.getTags().get(0).value);
+            assertEquals(2, facets.getTags().get(0).count);
+            assertEquals(1, facets.getStorageIds().size());
+            assertEquals(3, facets.getStorageIds().get(0).count);
+            // None of the bags have a location
+            assertTrue(facets.getLocations().isEmpty());
+
+            facets = myBagService.getFacets("facet", fields, null, 1);
+            assertEquals(1, facets.getVehicles().size());
+            assertEquals(1, facets.getTags().size());
+
+            facets = myBagService.getFacets("facet", fields, new ExtJsFilter[]{
+                makeFilter("vehicle", "like", "car")}, 10);
+            assertEquals(1, facets.getVehicles().size());
+            assertEquals("car", facets.getVehicles().get(0).value);
+            assertEquals(1, facets.getTags().get(0).count);
+        }
+        finally {
+            template.executeWithoutResult(status -> {
+                for (Long id : ids) {
+                    myTagRepository.deleteAll(myTagRepository.findByBagId(id));
+                    myBagRepository.deleteById(id);
+                }
+            });
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFacetLimit() {
+        myBagService.getFacets(null, null, null, 0);
+    }
+
+    @Test
+    public void testQueryKey() {
+        ExtJsFilter bbox = makeFilter("coordinate", "bbox", "-99.0,29.0,-98.0,30.0");
+        ExtJsFilter vehicle = makeFilter("vehicle", "like", "truck");
+        assertEquals(BagService.getQueryKey("Rain", new String[]{"tags", "filename"}, new ExtJsFilter[]{bbox, vehicle}),
+                     BagService.getQueryKey("rain", new String[]{"filename", "tags"}, new ExtJsFilter[]{vehicle, bbox}));
+        // Fields don't matter if there's no text to search for
+        assertEquals(BagService.getQueryKey("", new String[]{"tags"}, null),
+                     BagService.getQueryKey(null, null, new ExtJsFilter[0]));
+        assertNotEquals(BagService.getQueryKey("rain", new String[]{"tags"}, null),
+                        BagService.getQueryKey("rain", new String[]{"filename"}, null));
+    }
+
+    @Test
+    @Transactional
+    public void testKeysetPaging() {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Bag bag = insertBagAt("keyset" + i, 29.0, -98.0);
+            // Give two bags the same description and two none at all, so that
+            // ties and nulls have to be handled.
+            bag.setDescription(i < 2 ? "same" : i < 4 ? null : "other");
+            ids.add(myBagRepository.save(bag).getId());
+        }
+        String[] fields = {"filename"};
+
+        for (String dir : new String[]{"ASC", "DESC"}) {
+            List<Long> paged = new ArrayList<>();
+            String cursor = "";
+            int pages = 0;
+            while (cursor != null) {
+                BagSummaryList page = myBagService.findBagsAfterCursor("keyset", fields, null, cursor, 2, dir, "description");
+                assertEquals(5, page.getTotalCount());
+                page.getBags().forEach(bag -> paged.add(bag.getId()));
+                cursor = page.getNextCursor();
+                pages++;
+            }
+            assertEquals(3, pages);
+            assertEquals(5, paged.size());
+            assertEquals(new HashSet<>(ids), new HashSet<>(paged));
+            // Bags with the same description must stay in ID order
+            List<Long> sameIds = paged.stream().filter(id -> id.equals(ids.get(0)) || id.equals(ids.get(1)))
+                .collect(Collectors.toList());
+            assertEquals(dir.equals("ASC") ? ids.subList(0, 2) : Lists.newArrayList(ids.get(1), ids.get(0)),
+                         sameIds);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeysetCursorSortMismatch() {
+        String cursor = new SearchCursor("filename", true, "a.bag", 1L, 10L).encode();
+        myBagService.findBagsAfterCursor(null, null, null, cursor, 10, "DESC", "filename");
+    }
 }
@@ -0,0 +1,80 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.bags;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class CoordinateEncoderTest {
+    @Test
+    public void testPolyline() throws IOException {
+        // This is the example from Google's description of the algorithm
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CoordinateEncoder encoder = CoordinateEncoder.create(CoordinateEncoder.Format.POLYLINE, output);
+        encoder.write(-120.2, 38.5);
+        encoder.write(-120.95, 40.7);
+        encoder.write(-126.453, 43.252);
+
+        assertEquals(3, encoder.getPointCount());
+        assertEquals("_p~iF~ps|U_ulLnnqC_mqNvxq`@", output.toString(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testZigzag() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CoordinateEncoder encoder = CoordinateEncoder.create(CoordinateEncoder.Format.ZIGZAG, output);
+        encoder.write(0.000001, -0.000001);
+        encoder.write(0.000065, -0.000001);
+
+        // (1, -1) -> (2, 1); then (64, 0) -> (128, 0), which takes two bytes as a varint
+        assertArrayEquals(new byte[]{2, 1, (byte) 0x80, 0x01, 0}, output.toByteArray());
+    }
+
+    @Test
+    public void testZigzagNegativeMultiByte() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CoordinateEncoder encoder = CoordinateEncoder.create(CoordinateEncoder.Format.ZIGZAG, output);
+        encoder.write(-98.5, 29.4);
+        encoder.write(-98.500001, 29.400002);
+
+        // -98500000 -> 196999999 and 29400000 -> 58800000 take four bytes each;
+        // the deltas (-1, 2) -> (1, 4) take one byte each.
+        assertArrayEquals(new byte[]{(byte) 191, (byte) 246, (byte) 247, 93,
+                                     (byte) 128, (byte) 239, (byte) 132, 28,
+                                     1, 4}, output.toByteArray());
+    }
+}
@@ -0,0 +1,149 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.config.WebAppConfigurationAware;
+import com.github.swrirobotics.persistence.Bag;
+import com.github.swrirobotics.persistence.BagRepository;
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.Rollback;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+@Rollback
+public class DirectoryCounterTest extends WebAppConfigurationAware {
+    @Autowired
+    DirectoryCounter myDirectoryCounter;
+    @Autowired
+    BagRepository myBagRepository;
+    @Autowired
+    BagService myBagService;
+
+    private void insertBag(String storageId, String path, String filename) {
+        Bag bag = new Bag();
+        bag.setMd5sum(path + filename);
+        bag.setCreatedOn(new Timestamp(System.currentTimeMillis()));
+        bag.setDuration(0.0);
+        bag.setStartTime(new Timestamp(System.currentTimeMillis()));
+        bag.setEndTime(new Timestamp(System.currentTimeMillis()));
+        bag.setFilename(filename);
+        bag.setPath(path);
+        bag.setStorageId(storageId);
+        bag.setVersion("2.0");
+        bag.setCompressed(false);
+        bag.setIndexed(true);
+        bag.setMessageCount(0L);
+        bag.setMissing(false);
+        bag.setSize(0L);
+        myBagRepository.save(bag);
+    }
+
+    @Test
+    public void testGetDirectories() {
+        assertEquals(List.of("/", "/bags/", "/bags/2020/"), DirectoryCounter.getDirectories("/bags/2020/"));
+        assertEquals(List.of("bags/", "bags/2020"), DirectoryCounter.getDirectories("bags/2020"));
+        assertEquals(List.of(), DirectoryCounter.getDirectories(""));
+    }
+
+    @Test
+    @Transactional
+    public void testAdjustCount() {
+        myDirectoryCounter.adjustCount("default", "/adjust/a/", 2);
+        myDirectoryCounter.adjustCount("default", "/adjust/b/", 1);
+        myDirectoryCounter.adjustCount("other", "/adjust/b/", 1);
+        assertEquals(3, myDirectoryCounter.getCount("default", "/adjust/"));
+        assertEquals(2, myDirectoryCounter.getCount("default", "/adjust/a/"));
+        assertEquals(1, myDirectoryCounter.getCount("other", "/adjust/"));
+
+        myDirectoryCounter.adjustCount("default", "/adjust/a/", -2);
+        assertEquals(1, myDirectoryCounter.getCount("default", "/adjust/"));
+        assertEquals(0, myDirectoryCounter.getCount("default", "/adjust/a/"));
+
+        myDirectoryCounter.adjustCount(null, "/adjust/c/", 1);
+        assertEquals(1, myDirectoryCounter.getCount(null, "/adjust/"));
+        assertEquals(1, myDirectoryCounter.getCount("default", "/adjust/"));
+    }
+
+    @Test
+    @Transactional
+    public void testDeleteUnownedBags() {
+        List<String> storageIds = myBagService.getBagStorageIds();
+        Assume.assumeFalse(storageIds.isEmpty());
+        insertBag(storageIds.get(0), "/unowned/", "kept.bag");
+        insertBag(null, "/unowned/", "lost.bag");
+        myDirectoryCounter.rebuildCounts();
+        assertEquals(1, myDirectoryCounter.getCount(null, "/unowned/"));
+
+        myBagService.deleteUnownedBags();
+        assertEquals(0, myDirectoryCounter.getCount(null, "/unowned/"));
+        assertEquals(1, myDirectoryCounter.getCount(storageIds.get(0), "/unowned/"));
+    }
+
+    @Test
+    @Transactional
+    public void testFilteredCounts() {
+        insertBag("default", "/counted/", "top.bag");
+        insertBag("default", "/counted/a/", "match1.bag");
+        insertBag("default", "/counted/a/", "other.bag");
+        insertBag(null, "/counted/b/", "MATCH2.bag");
+        insertBag("default", "/nested/deep/", "deep.bag");
+        myDirectoryCounter.rebuildCounts();
+
+        Map<String, Long> counts = myDirectoryCounter.getFilteredCounts("").stream()
+            .collect(Collectors.toMap(count -> count.path, count -> count.count));
+        assertEquals(Long.valueOf(4), counts.get("/counted/"));
+        assertEquals(Long.valueOf(2), counts.get("/counted/a/"));
+        assertEquals(Long.valueOf(1), counts.get("/counted/b/"));
+        assertEquals(Long.valueOf(1), counts.get("/nested/deep/"));
+        // Only the paths that bags are directly in are counted.
+        assertFalse(counts.containsKey("/nested/"));
+
+        counts = myDirectoryCounter.getFilteredCounts("match").stream()
+            .collect(Collectors.toMap(count -> count.path, count -> count.count));
+        assertEquals(Long.valueOf(2), counts.get("/counted/"));
+        assertEquals(Long.valueOf(1), counts.get("/counted/a/"));
+        assertEquals(Long.valueOf(1), counts.get("/counted/b/"));
+        assertEquals(Long.valueOf(0), counts.get("/nested/deep/"));
+        assertFalse(counts.containsKey("/nested/"));
+
+        counts = myDirectoryCounter.getFilteredCounts("nothing").stream()
+            .collect(Collectors.toMap(count -> count.path, count -> count.count));
+        assertEquals(Long.valueOf(0), counts.get("/counted/"));
+    }
+}
@@ -0,0 +1,152 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.persistence.BagRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class DirectoryTreeTest {
+    private BagRepository myBagRepository;
+    private DirectoryTree myTree;
+
+    @Before
+    public void setUp() {
+        myBagRepository = mock(BagRepository.class);
+        when(myBagRepository.countByStorageIdAndPath()).thenReturn(List.of(
+            new Object[]{"default", "/bags/2020/", 2L},
+            new Object[]{"default", "/bags/2021/a/", 1L},
+            new Object[]{"default", "/bags/", 1L},
+            new Object[]{"s3", "/", 1L},
+            new Object[]{"s3", "vehicle/", 3L}));
+        myTree = new DirectoryTree(myBagRepository);
+    }
+
+    private List<String> getNames(String storageId, String path) {
+        return myTree.getSubdirectories(storageId, path).stream()
+            .map(DirectoryTree.Directory::getName)
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testGetSegments() {
+        assertEquals(List.of("bags", "2020"), DirectoryTree.getSegments("/bags/2020/"));
+        assertEquals(List.of("bags", "2020"), DirectoryTree.getSegments("bags//2020"));
+        assertEquals(List.of(), DirectoryTree.getSegments("/"));
+    }
+
+    @Test
+    public void testLoad() {
+        assertEquals(4, myTree.getBagCount("default", "/bags/"));
+        assertEquals(1, myTree.getBagCount("default", "/bags/2021"));
+        assertEquals(0, myTree.getBagCount("default", "/other/"));
+        assertEquals(4, myTree.getBagCount("s3", ""));
+        assertEquals(List.of("2020", "2021"), getNames("default", "/bags/"));
+        assertEquals(List.of("vehicle"), getNames("s3", ""));
+
+        DirectoryTree.Directory directory = myTree.getSubdirectories("default", "/bags/").get(1);
+        assertEquals(1, directory.getBagCount());
+        assertTrue(directory.hasSubdirectories());
+
+        assertEquals(List.of("/bags/", "/bags/2020/", "/bags/2021/a/"), myTree.getPaths("default"));
+        assertEquals(List.of("/", "vehicle/"), myTree.getPaths("s3"));
+        verify(myBagRepository, times(1)).countByStorageIdAndPath();
+    }
+
+    @Test
+    public void testCountChanges() {
+        assertEquals(4, myTree.getBagCount("default", "/"));
+        myTree.onCountChange(new DirectoryCounter.CountChangeEvent("default", "/bags/2022/", 2));
+        assertEquals(6, myTree.getBagCount("default", "/"));
+        assertEquals(List.of("2020", "2021", "2022"), getNames("default", "/bags/"));
+
+        myTree.onCountChange(new DirectoryCounter.CountChangeEvent("default", "/bags/2021/a/", -1));
+        assertEquals(5, myTree.getBagCount("default", "/"));
+        assertEquals(List.of("2020", "2022"), getNames("default", "/bags/"));
+        assertFalse(myTree.getPaths("default").contains("/bags/2021/a/"));
+
+        myTree.onCountChange(new DirectoryCounter.CountChangeEvent("default", "/bags/", -1));
+        assertEquals(List.of("/bags/2020/", "/bags/2022/"), myTree.getPaths("default"));
+        assertEquals(4, myTree.getBagCount("default", "/bags/"));
+    }
+
+    @Test
+    public void testReset() {
+        assertEquals(4, myTree.getBagCount("default", "/"));
+        when(myBagRepository.countByStorageIdAndPath()).thenReturn(List.<Object[]>of(
+            new Object[]{"default", "/bags/2020/", 5L}));
+        myTree.onCountsReset(new DirectoryCounter.CountsResetEvent());
+        assertEquals(5, myTree.getBagCount("default", "/"));
+        assertEquals(List.of("2020"), getNames("default", "/bags/"));
+        assertEquals(0, myTree.getBagCount("s3", ""));
+    }
+
+    @Test
+    public void testChangeCommittedBeforeLoad() {
+        // The change is made in a transaction that commits before the tree
+        // is read, so it's already in the tree by the time it's applied.
+        DirectoryCounter.CountChangeEvent event =
+            new DirectoryCounter.CountChangeEvent("default", "/bags/2020/", 1);
+        when(myBagRepository.countByStorageIdAndPath()).thenReturn(List.<Object[]>of(
+            new Object[]{"default", "/bags/2020/", 3L}));
+        assertEquals(3, myTree.getBagCount("default", "/"));
+
+        myTree.onCountChange(event);
+        assertEquals(3, myTree.getBagCount("default", "/"));
+        verify(myBagRepository, times(2)).countByStorageIdAndPath();
+
+        myTree.onCountChange(new DirectoryCounter.CountChangeEvent("default", "/bags/2020/", 1));
+        assertEquals(4, myTree.getBagCount("default", "/"));
+        verify(myBagRepository, times(2)).countByStorageIdAndPath();
+    }
+
+    @Test
+    public void testChangeMadeDuringLoad() {
+        // The change's transaction commits while the tree is being read, so
+        // it may or may not be in the results.
+        DirectoryCounter.CountChangeEvent[] event = new DirectoryCounter.CountChangeEvent[1];
+        when(myBagRepository.countByStorageIdAndPath()).thenAnswer(i -> {
+            event[0] = new DirectoryCounter.CountChangeEvent("default", "/bags/2020/", 1);
+            return List.<Object[]>of(new Object[]{"default", "/bags/2020/", 3L});
+        });
+        assertEquals(3, myTree.getBagCount("default", "/"));
+
+        myTree.onCountChange(event[0]);
+        assertEquals(3, myTree.getBagCount("default", "/"));
+        verify(myBagRepository, times(2)).countByStorageIdAndPath();
+    }
+}
@@ -0,0 +1,125 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.config.ConfigService;
+import com.github.swrirobotics.support.web.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class EncoderPoolTest {
+    private EncoderPool myPool;
+
+    @Before
+    public void setUp() {
+        Configuration config = new Configuration();
+        config.setMaxConcurrentEncodes(1);
+        config.setMaxQueuedEncodes(2);
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getConfiguration()).thenReturn(config);
+        myPool = new EncoderPool(configService);
+    }
+
+    @Test
+    public void testQueueIsFair() throws Exception {
+        EncoderPool.Ticket first = myPool.enqueue("first");
+        EncoderPool.Ticket second = myPool.enqueue("second");
+        EncoderPool.Ticket third = myPool.enqueue("third");
+        assertEquals(0, first.getPosition());
+        assertEquals(1, second.getPosition());
+        assertEquals(2, third.getPosition());
+
+        first.close();
+        assertEquals(0, second.getPosition());
+        assertEquals(1, third.getPosition());
+        assertTrue(second.await());
+    }
+
+    @Test
+    public void testRejectsWhenFull() throws Exception {
+        myPool.enqueue("first");
+        myPool.enqueue("second");
+        EncoderPool.Ticket third = myPool.enqueue("third");
+        try {
+            myPool.enqueue("fourth");
+            fail("Expected the pool to be full.");
+        }
+        catch (EncoderPoolFullException e) {
+            assertTrue(e.getRetryAfterS() > 0);
+        }
+
+        assertTrue(third.cancelIfWaiting());
+        assertFalse(third.await());
+        assertEquals(1, myPool.getQueuedCount());
+        myPool.enqueue("fourth");
+    }
+
+    @Test
+    public void testBackgroundEncodesWaitForIdle() throws Exception {
+        EncoderPool.Ticket first = myPool.enqueue("first");
+        EncoderPool.Ticket second = myPool.enqueue("second");
+        AtomicReference<EncoderPool.Ticket> background = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                background.set(myPool.acquireWhenIdle("background"));
+            }
+            catch (InterruptedException e) {
+                // The test will fail below
+            }
+        });
+        thread.start();
+
+        // It doesn't take a place in the queue or jump ahead of it.
+        Thread.sleep(200);
+        assertNull(background.get());
+        assertEquals(1, myPool.getQueuedCount());
+        myPool.enqueue("third").close();
+
+        first.close();
+        Thread.sleep(200);
+        assertNull(background.get());
+        second.close();
+        thread.join(5000);
+        assertNotNull(background.get());
+        assertEquals(0, background.get().getPosition());
+        assertTrue(myPool.isBusy());
+
+        background.get().close();
+        assertFalse(myPool.isBusy());
+    }
+}
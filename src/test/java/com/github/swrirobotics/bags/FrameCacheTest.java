@@ -0,0 +1,139 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.bags.reader.exceptions.BagReaderException;
+import com.github.swrirobotics.config.ConfigService;
+import com.github.swrirobotics.support.web.Configuration;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class FrameCacheTest {
+    @Rule
+    public TemporaryFolder myFolder = new TemporaryFolder();
+
+    private ConfigService myConfigService;
+    private Configuration myConfiguration;
+
+    @Before
+    public void setUp() throws IOException {
+        myConfiguration = new Configuration();
+        myConfigService = mock(ConfigService.class);
+        when(myConfigService.getConfiguration()).thenReturn(myConfiguration);
+        when(myConfigService.getCacheDirectory("frames")).thenReturn(myFolder.getRoot());
+    }
+
+    private int countCachedFrames() {
+        return myFolder.getRoot().listFiles((dir, name) -> name.endsWith(".frame")).length;
+    }
+
+    @Test
+    public void testKeyIsStable() {
+        String key = FrameCache.getKey("abc123", "/image", 5, "original");
+        assertEquals(key, FrameCache.getKey("abc123", "/image", 5, "original"));
+        assertNotEquals(key, FrameCache.getKey("abc123", "/image", 6, "original"));
+        assertNotEquals(key, FrameCache.getKey("abc123", "/image", 5, "jpeg 100x100"));
+        assertNotEquals(key, FrameCache.getKey("def456", "/image", 5, "original"));
+    }
+
+    @Test
+    public void testFramesAreOnlyLoadedOnce() throws BagReaderException {
+        FrameCache cache = new FrameCache(myConfigService);
+        AtomicInteger loads = new AtomicInteger(0);
+        String key = FrameCache.getKey("abc123", "/image", 0, "original");
+
+        byte[] first = cache.get(key, () -> {
+            loads.incrementAndGet();
+            return new byte[]{1, 2, 3};
+        });
+        byte[] second = cache.get(key, () -> {
+            loads.incrementAndGet();
+            return new byte[]{4, 5, 6};
+        });
+
+        assertEquals(1, loads.get());
+        assertArrayEquals(new byte[]{1, 2, 3}, first);
+        assertArrayEquals(first, second);
+        assertEquals(1, countCachedFrames());
+    }
+
+    @Test
+    public void testFramesAreReusedFromDisk() throws BagReaderException {
+        String key = FrameCache.getKey("abc123", "/image", 0, "original");
+        new FrameCache(myConfigService).get(key, () -> new byte[]{1, 2, 3});
+
+        // A new cache has nothing in memory, so it has to find the frame on disk.
+        byte[] frame = new FrameCache(myConfigService).get(key, () -> {
+            fail("The frame should have been read from disk.");
+            return null;
+        });
+        assertArrayEquals(new byte[]{1, 2, 3}, frame);
+    }
+
+    @Test
+    public void testDiskSizeBound() throws BagReaderException {
+        myConfiguration.setFrameCacheSizeMb(1);
+        FrameCache cache = new FrameCache(myConfigService);
+        for (int i = 0; i < 5; i++) {
+            cache.get(FrameCache.getKey("abc123", "/image", i, "original"), () -> new byte[400 * 1024]);
+        }
+        assertEquals(2, countCachedFrames());
+
+        cache.clear();
+        assertEquals(0, countCachedFrames());
+    }
+
+    @Test
+    public void testFailedLoadsAreNotCached() throws BagReaderException {
+        FrameCache cache = new FrameCache(myConfigService);
+        String key = FrameCache.getKey("abc123", "/image", 0, "original");
+        try {
+            cache.get(key, () -> {
+                throw new BagReaderException("Unable to read frame");
+            });
+            fail("The loader's exception should have been thrown.");
+        }
+        catch (BagReaderException e) {
+            assertEquals("Unable to read frame", e.getMessage());
+        }
+
+        assertArrayEquals(new byte[]{1}, cache.get(key, () -> new byte[]{1}));
+        assertEquals(1, countCachedFrames());
+    }
+}
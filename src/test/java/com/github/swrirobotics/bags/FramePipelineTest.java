@@ -0,0 +1,164 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FramePipelineTest {
+    private static class Frame {
+        int myValue;
+        int myConverted;
+    }
+
+    @Test
+    public void testFramesStayInOrder() throws Exception {
+        AtomicInteger created = new AtomicInteger(0);
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        FramePipeline<Frame> pipeline = new FramePipeline<>(4, () -> {
+            created.incrementAndGet();
+            return new Frame();
+        }, frame -> {
+            // Take longer on some frames so that the stages run at different rates.
+            if (frame.myValue % 7 == 0) {
+                Thread.sleep(2);
+            }
+            frame.myConverted = frame.myValue * 2;
+        }, frame -> written.add(frame.myConverted));
+
+        for (int i = 0; i < 100; i++) {
+            Frame frame = pipeline.takeFreeFrame();
+            assertNotNull(frame);
+            frame.myValue = i;
+            pipeline.submit(frame);
+        }
+        pipeline.finish(() -> fail("The writer should not have stalled."));
+
+        assertFalse(pipeline.hasFailed());
+        assertFalse(pipeline.isRunning());
+        assertEquals(100, written.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i * 2, (int) written.get(i));
+        }
+        // Four frames plus the end of the stream, no matter how many were submitted.
+        assertEquals(5, created.get());
+    }
+
+    @Test
+    public void testFailureStopsPipeline() throws Exception {
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        FramePipeline<Frame> pipeline = new FramePipeline<>(4, Frame::new, frame -> {}, frame -> {
+            if (frame.myValue == 5) {
+                throw new IllegalStateException("Unable to write frame");
+            }
+            written.add(frame.myValue);
+        });
+
+        int submitted = 0;
+        Frame frame;
+        while ((frame = pipeline.takeFreeFrame()) != null) {
+            frame.myValue = submitted++;
+            pipeline.submit(frame);
+            assertTrue("The pipeline should have stopped taking frames.", submitted < 1000);
+        }
+        pipeline.finish(() -> {});
+
+        assertTrue(pipeline.hasFailed());
+        assertFalse(pipeline.isRunning());
+        assertEquals(List.of(0, 1, 2, 3, 4), written);
+    }
+
+    @Test
+    public void testStalledWriterIsReported() throws Exception {
+        CountDownLatch unblocked = new CountDownLatch(1);
+        FramePipeline<Frame> pipeline = new FramePipeline<>(4, Frame::new, frame -> {}, frame -> {
+            assertTrue(unblocked.await(10, TimeUnit.SECONDS));
+        });
+        pipeline.submit(pipeline.takeFreeFrame());
+
+        AtomicInteger stalls = new AtomicInteger(0);
+        pipeline.finish(() -> {
+            stalls.incrementAndGet();
+            unblocked.countDown();
+        });
+
+        assertTrue(stalls.get() > 0);
+        assertFalse(pipeline.isRunning());
+    }
+
+    @Test
+    public void testConverterCleanup() throws Exception {
+        CountDownLatch unblocked = new CountDownLatch(1);
+        FramePipeline<Frame> pipeline = new FramePipeline<>(4, Frame::new, frame -> {
+            assertTrue(unblocked.await(10, TimeUnit.SECONDS));
+        }, frame -> {});
+        List<String> cleanupThreads = Collections.synchronizedList(new ArrayList<>());
+        pipeline.setConverterCleanup(() -> cleanupThreads.add(Thread.currentThread().getName()));
+        pipeline.submit(pipeline.takeFreeFrame());
+
+        // Giving up on finishing doesn't stop the converter from cleaning up
+        // once it's done.
+        Thread.currentThread().interrupt();
+        try {
+            pipeline.finish(() -> {});
+            fail("Finishing should have been interrupted.");
+        }
+        catch (InterruptedException e) {
+            // Expected
+        }
+        assertTrue(cleanupThreads.isEmpty());
+        unblocked.countDown();
+        for (int i = 0; i < 100 && pipeline.isRunning(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(pipeline.isRunning());
+        assertEquals(List.of("frame-converter"), cleanupThreads);
+    }
+
+    @Test
+    public void testFinishWithoutFrames() throws Exception {
+        FramePipeline<Frame> pipeline = new FramePipeline<>(4, Frame::new, frame -> {}, frame -> {});
+        AtomicInteger cleanups = new AtomicInteger(0);
+        pipeline.setConverterCleanup(cleanups::incrementAndGet);
+        pipeline.finish(() -> fail("Nothing should be running."));
+        assertFalse(pipeline.isRunning());
+        assertEquals(1, cleanups.get());
+        assertFalse(pipeline.hasFailed());
+    }
+}
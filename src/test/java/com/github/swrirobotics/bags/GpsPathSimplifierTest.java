@@ -0,0 +1,135 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.persistence.BagPath;
+import org.junit.Test;
+import org.locationtech.jts.algorithm.distance.DiscreteHausdorffDistance;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.PrecisionModel;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GpsPathSimplifierTest {
+    private final GeometryFactory myGeometryFactory =
+            new GeometryFactory(new PrecisionModel(PrecisionModel.FLOATING), 4326);
+    private final GpsPathSimplifier mySimplifier = new GpsPathSimplifier(myGeometryFactory);
+
+    @Test
+    public void testSimplifyLevels() {
+        // A zigzag whose corners are 0.0005 degrees off of a straight line
+        Coordinate[] coords = {
+                new Coordinate(0.0, 0.0),
+                new Coordinate(0.01, 0.0005),
+                new Coordinate(0.02, 0.0),
+                new Coordinate(0.03, 0.0005),
+                new Coordinate(0.04, 0.0)
+        };
+        Timestamp start = new Timestamp(1000L);
+
+        List<BagPath> paths = mySimplifier.simplify(7L, coords, start);
+
+        assertEquals(GpsPathSimplifier.TOLERANCES.length, paths.size());
+        int[] expectedPoints = {5, 5, 2, 2};
+        for (int i = 0; i < paths.size(); i++) {
+            BagPath path = paths.get(i);
+            assertEquals(Long.valueOf(7L), path.getBagId());
+            assertEquals(i + 1, path.getDetailLevel().intValue());
+            assertEquals(GpsPathSimplifier.TOLERANCES[i], path.getTolerance(), 0.0);
+            assertEquals(expectedPoints[i], path.getPointCount().intValue());
+            assertEquals(expectedPoints[i], path.getPath().getNumPoints());
+            assertEquals(4326, path.getPath().getSRID());
+            assertEquals(start, path.getStartTime());
+        }
+        // The ends of the path are always kept
+        assertEquals(coords[0], paths.get(3).getPath().getCoordinateN(0));
+        assertEquals(coords[4], paths.get(3).getPath().getCoordinateN(1));
+    }
+
+    @Test
+    public void testSimplifiedDistance() {
+        // A random walk with steps of up to about 1 m, so that every level
+        // removes some points
+        Random random = new Random(42);
+        Coordinate[] coords = new Coordinate[5000];
+        double x = 0.0;
+        double y = 0.0;
+        for (int i = 0; i < coords.length; i++) {
+            x += random.nextDouble() * 0.00001;
+            y += (random.nextDouble() - 0.5) * 0.00002;
+            coords[i] = new Coordinate(x, y);
+        }
+        LineString full = myGeometryFactory.createLineString(coords);
+
+        List<BagPath> paths = mySimplifier.simplify(1L, coords, new Timestamp(0L));
+        for (BagPath path : paths) {
+            double distance = DiscreteHausdorffDistance.distance(full, path.getPath());
+            assertTrue("Level " + path.getDetailLevel() + " is " + distance + " degrees from the full path",
+                       distance <= path.getTolerance() * (1.0 + 1e-9));
+            assertTrue(path.getPointCount() < coords.length);
+        }
+    }
+
+    @Test
+    public void testSimplifyShortPath() {
+        assertTrue(mySimplifier.simplify(1L, new Coordinate[]{new Coordinate(0.0, 0.0)},
+                                         new Timestamp(0L)).isEmpty());
+    }
+
+    @Test
+    public void testLevelForZoom() {
+        // About 1.4 degrees per pixel; even the 1 km level is fine
+        assertEquals(4, GpsPathSimplifier.levelForZoom(0));
+        // About 0.0014 degrees per pixel
+        assertEquals(3, GpsPathSimplifier.levelForZoom(10));
+        // About 0.000086 degrees per pixel
+        assertEquals(1, GpsPathSimplifier.levelForZoom(14));
+        // Pixels are smaller than the most detailed simplified level
+        assertEquals(0, GpsPathSimplifier.levelForZoom(18));
+        assertEquals(0, GpsPathSimplifier.levelForZoom(22));
+    }
+
+    @Test
+    public void testLevelForPointBudget() {
+        long[] pointCounts = {1000, 200, 50, 10, 2};
+        assertEquals(0, GpsPathSimplifier.levelForPointBudget(pointCounts, 5000));
+        assertEquals(0, GpsPathSimplifier.levelForPointBudget(pointCounts, 1000));
+        assertEquals(2, GpsPathSimplifier.levelForPointBudget(pointCounts, 100));
+        // Nothing fits, so use the most simplified level
+        assertEquals(4, GpsPathSimplifier.levelForPointBudget(pointCounts, 1));
+    }
+}
@@ -0,0 +1,76 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImageVariantTest {
+    @Test
+    public void testNegotiateFormat() {
+        assertEquals(ImageVariant.Format.JPEG, ImageVariant.negotiateFormat(null, true));
+        assertEquals(ImageVariant.Format.JPEG, ImageVariant.negotiateFormat("*/*", true));
+        assertEquals(ImageVariant.Format.PNG, ImageVariant.negotiateFormat("image/png,image/*;q=0.8", true));
+        assertEquals(ImageVariant.Format.WEBP, ImageVariant.negotiateFormat("image/webp,image/*;q=0.8", true));
+        assertEquals(ImageVariant.Format.JPEG, ImageVariant.negotiateFormat("image/webp,image/*;q=0.8", false));
+        assertEquals(ImageVariant.Format.PNG,
+                     ImageVariant.negotiateFormat("image/jpeg;q=0.5,image/png;q=0.9", true));
+        assertNull(ImageVariant.negotiateFormat("image/gif", true));
+        assertNull(ImageVariant.negotiateFormat("image/webp", false));
+    }
+
+    @Test
+    public void testScaledSize() {
+        ImageVariant variant = new ImageVariant(ImageVariant.Format.JPEG, 320, 320, null);
+        assertArrayEquals(new int[]{320, 240}, variant.getScaledSize(640, 480));
+        assertArrayEquals(new int[]{100, 50}, variant.getScaledSize(100, 50));
+
+        variant = new ImageVariant(ImageVariant.Format.JPEG, null, 120, null);
+        assertArrayEquals(new int[]{160, 120}, variant.getScaledSize(640, 480));
+    }
+
+    @Test
+    public void testCacheParams() {
+        assertTrue(new ImageVariant(ImageVariant.Format.JPEG, null, null, null).isOriginal());
+        assertEquals("jpeg", ImageVariant.ORIGINAL.getCacheParams());
+        assertNotEquals(new ImageVariant(ImageVariant.Format.JPEG, 320, null, 80).getCacheParams(),
+                        new ImageVariant(ImageVariant.Format.WEBP, 320, null, 80).getCacheParams());
+        // PNG is lossless, so its quality doesn't matter
+        assertEquals(new ImageVariant(ImageVariant.Format.PNG, 320, null, 80),
+                     new ImageVariant(ImageVariant.Format.PNG, 320, null, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidQuality() {
+        new ImageVariant(ImageVariant.Format.JPEG, null, null, 101);
+    }
+}
@@ -0,0 +1,133 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class LruFileIndexTest {
+    @Rule
+    public TemporaryFolder myFolder = new TemporaryFolder();
+
+    private void write(LruFileIndex index, String key, int size, long maxBytes) throws IOException {
+        Files.write(index.getFile(key).toPath(), new byte[size]);
+        index.add(key, size, maxBytes);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        LruFileIndex index = new LruFileIndex(myFolder.getRoot(), ".test");
+        write(index, "a", 10, 30);
+        write(index, "b", 10, 30);
+        write(index, "c", 10, 30);
+        assertNotNull(index.get("a"));
+
+        write(index, "d", 10, 30);
+
+        assertEquals(3, index.getFileCount());
+        assertEquals(30, index.getTotalBytes());
+        assertNull(index.get("b"));
+        assertFalse(index.getFile("b").exists());
+        for (String key : new String[]{"a", "c", "d"}) {
+            assertTrue(index.getFile(key).exists());
+        }
+    }
+
+    @Test
+    public void testSizeBound() throws IOException {
+        LruFileIndex index = new LruFileIndex(myFolder.getRoot(), ".test");
+        for (int i = 0; i < 10; i++) {
+            write(index, Integer.toString(i), 100, 250);
+            assertTrue(index.getTotalBytes() <= 250);
+        }
+        assertEquals(2, index.getFileCount());
+        assertEquals(2, myFolder.getRoot().listFiles((dir, name) -> name.endsWith(".test")).length);
+
+        // Replacing a file only counts its new size.
+        write(index, "9", 50, 250);
+        assertEquals(150, index.getTotalBytes());
+
+        index.evict(0);
+        assertEquals(0, index.getFileCount());
+        assertEquals(0, index.getTotalBytes());
+    }
+
+    @Test
+    public void testLoadsExistingFilesInOrderOfUse() throws IOException {
+        long now = System.currentTimeMillis();
+        String[] keys = {"old", "middle", "new"};
+        for (int i = 0; i < keys.length; i++) {
+            File file = new File(myFolder.getRoot(), keys[i] + ".test");
+            Files.write(file.toPath(), new byte[10]);
+            assertTrue(file.setLastModified(now - (keys.length - i) * 60000L));
+        }
+        assertTrue(new File(myFolder.getRoot(), "ignored.tmp").createNewFile());
+
+        LruFileIndex index = new LruFileIndex(myFolder.getRoot(), ".test");
+        assertEquals(3, index.getFileCount());
+        assertEquals(30, index.getTotalBytes());
+
+        index.evict(20);
+        assertNull(index.get("old"));
+        assertNotNull(index.get("middle"));
+        assertNotNull(index.get("new"));
+        assertTrue(new File(myFolder.getRoot(), "ignored.tmp").exists());
+    }
+
+    @Test
+    public void testRemove() throws IOException {
+        LruFileIndex index = new LruFileIndex(myFolder.getRoot(), ".test");
+        write(index, "1-0-0", 10, 100);
+        write(index, "2-1-1", 10, 100);
+        write(index, "2-3-3", 10, 100);
+
+        assertTrue(index.remove("1-0-0"));
+        assertFalse(index.remove("1-0-0"));
+        assertFalse(index.getFile("1-0-0").exists());
+        assertEquals(20, index.getTotalBytes());
+
+        assertEquals(1, index.removeIf(key -> key.startsWith("2-1-")));
+        assertEquals(1, index.getFileCount());
+        assertEquals(10, index.getTotalBytes());
+        assertTrue(index.getFile("2-3-3").exists());
+
+        index.clear();
+        assertEquals(0, index.getFileCount());
+        assertFalse(index.getFile("2-3-3").exists());
+    }
+}
@@ -0,0 +1,151 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.persistence.Bag;
+import com.github.swrirobotics.support.web.BagFacets;
+import com.github.swrirobotics.support.web.BagSummary;
+import com.github.swrirobotics.support.web.BagSummaryList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class SearchCacheTest {
+    private SearchCounter myCounter;
+    private SearchCache myCache;
+    private final AtomicInteger mySearches = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        myCounter = mock(SearchCounter.class);
+        myCache = new SearchCache(myCounter);
+        mySearches.set(0);
+    }
+
+    private static BagSummaryList makeResults(long... bagIds) {
+        BagSummaryList results = new BagSummaryList(Lists.newArrayList(), bagIds.length);
+        for (long bagId : bagIds) {
+            Bag bag = new Bag();
+            bag.setId(bagId);
+            results.getBags().add(new BagSummary(bag));
+        }
+        return results;
+    }
+
+    private BagSummaryList search(String queryKey, boolean searchesTags, long... bagIds) {
+        return myCache.get(queryKey, "page:1", searchesTags, () -> {
+            mySearches.incrementAndGet();
+            return makeResults(bagIds);
+        });
+    }
+
+    @Test
+    public void testRepeatedSearchIsCached() {
+        BagSummaryList first = search("query", false, 1L, 2L);
+        assertSame(first, search("query", false, 1L, 2L));
+        assertEquals(1, mySearches.get());
+
+        myCache.get("query", "page:2", false, () -> {
+            mySearches.incrementAndGet();
+            return makeResults(3L);
+        });
+        assertEquals(2, mySearches.get());
+    }
+
+    @Test
+    public void testTagChangesOnlyInvalidateAffectedSearches() {
+        search("contains bag 1", false, 1L, 2L);
+        search("searches tags", true, 3L);
+        search("unaffected", false, 3L, 4L);
+
+        myCache.onBagChange(new BagChangeEvent(BagChangeEvent.Type.TAGGED, 1L));
+
+        search("contains bag 1", false, 1L, 2L);
+        search("searches tags", true, 3L);
+        search("unaffected", false, 3L, 4L);
+        assertEquals(5, mySearches.get());
+    }
+
+    @Test
+    public void testOtherChangesInvalidateEverything() {
+        search("query", false, 1L);
+        myCache.onBagChange(new BagChangeEvent(BagChangeEvent.Type.UPDATED, 2L));
+        search("query", false, 1L);
+        assertEquals(2, mySearches.get());
+    }
+
+    @Test
+    public void testChangeDuringSearchIsNotCached() {
+        myCache.get("query", "page:1", false, () -> {
+            mySearches.incrementAndGet();
+            myCache.onBagChange(BagChangeEvent.allBags(BagChangeEvent.Type.ADDED));
+            return makeResults(1L);
+        });
+        search("query", false, 1L);
+        assertEquals(2, mySearches.get());
+    }
+
+    @Test
+    public void testFacetsAreCachedUntilAnyChange() {
+        BagFacets facets = myCache.getFacets("query", "limit:10", () -> {
+            mySearches.incrementAndGet();
+            return new BagFacets();
+        });
+        assertSame(facets, myCache.getFacets("query", "limit:10", BagFacets::new));
+
+        // Even a tag change on a bag that isn't in any cached page affects facets
+        myCache.onBagChange(new BagChangeEvent(BagChangeEvent.Type.TAGGED, 5L));
+        assertNotSame(facets, myCache.getFacets("query", "limit:10", BagFacets::new));
+        assertEquals(1, mySearches.get());
+    }
+
+    @Test
+    public void testApproximateCountIsRefined() {
+        myCache.get("query", "page:1", false, () -> {
+            BagSummaryList results = makeResults(1L);
+            results.setTotalCount(10000);
+            results.setTotalCountApproximate(true);
+            results.setCountId("id");
+            return results;
+        });
+        when(myCounter.getCachedCount("query")).thenReturn(12345L);
+
+        BagSummaryList results = search("query", false, 1L);
+        assertEquals(12345L, results.getTotalCount());
+        assertFalse(results.isTotalCountApproximate());
+        assertNull(results.getCountId());
+    }
+}
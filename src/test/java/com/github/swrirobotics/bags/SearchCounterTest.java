@@ -0,0 +1,104 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class SearchCounterTest {
+    private SimpMessagingTemplate myTemplate;
+    private SearchCounter myCounter;
+    private final AtomicInteger myExactCounts = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        myTemplate = mock(SimpMessagingTemplate.class);
+        myCounter = new SearchCounter(myTemplate, 10, MoreExecutors.newDirectExecutorService());
+        myExactCounts.set(0);
+    }
+
+    private SearchCounter.Count count(String key, long total) {
+        return myCounter.count(key, limit -> Math.min(limit, total), () -> {
+            myExactCounts.incrementAndGet();
+            return total;
+        });
+    }
+
+    @Test
+    public void testSmallCountIsExactAndCached() {
+        SearchCounter.Count count = count("small", 7);
+        assertEquals(7, count.getValue());
+        assertFalse(count.isApproximate());
+        assertEquals(Long.valueOf(7), myCounter.getCachedCount("small"));
+
+        // Cached counts are returned without counting again
+        count = myCounter.count("small", limit -> { throw new AssertionError(); }, () -> 0);
+        assertEquals(7, count.getValue());
+        assertEquals(0, myExactCounts.get());
+        verifyNoInteractions(myTemplate);
+    }
+
+    @Test
+    public void testLargeCountIsApproximateThenRefined() {
+        SearchCounter.Count count = count("large", 25);
+        assertEquals(10, count.getValue());
+        assertTrue(count.isApproximate());
+        assertEquals(SearchCounter.getCountId("large"), count.getCountId());
+
+        // The direct executor refines the count before count() returns
+        assertEquals(1, myExactCounts.get());
+        verify(myTemplate).convertAndSend(eq(SearchCounter.COUNT_TOPIC),
+                                          argThat((SearchCounter.CountUpdate update) ->
+                                              update.getCountId().equals(count.getCountId()) &&
+                                                  update.getTotalCount() == 25));
+
+        SearchCounter.Count refined = count("large", 25);
+        assertEquals(25, refined.getValue());
+        assertFalse(refined.isApproximate());
+        assertEquals(1, myExactCounts.get());
+    }
+
+    @Test
+    public void testClear() {
+        count("small", 7);
+        myCounter.clear();
+        assertNull(myCounter.getCachedCount("small"));
+        assertEquals(3, count("small", 3).getValue());
+    }
+}
@@ -0,0 +1,70 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import org.junit.Test;
+
+import java.sql.Timestamp;
+
+import static org.junit.Assert.*;
+
+public class SearchCursorTest {
+    @Test
+    public void testRoundTrip() {
+        Timestamp timestamp = new Timestamp(1500000000123L);
+        timestamp.setNanos(123456789);
+        for (Object value : new Object[]{null, "path/to/a.bag", timestamp, 42L, 7, 3.5, true}) {
+            SearchCursor cursor = SearchCursor.decode(
+                new SearchCursor("sort", false, value, 12L, 345L).encode());
+            assertEquals("sort", cursor.getSort());
+            assertFalse(cursor.isAscending());
+            assertEquals(value, cursor.getLastValue());
+            assertEquals(12L, cursor.getLastId());
+            assertEquals(345L, cursor.getTotalCount());
+        }
+    }
+
+    @Test
+    public void testLongString() {
+        // Longer than DataOutputStream.writeUTF can handle
+        String description = "\u00e9".repeat(40000);
+        SearchCursor cursor = SearchCursor.decode(
+            new SearchCursor("description", true, description, 3L, 4L).encode());
+        assertEquals("description", cursor.getSort());
+        assertEquals(description, cursor.getLastValue());
+        assertEquals(3L, cursor.getLastId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCursor() {
+        SearchCursor.decode("not a cursor");
+    }
+}
@@ -0,0 +1,186 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.bags.reader.BagFile;
+import com.github.swrirobotics.bags.reader.messages.serialization.ArrayType;
+import com.github.swrirobotics.bags.reader.messages.serialization.MessageType;
+import com.github.swrirobotics.bags.storage.BagWrapper;
+import com.github.swrirobotics.bags.storage.filesystem.FilesystemBagStorageImpl;
+import com.github.swrirobotics.config.ConfigService;
+import com.github.swrirobotics.config.WebAppConfigurationAware;
+import com.github.swrirobotics.persistence.Bag;
+import com.github.swrirobotics.persistence.BagRepository;
+import com.github.swrirobotics.persistence.MessageTypeRepository;
+import com.github.swrirobotics.persistence.Topic;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that sprite sheets are generated in the background for bags once
+ * they have been added to the database.
+ */
+@ContextConfiguration(classes = SpriteSheetGenerationTest.StorageConfig.class)
+public class SpriteSheetGenerationTest extends WebAppConfigurationAware {
+    private static final String STORAGE_ID = "sprites";
+    private static final String TOPIC = "/camera/image/compressed";
+    private static final long MESSAGE_COUNT = 20;
+
+    /**
+     * Replaces the default filesystem storage with one whose bags are mocks.
+     */
+    @Configuration
+    static class StorageConfig {
+        @Bean
+        @Primary
+        public FilesystemBagStorageImpl spriteStorage() {
+            FilesystemBagStorageImpl storage = mock(FilesystemBagStorageImpl.class);
+            when(storage.getStorageId()).thenReturn(STORAGE_ID);
+            return storage;
+        }
+    }
+
+    @Autowired
+    BagService myBagService;
+    @Autowired
+    BagRepository myBagRepository;
+    @Autowired
+    MessageTypeRepository myMTRepository;
+    @Autowired
+    FilesystemBagStorageImpl myStorage;
+    @Autowired
+    PlatformTransactionManager myTransactionManager;
+    @MockBean
+    ConfigService myConfigService;
+
+    @Test
+    public void testSpriteSheetGeneratedForNewBag() throws Exception {
+        BagFile bagFile = mock(BagFile.class);
+        MessageType message = makeCompressedImage(64, 32);
+        when(bagFile.generateIndexesForTopicList(eq(List.of(TOPIC)), any()))
+                .thenReturn(Collections.nCopies((int) MESSAGE_COUNT, null));
+        when(bagFile.getMessageFromIndex(any(), anyInt())).thenReturn(message);
+        BagWrapper wrapper = mock(BagWrapper.class);
+        when(wrapper.getBagFile()).thenReturn(bagFile);
+        when(myStorage.getBagWrapper(any())).thenReturn(wrapper);
+
+        // Add the bag the same way that scanning for new bags does; the
+        // sprite sheet can't be generated until it's been committed.
+        com.github.swrirobotics.persistence.MessageType type = new com.github.swrirobotics.persistence.MessageType();
+        type.setName("sensor_msgs/CompressedImage");
+        type.setMd5sum("8f7a12909da2c9d3332d540a0977563f");
+        TransactionTemplate template = new TransactionTemplate(myTransactionManager);
+        Long bagId = template.execute(status -> {
+            com.github.swrirobotics.persistence.MessageType savedType = myMTRepository.save(type);
+
+            Bag bag = new Bag();
+            bag.setMd5sum("sprites");
+            bag.setCreatedOn(new Timestamp(System.currentTimeMillis()));
+            bag.setDuration(0.0);
+            bag.setStartTime(new Timestamp(System.currentTimeMillis()));
+            bag.setEndTime(new Timestamp(System.currentTimeMillis()));
+            bag.setFilename("sprites.bag");
+            bag.setPath("/test/");
+            bag.setVersion("2.0");
+            bag.setCompressed(false);
+            bag.setIndexed(true);
+            bag.setMessageCount(MESSAGE_COUNT);
+            bag.setMissing(false);
+            bag.setSize(0L);
+            bag.setStorageId(STORAGE_ID);
+            bag.getMessageTypes().add(savedType);
+            bag = myBagRepository.save(bag);
+            Topic topic = new Topic();
+            topic.setTopicName(TOPIC);
+            topic.setType(savedType);
+            topic.setMessageCount(MESSAGE_COUNT);
+            topic.setConnectionCount(1L);
+            topic.setBag(bag);
+            bag.getTopics().add(topic);
+            bag = myBagRepository.save(bag);
+            myBagService.publishBagChange(new BagChangeEvent(BagChangeEvent.Type.ADDED, bag.getId()));
+            return bag.getId();
+        });
+
+        try {
+            verify(bagFile, timeout(10000).times((int) MESSAGE_COUNT)).getMessageFromIndex(any(), anyInt());
+
+            // The sheet that was generated in the background should be
+            // returned without reading the bag again.
+            SpriteSheet sheet = myBagService.getSpriteSheet(bagId, TOPIC);
+            verify(bagFile, times((int) MESSAGE_COUNT)).getMessageFromIndex(any(), anyInt());
+            // Only the sampled messages should have been read from the bag.
+            verify(bagFile, never()).forMessagesOnTopic(eq(TOPIC), any());
+            assertEquals(160, sheet.getTileWidth());
+            assertEquals(80, sheet.getTileHeight());
+            assertEquals(MESSAGE_COUNT, sheet.getMessageIndexes().length);
+        }
+        finally {
+            template.executeWithoutResult(status -> {
+                myBagRepository.deleteById(bagId);
+                myMTRepository.delete(type);
+            });
+        }
+    }
+
+    private static MessageType makeCompressedImage(int width, int height) throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", png);
+        ArrayType data = mock(ArrayType.class);
+        when(data.getAsBytes()).thenReturn(png.toByteArray());
+
+        MessageType message = mock(MessageType.class);
+        when(message.getPackage()).thenReturn("sensor_msgs");
+        when(message.getType()).thenReturn("CompressedImage");
+        doReturn(data).when(message).getField("data");
+        return message;
+    }
+}
@@ -0,0 +1,76 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.bags.reader.messages.serialization.MessageCollection;
+import com.github.swrirobotics.bags.reader.messages.serialization.MessageType;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+
+import static org.junit.Assert.*;
+
+public class SpriteSheetTest {
+    @Test
+    public void testBuildSpriteSheet() throws Exception {
+        int[] decoded = {0};
+        SpriteSheet.Builder builder = new SpriteSheet.Builder(25, 10, 16, 4, message -> {
+            decoded[0]++;
+            return new BufferedImage(32, 16, BufferedImage.TYPE_INT_RGB);
+        });
+        for (int i = 0; i < 25; i++) {
+            MessageType msg = new MessageType("MSG: std_msgs/String\nstring data", new MessageCollection());
+            builder.process(msg, null);
+        }
+        SpriteSheet sheet = builder.build();
+
+        // Only the sampled messages should be decoded.
+        assertEquals(10, decoded[0]);
+        assertEquals(16, sheet.getTileWidth());
+        assertEquals(8, sheet.getTileHeight());
+        assertEquals(4, sheet.getColumns());
+        assertArrayEquals(new long[]{0, 2, 5, 7, 10, 12, 15, 17, 20, 22}, sheet.getMessageIndexes());
+        // Unstamped messages are assumed to be 10 Hz.
+        assertEquals(0.5, sheet.getTimes()[2], 0.001);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(sheet.getImage()));
+        assertEquals(4 * 16, image.getWidth());
+        assertEquals(3 * 8, image.getHeight());
+
+        SpriteSheet copy = SpriteSheet.fromBytes(sheet.toBytes());
+        assertArrayEquals(sheet.getMessageIndexes(), copy.getMessageIndexes());
+        assertArrayEquals(sheet.getImage(), copy.getImage());
+    }
+}
@@ -0,0 +1,119 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.bags.reader.BagFile;
+import com.github.swrirobotics.bags.reader.MessageHandler;
+import com.github.swrirobotics.bags.reader.exceptions.BagReaderException;
+import com.github.swrirobotics.bags.reader.messages.serialization.MessageCollection;
+import com.github.swrirobotics.bags.reader.messages.serialization.MessageType;
+import com.github.swrirobotics.bags.reader.messages.serialization.StringType;
+import com.github.swrirobotics.bags.reader.records.Connection;
+import com.github.swrirobotics.persistence.Topic;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class TopicStatisticsTest {
+    private static final long SECOND_NS = 1000000000L;
+
+    @Test
+    public void testStampedRates() {
+        TopicStatistics stats = new TopicStatistics();
+        stats.addStamp(10 * SECOND_NS);
+        stats.addStamp(10 * SECOND_NS + SECOND_NS / 10);
+        stats.addStamp(10 * SECOND_NS + SECOND_NS / 2);
+        // Record times are ignored when there are header stamps
+        stats.addRecordTime(50 * SECOND_NS);
+        stats.addRecordTime(60 * SECOND_NS);
+
+        assertEquals(0.5, stats.getDurationS(), 1e-9);
+        assertEquals(4.0, stats.getMeanFrequency(), 1e-9);
+        assertEquals(2.5, stats.getMinFrequency(), 1e-9);
+        assertEquals(10.0, stats.getMaxFrequency(), 1e-9);
+    }
+
+    @Test
+    public void testRecordTimesWithoutStamps() {
+        TopicStatistics stats = new TopicStatistics();
+        for (int i = 0; i < 11; i++) {
+            stats.addRecordTime(i * SECOND_NS / 5);
+        }
+
+        Topic topic = new Topic();
+        stats.applyTo(topic);
+        assertEquals(2.0, stats.getDurationS(), 1e-9);
+        assertEquals(5.0, topic.getMeanFrequency(), 1e-9);
+        assertEquals(0L, topic.getStartTime().getTime());
+        assertEquals(2000L, topic.getEndTime().getTime());
+        // There were no data arrays to measure
+        assertNull(topic.getTotalBytes());
+    }
+
+    @Test
+    public void testMessageBytes() {
+        TopicStatistics stats = new TopicStatistics();
+        stats.addMessageBytes(100);
+        stats.addMessageBytes(300);
+        assertEquals(Long.valueOf(400), stats.getTotalBytes());
+        assertEquals(Long.valueOf(300), stats.getMaxMessageBytes());
+    }
+
+    @Test
+    public void testCollectReadsBagOnce() throws BagReaderException {
+        BagFile bagFile = mock(BagFile.class);
+        Connection chatter = mock(Connection.class);
+        when(chatter.getTopic()).thenReturn("/chatter");
+        Connection rosout = mock(Connection.class);
+        when(rosout.getTopic()).thenReturn("/rosout");
+        doAnswer((i) -> {
+            MessageHandler handler = i.getArgument(1, MessageHandler.class);
+            for (Connection connection : new Connection[]{chatter, rosout, chatter}) {
+                MessageType msg = new MessageType("MSG: std_msgs/String\nstring data", new MessageCollection());
+                msg.<StringType>getField("data").setValue("hello");
+                handler.process(msg, connection);
+            }
+            return null;
+        }).when(bagFile).forMessagesOnTopics(any(), any());
+
+        Map<String, TopicStatistics> statistics = TopicStatistics.collect(bagFile, List.of("/chatter", "/rosout"));
+
+        assertEquals(2, statistics.get("/chatter").getMessageCount());
+        assertEquals(1, statistics.get("/rosout").getMessageCount());
+        verify(bagFile, times(1)).forMessagesOnTopics(any(), any());
+        verify(bagFile, never()).forMessagesOnTopic(any(), any());
+    }
+}
@@ -0,0 +1,146 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.config.ConfigService;
+import com.github.swrirobotics.support.web.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class VideoCacheTest {
+    @Rule
+    public TemporaryFolder myFolder = new TemporaryFolder();
+
+    private VideoCache myCache;
+
+    @Before
+    public void setUp() throws IOException {
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getConfiguration()).thenReturn(new Configuration());
+        when(configService.getCacheDirectory("videos")).thenReturn(myFolder.getRoot());
+        myCache = new VideoCache(configService, new EncoderPool(configService));
+    }
+
+    @After
+    public void tearDown() {
+        myCache.destroy();
+    }
+
+    @Test
+    public void testConcurrentRequestsShareTranscode() throws Exception {
+        AtomicInteger encodeCount = new AtomicInteger(0);
+        CountDownLatch secondClientAttached = new CountDownLatch(1);
+        VideoCache.VideoEncoder encoder = output -> {
+            encodeCount.incrementAndGet();
+            try {
+                output.write(new byte[]{1, 2, 3});
+                // Don't finish until the second client has joined.
+                assertTrue(secondClientAttached.await(10, TimeUnit.SECONDS));
+                output.write(new byte[]{4, 5});
+            }
+            catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        Thread firstClient = new Thread(() -> {
+            try {
+                myCache.writeVideo("key", encoder, first);
+            }
+            catch (IOException | EncoderPoolFullException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        firstClient.start();
+
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        Thread secondClient = new Thread(() -> {
+            try {
+                myCache.writeVideo("key", encoder, second);
+            }
+            catch (IOException | EncoderPoolFullException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        // Give the first client a chance to start the transcode.
+        while (encodeCount.get() == 0) {
+            Thread.sleep(10);
+        }
+        secondClient.start();
+        Thread.sleep(100);
+        secondClientAttached.countDown();
+
+        firstClient.join(10000);
+        secondClient.join(10000);
+
+        assertEquals(1, encodeCount.get());
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, first.toByteArray());
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, second.toByteArray());
+
+        // Later requests are served from the cache.
+        assertNotNull(myCache.getCompletedVideo("key"));
+        ByteArrayOutputStream third = new ByteArrayOutputStream();
+        myCache.writeVideo("key", encoder, third);
+        assertEquals(1, encodeCount.get());
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, third.toByteArray());
+    }
+
+    @Test
+    public void testFailedTranscodeIsNotCached() throws EncoderPoolFullException {
+        VideoCache.VideoEncoder encoder = output -> {
+            throw new NonexistentBagException("Bag not found");
+        };
+
+        try {
+            myCache.writeVideo("key", encoder, new ByteArrayOutputStream());
+            fail("Expected an exception.");
+        }
+        catch (IOException e) {
+            // Expected
+        }
+        assertNull(myCache.getCompletedVideo("key"));
+    }
+}
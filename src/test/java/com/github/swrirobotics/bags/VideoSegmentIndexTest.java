@@ -0,0 +1,92 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+
+package com.github.swrirobotics.bags;
+
+import com.github.swrirobotics.bags.reader.messages.serialization.MessageCollection;
+import com.github.swrirobotics.bags.reader.messages.serialization.MessageType;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VideoSegmentIndexTest {
+    @Test
+    public void testUnstampedSegments() throws Exception {
+        VideoSegmentIndex.Builder builder = new VideoSegmentIndex.Builder();
+        for (int i = 0; i < 100; i++) {
+            MessageType msg = new MessageType("MSG: std_msgs/String\nstring data", new MessageCollection());
+            assertTrue(builder.process(msg, null));
+        }
+        VideoSegmentIndex index = builder.build();
+
+        // Unstamped messages are assumed to be 10 Hz, so 100 of them last 10 s.
+        assertEquals(3, index.getSegmentCount());
+        assertEquals(10.0, index.getDurationS(), 0.001);
+        assertEquals(0.0, index.getSegment(0).getStartS(), 0.001);
+        assertEquals(4.0, index.getSegment(1).getStartS(), 0.001);
+        assertEquals(40, index.getSegment(1).getFrameCount());
+        assertEquals(80, index.getFirstMessage(2));
+        assertEquals(20, index.getSegment(2).getFrameCount());
+        assertEquals(2.0, index.getSegment(2).getDurationS(), 0.001);
+        assertNull(index.getSegment(3));
+
+        VideoSegmentIndex copy = VideoSegmentIndex.fromBytes(index.toBytes());
+        assertEquals(index.getSegmentCount(), copy.getSegmentCount());
+        assertEquals(index.getDurationS(), copy.getDurationS(), 0.0);
+        assertEquals(index.getFirstMessage(2), copy.getFirstMessage(2));
+    }
+
+    @Test
+    public void testSplit() {
+        VideoSegmentIndex.Builder builder = new VideoSegmentIndex.Builder();
+        for (int i = 0; i < 100; i++) {
+            builder.process(new MessageType("MSG: std_msgs/String\nstring data", new MessageCollection()), null);
+        }
+        VideoSegmentIndex index = builder.build();
+
+        List<VideoSegmentIndex.Segment> ranges = index.split(2);
+        assertEquals(2, ranges.size());
+        assertEquals(0, ranges.get(0).getFirstMessage());
+        assertEquals(40, ranges.get(0).getFrameCount());
+        assertEquals(40, ranges.get(1).getFirstMessage());
+        assertEquals(60, ranges.get(1).getFrameCount());
+        assertEquals(4.0, ranges.get(1).getStartS(), 0.001);
+        assertEquals(6.0, ranges.get(1).getDurationS(), 0.001);
+
+        // There can't be more ranges than segments.
+        ranges = index.split(8);
+        assertEquals(3, ranges.size());
+        assertEquals(100, ranges.stream().mapToLong(VideoSegmentIndex.Segment::getFrameCount).sum());
+    }
+}
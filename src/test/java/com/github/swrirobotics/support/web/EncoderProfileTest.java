@@ -0,0 +1,99 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+package com.github.swrirobotics.support.web;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class EncoderProfileTest {
+    private static EncoderProfile getDefault(String name) {
+        for (EncoderProfile profile : EncoderProfile.getDefaults()) {
+            if (profile.getName().equals(name)) {
+                return profile;
+            }
+        }
+        fail("No default profile named " + name);
+        return null;
+    }
+
+    @Test
+    public void testDefaults() {
+        List<EncoderProfile> profiles = EncoderProfile.getDefaults();
+        // The first profile is used when nothing else matches.
+        assertEquals("default", profiles.get(0).getName());
+
+        Set<String> names = new HashSet<>();
+        Set<String> cacheParams = new HashSet<>();
+        for (EncoderProfile profile : profiles) {
+            assertTrue(names.add(profile.getName()));
+            // Videos encoded with different profiles must be cached separately.
+            assertTrue(cacheParams.add(profile.getCacheParams()));
+            assertTrue(profile.getCodec().startsWith("libvpx"));
+        }
+        assertEquals(Set.of("default", "fast", "realtime", "quality"), names);
+
+        EncoderProfile defaultProfile = getDefault("default");
+        assertEquals("1M", defaultProfile.getBitrate());
+        assertEquals(10, (int) defaultProfile.getCrf());
+        assertEquals(0, (int) defaultProfile.getMaxDimension());
+        assertEquals(0.0, defaultProfile.getTargetFps(), 0.0);
+
+        EncoderProfile fast = getDefault("fast");
+        assertEquals(28, (int) fast.getCrf());
+        assertEquals(400, (int) fast.getMaxDimension());
+        assertEquals(0.0, fast.getTargetFps(), 0.0);
+    }
+
+    @Test
+    public void testGetFrameSkip() {
+        EncoderProfile profile = new EncoderProfile("test", "", null, "", null, 0, 15.0);
+        assertEquals(1, profile.getFrameSkip(null));
+        assertEquals(1, profile.getFrameSkip(0.0));
+        assertEquals(1, profile.getFrameSkip(10.0));
+        assertEquals(1, profile.getFrameSkip(15.0));
+        assertEquals(2, profile.getFrameSkip(30.0));
+        assertEquals(4, profile.getFrameSkip(60.0));
+        // Rounds to the closest rate
+        assertEquals(2, profile.getFrameSkip(25.0));
+        assertEquals(3, profile.getFrameSkip(40.0));
+
+        // Profiles without a target keep every frame.
+        assertEquals(1, new EncoderProfile("all", "", null, "", null, 0, 0.0).getFrameSkip(60.0));
+        assertEquals(1, new EncoderProfile("all", "", null, "", null, 0, null).getFrameSkip(60.0));
+        assertEquals(1, getDefault("quality").getFrameSkip(60.0));
+        assertEquals(2, getDefault("realtime").getFrameSkip(30.0));
+    }
+}
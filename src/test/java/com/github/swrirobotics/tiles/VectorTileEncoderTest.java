@@ -0,0 +1,78 @@
+// *****************************************************************************
+//
+// Copyright (c) 2015, Southwest Research Institute® (SwRI®)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of Southwest Research Institute® (SwRI®) nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+// ARE DISCLAIMED. IN NO EVENT SHALL Southwest Research Institute® BE LIABLE 
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL 
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY 
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+//
+// *****************************************************************************
+
+
+package com.github.swrirobotics.tiles;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VectorTileEncoderTest {
+    @Test
+    public void testEmptyTile() {
+        VectorTileEncoder encoder = new VectorTileEncoder("bags");
+        encoder.addLineFeature(1L, Collections.singletonList(new int[]{5, 5}));
+        assertEquals(0, encoder.getFeatureCount());
+        assertEquals(0, encoder.encode().length);
+    }
+
+    @Test
+    public void testLineFeature() {
+        VectorTileEncoder encoder = new VectorTileEncoder("bags");
+        List<int[]> lines = new ArrayList<>();
+        lines.add(new int[]{0, 0, 10, 0});
+        encoder.addLineFeature(7L, lines);
+        assertEquals(1, encoder.getFeatureCount());
+
+        byte[] tile = encoder.encode();
+        // The tile should consist of a single layer (field 3, length-delimited)
+        assertEquals(0x1A, tile[0]);
+        // MoveTo(1) (0, 0), LineTo(1) (+10, 0)
+        assertTrue(containsSequence(tile, new byte[]{9, 0, 0, 10, 20, 0}));
+    }
+
+    private static boolean containsSequence(byte[] data, byte[] sequence) {
+        for (int i = 0; i <= data.length - sequence.length; i++) {
+            boolean matches = true;
+            for (int j = 0; j < sequence.length && matches; j++) {
+                matches = data[i + j] == sequence[j];
+            }
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+}